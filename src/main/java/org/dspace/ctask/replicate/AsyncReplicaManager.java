@@ -0,0 +1,362 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.replicate;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dspace.services.ConfigurationService;
+import org.dspace.services.factory.DSpaceServicesFactory;
+
+/**
+ * Asynchronous access point to the replica store. Each operation of the
+ * ReplicaManager (with the same bookkeeping) is run on a background thread,
+ * and a Future returned, so that a task may carry on - e.g. with packing
+ * the next object - while the store does its work.
+ * <P>
+ * The number of operations in flight on any one store group is limited by
+ * 'replicate.async.inflight' (or 'replicate.async.inflight.&lt;group&gt;' for
+ * a particular group). When a group is at its limit, further requests on it
+ * wait for an earlier one to finish before being accepted.
+ *
+ * @see ReplicaManager
+ */
+public class AsyncReplicaManager
+{
+    private ConfigurationService configurationService = DSpaceServicesFactory.getInstance().getConfigurationService();
+
+    // singleton instance
+    private static AsyncReplicaManager instance = null;
+    // the synchronous manager doing the work
+    private final ReplicaManager repMan;
+    // runs the operations - their number is bounded by the group semaphores
+    private final ExecutorService executor;
+    // limits on operations in flight, by store group
+    private final Map<String, Semaphore> inFlight = new HashMap<String, Semaphore>();
+    // default limit on operations in flight on a group
+    private final int defaultLimit;
+
+    private AsyncReplicaManager() throws IOException
+    {
+        this(ReplicaManager.instance());
+    }
+
+    /**
+     * Creates a manager running the operations of the passed ReplicaManager,
+     * rather than of the shared instance.
+     * @param repMan the manager doing the work
+     */
+    AsyncReplicaManager(ReplicaManager repMan)
+    {
+        this.repMan = repMan;
+        defaultLimit = Math.max(1, configurationService.getIntProperty("replicate.async.inflight", 4));
+        executor = Executors.newCachedThreadPool(new ThreadFactory()
+        {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "replicate-async-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public static synchronized AsyncReplicaManager instance() throws IOException
+    {
+        if (instance == null)
+        {
+            instance = new AsyncReplicaManager();
+        }
+        return instance;
+    }
+
+    /**
+     * Fetches an object to the staging area.
+     * @see ReplicaManager#fetchObject(String, String)
+     */
+    public Future<File> fetchObject(final String group, final String objId) throws IOException
+    {
+        return submit(group, new Callable<File>()
+        {
+            @Override
+            public File call() throws IOException
+            {
+                return repMan.fetchObject(group, objId);
+            }
+        });
+    }
+
+    /**
+     * Transfers a staged file to the store.
+     * @see ReplicaManager#transferObject(String, File)
+     */
+    public Future<Void> transferObject(final String group, final File file) throws IOException
+    {
+        return submit(group, new Callable<Void>()
+        {
+            @Override
+            public Void call() throws IOException
+            {
+                repMan.transferObject(group, file);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * @see ReplicaManager#objectExists(String, String)
+     */
+    public Future<Boolean> objectExists(final String group, final String objId) throws IOException
+    {
+        return submit(group, new Callable<Boolean>()
+        {
+            @Override
+            public Boolean call() throws IOException
+            {
+                return repMan.objectExists(group, objId);
+            }
+        });
+    }
+
+    /**
+     * @see ReplicaManager#objectAttribute(String, String, String)
+     */
+    public Future<String> objectAttribute(final String group, final String objId, final String attrName)
+        throws IOException
+    {
+        return submit(group, new Callable<String>()
+        {
+            @Override
+            public String call() throws IOException
+            {
+                return repMan.objectAttribute(group, objId, attrName);
+            }
+        });
+    }
+
+    /**
+     * @see ReplicaManager#removeObject(String, String)
+     */
+    public Future<Void> removeObject(final String group, final String objId) throws IOException
+    {
+        return submit(group, new Callable<Void>()
+        {
+            @Override
+            public Void call() throws IOException
+            {
+                repMan.removeObject(group, objId);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Removes several objects, as bulk requests to the store.
+     * @see ReplicaManager#removeObjects(String, List)
+     */
+    public Future<Integer> removeObjects(final String group, final List<String> objIds) throws IOException
+    {
+        return submit(group, new Callable<Integer>()
+        {
+            @Override
+            public Integer call() throws IOException
+            {
+                return repMan.removeObjects(group, objIds);
+            }
+        });
+    }
+
+    /**
+     * Moves an object between groups. It counts against the limits of
+     * both groups.
+     * @see ReplicaManager#moveObject(String, String, String)
+     */
+    public Future<Boolean> moveObject(final String srcGroup, final String destGroup, final String objId)
+        throws IOException
+    {
+        if (srcGroup.equals(destGroup))
+        {
+            return submit(srcGroup, new Callable<Boolean>()
+            {
+                @Override
+                public Boolean call() throws IOException
+                {
+                    return repMan.moveObject(srcGroup, destGroup, objId);
+                }
+            });
+        }
+        // take permits in a consistent order, so two opposite moves cannot deadlock
+        final Semaphore first = semaphore(srcGroup.compareTo(destGroup) < 0 ? srcGroup : destGroup);
+        final Semaphore second = semaphore(srcGroup.compareTo(destGroup) < 0 ? destGroup : srcGroup);
+        acquire(first);
+        try
+        {
+            return submit(second, new Callable<Boolean>()
+            {
+                @Override
+                public Boolean call() throws IOException
+                {
+                    try
+                    {
+                        return repMan.moveObject(srcGroup, destGroup, objId);
+                    }
+                    finally
+                    {
+                        first.release();
+                    }
+                }
+            });
+        }
+        catch (IOException | RuntimeException e)
+        {
+            first.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Waits for all the passed operations to finish.
+     * @param futures operations to wait for
+     * @throws IOException the first failure of any operation, once all have finished
+     */
+    public static void awaitAll(Collection<? extends Future<?>> futures) throws IOException
+    {
+        IOException failure = null;
+        for (Future<?> future : futures)
+        {
+            try
+            {
+                await(future);
+            }
+            catch (IOException ioE)
+            {
+                if (failure == null)
+                {
+                    failure = ioE;
+                }
+            }
+        }
+        if (failure != null)
+        {
+            throw failure;
+        }
+    }
+
+    /**
+     * Waits for an operation to finish.
+     * @param future the operation
+     * @return result of the operation
+     * @throws IOException if the operation failed, or the wait was interrupted
+     */
+    public static <T> T await(Future<T> future) throws IOException
+    {
+        try
+        {
+            return future.get();
+        }
+        catch (InterruptedException intE)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting on replica store", intE);
+        }
+        catch (ExecutionException exE)
+        {
+            Throwable cause = exE.getCause();
+            if (cause instanceof IOException)
+            {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException)
+            {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error)
+            {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private synchronized Semaphore semaphore(String group)
+    {
+        Semaphore semaphore = inFlight.get(group);
+        if (semaphore == null)
+        {
+            int limit = configurationService.getIntProperty("replicate.async.inflight." + group, defaultLimit);
+            semaphore = new Semaphore(Math.max(1, limit));
+            inFlight.put(group, semaphore);
+        }
+        return semaphore;
+    }
+
+    private <T> Future<T> submit(String group, Callable<T> op) throws IOException
+    {
+        return submit(semaphore(group), op);
+    }
+
+    /**
+     * Runs an operation once a permit is available, releasing it when done.
+     */
+    private <T> Future<T> submit(final Semaphore permits, final Callable<T> op) throws IOException
+    {
+        acquire(permits);
+        try
+        {
+            return executor.submit(new Callable<T>()
+            {
+                @Override
+                public T call() throws Exception
+                {
+                    try
+                    {
+                        return op.call();
+                    }
+                    finally
+                    {
+                        permits.release();
+                    }
+                }
+            });
+        }
+        catch (RejectedExecutionException reE)
+        {
+            permits.release();
+            throw new IOException(reE);
+        }
+    }
+
+    private static void acquire(Semaphore permits) throws IOException
+    {
+        try
+        {
+            permits.acquire();
+        }
+        catch (InterruptedException intE)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting on replica store", intE);
+        }
+    }
+}
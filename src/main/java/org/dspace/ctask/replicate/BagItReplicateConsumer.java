@@ -314,6 +314,8 @@ public class BagItReplicateConsumer implements Consumer {
         int type = event.getEventType();
         if (DELETE == type)
         {
+            // the object's type is no longer known to DSpace
+            repMan.invalidateStorageId(id);
             // either marks start of new deletion or a member of enclosing one
             if (delObjId == null)
             {
@@ -368,12 +370,12 @@ public class BagItReplicateConsumer implements Consumer {
             if(found)
             {
                 Packer packer = new CatalogPacker(delObjId, delOwnerId, delMemIds);
+                // Create a new deletion catalog (with default file extension / format)
+                // and store it in the deletion group store
+                String catID = repMan.deletionCatalogId(delObjId, null);
+                File packDir = repMan.stageTask(deleteGroupName, catID);
                 try
                 {
-                    // Create a new deletion catalog (with default file extension / format)
-                    // and store it in the deletion group store
-                    String catID = repMan.deletionCatalogId(delObjId, null);
-                    File packDir = repMan.stage(deleteGroupName, catID);
                     File archive = packer.pack(packDir);
                     //System.out.println("delcat about to transfer");
                     repMan.transferObject(deleteGroupName, archive);
@@ -386,6 +388,10 @@ public class BagItReplicateConsumer implements Consumer {
                 {
                     throw new IOException(sqlE);
                 }
+                finally
+                {
+                    repMan.unstage(packDir);
+                }
             }
         }
         // reset for next events
@@ -113,8 +113,10 @@ public class BagItRestoreFromAIP extends AbstractCurationTask {
             catArchive.delete();
             // recover root object itself, then any members
             recover(ctx, repMan, id);
+            repMan.invalidateStorageId(id);
             for (String mem : cpack.getMembers()) {
                 recover(ctx, repMan, mem);
+                repMan.invalidateStorageId(mem);
             }
             // remove the deletion catalog (as the object is now restored)
             repMan.removeObject(deleteGroupName, catId);
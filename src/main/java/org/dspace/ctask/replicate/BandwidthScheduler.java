@@ -0,0 +1,487 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.replicate;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.dspace.services.ConfigurationService;
+import org.dspace.services.factory.DSpaceServicesFactory;
+
+/**
+ * BandwidthScheduler paces the content moved to and from the object store,
+ * so that replication does not take all of a shared network link. Each
+ * store group may be given a rate (in bytes per second), which applies
+ * outside of any time-of-day windows, and windows with rates of their own
+ * (e.g. a reduced rate during working hours, and the full rate at night).
+ * A rate of 0 leaves transfers unlimited.
+ * <p>
+ * Each group has a token bucket, shared by all transfers of that group in
+ * either direction, which fills at the current rate and holds up to
+ * 'replicate.bandwidth.burst' seconds' worth of bytes. Content is passed
+ * through a throttled stream, which waits for tokens before handing on
+ * what it reads.
+ * <p>
+ * The throughput of each group is also measured: the rate over the last
+ * few seconds, and the average rate while transfers were in progress.
+ *
+ * @see ReplicaManager
+ */
+public class BandwidthScheduler
+{
+    // most bytes read (and so paced) at a time
+    private static final int CHUNK_SIZE = 64 * 1024;
+    // seconds over which the current throughput is measured
+    private static final int METER_SECONDS = 10;
+
+    private ConfigurationService configurationService = DSpaceServicesFactory.getInstance().getConfigurationService();
+
+    // seconds' worth of bytes a bucket may hold
+    private final double burstSeconds = configurationService.getLongProperty("replicate.bandwidth.burst", 1L);
+
+    // limits and meters of each group, once looked up
+    private final Map<String, Limit> limits = new HashMap<String, Limit>();
+    private final Map<String, Meter> meters = new HashMap<String, Meter>();
+
+    /**
+     * Sets the limits of a group, in place of those configured.
+     * @param group store group
+     * @param rate bytes per second outside any window (0 = unlimited)
+     * @param windows time-of-day windows with rates of their own
+     */
+    public synchronized void setLimit(String group, long rate, List<Window> windows)
+    {
+        limits.put(group, new Limit(rate, windows));
+    }
+
+    /**
+     * @param group store group
+     * @return true if transfers of the group are limited now
+     */
+    public boolean isLimited(String group)
+    {
+        return getRate(group) > 0L;
+    }
+
+    /**
+     * @param group store group
+     * @return the rate transfers of the group are limited to now, in bytes
+     *         per second (0 = unlimited)
+     */
+    public long getRate(String group)
+    {
+        return limit(group).rate(minuteOfDay());
+    }
+
+    /**
+     * Wraps a stream of a group's content, so it is read no faster than
+     * the group's rate allows. The transfer is measured until the stream
+     * is closed.
+     * @param group store group
+     * @param in stream to pace
+     * @return paced stream
+     */
+    public InputStream throttle(String group, InputStream in)
+    {
+        return new ThrottledInputStream(limit(group), meter(group), in);
+    }
+
+    /**
+     * Notes the start of a transfer which is not paced (e.g. of a group
+     * without a limit), so that its throughput is still measured.
+     * @param group store group
+     */
+    public void begin(String group)
+    {
+        meter(group).begin();
+    }
+
+    /**
+     * Notes the end of a transfer begun with begin().
+     * @param group store group
+     * @param bytes bytes transferred
+     */
+    public void end(String group, long bytes)
+    {
+        Meter meter = meter(group);
+        meter.add(bytes);
+        meter.end();
+    }
+
+    /**
+     * @return names of the groups with measured transfers
+     */
+    public synchronized Set<String> getGroups()
+    {
+        return new TreeSet<String>(meters.keySet());
+    }
+
+    /**
+     * @param group store group
+     * @return total bytes transferred
+     */
+    public long getBytes(String group)
+    {
+        return meter(group).bytes();
+    }
+
+    /**
+     * @param group store group
+     * @return bytes per second transferred over the last few seconds
+     */
+    public long getCurrentThroughput(String group)
+    {
+        return meter(group).current();
+    }
+
+    /**
+     * @param group store group
+     * @return bytes per second transferred while transfers were in progress
+     */
+    public long getAverageThroughput(String group)
+    {
+        return meter(group).average();
+    }
+
+    /**
+     * @return the current minute of the day (0 - 1439), by local time
+     */
+    protected int minuteOfDay()
+    {
+        Calendar now = Calendar.getInstance();
+        return now.get(Calendar.HOUR_OF_DAY) * 60 + now.get(Calendar.MINUTE);
+    }
+
+    private synchronized Limit limit(String group)
+    {
+        Limit limit = limits.get(group);
+        if (limit == null)
+        {
+            long rate = configurationService.getLongProperty("replicate.bandwidth.rate." + group,
+                    configurationService.getLongProperty("replicate.bandwidth.rate", 0L));
+            List<Window> windows = new ArrayList<Window>();
+            String key = configurationService.hasProperty("replicate.bandwidth.windows." + group)
+                         ? "replicate.bandwidth.windows." + group : "replicate.bandwidth.windows";
+            if (configurationService.hasProperty(key))
+            {
+                for (String window : configurationService.getArrayProperty(key))
+                {
+                    windows.add(Window.parse(window));
+                }
+            }
+            limit = new Limit(rate, windows);
+            limits.put(group, limit);
+        }
+        return limit;
+    }
+
+    private synchronized Meter meter(String group)
+    {
+        Meter meter = meters.get(group);
+        if (meter == null)
+        {
+            meter = new Meter();
+            meters.put(group, meter);
+        }
+        return meter;
+    }
+
+    /**
+     * A time-of-day window with a rate of its own. A window may span
+     * midnight (e.g. 22:00-06:00).
+     */
+    public static class Window
+    {
+        private final int start;
+        private final int end;
+        private final long rate;
+
+        /**
+         * @param start first minute of the day in the window
+         * @param end minute of the day the window ends (exclusive)
+         * @param rate bytes per second during the window (0 = unlimited)
+         */
+        public Window(int start, int end, long rate)
+        {
+            this.start = start;
+            this.end = end;
+            this.rate = rate;
+        }
+
+        /**
+         * Parses a window of the form 'HH:MM-HH:MM rate', e.g.
+         * '08:00-18:00 1048576'.
+         * @param window window description
+         * @return window
+         */
+        public static Window parse(String window)
+        {
+            String[] parts = window.trim().split("\\s+");
+            String[] times = parts.length == 2 ? parts[0].split("-") : new String[0];
+            if (times.length != 2)
+            {
+                throw new IllegalArgumentException("Bandwidth window '" + window +
+                                                   "' is not of the form 'HH:MM-HH:MM rate'");
+            }
+            return new Window(minute(times[0]), minute(times[1]), Long.parseLong(parts[1]));
+        }
+
+        private static int minute(String time)
+        {
+            String[] hm = time.split(":");
+            return Integer.parseInt(hm[0]) * 60 + (hm.length > 1 ? Integer.parseInt(hm[1]) : 0);
+        }
+
+        boolean contains(int minute)
+        {
+            return start <= end ? minute >= start && minute < end : minute >= start || minute < end;
+        }
+    }
+
+    /**
+     * The limits of a group, and its token bucket.
+     */
+    private class Limit
+    {
+        private final long baseRate;
+        private final List<Window> windows;
+        private double tokens = 0.0;
+        // when the bucket was last filled (0 while no limit applies)
+        private long lastRefill = 0L;
+
+        Limit(long baseRate, List<Window> windows)
+        {
+            this.baseRate = baseRate;
+            this.windows = windows != null ? windows : Collections.<Window>emptyList();
+        }
+
+        long rate(int minute)
+        {
+            for (Window window : windows)
+            {
+                if (window.contains(minute))
+                {
+                    return window.rate;
+                }
+            }
+            return baseRate;
+        }
+
+        /**
+         * Takes tokens for the passed bytes, waiting until the bucket has
+         * refilled enough to pay for them.
+         */
+        void acquire(long bytes) throws IOException
+        {
+            long waitNanos;
+            synchronized (this)
+            {
+                long rate = rate(minuteOfDay());
+                long now = System.nanoTime();
+                if (rate <= 0L)
+                {
+                    // unlimited for now - start full when a limit next applies
+                    lastRefill = 0L;
+                    return;
+                }
+                double burst = Math.max(rate * burstSeconds, CHUNK_SIZE);
+                if (lastRefill == 0L)
+                {
+                    tokens = burst;
+                }
+                else
+                {
+                    tokens = Math.min(burst, tokens + (now - lastRefill) * rate / 1e9);
+                }
+                lastRefill = now;
+                // go into debt for the bytes, and wait until it is paid off
+                tokens -= bytes;
+                waitNanos = tokens < 0.0 ? (long) (-tokens * 1e9 / rate) : 0L;
+            }
+            if (waitNanos > 0L)
+            {
+                try
+                {
+                    Thread.sleep(waitNanos / 1000000L, (int) (waitNanos % 1000000L));
+                }
+                catch (InterruptedException intE)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for bandwidth");
+                }
+            }
+        }
+    }
+
+    /**
+     * Measures the throughput of a group: per-second counts of the last few
+     * seconds, and the bytes and busy time (while any transfer is in
+     * progress) in total.
+     */
+    private static class Meter
+    {
+        private final long[] slots = new long[METER_SECONDS + 1];
+        private long slotSecond = 0L;
+        private long bytes = 0L;
+        private int active = 0;
+        private long busySince = 0L;
+        private long busyNanos = 0L;
+
+        synchronized void begin()
+        {
+            if (active++ == 0)
+            {
+                busySince = System.nanoTime();
+            }
+        }
+
+        synchronized void end()
+        {
+            if (active > 0 && --active == 0)
+            {
+                busyNanos += System.nanoTime() - busySince;
+            }
+        }
+
+        synchronized void add(long count)
+        {
+            advance();
+            slots[(int) (slotSecond % slots.length)] += count;
+            bytes += count;
+        }
+
+        synchronized long bytes()
+        {
+            return bytes;
+        }
+
+        synchronized long current()
+        {
+            advance();
+            // the slot of the current second is incomplete, so is left out
+            long sum = 0L;
+            for (int i = 1; i <= METER_SECONDS; i++)
+            {
+                sum += slots[(int) ((slotSecond - i) % slots.length)];
+            }
+            return sum / METER_SECONDS;
+        }
+
+        synchronized long average()
+        {
+            long nanos = busyNanos + (active > 0 ? System.nanoTime() - busySince : 0L);
+            return nanos > 0L ? (long) (bytes * 1e9 / nanos) : 0L;
+        }
+
+        private void advance()
+        {
+            long second = System.currentTimeMillis() / 1000L;
+            if (slotSecond == 0L || second - slotSecond > slots.length)
+            {
+                Arrays.fill(slots, 0L);
+            }
+            else
+            {
+                for (long s = slotSecond + 1; s <= second; s++)
+                {
+                    slots[(int) (s % slots.length)] = 0L;
+                }
+            }
+            slotSecond = second;
+        }
+    }
+
+    /**
+     * Stream which waits for its group's tokens before handing on the
+     * bytes it reads.
+     */
+    private static class ThrottledInputStream extends FilterInputStream
+    {
+        private final Limit limit;
+        private final Meter meter;
+        private boolean closed = false;
+
+        ThrottledInputStream(Limit limit, Meter meter, InputStream in)
+        {
+            super(in);
+            this.limit = limit;
+            this.meter = meter;
+            meter.begin();
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            int b = super.read();
+            if (b >= 0)
+            {
+                paid(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            int n = super.read(b, off, Math.min(len, CHUNK_SIZE));
+            if (n > 0)
+            {
+                paid(n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException
+        {
+            // skipped bytes are not transferred, so are not paced
+            return super.skip(n);
+        }
+
+        @Override
+        public boolean markSupported()
+        {
+            // bytes read again after a reset would be paid for twice
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            try
+            {
+                super.close();
+            }
+            finally
+            {
+                if (! closed)
+                {
+                    closed = true;
+                    meter.end();
+                }
+            }
+        }
+
+        private void paid(int n) throws IOException
+        {
+            limit.acquire(n);
+            meter.add(n);
+        }
+    }
+}
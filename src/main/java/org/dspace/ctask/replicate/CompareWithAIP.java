@@ -11,8 +11,10 @@ package org.dspace.ctask.replicate;
 import java.io.File;
 import java.io.IOException;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 import org.dspace.authorize.AuthorizeException;
 import org.dspace.content.Collection;
@@ -51,6 +53,9 @@ import org.dspace.pack.PackerFactory;
 @Suspendable(invoked=Curator.Invoked.INTERACTIVE)
 public class CompareWithAIP extends AbstractCurationTask
 {
+    // maximum number of child objects looked up in a single batch
+    private static final int BATCH_SIZE = 500;
+
     private String archFmt;
     private int status = Curator.CURATE_UNSET;
     private String result = null;
@@ -86,11 +91,18 @@ public class CompareWithAIP extends AbstractCurationTask
             if(checkReplica(repMan, dso))
             {    
                 // generate an archive and calculate it's checksum
-                File packDir = repMan.stage(storeGroupName, id);
-                File archive = packer.pack(packDir);
-                String chkSum = Utils.checksum(archive, "MD5");
-                // remove local archive file -- it's no longer needed
-                archive.delete();
+                File packDir = repMan.stageTask(storeGroupName, id);
+                String chkSum;
+                try
+                {
+                    File archive = packer.pack(packDir);
+                    chkSum = Utils.checksum(archive, "MD5");
+                }
+                finally
+                {
+                    // remove local archive file -- it's no longer needed
+                    repMan.unstage(packDir);
+                }
 
                 // compare with replica
                 String repChkSum = repMan.objectAttribute(storeGroupName, objId, "checksum");
@@ -104,6 +116,7 @@ public class CompareWithAIP extends AbstractCurationTask
                 else
                 {
                     report("Local and remote checksums agree for: " + id);
+                    repMan.recordVerified(storeGroupName, objId);
                 }
                 // if a container, also perform an extent (count) audit - i.e.
                 // does replica store have replicas for each object in container?
@@ -123,13 +136,18 @@ public class CompareWithAIP extends AbstractCurationTask
         {
             throw new IOException(sqlE);
         }
+        finally
+        {
+            PackerFactory.release(packer);
+        }
     }
 
     /**
      * Audit the existing contents in the Replica ObjectStore against DSpace object.
      * This method only audits immediate child objects (because child objects of
      * any sub-containers will be audited when 'CompareWithAIP' is called on that
-     * container itself).
+     * container itself). Child replicas are looked up in batches, rather than
+     * one request per child.
      * @param repMan ReplicaManager (used to access ObjectStore)
      * @param dso DSpace Object
      * @throws IOException if I/O error
@@ -146,10 +164,7 @@ public class CompareWithAIP extends AbstractCurationTask
             try
             {
                 iter = itemService.findByCollection(Curator.curationContext(), coll);
-                while (iter.hasNext())
-                {
-                    checkReplica(repMan, iter.next());
-                }
+                checkReplicas(repMan, iter);
             }
             catch (SQLException sqlE)
             {
@@ -159,24 +174,17 @@ public class CompareWithAIP extends AbstractCurationTask
         else if (Constants.COMMUNITY == type)
         {
             Community comm = (Community)dso;
-            for (Community subcomm : comm.getSubcommunities())
-            {
-                checkReplica(repMan, subcomm);
-            }
-            for (Collection coll : comm.getCollections())
-            {
-                checkReplica(repMan, coll);
-            }
+            List<DSpaceObject> children = new ArrayList<DSpaceObject>();
+            children.addAll(comm.getSubcommunities());
+            children.addAll(comm.getCollections());
+            checkReplicas(repMan, children.iterator());
         } //if Site, check to see all Top-Level Communities have an AIP in remote storage
         else if (Constants.SITE == type)
         {
             try
             {
                 List<Community> topComm = communityService.findAllTop(Curator.curationContext());
-                for (Community comm : topComm)
-                {
-                    checkReplica(repMan, comm);
-                }
+                checkReplicas(repMan, topComm.iterator());
             }
             catch (SQLException sqlE)
             {
@@ -207,4 +215,53 @@ public class CompareWithAIP extends AbstractCurationTask
        else
            return true;
     }
+
+    /**
+     * Check if the DSpace Objects already exist in the Replica ObjectStore,
+     * looking them up in batches of BATCH_SIZE. Every missing replica is
+     * reported.
+     * @param repMan ReplicaManager  (used to access ObjectStore)
+     * @param dsos DSpaceObjects
+     * @throws IOException if I/O error
+     */
+    void checkReplicas(ReplicaManager repMan, Iterator<? extends DSpaceObject> dsos) throws IOException
+    {
+        List<DSpaceObject> batch = new ArrayList<DSpaceObject>();
+        while (dsos.hasNext())
+        {
+            batch.add(dsos.next());
+            if (batch.size() >= BATCH_SIZE || ! dsos.hasNext())
+            {
+                checkBatch(repMan, batch);
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Check if the DSpace Objects already exist in the Replica ObjectStore,
+     * using a single batched lookup. Every missing replica is reported.
+     * @param repMan ReplicaManager  (used to access ObjectStore)
+     * @param dsos DSpaceObjects
+     * @throws IOException if I/O error
+     */
+    private void checkBatch(ReplicaManager repMan, List<DSpaceObject> dsos) throws IOException
+    {
+        List<String> objIds = new ArrayList<String>();
+        for (DSpaceObject dso : dsos)
+        {
+            objIds.add(repMan.storageId(dso.getHandle(), archFmt));
+        }
+        Map<String, Boolean> exists = repMan.objectsExist(storeGroupName, objIds);
+        for (int i = 0; i < dsos.size(); i++)
+        {
+            if (! Boolean.TRUE.equals(exists.get(objIds.get(i))))
+            {
+                String msg = "Missing replica for: " + dsos.get(i).getHandle();
+                report(msg);
+                result = msg;
+                status = Curator.CURATE_FAIL;
+            }
+        }
+    }
 }
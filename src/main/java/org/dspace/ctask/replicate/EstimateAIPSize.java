@@ -42,6 +42,19 @@ public class EstimateAIPSize extends AbstractCurationTask
             long size = packer.size("");
             String msg = "ID: " + dso.getHandle() + " (" + dso.getName() +
                          ") estimated AIP size: " + scaledSize(size, 0);
+            // also report the size of the current replica, if catalogued
+            ReplicaManager repMan = ReplicaManager.instance();
+            if (repMan.getCatalog() != null)
+            {
+                String objId = repMan.storageId(dso.getHandle(),
+                        configurationService.getProperty("replicate.packer.archfmt"));
+                ReplicaCatalog.Entry entry = repMan.getCatalog().get(
+                        configurationService.getProperty("replicate.group.aip.name"), objId);
+                if (entry != null)
+                {
+                    msg += ", current replica size: " + scaledSize(entry.getSize(), 0);
+                }
+            }
             report(msg);
             setResult(scaledSize(size, 0));
         }
@@ -49,6 +62,10 @@ public class EstimateAIPSize extends AbstractCurationTask
         {
             throw new IOException(sqlE);
         }
+        finally
+        {
+            PackerFactory.release(packer);
+        }
         return Curator.CURATE_SUCCESS;
     }
     
@@ -402,6 +402,8 @@ public class METSReplicateConsumer implements Consumer {
         int type = event.getEventType();
         if (DELETE == type)
         {
+            // the object's type is no longer known to DSpace
+            repMan.invalidateStorageId(id);
             // either marks start of new deletion or a member of enclosing one
             if (delObjId == null)
             {
@@ -471,12 +473,12 @@ public class METSReplicateConsumer implements Consumer {
             {
                 //Create a deletion catalog (in BagIt format) of all deleted objects
                 Packer packer = new CatalogPacker(delObjId, delOwnerId, delMemIds);
+                // Create a new deletion catalog (with default file extension / format)
+                // and store it in the deletion group store
+                String catID = repMan.deletionCatalogId(delObjId, null);
+                File packDir = repMan.stageTask(deleteGroupName, catID);
                 try
                 {
-                    // Create a new deletion catalog (with default file extension / format)
-                    // and store it in the deletion group store
-                    String catID = repMan.deletionCatalogId(delObjId, null);
-                    File packDir = repMan.stage(deleteGroupName, catID);
                     File archive = packer.pack(packDir);
                     // Create a deletion catalog in deletion archive location.
                     repMan.transferObject(deleteGroupName, archive);
@@ -489,6 +491,10 @@ public class METSReplicateConsumer implements Consumer {
                 {
                     throw new IOException(sqlE);
                 }
+                finally
+                {
+                    repMan.unstage(packDir);
+                }
             }
         }
         // reset for next events
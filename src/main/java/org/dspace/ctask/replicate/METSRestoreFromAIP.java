@@ -89,6 +89,7 @@ public class METSRestoreFromAIP extends AbstractPackagerTask
             //restore/replace object represented by this archive file
             //(based on packaging params, this may also restore/replace all child objects too)
             restoreObject(repMan, archive, pkgParams);
+            repMan.invalidateStorageId(id);
 
             //Check if a deletion catalog exists for this object
             String catId = repMan.deletionCatalogId(id, archFmt);
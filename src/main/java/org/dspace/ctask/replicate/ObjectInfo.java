@@ -0,0 +1,71 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.replicate;
+
+/**
+ * ObjectInfo describes one object found when listing the contents of an
+ * ObjectStore group. Its attributes carry the same values ObjectStore
+ * returns for the "sizebytes", "checksum" and "modified" attributes.
+ *
+ * @see ObjectStore#listObjects(String, String)
+ */
+public class ObjectInfo
+{
+    private final String id;
+    private final long size;
+    private final String checksum;
+    private final String modified;
+
+    public ObjectInfo(String id, long size, String checksum, String modified)
+    {
+        this.id = id;
+        this.size = size;
+        this.checksum = checksum;
+        this.modified = modified;
+    }
+
+    /**
+     * @return ID of the object within its group
+     */
+    public String getId()
+    {
+        return id;
+    }
+
+    /**
+     * @return size of the object in bytes
+     */
+    public long getSize()
+    {
+        return size;
+    }
+
+    /**
+     * @return hex encoded MD5 checksum of the object, or null if the store
+     *         cannot tell it without reading the object (ask for the
+     *         "checksum" attribute instead)
+     */
+    public String getChecksum()
+    {
+        return checksum;
+    }
+
+    /**
+     * @return time the object was last modified, as reported by the store
+     */
+    public String getModified()
+    {
+        return modified;
+    }
+
+    @Override
+    public String toString()
+    {
+        return id + " (" + size + " bytes, md5 " + checksum + ", modified " + modified + ")";
+    }
+}
@@ -9,6 +9,10 @@ package org.dspace.ctask.replicate;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 
 /**
  * An ObjectStore provides access to a managed store containing objects
@@ -46,6 +50,47 @@ public interface ObjectStore {
      */
     String objectAttribute(String group, String id, String attrName) throws IOException;
 
+    /**
+     * Returns whether objects with the passed ids exist in the store.
+     * Stores may pipeline or parallelize the lookups, so this should be
+     * preferred over repeated calls to objectExists when many objects are
+     * checked at once.
+     *
+     * @param group Group
+     * @param ids IDs
+     * @return map of each passed ID to true if a representation of the object exists
+     * @throws IOException if I/O error
+     */
+    Map<String, Boolean> objectsExist(String group, List<String> ids) throws IOException;
+
+    /**
+     * Obtains the attributes ("checksum", "sizebytes" and "modified") of the
+     * representations of the objects with the passed ids. Stores may pipeline
+     * or parallelize the lookups.
+     *
+     * @param group Group
+     * @param ids IDs
+     * @return map of each ID to its attributes (keyed by attribute name).
+     *         IDs with no representation in the store are omitted.
+     * @throws IOException if I/O error
+     */
+    Map<String, Map<String, String>> objectAttributes(String group, List<String> ids) throws IOException;
+
+    /**
+     * Lists the objects in a group whose IDs start with the passed prefix.
+     * The listing is read from the store a page at a time as the iterator
+     * advances, so groups of any size may be listed. Objects are returned
+     * in no particular order. Should the store fail part way through the
+     * listing, the iterator throws a RuntimeException whose cause is the
+     * IOException encountered.
+     *
+     * @param group Group
+     * @param prefix ID prefix, or null (or empty) to list all objects in group
+     * @return iterator over the objects listed
+     * @throws IOException if I/O error
+     */
+    Iterator<ObjectInfo> listObjects(String group, String prefix) throws IOException;
+
     /**
      * Fetches a copy of the object with passed ID, and places it in passed file.
      * 
@@ -56,7 +101,18 @@ public interface ObjectStore {
      * @throws IOException if I/O error
      */
     long fetchObject(String group, String id, File file) throws IOException;
-    
+
+    /**
+     * Opens a stream on the content of the object with passed ID, so it may
+     * be read without first being staged on local disk. The caller is
+     * responsible for closing the stream.
+     *
+     * @param group Group
+     * @param id ID
+     * @return stream of the object's content, or null if no such object exists
+     * @throws IOException if I/O error
+     */
+    InputStream openObject(String group, String id) throws IOException;
 
     /**
      * Transfers a copy of this file to the object store
@@ -68,6 +124,23 @@ public interface ObjectStore {
      */
     long transferObject(String group, File file) throws IOException;
 
+    /**
+     * Transfers the content of the passed stream to the object store, as the
+     * object with the passed ID. The stream is read to its end, but is not
+     * closed.
+     *
+     * @param group Group
+     * @param id ID the object will be stored under
+     * @param in the content to transfer to store
+     * @param length number of bytes of content in the stream
+     * @param md5 hex encoded MD5 checksum of the content if known, else null.
+     *        When known, stores may use it to skip transfers of unchanged content.
+     * @return number of bytes transferred to store or 0 if no transfer was needed.
+     * @throws IOException if I/O error, or if the transferred content does
+     *         not match the passed checksum
+     */
+    long transferObject(String group, String id, InputStream in, long length, String md5) throws IOException;
+
     /**
      * Removes the passed object from the store.
      * 
@@ -89,4 +162,31 @@ public interface ObjectStore {
      * @throws IOException if I/O error
      */
     long moveObject(String srcgroup, String destGroup, String id) throws IOException;
+
+    /**
+     * Removes several objects from the store. Stores may remove them
+     * concurrently, or with batch requests, so this should be preferred
+     * over repeated calls to removeObject when many objects are removed
+     * at once (e.g. those of a deleted community).
+     *
+     * @param group Group
+     * @param ids the ids of the objects to remove
+     * @return map of each passed ID to the number of bytes the object was
+     *         using, or 0 if the object did not exist.
+     * @throws IOException if I/O error, or any object could not be removed
+     */
+    Map<String, Long> removeObjects(String group, List<String> ids) throws IOException;
+
+    /**
+     * Moves several objects from one storage group to another. Stores may
+     * move them concurrently.
+     *
+     * @param srcGroup source group
+     * @param destGroup destination group
+     * @param ids the ids of the objects to move between groups
+     * @return map of each passed ID to the number of bytes moved, or 0 if
+     *         the move failed.
+     * @throws IOException if I/O error
+     */
+    Map<String, Long> moveObjects(String srcGroup, String destGroup, List<String> ids) throws IOException;
 }
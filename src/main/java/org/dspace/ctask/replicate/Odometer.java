@@ -7,23 +7,52 @@
  */
 package org.dspace.ctask.replicate;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
 
 /**
  * Odometer holds a small set of persistent operational parameters of service
  * usage. This can assist the consumer of the service to monitor it's cost,
  * inter alia.
  * <p>
- * The Odometer tracks basic statistics of replication activities: bytes uploaded, 
+ * The Odometer tracks basic statistics of replication activities: bytes uploaded,
  * modified, count of objects, and external objectstore size.
  * <p>
+ * Adjustments are added to striped in-memory counters, so recording one
+ * takes no lock and does no I/O. The counters are flushed now and then as
+ * a single record appended to the 'odometer.journal' file, and the journal
+ * folded into the 'odometer' properties file once it has grown. Both are
+ * done while holding a lock on the 'odometer.lock' file, so that several
+ * processes sharing the base directory each add their own changes, rather
+ * than overwriting those of the others. Readings are the properties file
+ * plus the journal.
+ * <p>
  * See org.dspace.ctask.replicate.ReplicaManager for how the Odometer readings
  * are kept up-to-date.
  *
@@ -32,8 +61,21 @@ import java.util.Properties;
  */
 public class Odometer
 {
+    private static final Logger log = Logger.getLogger(Odometer.class);
+
     // name of file
     private static final String ODO_NAME = "odometer";
+    // names of the journal of changes not yet folded in, and the lock file
+    private static final String JOURNAL_NAME = "odometer.journal";
+    private static final String LOCK_NAME = "odometer.lock";
+    // property naming the journal last folded into the odometer file
+    private static final String FOLDED = "journal.folded";
+    // journal size beyond which it is folded into the odometer file
+    private static final long COMPACT_SIZE = 64L * 1024L;
+    // last field of a complete journal record - a torn record lacks it
+    private static final String END = ".";
+    // number of counter stripes (a power of 2)
+    private static final int STRIPES = 16;
     // names of fixed properties
     public static final String COUNT = "count";
     public static final String SIZE = "storesize";
@@ -42,80 +84,416 @@ public class Odometer
     public static final String MODIFIED = "modified";
     // is this a read-only copy?
     private boolean readOnly = false;
-    // odometer properties - hold the values
+    // odometer properties - hold the values (as of the last reading)
     private Properties odoProps = null;
     // directory path
     private String dirPath = null;
+    // changes not yet flushed to the journal
+    private final ConcurrentMap<String, AtomicLong[]> pending = new ConcurrentHashMap<String, AtomicLong[]>();
+    // lock held while using the files - file locks may not overlap within a process
+    private static final Object fileLock = new Object();
+    // hourly and daily rollups of activity
+    private final OdometerHistory history;
+    // flushes the counters periodically, once started
+    private ScheduledExecutorService flusher = null;
 
     Odometer(String dirPath, boolean readOnly) throws IOException
     {
         this.readOnly = readOnly;
         this.dirPath = dirPath;
-        odoProps = new Properties();
-        try
+        history = new OdometerHistory(new File(dirPath, "history"));
+        odoProps = read();
+    }
+
+    /**
+     * Starts flushing changes to the journal in the background, every so
+     * often and when the JVM exits.
+     * @param intervalSeconds seconds between flushes
+     */
+    synchronized void startFlushing(long intervalSeconds)
+    {
+        if (readOnly || flusher != null)
         {
-            File odoFile = new File(dirPath, ODO_NAME);
-            if (odoFile.exists())
+            return;
+        }
+        flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "odometer-flush");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        Runnable flush = new Runnable()
+        {
+            @Override
+            public void run()
             {
-                
-                InputStream in = null;
                 try
                 {
-                    in = new FileInputStream(odoFile);
-                    odoProps.load(new FileInputStream(odoFile));
+                    flush();
+                }
+                catch (IOException ioE)
+                {
+                    // the changes are kept, and tried again at the next flush
+                    log.warn("Unable to write odometer journal in '" + dirPath + "'", ioE);
+                }
+            }
+        };
+        long interval = Math.max(1L, intervalSeconds);
+        flusher.scheduleWithFixedDelay(flush, interval, interval, TimeUnit.SECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(flush, "odometer-flush-exit"));
+    }
+
+    /**
+     * Appends the changes made since the last flush to the journal, folding
+     * the journal into the odometer file if it has grown large.
+     * @throws IOException if the journal cannot be written
+     */
+    void flush() throws IOException
+    {
+        if (readOnly)
+        {
+            return;
+        }
+        synchronized (fileLock)
+        {
+            StringBuilder record = new StringBuilder();
+            record.append(System.currentTimeMillis());
+            Map<String, Long> drained = new HashMap<String, Long>();
+            for (Map.Entry<String, AtomicLong[]> entry : pending.entrySet())
+            {
+                long delta = 0L;
+                for (AtomicLong stripe : entry.getValue())
+                {
+                    delta += stripe.getAndSet(0L);
+                }
+                if (delta != 0L)
+                {
+                    drained.put(entry.getKey(), delta);
+                    record.append('\t').append(entry.getKey()).append('=').append(delta);
+                }
+            }
+            if (drained.isEmpty() && ! history.hasPending())
+            {
+                return;
+            }
+            record.append('\t').append(END).append('\n');
+            try
+            {
+                append(drained.isEmpty() ? null : record.toString());
+            }
+            catch (IOException | RuntimeException e)
+            {
+                // put the changes back, so they are not lost
+                for (Map.Entry<String, Long> entry : drained.entrySet())
+                {
+                    adjustProperty(entry.getKey(), entry.getValue());
+                }
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Records activity of a store group in the history.
+     * @param group store group
+     * @param type object type, or null if not known
+     * @param metric metric of OdometerHistory to add to
+     * @param amount amount to add
+     */
+    void record(String group, String type, int metric, long amount)
+    {
+        if (amount != 0L)
+        {
+            history.record(group, type, metric, amount);
+        }
+    }
+
+    /**
+     * Returns the hourly and daily rollups of activity, as of when this
+     * copy was made.
+     * @return history of activity
+     */
+    public OdometerHistory getHistory()
+    {
+        return history;
+    }
+
+    void adjustProperty(String name, long adjustment)
+    {
+        AtomicLong[] stripes = pending.get(name);
+        if (stripes == null)
+        {
+            AtomicLong[] created = new AtomicLong[STRIPES];
+            for (int i = 0; i < STRIPES; i++)
+            {
+                created[i] = new AtomicLong();
+            }
+            stripes = pending.putIfAbsent(name, created);
+            if (stripes == null)
+            {
+                stripes = created;
+            }
+        }
+        // threads mostly add to stripes of their own, so rarely contend
+        stripes[(int) (Thread.currentThread().getId() & (STRIPES - 1))].addAndGet(adjustment);
+    }
+
+    /**
+     * Returns a reading, as of when this copy was made.
+     * @param name property name
+     * @return property value
+     */
+    public long getProperty(String name)
+    {
+       String val = odoProps.getProperty(name);
+       long lval = val != null ? Long.valueOf(val) : 0L;
+       return lval;
+    }
+
+    /**
+     * Reads the odometer file, plus any journal not yet folded into it,
+     * sharing the lock with other readers so no fold is seen half done.
+     */
+    private Properties read() throws IOException
+    {
+        synchronized (fileLock)
+        {
+            File lockFile = new File(dirPath, LOCK_NAME);
+            if (! lockFile.exists())
+            {
+                // nothing has been written yet
+                return readUnlocked();
+            }
+            try (RandomAccessFile lockRaf = new RandomAccessFile(lockFile, "rw"))
+            {
+                FileLock lock = lockRaf.getChannel().lock(0L, Long.MAX_VALUE, true);
+                try
+                {
+                    return readUnlocked();
                 }
                 finally
                 {
-                    if (in != null)
-                    {
-                        in.close();
-                    }
+                    lock.release();
                 }
             }
         }
-        catch (FileNotFoundException fnfE)
+    }
+
+    private Properties readUnlocked() throws IOException
+    {
+        if (readOnly)
+        {
+            history.load();
+        }
+        Properties props = readBase();
+        File journal = new File(dirPath, JOURNAL_NAME);
+        if (journal.exists())
         {
-            throw new IOException(fnfE);
+            applyJournal(props, journal);
         }
+        return props;
     }
 
-    void save() throws IOException
+    private Properties readBase() throws IOException
     {
-        if (! readOnly)
+        Properties props = new Properties();
+        File odoFile = new File(dirPath, ODO_NAME);
+        if (odoFile.exists())
         {
-            odoProps.setProperty("modified", String.valueOf(System.currentTimeMillis()));
-            File odoFile = new File(dirPath, ODO_NAME);
-            OutputStream out = null;
+            InputStream in = new FileInputStream(odoFile);
             try
             {
-                out = new FileOutputStream(odoFile);
-                odoProps.store(out, null);
+                props.load(in);
             }
             finally
             {
-                if (out != null)
+                in.close();
+            }
+        }
+        return props;
+    }
+
+    /**
+     * Adds the complete records of a journal to the passed properties,
+     * unless the journal has already been folded into them.
+     * @return true if the journal was applied
+     */
+    private static boolean applyJournal(Properties props, File journal) throws IOException
+    {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journal),
+                                                                         StandardCharsets.UTF_8));
+        try
+        {
+            String id = reader.readLine();
+            if (id == null || id.equals(props.getProperty(FOLDED)))
+            {
+                return false;
+            }
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                String[] fields = line.split("\t");
+                if (fields.length < 2 || ! END.equals(fields[fields.length - 1]))
                 {
-                    out.close();
+                    // torn by a crash while being written
+                    continue;
+                }
+                long modified = Long.parseLong(fields[0]);
+                for (int i = 1; i < fields.length - 1; i++)
+                {
+                    int eq = fields[i].indexOf('=');
+                    String name = fields[i].substring(0, eq);
+                    String val = props.getProperty(name);
+                    props.setProperty(name, String.valueOf((val != null ? Long.valueOf(val) : 0L) +
+                                                           Long.parseLong(fields[i].substring(eq + 1))));
+                }
+                String val = props.getProperty(MODIFIED);
+                if (val == null || Long.valueOf(val) < modified)
+                {
+                    props.setProperty(MODIFIED, String.valueOf(modified));
                 }
             }
+            return true;
+        }
+        finally
+        {
+            reader.close();
         }
     }
 
-    void adjustProperty(String name, long adjustment)
+    /**
+     * Appends a record (if any) to the journal under the odometer file
+     * lock, along with the activity recorded in the history.
+     */
+    private void append(String record) throws IOException
     {
-        long val = getProperty(name);
-        setProperty(name, val + adjustment);
+        new File(dirPath).mkdirs();
+        try (RandomAccessFile lockFile = new RandomAccessFile(new File(dirPath, LOCK_NAME), "rw"))
+        {
+            FileLock lock = lockFile.getChannel().lock();
+            try
+            {
+                try
+                {
+                    history.flush();
+                }
+                catch (IOException ioE)
+                {
+                    // only the rollups are affected - the totals are still written
+                    log.warn("Unable to write odometer history in '" + dirPath + "'", ioE);
+                }
+                if (record == null)
+                {
+                    return;
+                }
+                File journal = new File(dirPath, JOURNAL_NAME);
+                if (journal.exists() && ! isLive(journal))
+                {
+                    // left behind by a fold cut short - its records are already counted
+                    journal.delete();
+                }
+                try (RandomAccessFile out = new RandomAccessFile(journal, "rw"))
+                {
+                    FileChannel channel = out.getChannel();
+                    StringBuilder data = new StringBuilder();
+                    if (channel.size() == 0L)
+                    {
+                        // each journal is named, so a fold can record which it took in
+                        data.append(UUID.randomUUID()).append('\n');
+                    }
+                    else if (lastByte(channel) != '\n')
+                    {
+                        // end a record torn by a crash, so it is skipped when read
+                        data.append('\n');
+                    }
+                    data.append(record);
+                    channel.position(channel.size());
+                    ByteBuffer buffer = ByteBuffer.wrap(data.toString().getBytes(StandardCharsets.UTF_8));
+                    while (buffer.hasRemaining())
+                    {
+                        channel.write(buffer);
+                    }
+                }
+                if (journal.length() >= COMPACT_SIZE)
+                {
+                    try
+                    {
+                        fold(journal);
+                    }
+                    catch (IOException ioE)
+                    {
+                        // the record is safely in the journal - fold it another time
+                        log.warn("Unable to fold odometer journal in '" + dirPath + "'", ioE);
+                    }
+                }
+            }
+            finally
+            {
+                lock.release();
+            }
+        }
     }
 
-    void setProperty(String name, long value)
+    private boolean isLive(File journal) throws IOException
     {
-        odoProps.setProperty(name, String.valueOf(value));
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journal),
+                                                                         StandardCharsets.UTF_8));
+        try
+        {
+            String id = reader.readLine();
+            return id == null || ! id.equals(readBase().getProperty(FOLDED));
+        }
+        finally
+        {
+            reader.close();
+        }
     }
-    
-    public long getProperty(String name)
+
+    private static int lastByte(FileChannel channel) throws IOException
     {
-       String val = odoProps.getProperty(name);
-       long lval = val != null ? Long.valueOf(val) : 0L;
-       return lval;
+        ByteBuffer last = ByteBuffer.allocate(1);
+        channel.read(last, channel.size() - 1L);
+        return last.get(0);
+    }
+
+    /**
+     * Folds the journal into the odometer file (with the lock held). The
+     * new odometer file records the journal it took in, so should the
+     * journal outlive it (by a crash before it is deleted) it is not
+     * counted twice.
+     */
+    private void fold(File journal) throws IOException
+    {
+        Properties props = readBase();
+        applyJournal(props, journal);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journal),
+                                                                         StandardCharsets.UTF_8));
+        try
+        {
+            props.setProperty(FOLDED, reader.readLine());
+        }
+        finally
+        {
+            reader.close();
+        }
+        File odoFile = new File(dirPath, ODO_NAME);
+        File temp = new File(dirPath, ODO_NAME + ".tmp");
+        OutputStream out = new FileOutputStream(temp);
+        try
+        {
+            props.store(out, null);
+            ((FileOutputStream) out).getFD().sync();
+        }
+        finally
+        {
+            out.close();
+        }
+        Files.move(temp.toPath(), odoFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+        journal.delete();
     }
 }
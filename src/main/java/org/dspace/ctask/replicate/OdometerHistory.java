@@ -0,0 +1,340 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.replicate;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * OdometerHistory keeps hourly and daily rollups of replication activity -
+ * bytes, operation counts and time taken - for each store group and object
+ * type, so that rates and trends may be reported as well as the odometer's
+ * running totals.
+ * <p>
+ * Each group and type has two ring files in the 'history' folder of the
+ * base directory: one of the last HOURS hours, and one of the last DAYS
+ * days. A ring file is a fixed number of slots, each the period it holds
+ * followed by its metrics, so it never grows; a slot is reused once its
+ * period has passed out of the ring.
+ * <p>
+ * Activity is recorded in memory, and added to the ring files when the
+ * Odometer flushes its counts (with the odometer lock held, so several
+ * processes may share the files).
+ *
+ * @see Odometer
+ */
+public class OdometerHistory
+{
+    // metrics of each period
+    public static final int UPLOADED = 0;
+    public static final int DOWNLOADED = 1;
+    public static final int REMOVED = 2;
+    public static final int UPLOADS = 3;
+    public static final int DOWNLOADS = 4;
+    public static final int REMOVALS = 5;
+    // milliseconds taken by uploads and downloads
+    public static final int LATENCY = 6;
+    private static final int METRICS = 7;
+
+    // periods kept in each ring
+    public static final int HOURS = 168;
+    public static final int DAYS = 366;
+
+    private static final long HOUR_MILLIS = 60L * 60L * 1000L;
+    // bytes of a slot: its period, then its metrics
+    private static final int SLOT_SIZE = 8 * (1 + METRICS);
+    // separates group from type in file names (encoded wherever else it appears)
+    private static final String SEPARATOR = "~";
+    private static final String HOURS_SUFFIX = ".hours";
+    private static final String DAYS_SUFFIX = ".days";
+
+    private final File dir;
+    // activity not yet added to the rings, by group, type and hour
+    private final ConcurrentMap<String, AtomicLong[]> pending = new ConcurrentHashMap<String, AtomicLong[]>();
+    // rings as last loaded, by file name
+    private final Map<String, long[][]> loaded = new HashMap<String, long[][]>();
+
+    OdometerHistory(File dir)
+    {
+        this.dir = dir;
+    }
+
+    /**
+     * Records activity in the current hour.
+     * @param group store group
+     * @param type object type (e.g. 'ITEM'), or null if not known
+     * @param metric metric to add to
+     * @param amount amount to add
+     */
+    void record(String group, String type, int metric, long amount)
+    {
+        String key = fileName(group, type, "") + "\t" + currentHour();
+        AtomicLong[] metrics = pending.get(key);
+        if (metrics == null)
+        {
+            AtomicLong[] created = new AtomicLong[METRICS];
+            for (int i = 0; i < METRICS; i++)
+            {
+                created[i] = new AtomicLong();
+            }
+            metrics = pending.putIfAbsent(key, created);
+            if (metrics == null)
+            {
+                metrics = created;
+            }
+        }
+        metrics[metric].addAndGet(amount);
+    }
+
+    /**
+     * @return true if there is activity not yet added to the ring files
+     */
+    boolean hasPending()
+    {
+        for (AtomicLong[] metrics : pending.values())
+        {
+            for (AtomicLong metric : metrics)
+            {
+                if (metric.get() != 0L)
+                {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Adds the activity recorded since the last flush to the ring files.
+     * The caller must hold the odometer lock.
+     * @throws IOException if a ring file cannot be written
+     */
+    void flush() throws IOException
+    {
+        long hour = currentHour();
+        for (Map.Entry<String, AtomicLong[]> entry : pending.entrySet())
+        {
+            String key = entry.getKey();
+            AtomicLong[] metrics = entry.getValue();
+            int tab = key.indexOf('\t');
+            long period = Long.parseLong(key.substring(tab + 1));
+            if (period < hour - 1L)
+            {
+                // long over, so no longer recorded to
+                pending.remove(key);
+            }
+            long[] deltas = new long[METRICS];
+            boolean any = false;
+            for (int i = 0; i < METRICS; i++)
+            {
+                deltas[i] = metrics[i].getAndSet(0L);
+                any |= deltas[i] != 0L;
+            }
+            if (! any)
+            {
+                continue;
+            }
+            String name = key.substring(0, tab);
+            dir.mkdirs();
+            add(new File(dir, name + HOURS_SUFFIX), HOURS, period, deltas);
+            add(new File(dir, name + DAYS_SUFFIX), DAYS, period / 24L, deltas);
+        }
+    }
+
+    /**
+     * Reads the ring files, for reporting. The caller must hold the
+     * odometer lock.
+     * @throws IOException if a ring file cannot be read
+     */
+    void load() throws IOException
+    {
+        loaded.clear();
+        String[] names = dir.list();
+        if (names == null)
+        {
+            return;
+        }
+        for (String name : names)
+        {
+            if (name.endsWith(HOURS_SUFFIX))
+            {
+                loaded.put(name, read(new File(dir, name), HOURS));
+            }
+            else if (name.endsWith(DAYS_SUFFIX))
+            {
+                loaded.put(name, read(new File(dir, name), DAYS));
+            }
+        }
+    }
+
+    /**
+     * @return store groups with recorded activity
+     */
+    public Set<String> getGroups()
+    {
+        Set<String> groups = new TreeSet<String>();
+        for (String name : loaded.keySet())
+        {
+            groups.add(decode(name.substring(0, name.indexOf(SEPARATOR))));
+        }
+        return groups;
+    }
+
+    /**
+     * @param group store group
+     * @return object types of the group with recorded activity
+     */
+    public Set<String> getTypes(String group)
+    {
+        Set<String> types = new TreeSet<String>();
+        String prefix = encode(group) + SEPARATOR;
+        for (String name : loaded.keySet())
+        {
+            if (name.startsWith(prefix))
+            {
+                types.add(decode(name.substring(prefix.length(), name.lastIndexOf('.'))));
+            }
+        }
+        return types;
+    }
+
+    /**
+     * Sums a metric over a run of hours (or days).
+     * @param group store group
+     * @param type object type, or null for all types of the group
+     * @param metric metric to sum
+     * @param daily true to sum days, false to sum hours
+     * @param ago periods before the current one the run ends at (0 to end
+     *        with the current, partly over, period)
+     * @param periods number of periods summed
+     * @return sum of the metric
+     */
+    public long sum(String group, String type, int metric, boolean daily, int ago, int periods)
+    {
+        long now = daily ? currentHour() / 24L : currentHour();
+        long last = now - ago;
+        long first = last - periods + 1;
+        long total = 0L;
+        String suffix = daily ? DAYS_SUFFIX : HOURS_SUFFIX;
+        for (Map.Entry<String, long[][]> entry : loaded.entrySet())
+        {
+            String name = entry.getKey();
+            if (! name.endsWith(suffix) ||
+                ! (type != null ? name.equals(fileName(group, type, suffix))
+                                : name.startsWith(encode(group) + SEPARATOR)))
+            {
+                continue;
+            }
+            for (long[] slot : entry.getValue())
+            {
+                if (slot[0] >= first && slot[0] <= last)
+                {
+                    total += slot[1 + metric];
+                }
+            }
+        }
+        return total;
+    }
+
+    /**
+     * @return the current hour, counted from the epoch
+     */
+    protected long currentHour()
+    {
+        return System.currentTimeMillis() / HOUR_MILLIS;
+    }
+
+    /**
+     * Adds metrics to the slot of a period in a ring file, first clearing
+     * the slot should it hold a period which has passed out of the ring.
+     */
+    private static void add(File file, int slots, long period, long[] deltas) throws IOException
+    {
+        try (RandomAccessFile ring = new RandomAccessFile(file, "rw"))
+        {
+            if (ring.length() < (long) slots * SLOT_SIZE)
+            {
+                ring.setLength((long) slots * SLOT_SIZE);
+            }
+            long offset = (period % slots) * SLOT_SIZE;
+            byte[] bytes = new byte[SLOT_SIZE];
+            ring.seek(offset);
+            ring.readFully(bytes);
+            ByteBuffer slot = ByteBuffer.wrap(bytes);
+            boolean current = slot.getLong(0) == period;
+            slot.putLong(0, period);
+            for (int i = 0; i < METRICS; i++)
+            {
+                int at = 8 * (1 + i);
+                slot.putLong(at, (current ? slot.getLong(at) : 0L) + deltas[i]);
+            }
+            ring.seek(offset);
+            ring.write(bytes);
+        }
+    }
+
+    private static long[][] read(File file, int slots) throws IOException
+    {
+        long[][] ring = new long[slots][1 + METRICS];
+        try (RandomAccessFile in = new RandomAccessFile(file, "r"))
+        {
+            byte[] bytes = new byte[(int) Math.min(in.length(), (long) slots * SLOT_SIZE)];
+            in.readFully(bytes);
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            for (int i = 0; i < bytes.length / SLOT_SIZE; i++)
+            {
+                for (int j = 0; j <= METRICS; j++)
+                {
+                    ring[i][j] = buffer.getLong();
+                }
+            }
+        }
+        return ring;
+    }
+
+    private static String fileName(String group, String type, String suffix)
+    {
+        return encode(group) + SEPARATOR + encode(type != null ? type : "OTHER") + suffix;
+    }
+
+    private static String encode(String name)
+    {
+        try
+        {
+            return URLEncoder.encode(name, "UTF-8");
+        }
+        catch (UnsupportedEncodingException ueE)
+        {
+            throw new IllegalStateException(ueE);
+        }
+    }
+
+    private static String decode(String name)
+    {
+        try
+        {
+            return URLDecoder.decode(name, "UTF-8");
+        }
+        catch (UnsupportedEncodingException ueE)
+        {
+            throw new IllegalStateException(ueE);
+        }
+    }
+}
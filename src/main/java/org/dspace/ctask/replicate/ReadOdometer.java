@@ -10,6 +10,7 @@ package org.dspace.ctask.replicate;
 import java.io.IOException;
 
 import org.dspace.content.DSpaceObject;
+import org.dspace.ctask.replicate.store.CachingObjectStore;
 import org.dspace.curate.AbstractCurationTask;
 import org.dspace.curate.Curator;
 import org.dspace.curate.Distributive;
@@ -44,12 +45,98 @@ public class ReadOdometer extends AbstractCurationTask
         sb.append("Size:       ").append(scaledSize(odometer.getProperty("storesize"), 0)).append(", \n");
         sb.append("Uploaded:   ").append(scaledSize(odometer.getProperty("uploaded"), 0)).append(", \n");
         sb.append("Downloaded: ").append(scaledSize(odometer.getProperty("downloaded"), 0)).append("\n");
+        reportHistory(sb, odometer);
+        if (repMan.getObjectStore() instanceof CachingObjectStore)
+        {
+            CachingObjectStore cache = (CachingObjectStore) repMan.getObjectStore();
+            sb.append("Cache hits: ").append(cache.getStatistic(CachingObjectStore.HITS))
+              .append(" (").append(Math.round(cache.getHitRatio() * 100.0)).append("%), \n");
+            sb.append("Cache saved: ").append(scaledSize(cache.getStatistic(CachingObjectStore.BYTES_SAVED), 0)).append("\n");
+        }
+        ReplicaCatalog catalog = repMan.getCatalog();
+        if (catalog != null)
+        {
+            for (String group : catalog.getGroups())
+            {
+                sb.append("Catalogued in '").append(group).append("': ").append(catalog.count(group))
+                  .append(" replicas, ").append(scaledSize(catalog.size(group), 0)).append("\n");
+            }
+        }
+        StorageIdCache idCache = repMan.getStorageIdCache();
+        sb.append("ID cache hits: ").append(idCache.getHits())
+          .append(" (").append(Math.round(idCache.getHitRatio() * 100.0)).append("%), ")
+          .append(idCache.size()).append(" objects\n");
+        BandwidthScheduler scheduler = repMan.getScheduler();
+        for (String group : scheduler.getGroups())
+        {
+            long rate = scheduler.getRate(group);
+            sb.append("Throughput of '").append(group).append("': ")
+              .append(scaledSize(scheduler.getCurrentThroughput(group), 0)).append("/s now, ")
+              .append(scaledSize(scheduler.getAverageThroughput(group), 0)).append("/s average, limit ")
+              .append(rate > 0L ? scaledSize(rate, 0) + "/s" : "none").append("\n");
+        }
         String msg = sb.toString();           
         report(msg);
         setResult(msg);
         return Curator.CURATE_SUCCESS;
     }
     
+    /**
+     * Reports the recent activity of each store group and object type: the
+     * rate of the last hour and day, the trend of the last week on the one
+     * before it, and what that week projects for the next 30 days.
+     */
+    private void reportHistory(StringBuilder sb, Odometer odometer)
+    {
+        OdometerHistory history = odometer.getHistory();
+        long netWeek = 0L;
+        for (String group : history.getGroups())
+        {
+            sb.append("Activity of '").append(group).append("':\n");
+            for (String type : history.getTypes(group))
+            {
+                long lastHour = history.sum(group, type, OdometerHistory.UPLOADED, false, 1, 1);
+                long upDay = history.sum(group, type, OdometerHistory.UPLOADED, false, 0, 24);
+                long downDay = history.sum(group, type, OdometerHistory.DOWNLOADED, false, 0, 24);
+                long transfers = history.sum(group, type, OdometerHistory.UPLOADS, false, 0, 24) +
+                                 history.sum(group, type, OdometerHistory.DOWNLOADS, false, 0, 24);
+                long latency = history.sum(group, type, OdometerHistory.LATENCY, false, 0, 24);
+                long week = history.sum(group, type, OdometerHistory.UPLOADED, true, 0, 7);
+                long prevWeek = history.sum(group, type, OdometerHistory.UPLOADED, true, 7, 7);
+                sb.append("  ").append(type).append(": ")
+                  .append(scaledSize(lastHour, 0)).append(" uploaded last hour, ")
+                  .append(scaledSize(upDay, 0)).append(" uploaded (")
+                  .append(scaledSize(upDay / (24L * 60L * 60L), 0)).append("/s) and ")
+                  .append(scaledSize(downDay, 0)).append(" downloaded in 24 hours, ")
+                  .append(transfers).append(" transfers");
+                if (transfers > 0L)
+                {
+                    sb.append(" (").append(latency / transfers).append(" ms each)");
+                }
+                sb.append(", uploads ").append(trend(week, prevWeek)).append(" on the week before")
+                  .append(", projected ").append(scaledSize(week * 30L / 7L, 0)).append(" in 30 days\n");
+            }
+            netWeek += history.sum(group, null, OdometerHistory.UPLOADED, true, 0, 7) -
+                       history.sum(group, null, OdometerHistory.REMOVED, true, 0, 7);
+        }
+        if (! history.getGroups().isEmpty())
+        {
+            // uploads replacing earlier copies are counted in full, so this is an upper bound
+            long projected = Math.max(0L, odometer.getProperty("storesize") + netWeek * 30L / 7L);
+            sb.append("Projected size in 30 days: at most ").append(scaledSize(projected, 0)).append("\n");
+        }
+    }
+
+    private static String trend(long current, long previous)
+    {
+        if (previous == 0L)
+        {
+            return current > 0L ? "up (none)" : "flat";
+        }
+        long change = Math.round((current - previous) * 100.0 / previous);
+        return (change >= 0L ? "+" : "") + change + "%";
+    }
+
     String[] prefixes = { "", "kilo", "mega", "giga", "tera", "peta", "exa" };
     private String scaledSize(long size, int idx)
     {
@@ -0,0 +1,76 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.replicate;
+
+import java.io.IOException;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.dspace.content.DSpaceObject;
+import org.dspace.curate.AbstractCurationTask;
+import org.dspace.curate.Curator;
+import org.dspace.curate.Distributive;
+
+/**
+ * RebuildReplicaCatalog rebuilds the local replica catalog (see
+ * 'replicate.catalog.enabled' in 'replicate.cfg') from a listing of each
+ * store group, e.g. when the catalog has been lost, or was enabled on a
+ * store which already held replicas. Since the whole catalog is rebuilt,
+ * the actual data object is ignored.
+ * <p>
+ * Other replication tasks may run meanwhile: replicas they change while a
+ * group is being listed keep the catalog records those tasks made.
+ *
+ * @see ReplicaCatalog
+ */
+@Distributive
+public class RebuildReplicaCatalog extends AbstractCurationTask
+{
+    /**
+     * Performs the "Rebuild Replica Catalog" task.
+     * @param dso this param is ignored, as the catalog is rebuilt as a whole
+     * @return integer which represents Curator return status
+     * @throws IOException if I/O error
+     */
+    @Override
+    public int perform(DSpaceObject dso) throws IOException
+    {
+        ReplicaManager repMan = ReplicaManager.instance();
+        if (repMan.getCatalog() == null)
+        {
+            String msg = "Replica catalog is not enabled - nothing to rebuild";
+            report(msg);
+            setResult(msg);
+            return Curator.CURATE_SKIP;
+        }
+
+        Set<String> groups = new LinkedHashSet<String>();
+        for (String key : new String[] { "replicate.group.aip.name",
+                                         "replicate.group.manifest.name",
+                                         "replicate.group.delete.name",
+                                         "replicate.group.payload.name" })
+        {
+            String group = configurationService.getProperty(key);
+            if (group != null)
+            {
+                groups.add(group);
+            }
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (String group : groups)
+        {
+            long count = repMan.rebuildCatalog(group);
+            sb.append("Group '").append(group).append("': ").append(count).append(" replicas catalogued\n");
+        }
+        String msg = sb.toString();
+        report(msg);
+        setResult(msg);
+        return Curator.CURATE_SUCCESS;
+    }
+}
@@ -11,8 +11,10 @@ package org.dspace.ctask.replicate;
 import java.io.File;
 import java.io.IOException;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Future;
 
 import org.dspace.content.*;
 import org.dspace.content.factory.ContentServiceFactory;
@@ -67,24 +69,35 @@ public class RemoveAIP extends AbstractCurationTask {
     @Override
     public int perform(DSpaceObject dso) throws IOException 
     {
-        ReplicaManager repMan = ReplicaManager.instance();
-        remove(repMan, dso);
+        AsyncReplicaManager repMan = AsyncReplicaManager.instance();
+        List<Future<Integer>> removals = new ArrayList<Future<Integer>>();
+        List<String> batch = new ArrayList<String>();
+        remove(repMan, dso, batch, removals);
+        flush(repMan, batch, removals);
+        AsyncReplicaManager.awaitAll(removals);
         setResult("AIP for '" + dso.getHandle() + "' has been removed");
         return Curator.CURATE_SUCCESS;
     }
 
     /**
      * Remove replica(s) of the passed in DSpace object from a particular
-     * replica ObjectStore.
-     * @param repMan ReplicaManager (used to access ObjectStore)
+     * replica ObjectStore. The replicas are gathered into batches, each
+     * removed by a bulk request which is started, but not waited for.
+     * @param repMan AsyncReplicaManager (used to access ObjectStore)
      * @param dso the DSpace object whose replicas we will remove
+     * @param batch storage IDs not yet removed
+     * @param removals list to which the started removals are added
      * @throws IOException if I/O error
      */
-    private void remove(ReplicaManager repMan, DSpaceObject dso) throws IOException 
+    private void remove(AsyncReplicaManager repMan, DSpaceObject dso, List<String> batch,
+                        List<Future<Integer>> removals) throws IOException 
     {
         //Remove object from AIP storage
-        String objId = repMan.storageId(dso.getHandle(), archFmt);
-        repMan.removeObject(storeGroupName, objId);
+        String objId = ReplicaManager.instance().storageId(dso.getHandle(), archFmt);
+        batch.add(objId);
+        if (batch.size() >= ReplicaManager.instance().getBatchSize()) {
+            flush(repMan, batch, removals);
+        }
         report("Removing AIP for: " + objId);
         
         //If it is a Collection, also remove all Items from AIP storage
@@ -93,7 +106,7 @@ public class RemoveAIP extends AbstractCurationTask {
             try {
                 Iterator<Item> iter = itemService.findByCollection(Curator.curationContext(), coll);
                 while (iter.hasNext()) {
-                    remove(repMan, iter.next());
+                    remove(repMan, iter.next(), batch, removals);
                 }
             } catch (SQLException sqlE) {
                 throw new IOException(sqlE);
@@ -102,10 +115,10 @@ public class RemoveAIP extends AbstractCurationTask {
         else if (dso instanceof Community) {
             Community comm = (Community)dso;
             for (Community subcomm : comm.getSubcommunities()) {
-                remove(repMan, subcomm);
+                remove(repMan, subcomm, batch, removals);
             }
             for (Collection coll : comm.getCollections()) {
-                remove(repMan, coll);
+                remove(repMan, coll, batch, removals);
             }
         } //else if it is a Site object, remove all top-level communities (and everything else) from AIP storage
         else if (dso instanceof Site) {
@@ -113,7 +126,7 @@ public class RemoveAIP extends AbstractCurationTask {
                 List<Community> topCommunities = communityService.findAllTop(Curator.curationContext());
                 
                 for (Community subcomm : topCommunities) {
-                    remove(repMan, subcomm);
+                    remove(repMan, subcomm, batch, removals);
                 }
             } catch (SQLException sqlE) {
                 throw new IOException(sqlE);
@@ -121,6 +134,18 @@ public class RemoveAIP extends AbstractCurationTask {
         }
     }
 
+    /**
+     * Starts the removal of a batch of replicas, and empties the batch.
+     */
+    private void flush(AsyncReplicaManager repMan, List<String> batch, List<Future<Integer>> removals)
+        throws IOException
+    {
+        if (! batch.isEmpty()) {
+            removals.add(repMan.removeObjects(storeGroupName, new ArrayList<String>(batch)));
+            batch.clear();
+        }
+    }
+
     /**
      * Removes replicas of passed id from the replica store. This can act in
      * one of two ways: either there is an existing DSpace Object with
@@ -156,16 +181,17 @@ public class RemoveAIP extends AbstractCurationTask {
         if (catFile != null) {
             CatalogPacker cpack = new CatalogPacker(id);
             cpack.unpack(catFile);
-            // remove the object AIP itself
+            // remove the object AIP itself, and all member/child object's AIPs, in bulk
+            List<String> objIds = new ArrayList<String>();
             String objId = repMan.storageId(id, archFmt);
-            repMan.removeObject(storeGroupName, objId);
+            objIds.add(objId);
             report("Removing AIP for: " + objId);
-            // remove all member/child object's AIPs
             for (String mem : cpack.getMembers()) {
                 String memId = repMan.storageId(mem, archFmt);
-                repMan.removeObject(storeGroupName, memId);
+                objIds.add(memId);
                 report("Removing AIP for: " + memId);
             }
+            repMan.removeObjects(storeGroupName, objIds);
             
             // remove local deletion catalog
             catFile.delete();
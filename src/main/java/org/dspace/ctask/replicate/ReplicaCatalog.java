@@ -0,0 +1,943 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.replicate;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+
+/**
+ * ReplicaCatalog is a local record of every replica the ReplicaManager has
+ * written: its group, storage ID, handle, object type, size, MD5 checksum,
+ * upload time and the time it was last verified. Lookups are answered from
+ * memory, sparing calls to a (possibly remote) object store.
+ * <p>
+ * The catalog is kept in two files in its directory: a snapshot
+ * ('catalog') and a journal of the changes made since ('catalog.journal').
+ * Each change is appended to the journal as it is made; when the journal
+ * grows large, a new snapshot is written alongside and renamed into place,
+ * and a new journal is started. On opening, the snapshot is read and the
+ * journal replayed, ignoring any record left incomplete by a crash.
+ * <p>
+ * Several processes (e.g. the web application and the command line curation
+ * tool) may share a catalog. Every operation holds a lock on the
+ * 'catalog.lock' file, and first reads the records other processes have
+ * appended to the journal since; if another process has started a new
+ * journal, the snapshot and journal are read again. So a snapshot always
+ * holds the changes of every process.
+ * <p>
+ * A group is 'complete' once it has been rebuilt from a listing of the
+ * store (see RebuildReplicaCatalog). Even so, a replica missing from the
+ * catalog may since have been written by a process not using it, so only
+ * the store can say that a replica is missing.
+ *
+ * @see ReplicaManager
+ */
+public class ReplicaCatalog
+{
+    private static final Logger log = Logger.getLogger(ReplicaCatalog.class);
+
+    private static final String SNAPSHOT_NAME = "catalog";
+    private static final String JOURNAL_NAME = "catalog.journal";
+    private static final String LOCK_NAME = "catalog.lock";
+    // journal records at least this long are folded into a new snapshot
+    private static final int MIN_CHECKPOINT_RECORDS = 10000;
+
+    // record types
+    private static final String PUT = "P";
+    private static final String REMOVE = "R";
+    private static final String VERIFIED = "V";
+    private static final String COMPLETE = "C";
+    private static final String CLEAR = "X";
+    // first record of each journal, naming it
+    private static final String JOURNAL = "J";
+
+    // a JVM may only hold one lock on a file, so catalogs of the same
+    // directory in this JVM take turns before locking it
+    private static final ConcurrentMap<String, ReentrantLock> dirLocks =
+        new ConcurrentHashMap<String, ReentrantLock>();
+
+    private final File snapshotFile;
+    private final File journalFile;
+    private final File lockFile;
+    private final boolean fsync;
+    // held by this JVM while it locks the catalog directory
+    private final ReentrantLock dirLock;
+
+    // replicas of each group, by storage ID
+    private final Map<String, Map<String, Entry>> groups = new HashMap<String, Map<String, Entry>>();
+    // groups rebuilt from a listing of the store
+    private final Set<String> complete = new HashSet<String>();
+    private FileOutputStream journalOut = null;
+    private Writer journal = null;
+    private int journalRecords = 0;
+    // name of the journal read, and how far it has been read
+    private String journalName = null;
+    private long journalRead = 0L;
+    // IDs changed in groups being rebuilt, while the store listing is read
+    private final Map<String, Set<String>> rebuilding = new HashMap<String, Set<String>>();
+
+    /**
+     * Opens (or creates) the catalog in a directory.
+     * @param dir catalog directory
+     * @param fsync whether each change is forced to disk as it is made
+     * @throws IOException if the catalog cannot be read
+     */
+    public ReplicaCatalog(File dir, boolean fsync) throws IOException
+    {
+        if (! dir.isDirectory() && ! dir.mkdirs())
+        {
+            throw new IOException("Unable to create catalog directory '" + dir + "'");
+        }
+        this.snapshotFile = new File(dir, SNAPSHOT_NAME);
+        this.journalFile = new File(dir, JOURNAL_NAME);
+        this.lockFile = new File(dir, LOCK_NAME);
+        this.fsync = fsync;
+        ReentrantLock newLock = new ReentrantLock();
+        ReentrantLock existing = dirLocks.putIfAbsent(dir.getCanonicalPath(), newLock);
+        dirLock = existing != null ? existing : newLock;
+        lock().release();
+    }
+
+    /**
+     * @param group store group
+     * @param id storage ID
+     * @return the catalog entry of a replica, or null if there is none
+     * @throws IOException if the catalog cannot be read
+     */
+    public synchronized Entry get(String group, String id) throws IOException
+    {
+        CatalogLock lock = lock();
+        try
+        {
+            return entry(group, id);
+        }
+        finally
+        {
+            lock.release();
+        }
+    }
+
+    /**
+     * @param group store group
+     * @return true if the group has been rebuilt from the store
+     * @throws IOException if the catalog cannot be read
+     */
+    public synchronized boolean isComplete(String group) throws IOException
+    {
+        CatalogLock lock = lock();
+        try
+        {
+            return complete.contains(group);
+        }
+        finally
+        {
+            lock.release();
+        }
+    }
+
+    /**
+     * Records a replica, replacing any earlier record of it.
+     * @param entry catalog entry
+     * @throws IOException if the change cannot be recorded
+     */
+    public synchronized void put(Entry entry) throws IOException
+    {
+        CatalogLock lock = lock();
+        try
+        {
+            apply(entry.toRecord());
+        }
+        finally
+        {
+            lock.release();
+        }
+    }
+
+    /**
+     * Records the removal of a replica.
+     * @param group store group
+     * @param id storage ID
+     * @throws IOException if the change cannot be recorded
+     */
+    public synchronized void remove(String group, String id) throws IOException
+    {
+        CatalogLock lock = lock();
+        try
+        {
+            if (entry(group, id) != null)
+            {
+                apply(new String[] { REMOVE, group, id });
+            }
+        }
+        finally
+        {
+            lock.release();
+        }
+    }
+
+    /**
+     * Records the move of a replica from one group to another.
+     * @param srcGroup group moved from
+     * @param destGroup group moved to
+     * @param id storage ID
+     * @throws IOException if the change cannot be recorded
+     */
+    public synchronized void move(String srcGroup, String destGroup, String id) throws IOException
+    {
+        CatalogLock lock = lock();
+        try
+        {
+            Entry entry = entry(srcGroup, id);
+            if (entry != null)
+            {
+                apply(new Entry(destGroup, id, entry.handle, entry.type, entry.size, entry.md5,
+                                entry.uploaded, entry.verified).toRecord());
+                apply(new String[] { REMOVE, srcGroup, id });
+            }
+        }
+        finally
+        {
+            lock.release();
+        }
+    }
+
+    /**
+     * Records that a replica has been verified (e.g. its checksum compared
+     * with that of a freshly packed AIP).
+     * @param group store group
+     * @param id storage ID
+     * @param time time of verification
+     * @throws IOException if the change cannot be recorded
+     */
+    public synchronized void verified(String group, String id, long time) throws IOException
+    {
+        CatalogLock lock = lock();
+        try
+        {
+            if (entry(group, id) != null)
+            {
+                apply(new String[] { VERIFIED, group, id, String.valueOf(time) });
+            }
+        }
+        finally
+        {
+            lock.release();
+        }
+    }
+
+    /**
+     * Replaces the catalog of a group with a listing of the store, and marks
+     * it complete. Verification times of replicas which are unchanged (by
+     * checksum) are kept. The listing is read before the catalog is locked,
+     * as it may take long; replicas whose records change meanwhile keep
+     * those records rather than the listing's.
+     * @param group store group
+     * @param listing the replicas in the store group
+     * @param resolver finds the handle and type of each replica
+     * @return number of replicas catalogued
+     * @throws IOException if the catalog cannot be written
+     */
+    public long rebuild(String group, Iterator<ObjectInfo> listing, Resolver resolver)
+        throws IOException
+    {
+        Set<String> changed = new HashSet<String>();
+        synchronized (this)
+        {
+            rebuilding.put(group, changed);
+        }
+        try
+        {
+            List<Entry> listed = new ArrayList<Entry>();
+            while (listing.hasNext())
+            {
+                ObjectInfo info = listing.next();
+                listed.add(new Entry(group, info.getId(), resolver.handle(info.getId()), resolver.type(info.getId()),
+                                     info.getSize(), info.getChecksum(), parseTime(info.getModified()), 0L));
+            }
+            synchronized (this)
+            {
+                CatalogLock lock = lock();
+                try
+                {
+                    return swap(group, listed, changed);
+                }
+                finally
+                {
+                    lock.release();
+                }
+            }
+        }
+        finally
+        {
+            synchronized (this)
+            {
+                rebuilding.remove(group);
+            }
+        }
+    }
+
+    /**
+     * Replaces the catalog of a group with the replicas listed, other than
+     * those changed since the listing began.
+     */
+    private long swap(String group, List<Entry> listed, Set<String> changed) throws IOException
+    {
+        // copied, as clearing the group empties its map
+        Map<String, Entry> previous = groups.containsKey(group)
+                                      ? new HashMap<String, Entry>(groups.get(group))
+                                      : new HashMap<String, Entry>();
+        // taken now, as the records applied below add to it
+        Set<String> keep = new HashSet<String>(changed);
+        apply(new String[] { CLEAR, group });
+        long count = 0L;
+        for (Entry entry : listed)
+        {
+            if (! keep.contains(entry.id))
+            {
+                Entry old = previous.get(entry.id);
+                long verified = old != null && entry.md5 != null && entry.md5.equals(old.md5) ? old.verified : 0L;
+                apply(new Entry(group, entry.id, entry.handle, entry.type, entry.size, entry.md5,
+                                entry.uploaded, verified).toRecord());
+                count++;
+            }
+        }
+        for (String id : keep)
+        {
+            Entry current = previous.get(id);
+            if (current != null)
+            {
+                apply(current.toRecord());
+                count++;
+            }
+        }
+        apply(new String[] { COMPLETE, group });
+        checkpointUnlocked();
+        return count;
+    }
+
+    /**
+     * @return names of the groups holding catalogued replicas
+     */
+    public synchronized Set<String> getGroups() throws IOException
+    {
+        Set<String> names = new TreeSet<String>();
+        CatalogLock lock = lock();
+        try
+        {
+            for (Map.Entry<String, Map<String, Entry>> group : groups.entrySet())
+            {
+                if (! group.getValue().isEmpty())
+                {
+                    names.add(group.getKey());
+                }
+            }
+        }
+        finally
+        {
+            lock.release();
+        }
+        return names;
+    }
+
+    /**
+     * @param group store group
+     * @return the number of replicas catalogued in the group
+     * @throws IOException if the catalog cannot be read
+     */
+    public synchronized long count(String group) throws IOException
+    {
+        CatalogLock lock = lock();
+        try
+        {
+            Map<String, Entry> entries = groups.get(group);
+            return entries != null ? entries.size() : 0L;
+        }
+        finally
+        {
+            lock.release();
+        }
+    }
+
+    /**
+     * @param group store group
+     * @return the total size of the replicas catalogued in the group
+     * @throws IOException if the catalog cannot be read
+     */
+    public synchronized long size(String group) throws IOException
+    {
+        long size = 0L;
+        CatalogLock lock = lock();
+        try
+        {
+            Map<String, Entry> entries = groups.get(group);
+            if (entries != null)
+            {
+                for (Entry entry : entries.values())
+                {
+                    size += entry.size;
+                }
+            }
+        }
+        finally
+        {
+            lock.release();
+        }
+        return size;
+    }
+
+    /**
+     * Writes a new snapshot of the catalog, with the changes of every
+     * process sharing it, and starts a new journal.
+     * @throws IOException if the snapshot cannot be written
+     */
+    public synchronized void checkpoint() throws IOException
+    {
+        CatalogLock lock = lock();
+        try
+        {
+            checkpointUnlocked();
+        }
+        finally
+        {
+            lock.release();
+        }
+    }
+
+    private void checkpointUnlocked() throws IOException
+    {
+        File tempFile = new File(snapshotFile.getParentFile(), "." + SNAPSHOT_NAME + ".tmp");
+        FileOutputStream out = new FileOutputStream(tempFile);
+        try
+        {
+            Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+            for (Map<String, Entry> entries : groups.values())
+            {
+                for (Entry entry : entries.values())
+                {
+                    writer.write(join(entry.toRecord()));
+                }
+            }
+            for (String group : complete)
+            {
+                writer.write(join(new String[] { COMPLETE, group }));
+            }
+            writer.flush();
+            out.getFD().sync();
+        }
+        finally
+        {
+            out.close();
+        }
+        try
+        {
+            Files.move(tempFile.toPath(), snapshotFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (AtomicMoveNotSupportedException amnsE)
+        {
+            Files.move(tempFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        // the journal is only replaced once the snapshot holding its changes is in place
+        startJournal();
+    }
+
+    /**
+     * Closes the journal.
+     * @throws IOException if I/O error
+     */
+    public synchronized void close() throws IOException
+    {
+        closeJournal();
+    }
+
+    private Entry entry(String group, String id)
+    {
+        Map<String, Entry> entries = groups.get(group);
+        return entries != null ? entries.get(id) : null;
+    }
+
+    /**
+     * Locks the catalog against other processes (and other catalogs of its
+     * directory in this JVM), then brings it up to date with their changes.
+     * @return the lock, to be released once the operation is done
+     */
+    private CatalogLock lock() throws IOException
+    {
+        CatalogLock lock = new CatalogLock();
+        try
+        {
+            refresh();
+        }
+        catch (IOException | RuntimeException e)
+        {
+            lock.release();
+            throw e;
+        }
+        return lock;
+    }
+
+    /**
+     * Reads the journal records added since it was last read. If another
+     * process has started a new journal (having written its changes to the
+     * snapshot), the snapshot and journal are read again in full.
+     */
+    private void refresh() throws IOException
+    {
+        if (! journalFile.isFile() || journalFile.length() == 0L)
+        {
+            // a new catalog (or one whose journal was lost)
+            reload();
+            startJournal();
+            return;
+        }
+        if (! readJournalName().equals(journalName))
+        {
+            reload();
+        }
+        else if (journalFile.length() > journalRead)
+        {
+            trimIncompleteRecord();
+            long from = journalRead;
+            journalRead = journalFile.length();
+            journalRecords += replay(journalFile, from);
+        }
+    }
+
+    private void reload() throws IOException
+    {
+        closeJournal();
+        groups.clear();
+        complete.clear();
+        journalName = null;
+        journalRead = 0L;
+        journalRecords = 0;
+        if (snapshotFile.isFile())
+        {
+            replay(snapshotFile, 0L);
+        }
+        if (journalFile.isFile() && journalFile.length() > 0L)
+        {
+            trimIncompleteRecord();
+            journalName = readJournalName();
+            journalRead = journalFile.length();
+            journalRecords = replay(journalFile, 0L);
+            if (journalName.isEmpty())
+            {
+                // a journal without a name cannot be told from its successor
+                checkpointUnlocked();
+            }
+        }
+    }
+
+    /**
+     * Replaces the journal with an empty one, under a new name.
+     */
+    private void startJournal() throws IOException
+    {
+        closeJournal();
+        String name = UUID.randomUUID().toString();
+        FileOutputStream out = new FileOutputStream(journalFile);
+        try
+        {
+            out.write(join(new String[] { JOURNAL, name }).getBytes(StandardCharsets.UTF_8));
+            out.getFD().sync();
+        }
+        finally
+        {
+            out.close();
+        }
+        journalName = name;
+        journalRead = journalFile.length();
+        journalRecords = 0;
+    }
+
+    /**
+     * @return the name of the journal, or "" if it has none
+     */
+    private String readJournalName() throws IOException
+    {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile),
+                                                                         StandardCharsets.UTF_8));
+        try
+        {
+            String line = reader.readLine();
+            String[] record = line != null ? line.split("\t", -1) : new String[0];
+            return record.length == 2 && JOURNAL.equals(record[0]) ? record[1] : "";
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    /**
+     * Applies a change to the catalog, after recording it in the journal.
+     * The catalog must be locked.
+     */
+    private void apply(String[] record) throws IOException
+    {
+        if (journal == null)
+        {
+            journalOut = new FileOutputStream(journalFile, true);
+            journal = new OutputStreamWriter(journalOut, StandardCharsets.UTF_8);
+        }
+        journal.write(join(record));
+        journal.flush();
+        if (fsync)
+        {
+            journalOut.getFD().sync();
+        }
+        journalRead = journalOut.getChannel().size();
+        update(record);
+        if (++journalRecords >= MIN_CHECKPOINT_RECORDS && journalRecords >= entryCount())
+        {
+            checkpointUnlocked();
+        }
+    }
+
+    /**
+     * Applies a change to the in-memory catalog.
+     */
+    private void update(String[] record)
+    {
+        String type = record[0];
+        String group = record[1];
+        Set<String> changed = rebuilding.get(group);
+        if (changed != null && record.length > 2)
+        {
+            changed.add(record[2]);
+        }
+        Map<String, Entry> entries = groups.get(group);
+        if (entries == null)
+        {
+            entries = new HashMap<String, Entry>();
+            groups.put(group, entries);
+        }
+        if (PUT.equals(type))
+        {
+            Entry entry = Entry.fromRecord(record);
+            entries.put(entry.id, entry);
+        }
+        else if (REMOVE.equals(type))
+        {
+            entries.remove(record[2]);
+        }
+        else if (VERIFIED.equals(type))
+        {
+            Entry entry = entries.get(record[2]);
+            if (entry != null)
+            {
+                entries.put(entry.id, new Entry(entry.group, entry.id, entry.handle, entry.type, entry.size,
+                                                entry.md5, entry.uploaded, Long.parseLong(record[3])));
+            }
+        }
+        else if (COMPLETE.equals(type))
+        {
+            complete.add(group);
+        }
+        else if (CLEAR.equals(type))
+        {
+            entries.clear();
+            complete.remove(group);
+        }
+    }
+
+    /**
+     * Reads a snapshot or journal into the catalog.
+     * @param from position in the file to read from
+     * @return number of records read
+     */
+    private int replay(File file, long from) throws IOException
+    {
+        int records = 0;
+        FileInputStream in = new FileInputStream(file);
+        in.getChannel().position(from);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        try
+        {
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                String[] record = line.split("\t", -1);
+                if (JOURNAL.equals(record[0]))
+                {
+                    continue;
+                }
+                try
+                {
+                    update(record);
+                    records++;
+                }
+                catch (RuntimeException rtE)
+                {
+                    log.warn("Skipping unreadable catalog record in " + file + ": " + line);
+                }
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+        return records;
+    }
+
+    /**
+     * Cuts off the last record of the journal if it was left incomplete
+     * (e.g. by a crash mid-write), so that new records start on a line of
+     * their own.
+     */
+    private void trimIncompleteRecord() throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(journalFile, "rw");
+        try
+        {
+            long end = raf.length();
+            while (end > 0L)
+            {
+                raf.seek(end - 1L);
+                if (raf.read() == '\n')
+                {
+                    break;
+                }
+                end--;
+            }
+            if (end < raf.length())
+            {
+                log.warn("Discarding incomplete record at the end of " + journalFile);
+                raf.setLength(end);
+            }
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    private void closeJournal() throws IOException
+    {
+        if (journal != null)
+        {
+            journal.close();
+            journal = null;
+            journalOut = null;
+        }
+    }
+
+    /**
+     * The lock on the catalog directory, held for one operation.
+     */
+    private class CatalogLock
+    {
+        private final RandomAccessFile lockRaf;
+        private final FileLock fileLock;
+
+        CatalogLock() throws IOException
+        {
+            dirLock.lock();
+            RandomAccessFile raf = null;
+            try
+            {
+                raf = new RandomAccessFile(lockFile, "rw");
+                fileLock = raf.getChannel().lock();
+                lockRaf = raf;
+            }
+            catch (IOException | RuntimeException e)
+            {
+                if (raf != null)
+                {
+                    raf.close();
+                }
+                dirLock.unlock();
+                throw e;
+            }
+        }
+
+        void release() throws IOException
+        {
+            try
+            {
+                fileLock.release();
+                lockRaf.close();
+            }
+            finally
+            {
+                dirLock.unlock();
+            }
+        }
+    }
+
+    private int entryCount()
+    {
+        int count = 0;
+        for (Map<String, Entry> entries : groups.values())
+        {
+            count += entries.size();
+        }
+        return count;
+    }
+
+    private static String join(String[] record)
+    {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < record.length; i++)
+        {
+            if (i > 0)
+            {
+                sb.append('\t');
+            }
+            sb.append(record[i] != null ? record[i] : "");
+        }
+        return sb.append('\n').toString();
+    }
+
+    private static long parseTime(String time)
+    {
+        try
+        {
+            return time != null ? Long.parseLong(time) : 0L;
+        }
+        catch (NumberFormatException nfE)
+        {
+            return 0L;
+        }
+    }
+
+    /**
+     * Finds the handle and object type of a replica from its storage ID.
+     */
+    public interface Resolver
+    {
+        String handle(String id);
+
+        String type(String id);
+    }
+
+    /**
+     * The catalog record of a single replica.
+     */
+    public static class Entry
+    {
+        private final String group;
+        private final String id;
+        private final String handle;
+        private final String type;
+        private final long size;
+        private final String md5;
+        private final long uploaded;
+        private final long verified;
+
+        public Entry(String group, String id, String handle, String type, long size, String md5,
+                     long uploaded, long verified)
+        {
+            this.group = group;
+            this.id = id;
+            this.handle = handle;
+            this.type = type;
+            this.size = size;
+            this.md5 = md5;
+            this.uploaded = uploaded;
+            this.verified = verified;
+        }
+
+        public String getGroup()
+        {
+            return group;
+        }
+
+        public String getId()
+        {
+            return id;
+        }
+
+        public String getHandle()
+        {
+            return handle;
+        }
+
+        /**
+         * @return the object type (e.g. 'ITEM'), or null if not known
+         */
+        public String getType()
+        {
+            return type;
+        }
+
+        public long getSize()
+        {
+            return size;
+        }
+
+        /**
+         * @return hex encoded MD5 checksum, or null if not known
+         */
+        public String getChecksum()
+        {
+            return md5;
+        }
+
+        public long getUploaded()
+        {
+            return uploaded;
+        }
+
+        /**
+         * @return time the replica was last verified, or 0 if never
+         */
+        public long getVerified()
+        {
+            return verified;
+        }
+
+        private String[] toRecord()
+        {
+            return new String[] { PUT, group, id, handle, type, String.valueOf(size), md5,
+                                  String.valueOf(uploaded), String.valueOf(verified) };
+        }
+
+        private static Entry fromRecord(String[] record)
+        {
+            if (record.length != 9)
+            {
+                throw new IllegalArgumentException("Bad catalog record");
+            }
+            return new Entry(record[1], record[2], emptyToNull(record[3]), emptyToNull(record[4]),
+                             Long.parseLong(record[5]), emptyToNull(record[6]),
+                             Long.parseLong(record[7]), Long.parseLong(record[8]));
+        }
+
+        private static String emptyToNull(String value)
+        {
+            return value.isEmpty() ? null : value;
+        }
+    }
+}
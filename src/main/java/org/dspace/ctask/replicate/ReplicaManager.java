@@ -14,12 +14,27 @@ import org.dspace.core.Constants;
 import org.dspace.core.Context;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
 
 import org.apache.log4j.Logger;
 import org.dspace.core.factory.CoreServiceFactory;
-import org.dspace.core.service.PluginService;
+import org.dspace.ctask.replicate.store.LocalObjectStore;
 import org.dspace.curate.Curator;
+import org.dspace.curate.Utils;
 import org.dspace.handle.factory.HandleServiceFactory;
 import org.dspace.handle.service.HandleService;
 import org.dspace.services.ConfigurationService;
@@ -31,41 +46,70 @@ import static org.dspace.ctask.replicate.Odometer.*;
  * Singleton access point for communicating with replication access providers.
  * ReplicaManager adds a thin accounting or bookkeeping layer, recording
  * activity with the storage provider.
+ * <p>
+ * The one instance is shared by every curation worker of the JVM, so it
+ * keeps no per-task state: each task packs into its own staging folder
+ * (see <code>stageTask</code>), and duplicate requests for the same work
+ * may be joined to one another (see <code>singleFlight</code>).
  *
  * @author richardrodgers
  */
 public class ReplicaManager {
 
     private ConfigurationService configurationService = DSpaceServicesFactory.getInstance().getConfigurationService();
-    private PluginService pluginService = CoreServiceFactory.getInstance().getPluginService();
     private HandleService handleService = HandleServiceFactory.getInstance().getHandleService();
 
     private Logger log = Logger.getLogger(ReplicaManager.class);
     // singleton instance
     private static ReplicaManager instance = null;
     // the replica provider
-    private ObjectStore objStore = null;
+    private final ObjectStore objStore;
     // base directory for replication activities
     private final String repDir = configurationService.getProperty("replicate.base.dir");
     // an odometer for recording activity
-    private Odometer odometer = null;
-    // lock for updating odometer
-    private final Object odoLock = new Object();
+    private final Odometer odometer;
     // Primary store group name
     private final String storeGroupName = configurationService.getProperty("replicate.group.aip.name");
     // Delete store group name
     private final String deleteGroupName = configurationService.getProperty("replicate.group.delete.name");
     // Separating character between Type prefix and object identifier, used when packages are named with a Type prefix
     private final String typePrefixSeparator = "@";
+    // folder, in each store group's staging folder, holding the folders of tasks
+    static final String TASK_DIR = "tasks";
     // Special Type prefix for Deletion catalog records
     private final String deletionCatalogPrefix = "DELETION-RECORD";
     // AIP Package compression format (e.g. zip or tgz)
     private final String archFmt = configurationService.getProperty("replicate.packer.archfmt");
-
+    // local catalog of replicas, if enabled
+    private final ReplicaCatalog catalog;
+    // paces and measures transfers of each store group
+    private final BandwidthScheduler scheduler = new BandwidthScheduler();
+    // most objects removed or moved by a single bulk request to the store
+    private final int batchSize = Math.max(1, configurationService.getIntProperty("replicate.bulk.batch", 1000));
+    // type prefixes of objects whose storage IDs have been worked out
+    private final StorageIdCache idCache;
+    // staging folders of tasks, spread over the staging volumes
+    private final StagingManager staging;
+    // work under way, by key, which duplicate requests wait on rather than repeat
+    private final SingleFlight flights = new SingleFlight();
 
     private ReplicaManager() throws IOException
     {
-        objStore = (ObjectStore) pluginService.getSinglePlugin(ObjectStore.class);
+        this((ObjectStore) CoreServiceFactory.getInstance().getPluginService().getSinglePlugin(ObjectStore.class),
+             null);
+    }
+
+    /**
+     * Creates a manager of the passed store, rather than of the one
+     * configured in 'replicate.cfg'.
+     * @param objStore the replica store
+     * @param meter odometer to record activity on, or null to use the one
+     *              in 'replicate.base.dir'
+     * @throws IOException if the store cannot be initialized
+     */
+    ReplicaManager(ObjectStore objStore, Odometer meter) throws IOException
+    {
+        this.objStore = objStore;
         if (objStore == null) {
             log.error("No ObjectStore configured in 'replicate.cfg'!");
             throw new IOException("No ObjectStore configured in 'replicate.cfg'!");
@@ -76,14 +120,67 @@ public class ReplicaManager {
         // create directory structures
         new File(repDir).mkdirs();
         // load our odometer - writeable copy
-        try
+        if (meter == null)
         {
-            odometer = new Odometer(repDir, false);
+            try
+            {
+                meter = new Odometer(repDir, false);
+                // changes are written out in the background, off the transfer path
+                meter.startFlushing(configurationService.getLongProperty("replicate.odometer.flush", 10L));
+            }
+            catch (IOException ioE)
+            {
+                //just log a warning
+                log.warn("Unable to read odometer file in '"+ repDir + "'", ioE);
+            }
+        }
+        odometer = meter;
+        if (configurationService.getBooleanProperty("replicate.catalog.enabled", false))
+        {
+            String catalogDir = configurationService.getProperty("replicate.catalog.dir",
+                                                                 repDir + File.separator + "catalog");
+            catalog = new ReplicaCatalog(new File(catalogDir),
+                                         configurationService.getBooleanProperty("replicate.catalog.fsync", false));
+        }
+        else
+        {
+            catalog = null;
         }
-        catch (IOException ioE)
+        List<File> stagingDirs = new ArrayList<File>();
+        for (String dir : configurationService.getProperty("replicate.staging.dirs", repDir).split(","))
         {
-            //just log a warning
-            log.warn("Unable to read odometer file in '"+ repDir + "'", ioE);
+            if (dir.trim().length() > 0)
+            {
+                stagingDirs.add(new File(dir.trim()));
+            }
+        }
+        staging = new StagingManager(stagingDirs,
+                                     configurationService.getLongProperty("replicate.staging.quota", 0L),
+                                     configurationService.getPropertyAsType("replicate.staging.factor", 2.0),
+                                     configurationService.getLongProperty("replicate.staging.headroom", 0L),
+                                     configurationService.getLongProperty("replicate.staging.orphan.age", 1440L));
+        staging.startCleaning(configurationService.getLongProperty("replicate.staging.cleanup", 60L));
+        final String idCacheFile = configurationService.getProperty("replicate.idcache.file");
+        idCache = new StorageIdCache(configurationService.getIntProperty("replicate.idcache.size", 10000),
+                                     idCacheFile != null ? new File(idCacheFile) : null);
+        if (idCacheFile != null)
+        {
+            // keep what was learned during this run for the next
+            Runtime.getRuntime().addShutdownHook(new Thread("replicate-idcache-save")
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        idCache.save();
+                    }
+                    catch (IOException ioE)
+                    {
+                        log.warn("Unable to write storage ID cache '" + idCacheFile + "'", ioE);
+                    }
+                }
+            });
         }
     }
 
@@ -96,6 +193,16 @@ public class ReplicaManager {
         return instance;
     }
     
+    /**
+     * Returns the configured object store, for tasks which manage the store
+     * itself rather than individual replicas.
+     * @return the object store
+     */
+    public ObjectStore getObjectStore()
+    {
+        return objStore;
+    }
+
     public File stage(String group, String id)
     {
         // ensure path exists
@@ -106,6 +213,84 @@ public class ReplicaManager {
         }
         return new File(stageDir, storageId(id, null));
     }
+
+    /**
+     * Returns a staging file for a task which packs an object, in a folder
+     * of its own, so that tasks working on the same object at the same time
+     * (in this or another JVM) never share files. The file has the same name
+     * <code>stage</code> would give it, as the name is the object's storage
+     * ID; the caller passes it to <code>unstage</code> when done.
+     *
+     * @param group store group
+     * @param id object ID
+     * @return staging file (which does not yet exist)
+     * @throws IOException if the staging folder cannot be created
+     */
+    public File stageTask(String group, String id) throws IOException
+    {
+        return stageTask(group, id, 0L);
+    }
+
+    /**
+     * Returns a staging file for a task, as <code>stageTask(group, id)</code>
+     * does, first reserving space for an AIP of the estimated size on the
+     * staging volume with the most free.
+     *
+     * @param group store group
+     * @param id object ID
+     * @param estimate estimated size of the AIP (e.g. from <code>Packer.size</code>)
+     * @return staging file (which does not yet exist)
+     * @throws IOException if the AIP would exceed the staging quota, no volume
+     *         has room for it, or the staging folder cannot be created
+     * @see StagingManager
+     */
+    public File stageTask(String group, String id, long estimate) throws IOException
+    {
+        return new File(staging.reserve(group, estimate), storageId(id, null));
+    }
+
+    /**
+     * Removes the staging folder of a task, and all left in it (e.g. an
+     * archive which was not moved away by its transfer), and gives back the
+     * space reserved for it.
+     *
+     * @param stageFile staging file returned by <code>stageTask</code>
+     */
+    public void unstage(File stageFile)
+    {
+        File taskDir = stageFile.getParentFile();
+        if (taskDir != null && TASK_DIR.equals(taskDir.getParentFile().getName()))
+        {
+            staging.release(taskDir);
+        }
+    }
+
+    /**
+     * @return the manager of the staging volumes
+     */
+    public StagingManager getStagingManager()
+    {
+        return staging;
+    }
+
+    /**
+     * Performs work once for all requests for it made before it starts:
+     * the first caller with a key does the work (in its own thread), and
+     * any others asking with the same key while it is under way wait for
+     * it to end, then share one further run rather than each repeating it.
+     * A request never shares a run which started before it was made, as
+     * that run may have missed whatever the request was made for.
+     *
+     * @param key what the work is (e.g. the store group and object handle)
+     * @param work the work
+     * @return result of the work
+     * @throws IOException if the work fails, or the wait is interrupted
+     * @see SingleFlight
+     */
+    public <T> T singleFlight(String key, Callable<T> work) throws IOException
+    {
+        return flights.run(key, work);
+    }
     
     
     /**
@@ -123,17 +308,23 @@ public class ReplicaManager {
     {
         // canonical handle notation bedevils file system semantics
         String storageId = objId.replaceAll("/", "-");
+        // objects are cached by their ID without extension, as the type is the same for all
+        String cacheKey = storageId;
         
         // add appropriate file extension, if needed
         if(fileExtension!=null && !storageId.endsWith("." + fileExtension))
             storageId = storageId + "." + fileExtension;
+        else if(fileExtension!=null)
+            cacheKey = storageId.substring(0, storageId.length() - fileExtension.length() - 1);
 
         // If 'packer.typeprefix' setting is 'true', 
         // then prefix the storageID with the DSpace Type (if it doesn't already have a prefix)
         if(configurationService.getBooleanProperty("replicate.packer.typeprefix", true) &&
            !storageId.contains(typePrefixSeparator))
         {    
-            String typePrefix = null;
+            String typePrefix = idCache.get(cacheKey);
+            if(typePrefix!=null)
+                return typePrefix + storageId;
         
             try
             {    
@@ -169,9 +360,12 @@ public class ReplicaManager {
                 }
             }    
             
-            //if we found a typePrefix, prepend it on storageId
+            //if we found a typePrefix, prepend it on storageId (and remember it)
             if(typePrefix!=null)
+            {
+                idCache.put(cacheKey, typePrefix);
                 storageId = typePrefix + storageId;
+            }
         }
         
        
@@ -200,6 +394,26 @@ public class ReplicaManager {
         return storageId.replaceAll("-", "/");
     }
 
+    /**
+     * Forgets the type prefix cached for an object, so that it is looked up
+     * afresh the next time its storage ID is worked out. Called when an
+     * object is deleted from, or restored to, DSpace.
+     * @param objId object handle
+     */
+    public void invalidateStorageId(String objId)
+    {
+        idCache.invalidate(objId.replaceAll("/", "-"));
+    }
+
+    /**
+     * Returns the cache of type prefixes, for tasks which report on it.
+     * @return the storage ID cache
+     */
+    public StorageIdCache getStorageIdCache()
+    {
+        return idCache;
+    }
+
     /**
      * Determine the ID of an object's deletion catalog in storage.
      * This method ensures any special characters are
@@ -233,9 +447,104 @@ public class ReplicaManager {
         }
     }
 
+    /**
+     * Returns the local catalog of replicas, for tasks which report on or
+     * maintain it.
+     * @return the catalog, or null if it is not enabled
+     */
+    public ReplicaCatalog getCatalog()
+    {
+        return catalog;
+    }
+
+    /**
+     * Records that a replica has been verified against its source, if the
+     * catalog is enabled.
+     * @param group store group
+     * @param objId object storage ID
+     * @throws IOException if the catalog cannot be updated
+     */
+    public void recordVerified(String group, String objId) throws IOException
+    {
+        if (catalog != null)
+        {
+            catalog.verified(group, objId, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Rebuilds the catalog of a store group from a listing of the store,
+     * e.g. when the catalog has been lost, or was enabled on an existing
+     * store.
+     * @param group store group
+     * @return number of replicas catalogued
+     * @throws IOException if I/O error
+     */
+    public long rebuildCatalog(String group) throws IOException
+    {
+        if (catalog == null)
+        {
+            return 0L;
+        }
+        return catalog.rebuild(group, objStore.listObjects(group, null), new ReplicaCatalog.Resolver()
+        {
+            @Override
+            public String handle(String id)
+            {
+                return catalogHandle(id);
+            }
+
+            @Override
+            public String type(String id)
+            {
+                return catalogType(id);
+            }
+        });
+    }
+
+    private void catalogUpload(String group, String objId, long size, String md5) throws IOException
+    {
+        if (catalog != null)
+        {
+            catalog.put(new ReplicaCatalog.Entry(group, objId, catalogHandle(objId), catalogType(objId),
+                                                 size, md5, System.currentTimeMillis(), 0L));
+        }
+    }
+
+    private String catalogHandle(String objId)
+    {
+        // payloads and other non-object replicas have no handle
+        return objId.contains(typePrefixSeparator) ? canonicalId(objId) : null;
+    }
+
+    private String catalogType(String objId)
+    {
+        int idx = objId.indexOf(typePrefixSeparator);
+        return idx > 0 ? objId.substring(0, idx) : null;
+    }
+
+    /**
+     * Returns the scheduler which paces transfers to and from the store,
+     * for tasks which report on throughput.
+     * @return the bandwidth scheduler
+     */
+    public BandwidthScheduler getScheduler()
+    {
+        return scheduler;
+    }
+
+    /**
+     * @return most objects removed or moved by a single bulk request
+     */
+    public int getBatchSize()
+    {
+        return batchSize;
+    }
+
     public Odometer getOdometer() throws IOException
     {
-        // return a new read-only copy
+        // write out our own changes, then return a new read-only copy
+        odometer.flush();
         return new Odometer(repDir, true);
     }
 
@@ -245,58 +554,309 @@ public class ReplicaManager {
     {
         //String repId = safeId(id) + "." + arFmt;
         File file = stage(group, objId);
-        long size = objStore.fetchObject(group, objId, file);
-        if (size > 0L)
+        long start = System.currentTimeMillis();
+        long size = 0L;
+        if (paced(group))
+        {
+            size = fetchPaced(group, objId, file);
+        }
+        else
         {
-            synchronized (odoLock)
+            scheduler.begin(group);
+            try
+            {
+                size = objStore.fetchObject(group, objId, file);
+            }
+            finally
             {
-                odometer.adjustProperty(DOWNLOADED, size);
-                odometer.save();
+                scheduler.end(group, size);
             }
         }
+        if (size > 0L)
+        {
+            odometer.adjustProperty(DOWNLOADED, size);
+            recordActivity(group, objId, OdometerHistory.DOWNLOADED, size, System.currentTimeMillis() - start);
+        }
        
         return file.exists() ? file : null;
     }
     
+    /**
+     * Fetches an object through its group's throttle, rather than by the
+     * store's own means. The content is read into a temporary file and
+     * checked against the store's checksum before it replaces the file.
+     * @return size of the object, or 0 if there is no such object
+     */
+    private long fetchPaced(String group, String objId, File file) throws IOException
+    {
+        String expected = objStore.objectAttribute(group, objId, "checksum");
+        InputStream in = objStore.openObject(group, objId);
+        if (in == null)
+        {
+            return 0L;
+        }
+        MessageDigest digest = md5Digest();
+        File part = File.createTempFile("." + file.getName(), ".part", file.getParentFile());
+        try
+        {
+            long size;
+            try (InputStream paced = scheduler.throttle(group, new DigestInputStream(in, digest)))
+            {
+                size = Files.copy(paced, part.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            if (expected != null && ! expected.equals(Utils.toHex(digest.digest())))
+            {
+                throw new IOException("Fetched content of '" + objId + "' does not match its checksum");
+            }
+            Files.move(part.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            return size;
+        }
+        finally
+        {
+            part.delete();
+        }
+    }
+
+    /**
+     * Whether transfers of a group are paced now. A local store takes staged
+     * files by renaming them, which moves no bytes, so is never paced.
+     */
+    private boolean paced(String group)
+    {
+        return scheduler.isLimited(group) && objStore.getClass() != LocalObjectStore.class;
+    }
+
+    private static MessageDigest md5Digest() throws IOException
+    {
+        try
+        {
+            return MessageDigest.getInstance("MD5");
+        }
+        catch (NoSuchAlgorithmException nsaE)
+        {
+            throw new IOException(nsaE);
+        }
+    }
+
+    /**
+     * Opens a stream on an object in the store, so that it may be read
+     * without first being staged on local disk. Bytes read from the stream
+     * are recorded on the odometer when the stream is closed.
+     *
+     * @param group store group
+     * @param objId object storage ID
+     * @return stream of object content (caller must close), or null if no such object
+     * @throws IOException if I/O error
+     */
+    public InputStream openObject(String group, String objId) throws IOException
+    {
+        InputStream in = objStore.openObject(group, objId);
+        return in != null ? new OdometerInputStream(group, objId, scheduler.throttle(group, in)) : null;
+    }
+
     public void transferObject(String group, File file) throws IOException {
-        String psStr = objStore.objectAttribute(group, file.getName(), "sizebytes");
+        String psStr = objectAttribute(group, file.getName(), "sizebytes");
+        transferObject(group, file, psStr != null ? Long.valueOf(psStr) : 0L);
+    }
+
+    /**
+     * Transfers a staged file to the store, when the size of any earlier
+     * copy in the store has already been looked up (e.g. while the file
+     * was being packed).
+     *
+     * @param group store group
+     * @param file staged file to transfer
+     * @param prevSize size of the earlier copy in the store (0 if none)
+     * @throws IOException if I/O error
+     */
+    public void transferObject(String group, File file, long prevSize) throws IOException {
+        // the file may be moved by the transfer, so note what the catalog needs first
+        String objId = file.getName();
+        long length = file.length();
+        long start = System.currentTimeMillis();
+        String md5 = null;
+        long size = 0L;
+        if (paced(group))
+        {
+            // send through the group's throttle, consuming the file as a file transfer
+            // would, and take the checksum on the way through
+            MessageDigest digest = md5Digest();
+            try (InputStream in = scheduler.throttle(group, new DigestInputStream(new FileInputStream(file), digest)))
+            {
+                size = objStore.transferObject(group, objId, in, length, null);
+            }
+            md5 = Utils.toHex(digest.digest());
+            file.delete();
+        }
+        else
+        {
+            scheduler.begin(group);
+            try
+            {
+                size = objStore.transferObject(group, file);
+            }
+            finally
+            {
+                scheduler.end(group, size);
+            }
+            if (catalog != null)
+            {
+                // the store has the checksum already (stores take it while transferring)
+                md5 = objStore.objectAttribute(group, objId, "checksum");
+            }
+        }
+        recordUpload(group, objId, size, prevSize, System.currentTimeMillis() - start);
+        catalogUpload(group, objId, length, md5);
+    }
+
+    /**
+     * Transfers the content of a stream to the store, without the content
+     * first being staged on local disk.
+     *
+     * @param group store group
+     * @param objId object storage ID
+     * @param in content to transfer (read to its end, but not closed)
+     * @param length number of bytes of content
+     * @param md5 hex encoded MD5 checksum of the content, if known (may be null)
+     * @throws IOException if I/O error
+     */
+    public void transferObject(String group, String objId, InputStream in, long length, String md5) throws IOException {
+        String psStr = objectAttribute(group, objId, "sizebytes");
         long prevSize = psStr != null ? Long.valueOf(psStr) : 0L;
-        long size = objStore.transferObject(group, file);
+        long start = System.currentTimeMillis();
+        // take the checksum on the way through, if the catalog needs it
+        MessageDigest digest = null;
+        if (catalog != null && md5 == null)
+        {
+            digest = md5Digest();
+            in = new DigestInputStream(in, digest);
+        }
+        // the caller closes the stream, so the throttle must leave it open
+        InputStream paced = scheduler.throttle(group, new FilterInputStream(in)
+        {
+            @Override
+            public void close()
+            {
+            }
+        });
+        long size;
+        try
+        {
+            size = objStore.transferObject(group, objId, paced, length, md5);
+        }
+        finally
+        {
+            paced.close();
+        }
+        recordUpload(group, objId, size, prevSize, System.currentTimeMillis() - start);
+        catalogUpload(group, objId, length, digest != null ? Utils.toHex(digest.digest()) : md5);
+    }
+
+    private void recordUpload(String group, String objId, long size, long prevSize, long millis) {
         if (size > 0L) {
-            synchronized (odoLock) {
-                odometer.adjustProperty(UPLOADED, size);
-                // this may be an update - not a new object
-                odometer.adjustProperty(SIZE, size - prevSize);
-                if (prevSize == 0L) {
-                    odometer.adjustProperty(COUNT, 1L);
-                }
-                odometer.save();
+            recordActivity(group, objId, OdometerHistory.UPLOADED, size, millis);
+            odometer.adjustProperty(UPLOADED, size);
+            // this may be an update - not a new object
+            odometer.adjustProperty(SIZE, size - prevSize);
+            if (prevSize == 0L) {
+                odometer.adjustProperty(COUNT, 1L);
             }
-        }       
+        }
+    }
+
+    /**
+     * Records an upload, download or removal in the odometer's history.
+     * @param metric bytes metric (UPLOADED, DOWNLOADED or REMOVED)
+     */
+    private void recordActivity(String group, String objId, int metric, long bytes, long millis)
+    {
+        int countMetric = metric == OdometerHistory.UPLOADED ? OdometerHistory.UPLOADS
+                        : metric == OdometerHistory.DOWNLOADED ? OdometerHistory.DOWNLOADS
+                        : OdometerHistory.REMOVALS;
+        String type = catalogType(objId);
+        odometer.record(group, type, metric, bytes);
+        odometer.record(group, type, countMetric, 1L);
+        odometer.record(group, type, OdometerHistory.LATENCY, millis);
     }
     
     public boolean objectExists(String group, String objId) throws IOException {
+        // a replica missing from the catalog may have been written by a
+        // process not using it, so only the store is trusted to say so
+        if (catalog != null && catalog.get(group, objId) != null)
+        {
+            return true;
+        }
         return objStore.objectExists(group, objId);
     }
 
     public String objectAttribute(String group, String objId, String attrName) throws IOException {
+        ReplicaCatalog.Entry entry = catalog != null ? catalog.get(group, objId) : null;
+        if (entry != null)
+        {
+            if ("sizebytes".equals(attrName))
+            {
+                return String.valueOf(entry.getSize());
+            }
+            else if ("checksum".equals(attrName) && entry.getChecksum() != null)
+            {
+                return entry.getChecksum();
+            }
+        }
         return objStore.objectAttribute(group, objId, attrName);
     }
 
+    public Map<String, Boolean> objectsExist(String group, List<String> objIds) throws IOException {
+        if (catalog == null)
+        {
+            return objStore.objectsExist(group, objIds);
+        }
+        // answer what the catalog can, and ask the store about the rest
+        Map<String, Boolean> exists = new LinkedHashMap<String, Boolean>();
+        List<String> unknown = new ArrayList<String>();
+        for (String objId : objIds)
+        {
+            if (catalog.get(group, objId) != null)
+            {
+                exists.put(objId, true);
+            }
+            else
+            {
+                exists.put(objId, null);
+                unknown.add(objId);
+            }
+        }
+        if (! unknown.isEmpty())
+        {
+            exists.putAll(objStore.objectsExist(group, unknown));
+        }
+        return exists;
+    }
+
+    public Map<String, Map<String, String>> objectAttributes(String group, List<String> objIds) throws IOException {
+        return objStore.objectAttributes(group, objIds);
+    }
+
+    public Iterator<ObjectInfo> listObjects(String group, String prefix) throws IOException {
+        return objStore.listObjects(group, prefix);
+    }
+
     public void removeObject(String group, String objId) throws IOException {
         long size = objStore.removeObject(group, objId);
+        if (catalog != null)
+        {
+            catalog.remove(group, objId);
+        }
         if (size > 0L) {
-            synchronized (odoLock) {
-                odometer.adjustProperty(SIZE, -size);
-                odometer.adjustProperty(COUNT, -1L);
-                odometer.save();
-            }
+            odometer.adjustProperty(SIZE, -size);
+            odometer.adjustProperty(COUNT, -1L);
+            recordActivity(group, objId, OdometerHistory.REMOVED, size, 0L);
         }
     }
     
     public boolean moveObject(String srcGroup, String destGroup, String objId) throws IOException {
         long size = objStore.moveObject(srcGroup, destGroup, objId);
-        
+        catalogMove(srcGroup, destGroup, objId, size);
+
         // NOTE: no need to adjust the odometer. In this case we haven't 
         // actually uploaded or downloaded any content. 
         if (size > 0L)
@@ -304,6 +864,109 @@ public class ReplicaManager {
         else
             return false;
     }
+
+    /**
+     * Removes several objects from the store, e.g. the AIPs of all the
+     * members of a deleted community. The objects are removed in batches
+     * of 'replicate.bulk.batch', each a single bulk request to the store,
+     * and the odometer is updated once per batch. A batch which fails does
+     * not stop the others being removed; the failure is reported once all
+     * have been tried.
+     *
+     * @param group store group
+     * @param objIds object storage IDs
+     * @return number of objects removed (those not in the store are ignored)
+     * @throws IOException if I/O error, or any batch could not be removed
+     */
+    public int removeObjects(String group, List<String> objIds) throws IOException {
+        int removed = 0;
+        int unremoved = 0;
+        IOException failure = null;
+        for (int i = 0; i < objIds.size(); i += batchSize)
+        {
+            List<String> batch = new ArrayList<String>(objIds.subList(i, Math.min(i + batchSize, objIds.size())));
+            Map<String, Long> sizes;
+            try
+            {
+                sizes = objStore.removeObjects(group, batch);
+            }
+            catch (IOException ioE)
+            {
+                log.warn("Unable to remove " + batch.size() + " objects from '" + group + "'", ioE);
+                unremoved += batch.size();
+                if (failure == null)
+                {
+                    failure = ioE;
+                }
+                continue;
+            }
+            long size = 0L;
+            int count = 0;
+            for (Map.Entry<String, Long> entry : sizes.entrySet())
+            {
+                if (catalog != null)
+                {
+                    catalog.remove(group, entry.getKey());
+                }
+                if (entry.getValue() > 0L)
+                {
+                    size += entry.getValue();
+                    count++;
+                    recordActivity(group, entry.getKey(), OdometerHistory.REMOVED, entry.getValue(), 0L);
+                }
+            }
+            if (count > 0) {
+                odometer.adjustProperty(SIZE, -size);
+                odometer.adjustProperty(COUNT, -count);
+            }
+            removed += count;
+        }
+        if (failure != null)
+        {
+            throw new IOException(unremoved + " of " + objIds.size() + " objects could not be removed from '"
+                                  + group + "' (" + removed + " were removed)", failure);
+        }
+        return removed;
+    }
+
+    /**
+     * Moves several objects from one store group to another, in batches
+     * of 'replicate.bulk.batch', each a single bulk request to the store.
+     *
+     * @param srcGroup source group
+     * @param destGroup destination group
+     * @param objIds object storage IDs
+     * @return map of each passed ID to true if it was moved
+     * @throws IOException if I/O error
+     */
+    public Map<String, Boolean> moveObjects(String srcGroup, String destGroup, List<String> objIds) throws IOException {
+        Map<String, Boolean> moved = new LinkedHashMap<String, Boolean>();
+        for (int i = 0; i < objIds.size(); i += batchSize)
+        {
+            List<String> batch = new ArrayList<String>(objIds.subList(i, Math.min(i + batchSize, objIds.size())));
+            for (Map.Entry<String, Long> entry : objStore.moveObjects(srcGroup, destGroup, batch).entrySet())
+            {
+                catalogMove(srcGroup, destGroup, entry.getKey(), entry.getValue());
+                moved.put(entry.getKey(), entry.getValue() > 0L);
+            }
+        }
+        return moved;
+    }
+
+    private void catalogMove(String srcGroup, String destGroup, String objId, long size) throws IOException
+    {
+        if (catalog != null && size > 0L)
+        {
+            if (catalog.get(srcGroup, objId) != null)
+            {
+                catalog.move(srcGroup, destGroup, objId);
+            }
+            else
+            {
+                catalogUpload(destGroup, objId, size, null);
+            }
+        }
+    }
     
     /**
      * This method is only called if we cannot determine an object's type prefix
@@ -317,8 +980,6 @@ public class ReplicaManager {
      */
     private String findTypePrefix(String group, String baseId) throws IOException
     {
-        boolean exists = false;
-        
         // This next part may look a bit like a hack, but it's actually safer than
         // it seems. Essentially, we are going to try to "guess" what the Type Prefix
         // may be, and see if we can find an object with that name in our object Store.
@@ -332,29 +993,98 @@ public class ReplicaManager {
         // ALTERNATIVELY: If DuraCloud & other stores provide a way to search by file properties, we could change
         // our store plugins to always save the object handle as a property & retrieve files via that property.
 
-        //Most objects are Items, so lets see if this object can be found with an Item Type prefix
-        String typePrefix = Constants.typeText[Constants.ITEM] + typePrefixSeparator;
-        exists = objStore.objectExists(group, typePrefix + baseId);
-
-        if(!exists)
+        // Guesses are listed in order of likelihood: most objects are Items, then
+        // Collections, then Communities. All three are looked up in a single batch.
+        int[] types = { Constants.ITEM, Constants.COLLECTION, Constants.COMMUNITY };
+        List<String> candidates = new ArrayList<String>();
+        for (int type : types)
         {
-            //Ok, our second guess will be that this used to be a Collection
-            typePrefix = Constants.typeText[Constants.COLLECTION] + typePrefixSeparator;
-            exists = objStore.objectExists(group, typePrefix + baseId);
+            candidates.add(Constants.typeText[type] + typePrefixSeparator + baseId);
         }
+        Map<String, Boolean> exists = objStore.objectsExist(group, candidates);
 
-        if(!exists)
-        {
-            //Final guess: maybe this used to be a Community?
-            typePrefix = Constants.typeText[Constants.COMMUNITY] + typePrefixSeparator;
-            exists = objStore.objectExists(group, typePrefix + baseId);
-        }    
-        
         // That's it. We're done guessing. If we still couldn't find this object, 
         // it obviously doesn't exist in our object Store.
-        if(exists)
-            return typePrefix;
-        else
-            return null;
+        for (int i = 0; i < types.length; i++)
+        {
+            if (Boolean.TRUE.equals(exists.get(candidates.get(i))))
+            {
+                return Constants.typeText[types[i]] + typePrefixSeparator;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Stream which counts the bytes read through it, and records them
+     * as downloaded on the odometer once closed.
+     */
+    private class OdometerInputStream extends FilterInputStream
+    {
+        private final String group;
+        private final String objId;
+        private final long start = System.currentTimeMillis();
+        private long count = 0L;
+        private boolean closed = false;
+
+        OdometerInputStream(String group, String objId, InputStream in)
+        {
+            super(in);
+            this.group = group;
+            this.objId = objId;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            int b = super.read();
+            if (b >= 0)
+            {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            int n = super.read(b, off, len);
+            if (n > 0)
+            {
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException
+        {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported()
+        {
+            // counting would be thrown off by a reset
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            super.close();
+            if (! closed)
+            {
+                closed = true;
+                if (count > 0L)
+                {
+                    odometer.adjustProperty(DOWNLOADED, count);
+                    recordActivity(group, objId, OdometerHistory.DOWNLOADED, count,
+                                   System.currentTimeMillis() - start);
+                }
+            }
+        }
     }
 }
@@ -0,0 +1,75 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.replicate;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.dspace.pack.bagit.PayloadStore;
+import org.dspace.services.ConfigurationService;
+import org.dspace.services.factory.DSpaceServicesFactory;
+
+/**
+ * ReplicaPayloadStore keeps bitstream payloads in the replica ObjectStore,
+ * each stored once in the payload group under its MD5 checksum. Transfers
+ * and reads go through the ReplicaManager, so are recorded on the odometer
+ * along with those of AIPs.
+ * <P>
+ * Payloads may be shared by many AIPs, so removing an AIP leaves the
+ * payloads it refers to in place.
+ *
+ * @see org.dspace.pack.bagit.PayloadStore
+ */
+public class ReplicaPayloadStore implements PayloadStore
+{
+    private ConfigurationService configurationService = DSpaceServicesFactory.getInstance().getConfigurationService();
+
+    // storage group payloads are kept in
+    private final String payloadGroupName = configurationService.getProperty("replicate.group.payload.name",
+                                                                             "payload-store");
+
+    // need no-arg constructor for PluginManager
+    public ReplicaPayloadStore()
+    {
+    }
+
+    @Override
+    public Set<String> missing(Set<String> checksums) throws IOException
+    {
+        List<String> ids = new ArrayList<>(checksums);
+        Map<String, Boolean> exists = ReplicaManager.instance().objectsExist(payloadGroupName, ids);
+        Set<String> missing = new HashSet<>();
+        for (String id : ids)
+        {
+            if (! Boolean.TRUE.equals(exists.get(id)))
+            {
+                missing.add(id);
+            }
+        }
+        return missing;
+    }
+
+    @Override
+    public long store(String checksum, long size, InputStream content) throws IOException
+    {
+        // the store verifies the content against its checksum
+        ReplicaManager.instance().transferObject(payloadGroupName, checksum, content, size, checksum);
+        return size;
+    }
+
+    @Override
+    public InputStream open(String checksum) throws IOException
+    {
+        return ReplicaManager.instance().openObject(payloadGroupName, checksum);
+    }
+}
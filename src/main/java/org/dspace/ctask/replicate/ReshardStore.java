@@ -0,0 +1,78 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.replicate;
+
+import java.io.IOException;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.dspace.content.DSpaceObject;
+import org.dspace.ctask.replicate.store.LocalObjectStore;
+import org.dspace.curate.AbstractCurationTask;
+import org.dspace.curate.Curator;
+import org.dspace.curate.Distributive;
+
+/**
+ * ReshardStore moves the replicas in a local (or mountable) object store
+ * into the directory layout set by 'replicate.store.shard.levels' (see
+ * 'replicate.cfg'), e.g. after sharding is first enabled on an existing
+ * store. Replicas are moved by 'replicate.store.reshard.threads' threads.
+ * Since the whole store is resharded, the actual data object is ignored.
+ * <p>
+ * This is an offline migration: no other replication tasks should be run
+ * while it is in progress.
+ *
+ * @see LocalObjectStore#reshard(String, int)
+ */
+@Distributive
+public class ReshardStore extends AbstractCurationTask
+{
+    /**
+     * Performs the "Reshard Store" task.
+     * @param dso this param is ignored, as the store is resharded as a whole
+     * @return integer which represents Curator return status
+     * @throws IOException if I/O error
+     */
+    @Override
+    public int perform(DSpaceObject dso) throws IOException
+    {
+        ObjectStore store = ReplicaManager.instance().getObjectStore();
+        if (! (store instanceof LocalObjectStore))
+        {
+            String msg = "Object store is not a local store - nothing to reshard";
+            report(msg);
+            setResult(msg);
+            return Curator.CURATE_SKIP;
+        }
+        LocalObjectStore localStore = (LocalObjectStore) store;
+
+        Set<String> groups = new LinkedHashSet<String>();
+        for (String key : new String[] { "replicate.group.aip.name",
+                                         "replicate.group.manifest.name",
+                                         "replicate.group.delete.name" })
+        {
+            String group = configurationService.getProperty(key);
+            if (group != null)
+            {
+                groups.add(group);
+            }
+        }
+        int threads = configurationService.getIntProperty("replicate.store.reshard.threads", 4);
+
+        StringBuilder sb = new StringBuilder();
+        for (String group : groups)
+        {
+            long moved = localStore.reshard(group, threads);
+            sb.append("Group '").append(group).append("': ").append(moved).append(" replicas moved\n");
+        }
+        String msg = sb.toString();
+        report(msg);
+        setResult(msg);
+        return Curator.CURATE_SUCCESS;
+    }
+}
@@ -0,0 +1,185 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.replicate;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.apache.log4j.Logger;
+
+/**
+ * SingleFlight joins duplicate requests for the same work, so that it is
+ * not done several times over at once. A request only ever shares a run
+ * of the work which started after it was made: requests made while the
+ * work is under way wait for it to finish, then share a single run of
+ * their own, since the run under way may already have read what they
+ * were asked to pick up (e.g. an item changed again while its AIP was
+ * being packed).
+ *
+ * @see ReplicaManager#singleFlight(String, Callable)
+ */
+public class SingleFlight
+{
+    private static final Logger log = Logger.getLogger(SingleFlight.class);
+
+    // work under way or waiting to start, by key
+    private final Map<String, Flight> flights = new HashMap<String, Flight>();
+
+    /**
+     * Performs work once for all requests for it made before it starts:
+     * the first caller with a key does the work (in its own thread), and
+     * any others asking with the same key while it is under way wait for
+     * it to end, then share one further run. Requests made after all
+     * work for the key is done start it afresh.
+     *
+     * @param key what the work is (e.g. the store group and object handle)
+     * @param work the work
+     * @return result of the run of the work shared by this request
+     * @throws IOException if the work fails, or the wait is interrupted
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T run(String key, Callable<T> work) throws IOException
+    {
+        FutureTask<?> task;
+        FutureTask<?> previous = null;
+        boolean owner = false;
+        synchronized (flights)
+        {
+            Flight flight = flights.get(key);
+            if (flight == null)
+            {
+                flight = new Flight(new FutureTask<T>(work));
+                flights.put(key, flight);
+                task = flight.running;
+                owner = true;
+            }
+            else if (flight.next == null)
+            {
+                // the first to arrive during a run starts the next one
+                flight.next = new FutureTask<T>(work);
+                task = flight.next;
+                previous = flight.running;
+                owner = true;
+            }
+            else
+            {
+                task = flight.next;
+            }
+        }
+        if (owner)
+        {
+            if (previous != null)
+            {
+                log.debug("Waiting on work already under way for '" + key + "'");
+                awaitQuietly(previous);
+                synchronized (flights)
+                {
+                    Flight flight = flights.get(key);
+                    flight.running = task;
+                    flight.next = null;
+                }
+            }
+            try
+            {
+                task.run();
+            }
+            finally
+            {
+                synchronized (flights)
+                {
+                    // left in place if a request is waiting to start the next run, or
+                    // has started it (and may even have finished, and removed it)
+                    Flight flight = flights.get(key);
+                    if (flight != null && flight.running == task && flight.next == null)
+                    {
+                        flights.remove(key);
+                    }
+                }
+            }
+        }
+        else
+        {
+            log.debug("Joining the next run of work under way for '" + key + "'");
+        }
+        try
+        {
+            return (T) task.get();
+        }
+        catch (InterruptedException intE)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for '" + key + "'");
+        }
+        catch (ExecutionException exE)
+        {
+            Throwable cause = exE.getCause();
+            if (cause instanceof IOException)
+            {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException)
+            {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error)
+            {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Waits for a run to end, however it ends. The wait is not cut short
+     * by an interrupt, as others may be waiting on the run which follows.
+     */
+    private static void awaitQuietly(FutureTask<?> task)
+    {
+        boolean interrupted = false;
+        while (true)
+        {
+            try
+            {
+                task.get();
+                break;
+            }
+            catch (InterruptedException intE)
+            {
+                interrupted = true;
+            }
+            catch (ExecutionException exE)
+            {
+                // its failure is for its own requests
+                break;
+            }
+        }
+        if (interrupted)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The run of some work under way, and the one waiting to follow it.
+     */
+    private static class Flight
+    {
+        private FutureTask<?> running;
+        private FutureTask<?> next = null;
+
+        Flight(FutureTask<?> running)
+        {
+            this.running = running;
+        }
+    }
+}
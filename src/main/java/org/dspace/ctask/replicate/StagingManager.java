@@ -0,0 +1,299 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.replicate;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * StagingManager hands out the staging folders tasks pack AIPs in, spread
+ * over one or more volumes (e.g. 'replicate.staging.dirs'). Each task
+ * reserves the space it expects to need up front, and is given a folder on
+ * the volume with the most space free once the reservations of other tasks
+ * under way are taken off. A task whose AIP would be larger than the
+ * per-task quota is refused before it starts, rather than filling a volume
+ * part way through packing and failing every other task staged there.
+ * <p>
+ * Task folders are 'group/tasks/name' on a volume. Those left behind by a
+ * run which crashed are removed in the background once they are older
+ * than a configured age; folders of tasks under way in this JVM are never
+ * removed, and the age keeps those of other JVMs sharing the volumes safe.
+ *
+ * @see ReplicaManager#stageTask(String, String, long)
+ */
+public class StagingManager
+{
+    private static final Logger log = Logger.getLogger(StagingManager.class);
+
+    // the staging volumes
+    private final List<Volume> volumes = new ArrayList<Volume>();
+    // most bytes a single task may stage (0 for no limit)
+    private final long quota;
+    // bytes reserved for each byte of estimated AIP size
+    private final double factor;
+    // bytes left free on each volume, whatever is reserved
+    private final long headroom;
+    // age after which a task folder not in use is taken to be orphaned
+    private final long orphanMillis;
+    // task folders in use, and their reservations
+    private final ConcurrentMap<File, Lease> leases = new ConcurrentHashMap<File, Lease>();
+    // task folders handed out, for unique names
+    private final AtomicLong taskCount = new AtomicLong();
+    private ScheduledExecutorService cleaner = null;
+
+    /**
+     * Creates a staging manager.
+     * @param dirs staging volumes (the folders staged under)
+     * @param quota most bytes a task may stage, or 0 for no limit
+     * @param factor bytes reserved for each byte of estimated AIP size
+     * @param headroom bytes left free on each volume
+     * @param orphanMinutes minutes after which a task folder not in use is removed
+     */
+    public StagingManager(List<File> dirs, long quota, double factor, long headroom, long orphanMinutes)
+    {
+        for (File dir : dirs)
+        {
+            volumes.add(new Volume(dir));
+        }
+        this.quota = quota;
+        this.factor = factor;
+        this.headroom = headroom;
+        this.orphanMillis = TimeUnit.MINUTES.toMillis(orphanMinutes);
+    }
+
+    /**
+     * Reserves space for a task, and creates its staging folder.
+     * @param group store group
+     * @param estimate estimated size of the AIP the task packs (0 if not known)
+     * @return the task's staging folder
+     * @throws IOException if the task would exceed its quota, no volume has
+     *         room for it, or the folder cannot be created
+     */
+    public File reserve(String group, long estimate) throws IOException
+    {
+        if (quota > 0L && estimate > quota)
+        {
+            throw new IOException("Estimated AIP size " + estimate + " exceeds the staging quota of " + quota);
+        }
+        long bytes = (long) (estimate * factor);
+        Volume volume = null;
+        synchronized (this)
+        {
+            long best = Long.MIN_VALUE;
+            for (Volume candidate : volumes)
+            {
+                long available = candidate.available();
+                if (available >= bytes && available > best)
+                {
+                    volume = candidate;
+                    best = available;
+                }
+            }
+            if (volume == null)
+            {
+                throw new IOException("No staging volume has " + bytes + " bytes free");
+            }
+            volume.reserved.addAndGet(bytes);
+        }
+        File taskDir = new File(volume.dir, group + File.separator + ReplicaManager.TASK_DIR + File.separator +
+                                Long.toString(System.nanoTime(), 36) + "-" + taskCount.incrementAndGet());
+        if (! taskDir.mkdirs())
+        {
+            volume.reserved.addAndGet(-bytes);
+            throw new IOException("Unable to create staging folder '" + taskDir + "'");
+        }
+        leases.put(taskDir, new Lease(volume, bytes));
+        return taskDir;
+    }
+
+    /**
+     * Checks a packed AIP against the per-task quota, as the estimate a
+     * task reserves space by may fall short.
+     * @param archive the packed AIP
+     * @throws IOException if the AIP exceeds the quota
+     */
+    public void checkQuota(File archive) throws IOException
+    {
+        if (quota > 0L && archive.length() > quota)
+        {
+            throw new IOException("AIP '" + archive.getName() + "' of " + archive.length() +
+                                  " bytes exceeds the staging quota of " + quota);
+        }
+    }
+
+    /**
+     * Removes a task's staging folder, and all left in it, and gives back
+     * the space reserved for it.
+     * @param taskDir staging folder from <code>reserve</code>
+     */
+    public void release(File taskDir)
+    {
+        delete(taskDir);
+        Lease lease = leases.remove(taskDir);
+        if (lease != null)
+        {
+            lease.volume.reserved.addAndGet(-lease.bytes);
+        }
+    }
+
+    /**
+     * @return bytes reserved by tasks under way, on all volumes
+     */
+    public long getReserved()
+    {
+        long reserved = 0L;
+        for (Volume volume : volumes)
+        {
+            reserved += volume.reserved.get();
+        }
+        return reserved;
+    }
+
+    /**
+     * Starts removing orphaned task folders in the background: once now,
+     * then at the passed interval.
+     * @param intervalMinutes minutes between sweeps
+     */
+    public synchronized void startCleaning(long intervalMinutes)
+    {
+        if (cleaner != null)
+        {
+            return;
+        }
+        cleaner = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "staging-cleanup");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        cleaner.scheduleWithFixedDelay(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                removeOrphans();
+            }
+        }, 0L, Math.max(1L, intervalMinutes), TimeUnit.MINUTES);
+    }
+
+    /**
+     * Removes task folders which are not in use by this JVM, and have not
+     * been modified for longer than the orphan age.
+     * @return number of folders removed
+     */
+    public int removeOrphans()
+    {
+        int removed = 0;
+        long cutoff = System.currentTimeMillis() - orphanMillis;
+        for (Volume volume : volumes)
+        {
+            File[] groups = volume.dir.listFiles();
+            if (groups == null)
+            {
+                continue;
+            }
+            for (File group : groups)
+            {
+                File[] tasks = new File(group, ReplicaManager.TASK_DIR).listFiles();
+                if (tasks == null)
+                {
+                    continue;
+                }
+                for (File task : tasks)
+                {
+                    if (! leases.containsKey(task) && lastModified(task) < cutoff)
+                    {
+                        log.info("Removing orphaned staging folder '" + task + "'");
+                        delete(task);
+                        removed++;
+                    }
+                }
+            }
+        }
+        return removed;
+    }
+
+    // the latest modification of a folder or anything in it
+    private static long lastModified(File file)
+    {
+        long latest = file.lastModified();
+        File[] children = file.listFiles();
+        if (children != null)
+        {
+            for (File child : children)
+            {
+                latest = Math.max(latest, lastModified(child));
+            }
+        }
+        return latest;
+    }
+
+    private static void delete(File file)
+    {
+        File[] children = file.listFiles();
+        if (children != null)
+        {
+            for (File child : children)
+            {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * A staging volume, and the space reserved on it.
+     */
+    private class Volume
+    {
+        private final File dir;
+        private final AtomicLong reserved = new AtomicLong();
+
+        Volume(File dir)
+        {
+            this.dir = dir;
+            dir.mkdirs();
+        }
+
+        // bytes free for new reservations
+        long available()
+        {
+            return dir.getUsableSpace() - reserved.get() - headroom;
+        }
+    }
+
+    /**
+     * Space reserved by a task under way.
+     */
+    private static class Lease
+    {
+        private final Volume volume;
+        private final long bytes;
+
+        Lease(Volume volume, long bytes)
+        {
+            this.volume = volume;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,248 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.replicate;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * StorageIdCache remembers the type prefix (e.g. 'ITEM@') of the objects
+ * whose storage IDs ReplicaManager has worked out, so that each is looked
+ * up once - in DSpace, or for objects no longer in DSpace, with probes of
+ * the object store - rather than on every call. Objects are keyed by their
+ * handle in storage form (slashes replaced by dashes, without extension).
+ * <p>
+ * The cache holds at most a configured number of objects, discarding those
+ * least recently used. It may also be kept in a file between runs, written
+ * out after every 'SAVE_INTERVAL' changes and when the JVM exits.
+ * <p>
+ * Only prefixes which were found are cached: an object not found anywhere
+ * may yet be transmitted, so is looked up afresh each time.
+ *
+ * @see ReplicaManager#storageId(String, String)
+ */
+public class StorageIdCache
+{
+    private static final Logger log = Logger.getLogger(StorageIdCache.class);
+
+    // changes after which a persistent cache is written out
+    private static final int SAVE_INTERVAL = 1000;
+
+    // most objects held
+    private final int maxEntries;
+    // file the cache is kept in between runs, or null if it is not kept
+    private final File file;
+    // prefixes by object, least recently used first
+    private final LinkedHashMap<String, String> prefixes;
+    // changes not yet written out
+    private int unsaved = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Creates a cache, loading any copy kept in the passed file.
+     * @param maxEntries most objects held
+     * @param file file the cache is kept in between runs, or null
+     */
+    public StorageIdCache(final int maxEntries, File file)
+    {
+        this.maxEntries = maxEntries;
+        this.file = file;
+        this.prefixes = new LinkedHashMap<String, String>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest)
+            {
+                return size() > maxEntries;
+            }
+        };
+        if (file != null && file.exists())
+        {
+            try
+            {
+                load();
+            }
+            catch (IOException ioE)
+            {
+                // only a cache - start afresh
+                log.warn("Unable to read storage ID cache '" + file + "'", ioE);
+            }
+        }
+    }
+
+    /**
+     * Returns the type prefix cached for an object, counting a hit or miss.
+     * @param key object handle in storage form
+     * @return type prefix, or null if not cached
+     */
+    public synchronized String get(String key)
+    {
+        String prefix = prefixes.get(key);
+        if (prefix != null)
+        {
+            hits.incrementAndGet();
+        }
+        else
+        {
+            misses.incrementAndGet();
+        }
+        return prefix;
+    }
+
+    /**
+     * Caches the type prefix of an object.
+     * @param key object handle in storage form
+     * @param prefix type prefix
+     */
+    public synchronized void put(String key, String prefix)
+    {
+        if (maxEntries <= 0 || prefix.equals(prefixes.put(key, prefix)))
+        {
+            return;
+        }
+        changed();
+    }
+
+    /**
+     * Forgets the type prefix of an object, e.g. once it has been deleted
+     * from, or restored to, DSpace.
+     * @param key object handle in storage form
+     */
+    public synchronized void invalidate(String key)
+    {
+        if (prefixes.remove(key) != null)
+        {
+            changed();
+        }
+    }
+
+    /**
+     * Forgets all type prefixes.
+     */
+    public synchronized void clear()
+    {
+        prefixes.clear();
+        changed();
+    }
+
+    /**
+     * @return number of objects cached
+     */
+    public synchronized int size()
+    {
+        return prefixes.size();
+    }
+
+    /**
+     * @return number of lookups answered from the cache
+     */
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    /**
+     * @return number of lookups not answered from the cache
+     */
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    /**
+     * @return share of lookups answered from the cache (0 - 1)
+     */
+    public double getHitRatio()
+    {
+        long total = hits.get() + misses.get();
+        return total > 0L ? (double) hits.get() / total : 0.0;
+    }
+
+    /**
+     * Writes the cache out to its file (if it is kept in one). The copy is
+     * written to a temporary file, then moved into place, so a crash never
+     * leaves a partly written cache.
+     * @throws IOException if the cache cannot be written
+     */
+    public void save() throws IOException
+    {
+        if (file == null)
+        {
+            return;
+        }
+        List<Map.Entry<String, String>> entries;
+        synchronized (this)
+        {
+            entries = new ArrayList<Map.Entry<String, String>>(prefixes.entrySet());
+            unsaved = 0;
+        }
+        file.getAbsoluteFile().getParentFile().mkdirs();
+        File temp = new File(file.getPath() + ".tmp");
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp),
+                                                                    StandardCharsets.UTF_8)))
+        {
+            // least recently used first, so reloading keeps the order
+            for (Map.Entry<String, String> entry : entries)
+            {
+                out.write(entry.getKey() + "\t" + entry.getValue() + "\n");
+            }
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void load() throws IOException
+    {
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file),
+                                                                          StandardCharsets.UTF_8)))
+        {
+            String line;
+            while ((line = in.readLine()) != null)
+            {
+                int tab = line.indexOf('\t');
+                if (tab > 0)
+                {
+                    prefixes.put(line.substring(0, tab), line.substring(tab + 1));
+                }
+            }
+        }
+    }
+
+    private void changed()
+    {
+        if (file != null && ++unsaved >= SAVE_INTERVAL)
+        {
+            try
+            {
+                save();
+            }
+            catch (IOException ioE)
+            {
+                log.warn("Unable to write storage ID cache '" + file + "'", ioE);
+            }
+        }
+    }
+}
@@ -11,9 +11,12 @@ package org.dspace.ctask.replicate;
 import java.io.File;
 import java.io.IOException;
 import java.sql.SQLException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 
 import org.dspace.authorize.AuthorizeException;
 import org.dspace.content.DSpaceObject;
+import org.dspace.core.Constants;
 import org.dspace.curate.AbstractCurationTask;
 import org.dspace.curate.Curator;
 import org.dspace.curate.Suspendable;
@@ -32,6 +35,10 @@ import org.dspace.pack.PackerFactory;
  * We wouldn't want them to assume everything was transferred successfully, 
  * if there were actually underlying errors.
  * <P>
+ * Several workers may run this task at once. Each packs in its own staging
+ * folder, and a request to transmit an object already being transmitted
+ * waits for, and reports, that transmission rather than repeating it.
+ * <P>
  * Note that this task has a companion task called TransmitSingleAIP which
  * ensures that no child/member objects are transmitted.
  * 
@@ -44,11 +51,14 @@ public class TransmitAIP extends AbstractCurationTask
 {
     // Group where all AIPs will be stored
     private String storeGroupName;
+    // AIP archive format (e.g. zip or tgz), which names the packed AIP
+    private String archFmt;
 
     @Override
     public void init(Curator curator, String taskId) throws IOException {
         super.init(curator, taskId);
         storeGroupName = configurationService.getProperty("replicate.group.aip.name");
+        archFmt = configurationService.getProperty("replicate.packer.archfmt");
     }
 
 
@@ -61,19 +71,53 @@ public class TransmitAIP extends AbstractCurationTask
      * @throws IOException if I/O error
      */
     @Override
-    public int perform(DSpaceObject dso) throws IOException
+    public int perform(final DSpaceObject dso) throws IOException
+    {
+        final ReplicaManager repMan = ReplicaManager.instance();
+        String msg = repMan.singleFlight(storeGroupName + "/" + dso.getHandle(), new Callable<String>()
+        {
+            @Override
+            public String call() throws IOException
+            {
+                return transmit(repMan, dso);
+            }
+        });
+        setResult(msg);
+        return Curator.CURATE_SUCCESS;
+    }
+
+    /**
+     * Packs the AIP of an object and transfers it to the store.
+     * @return message describing the AIP
+     */
+    private String transmit(ReplicaManager repMan, DSpaceObject dso) throws IOException
     {
-        ReplicaManager repMan = ReplicaManager.instance();
-            
         Packer packer = PackerFactory.instance(dso);
+        File stageFile = null;
         try
         {
-            File archive = packer.pack(repMan.stage(storeGroupName, dso.getHandle()));
+            // reserve staging space for items; the size of a container would be that
+            // of all its members, though its own AIP is small
+            long estimate = dso.getType() == Constants.ITEM ? packer.size("") : 0L;
+            stageFile = repMan.stageTask(storeGroupName, dso.getHandle(), estimate);
+            // look up the size of any earlier replica while the AIP is packed
+            String objId = repMan.storageId(dso.getHandle(), archFmt);
+            Future<String> prevSize = AsyncReplicaManager.instance()
+                                          .objectAttribute(storeGroupName, objId, "sizebytes");
+            File archive = packer.pack(stageFile);
+            repMan.getStagingManager().checkQuota(archive);
             String msg = "Created AIP: '" + archive.getName() + 
                          "' size: " + archive.length();
-            repMan.transferObject(storeGroupName, archive);
-            setResult(msg);
-            return Curator.CURATE_SUCCESS;
+            String psStr = AsyncReplicaManager.await(prevSize);
+            if (archive.getName().equals(objId))
+            {
+                repMan.transferObject(storeGroupName, archive, psStr != null ? Long.valueOf(psStr) : 0L);
+            }
+            else
+            {
+                repMan.transferObject(storeGroupName, archive);
+            }
+            return msg;
         }
         catch (AuthorizeException authE)
         {
@@ -83,5 +127,13 @@ public class TransmitAIP extends AbstractCurationTask
         {
             throw new IOException(sqlE);
         }
+        finally
+        {
+            if (stageFile != null)
+            {
+                repMan.unstage(stageFile);
+            }
+            PackerFactory.release(packer);
+        }
     }
 }
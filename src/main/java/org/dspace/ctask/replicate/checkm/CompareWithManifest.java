@@ -9,9 +9,9 @@
 package org.dspace.ctask.replicate.checkm;
 
 import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.sql.SQLException;
 import java.util.HashMap;
 import java.util.Map;
@@ -96,78 +96,85 @@ public class CompareWithManifest extends AbstractCurationTask
      */
     private int checkManifest(ReplicaManager repMan, String filename, Context context) throws IOException, SQLException
     {
-        File manFile = repMan.fetchObject(manifestGroupName, filename);
-        if (manFile != null)
+        // manifests are read straight from the store, never staged locally
+        InputStream in = repMan.openObject(manifestGroupName, filename);
+        if (in != null)
         {
             Item item = null;
             Map<String, Bitstream> bsMap = new HashMap<String, Bitstream>();
-            BufferedReader reader = new BufferedReader(new FileReader(manFile));
-            String line = null;
-            while ((line = reader.readLine()) != null)
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+            try
             {
-                if (! line.startsWith("#"))  // skip comments
+                String line = null;
+                while ((line = reader.readLine()) != null)
                 {
-                    String entry = line.substring(0, line.indexOf("|"));
-                    // if there's a dash in the first entry, then it just
-                    // refers to a sub manifest
-                    if (entry.indexOf("-") > 0)
+                    if (! line.startsWith("#"))  // skip comments
                     {
-                        // it's another manifest - fetch & check it
-                        item = null;
-                        bsMap.clear();
-                        int status = checkManifest(repMan, entry, context);
-                        
-                        //if manifest failed check, return immediately (otherwise we'll continue processing)
-                        if(status == Curator.CURATE_FAIL)
-                            return status;
-                    }
-                    else
-                    {
-                        // first entry is a bitstream reference. So, check it
-                        int cut = entry.lastIndexOf("/");
-                        if (item == null)
+                        String entry = line.substring(0, line.indexOf("|"));
+                        // if there's a dash in the first entry, then it just
+                        // refers to a sub manifest
+                        if (entry.indexOf("-") > 0)
+                        {
+                            // it's another manifest - fetch & check it
+                            item = null;
+                            bsMap.clear();
+                            int status = checkManifest(repMan, entry, context);
+                            
+                            //if manifest failed check, return immediately (otherwise we'll continue processing)
+                            if(status == Curator.CURATE_FAIL)
+                                return status;
+                        }
+                        else
                         {
-                            // look up object first & map bitstreams by seqID
-                            String handle = entry.substring(0, cut);
-                            DSpaceObject dso = handleService.resolveToObject(context, handle);
-                            if (dso != null && dso instanceof Item)
+                            // first entry is a bitstream reference. So, check it
+                            int cut = entry.lastIndexOf("/");
+                            if (item == null)
                             {
-                                item = (Item)dso;
-                                for (Bundle bundle : item.getBundles())
+                                // look up object first & map bitstreams by seqID
+                                String handle = entry.substring(0, cut);
+                                DSpaceObject dso = handleService.resolveToObject(context, handle);
+                                if (dso != null && dso instanceof Item)
                                 {
-                                    for (Bitstream bs : bundle.getBitstreams())
+                                    item = (Item)dso;
+                                    for (Bundle bundle : item.getBundles())
                                     {
-                                        bsMap.put(Integer.toString(bs.getSequenceID()), bs);
+                                        for (Bitstream bs : bundle.getBitstreams())
+                                        {
+                                            bsMap.put(Integer.toString(bs.getSequenceID()), bs);
+                                        }
                                     }
                                 }
+                                else
+                                {
+                                    result = "No item found for manifest entry: " + handle;
+                                    return Curator.CURATE_FAIL;
+                                }
                             }
-                            else
+                            String seqId = entry.substring(cut + 1);
+                            Bitstream bs = bsMap.get(seqId);
+                            if (bs != null)
                             {
-                                result = "No item found for manifest entry: " + handle;
-                                return Curator.CURATE_FAIL;
+                                String[] parts = line.split("\\|");
+                                // compare checksums
+                                if (! bs.getChecksum().equals(parts[2]))
+                                {
+                                    result = "Bitstream: " + seqId + " differs from manifest: " + entry;
+                                    return Curator.CURATE_FAIL;
+                                }
                             }
-                        }
-                        String seqId = entry.substring(cut + 1);
-                        Bitstream bs = bsMap.get(seqId);
-                        if (bs != null)
-                        {
-                            String[] parts = line.split("\\|");
-                            // compare checksums
-                            if (! bs.getChecksum().equals(parts[2]))
+                            else
                             {
-                                result = "Bitstream: " + seqId + " differs from manifest: " + entry;
+                                result = "No bitstream: " + seqId + " found for manifest entry: " + entry;
                                 return Curator.CURATE_FAIL;
                             }
                         }
-                        else
-                        {
-                            result = "No bitstream: " + seqId + " found for manifest entry: " + entry;
-                            return Curator.CURATE_FAIL;
-                        }
                     }
                 }
             }
-            reader.close();
+            finally
+            {
+                reader.close();
+            }
             
             //finished checking this entire manifest -- it was successful!
             result = "Manifest and repository content agree";
@@ -8,10 +8,11 @@
 package org.dspace.ctask.replicate.checkm;
 
 import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 
@@ -65,7 +66,9 @@ public class RemoveManifest extends AbstractCurationTask {
     public int perform(DSpaceObject dso) throws IOException 
     {
         ReplicaManager repMan = ReplicaManager.instance();
-        remove(repMan, dso);
+        List<String> objIds = new ArrayList<String>();
+        remove(repMan, dso, objIds);
+        repMan.removeObjects(manifestGroupName, objIds);
         setResult("Manifest for '" + dso.getHandle() + "' has been removed");
         return Curator.CURATE_SUCCESS;
     }
@@ -80,19 +83,21 @@ public class RemoveManifest extends AbstractCurationTask {
      * manifests from the Replica ObjectStore.
      * @param repMan ReplicaManager (used to access ObjectStore)
      * @param dso the DSpace Object
+     * @param objIds list to which the IDs of the manifests to remove (in
+     *        bulk, once all are known) are added
      * @throws IOException if I/O error 
      */
-    private void remove(ReplicaManager repMan, DSpaceObject dso) throws IOException 
+    private void remove(ReplicaManager repMan, DSpaceObject dso, List<String> objIds) throws IOException 
     {    
         String objId = repMan.storageId(dso.getHandle(), TransmitManifest.MANIFEST_EXTENSION);
-        repMan.removeObject(manifestGroupName, objId);
+        objIds.add(objId);
         report("Removing manifest for: " + objId);
         if (dso instanceof Collection) {
             Collection coll = (Collection)dso;
             try {
                 Iterator<Item> iter = itemService.findByCollection(Curator.curationContext(), coll);
                 while (iter.hasNext()) {
-                    remove(repMan, iter.next());
+                    remove(repMan, iter.next(), objIds);
                 }
             } catch (SQLException sqlE) {
                 throw new IOException(sqlE);
@@ -100,17 +105,17 @@ public class RemoveManifest extends AbstractCurationTask {
         } else if (dso instanceof Community) {
             Community comm = (Community)dso;
             for (Community subcomm : comm.getSubcommunities()) {
-                remove(repMan, subcomm);
+                remove(repMan, subcomm, objIds);
             }
             for (Collection coll : comm.getCollections()) {
-                remove(repMan, coll);
+                remove(repMan, coll, objIds);
             }
         } else if (dso instanceof Site) {
             try {
                 List<Community> topCommunities = communityService.findAllTop(Curator.curationContext());
                 
                 for (Community subcomm : topCommunities) {
-                    remove(repMan, subcomm);
+                    remove(repMan, subcomm, objIds);
                 }
             } catch (SQLException sqlE) {
                 throw new IOException(sqlE);
@@ -139,7 +144,9 @@ public class RemoveManifest extends AbstractCurationTask {
             return perform(dso);
         }
         ReplicaManager repMan = ReplicaManager.instance();
-        deleteManifest(repMan, repMan.storageId(id, TransmitManifest.MANIFEST_EXTENSION));
+        List<String> objIds = new ArrayList<String>();
+        deleteManifest(repMan, repMan.storageId(id, TransmitManifest.MANIFEST_EXTENSION), objIds);
+        repMan.removeObjects(manifestGroupName, objIds);
         setResult("Manifest for '" + id + "' has been removed");
         return Curator.CURATE_SUCCESS;
     }
@@ -154,26 +161,32 @@ public class RemoveManifest extends AbstractCurationTask {
      * manifests from the Replica ObjectStore.
      * @param repMan ReplicaManager (used to access ObjectStore)
      * @param id the DSpace Object's identifier
+     * @param objIds list to which the IDs of the manifests to remove (in
+     *        bulk, once all are known) are added
      * @throws IOException if I/O error
      */
-    private void deleteManifest(ReplicaManager repMan, String id) throws IOException 
+    private void deleteManifest(ReplicaManager repMan, String id, List<String> objIds) throws IOException 
     {
-        File manFile = repMan.fetchObject(manifestGroupName, id);
-        if (manFile != null) {
-            BufferedReader reader = new BufferedReader(new FileReader(manFile));
-            String line = null;
-            while ((line = reader.readLine()) != null) {
-                if (! line.startsWith("#")) {
-                    String entry = line.substring(0, line.indexOf("|"));
-                    if (entry.indexOf("-") > 0) {
-                        // it's another manifest - fetch & delete it
-                        deleteManifest(repMan, entry);
+        // manifests are read straight from the store, never staged locally
+        InputStream in = repMan.openObject(manifestGroupName, id);
+        if (in != null) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+            try {
+                String line = null;
+                while ((line = reader.readLine()) != null) {
+                    if (! line.startsWith("#")) {
+                        String entry = line.substring(0, line.indexOf("|"));
+                        if (entry.indexOf("-") > 0) {
+                            // it's another manifest - fetch & delete it
+                            deleteManifest(repMan, entry, objIds);
+                        }
                     }
                 }
+            } finally {
+                reader.close();
             }
-            reader.close();
             report("Removing manifest for: " + id);
-            repMan.removeObject(manifestGroupName, id);
+            objIds.add(id);
         }
     }
 }
@@ -0,0 +1,713 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.replicate.store;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.dspace.core.factory.CoreServiceFactory;
+import org.dspace.ctask.replicate.ObjectInfo;
+import org.dspace.ctask.replicate.ObjectStore;
+import org.dspace.curate.Utils;
+import org.dspace.services.ConfigurationService;
+import org.dspace.services.factory.DSpaceServicesFactory;
+
+/**
+ * CachingObjectStore keeps copies of recently fetched objects (AIPs,
+ * manifests, deletion catalogs) on local disk, in front of another
+ * ObjectStore (typically a remote one, such as DuraCloud). Tasks which fetch
+ * the same objects more than once in a maintenance window (e.g. auditing
+ * manifests, then removing them) then download each only once.
+ * <P>
+ * A cached copy is only used if its checksum still matches the one the
+ * underlying store reports for the object, so a cache hit costs one
+ * attribute lookup rather than a download. The store's own transfers,
+ * removals and moves discard cached copies of the objects changed.
+ * <P>
+ * The cache is limited to 'replicate.store.cache.size' bytes, least
+ * recently used copies being evicted first. It persists across runs, as
+ * does a record of its hits, misses and the number of bytes it has saved
+ * downloading (see ReadOdometer). Statistics are counted in memory, and
+ * written out every 'replicate.store.cache.stats.flush' seconds and when
+ * the JVM exits, so lookups never wait on the statistics file.
+ * <P>
+ * To use, configure this class as the ObjectStore plugin, and the store it
+ * fronts as a named ObjectStore plugin, whose name is given by
+ * 'replicate.store.cache.delegate'.
+ *
+ * @see org.dspace.ctask.replicate.ReadOdometer
+ */
+public class CachingObjectStore implements ObjectStore
+{
+    private static Logger log = Logger.getLogger(CachingObjectStore.class);
+
+    // file (in the cache directory) recording cache statistics
+    private static final String STATS_FILE = ".stats";
+
+    // names of the cache statistics
+    public static final String HITS = "hits";
+    public static final String MISSES = "misses";
+    public static final String BYTES_SAVED = "bytessaved";
+
+    private ConfigurationService configurationService = DSpaceServicesFactory.getInstance().getConfigurationService();
+
+    // the store being cached
+    private ObjectStore delegate = null;
+
+    // where cached copies are kept
+    private File cacheDir = null;
+
+    // most bytes of cached copies kept
+    private long maxBytes = 0L;
+
+    // bytes of cached copies currently kept
+    private long cachedBytes = 0L;
+
+    // cached copies, least recently used first
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    // cache statistics, as last saved
+    private final Properties stats = new Properties();
+
+    // statistics counted since they were last saved
+    private final AtomicLong pendingHits = new AtomicLong();
+    private final AtomicLong pendingMisses = new AtomicLong();
+    private final AtomicLong pendingBytesSaved = new AtomicLong();
+
+    // writes out the statistics in the background
+    private ScheduledExecutorService statsSaver = null;
+
+    // need no-arg constructor for PluginManager
+    public CachingObjectStore()
+    {
+    }
+
+    /**
+     * Creates a cache in front of the passed (uninitialized) store, rather
+     * than the one named in configuration.
+     * @param delegate store to cache
+     */
+    public CachingObjectStore(ObjectStore delegate)
+    {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public void init() throws IOException
+    {
+        if (delegate == null)
+        {
+            String name = configurationService.getProperty("replicate.store.cache.delegate");
+            delegate = (ObjectStore) CoreServiceFactory.getInstance().getPluginService()
+                                                       .getNamedPlugin(ObjectStore.class, name);
+            if (delegate == null)
+            {
+                throw new IOException("No ObjectStore named '" + name + "' (see 'replicate.store.cache.delegate')");
+            }
+        }
+        delegate.init();
+
+        cacheDir = new File(configurationService.getProperty("replicate.store.cache.dir",
+                                configurationService.getProperty("replicate.base.dir") + File.separator + "cache"));
+        cacheDir.mkdirs();
+        maxBytes = configurationService.getLongProperty("replicate.store.cache.size", 10737418240L);
+        loadIndex();
+        loadStats();
+        startSavingStats(configurationService.getLongProperty("replicate.store.cache.stats.flush", 10L));
+    }
+
+    /**
+     * Starts writing out the statistics in the background, at the passed
+     * interval and when the JVM exits.
+     */
+    private synchronized void startSavingStats(long intervalSeconds)
+    {
+        if (statsSaver != null)
+        {
+            return;
+        }
+        statsSaver = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "cache-stats-save");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        Runnable save = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                saveStats();
+            }
+        };
+        long interval = Math.max(1L, intervalSeconds);
+        statsSaver.scheduleWithFixedDelay(save, interval, interval, TimeUnit.SECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(save, "cache-stats-save-exit"));
+    }
+
+    /**
+     * Rebuilds the index of cached copies left by earlier runs, in order of
+     * when they were last used.
+     */
+    private synchronized void loadIndex()
+    {
+        List<File> files = new ArrayList<File>();
+        collectFiles(cacheDir, files);
+        Collections.sort(files, new Comparator<File>()
+        {
+            @Override
+            public int compare(File f1, File f2)
+            {
+                return Long.compare(f1.lastModified(), f2.lastModified());
+            }
+        });
+        String root = cacheDir.getAbsolutePath() + File.separator;
+        for (File file : files)
+        {
+            String checksum = readChecksum(file);
+            if (checksum == null)
+            {
+                // incomplete entry
+                file.delete();
+                continue;
+            }
+            String group = file.getParentFile().getAbsolutePath().substring(root.length())
+                               .replace(File.separatorChar, '/');
+            entries.put(key(group, file.getName()), new Entry(file, file.length(), checksum));
+            cachedBytes += file.length();
+        }
+        evict();
+    }
+
+    private static void collectFiles(File dir, List<File> files)
+    {
+        File[] children = dir.listFiles();
+        if (children == null)
+        {
+            return;
+        }
+        for (File child : children)
+        {
+            if (child.isDirectory())
+            {
+                collectFiles(child, files);
+            }
+            else if (! child.getName().startsWith("."))
+            {
+                files.add(child);
+            }
+        }
+    }
+
+    @Override
+    public long fetchObject(String group, String id, File file) throws IOException
+    {
+        Map<String, String> attrs = currentAttributes(group, id);
+        if (attrs == null)
+        {
+            discard(group, id);
+            return 0L;
+        }
+        String checksum = attrs.get("checksum");
+        if (checksum == null)
+        {
+            // no checksum to tell a current copy by, so not cached
+            discard(group, id);
+            return delegate.fetchObject(group, id, file);
+        }
+        Entry entry = lookup(group, id, checksum);
+        if (entry != null)
+        {
+            Utils.copy(entry.file, file);
+            return entry.size;
+        }
+        long size = delegate.fetchObject(group, id, file);
+        if (size > 0L)
+        {
+            admit(group, id, file, checksum);
+        }
+        return size;
+    }
+
+    @Override
+    public InputStream openObject(String group, String id) throws IOException
+    {
+        Map<String, String> attrs = currentAttributes(group, id);
+        if (attrs == null)
+        {
+            discard(group, id);
+            return null;
+        }
+        String checksum = attrs.get("checksum");
+        if (checksum == null)
+        {
+            // no checksum to tell a current copy by, so not cached
+            discard(group, id);
+            return delegate.openObject(group, id);
+        }
+        Entry entry = lookup(group, id, checksum);
+        if (entry == null)
+        {
+            File temp = File.createTempFile(".fetch", ".tmp", cacheDir);
+            try
+            {
+                if (delegate.fetchObject(group, id, temp) > 0L)
+                {
+                    entry = admit(group, id, temp, checksum);
+                }
+            }
+            finally
+            {
+                temp.delete();
+            }
+            if (entry == null)
+            {
+                // too large to cache, or gone since we looked
+                return delegate.openObject(group, id);
+            }
+        }
+        try
+        {
+            return new FileInputStream(entry.file);
+        }
+        catch (IOException ioE)
+        {
+            // evicted in the meantime
+            return delegate.openObject(group, id);
+        }
+    }
+
+    /**
+     * Returns the attributes the underlying store reports for an object.
+     * Stores need not report a checksum (e.g. of S3 objects uploaded
+     * without one), in which case the object is read without the cache.
+     * @param group group name
+     * @param id object ID
+     * @return attributes, or null if no such object
+     * @throws IOException if I/O error
+     */
+    private Map<String, String> currentAttributes(String group, String id) throws IOException
+    {
+        return delegate.objectAttributes(group, Collections.singletonList(id)).get(id);
+    }
+
+    /**
+     * Returns the cached copy of an object, if there is one with the
+     * passed checksum, recording a hit or miss.
+     */
+    private synchronized Entry lookup(String group, String id, String checksum)
+    {
+        Entry entry = entries.get(key(group, id));
+        if (entry != null && entry.checksum.equalsIgnoreCase(checksum) && entry.file.exists())
+        {
+            entry.file.setLastModified(System.currentTimeMillis());
+            record(1L, 0L, entry.size);
+            return entry;
+        }
+        record(0L, 1L, 0L);
+        return null;
+    }
+
+    /**
+     * Copies a fetched object into the cache, if it fits and matches the
+     * checksum the store reported for it.
+     * @return the new cache entry, or null if not cached
+     */
+    private Entry admit(String group, String id, File fetched, String checksum) throws IOException
+    {
+        long size = fetched.length();
+        if (size > maxBytes)
+        {
+            return null;
+        }
+        File file = new File(new File(cacheDir, group), id);
+        file.getParentFile().mkdirs();
+        File temp = File.createTempFile("." + id, ".tmp", file.getParentFile());
+        String copySum;
+        try
+        {
+            copySum = copy(fetched, temp);
+        }
+        catch (IOException ioE)
+        {
+            temp.delete();
+            throw ioE;
+        }
+        if (! copySum.equalsIgnoreCase(checksum))
+        {
+            // changed since we looked - don't cache
+            temp.delete();
+            return null;
+        }
+        Entry entry = new Entry(file, size, checksum);
+        synchronized (this)
+        {
+            Entry old = entries.remove(key(group, id));
+            if (old != null)
+            {
+                cachedBytes -= old.size;
+            }
+            writeChecksum(file, checksum);
+            if (! temp.renameTo(file))
+            {
+                file.delete();
+                if (! temp.renameTo(file))
+                {
+                    temp.delete();
+                    metaFile(file).delete();
+                    return null;
+                }
+            }
+            entries.put(key(group, id), entry);
+            cachedBytes += size;
+            evict();
+        }
+        return entry;
+    }
+
+    /**
+     * Evicts least recently used copies until the cache is within budget.
+     */
+    private synchronized void evict()
+    {
+        Iterator<Entry> iter = entries.values().iterator();
+        while (cachedBytes > maxBytes && iter.hasNext())
+        {
+            Entry entry = iter.next();
+            iter.remove();
+            entry.file.delete();
+            metaFile(entry.file).delete();
+            cachedBytes -= entry.size;
+        }
+    }
+
+    /**
+     * Discards any cached copy of an object, once it has been changed.
+     */
+    private synchronized void discard(String group, String id)
+    {
+        Entry entry = entries.remove(key(group, id));
+        if (entry != null)
+        {
+            entry.file.delete();
+            metaFile(entry.file).delete();
+            cachedBytes -= entry.size;
+        }
+    }
+
+    private static String key(String group, String id)
+    {
+        return group + "/" + id;
+    }
+
+    private static String copy(File src, File dest) throws IOException
+    {
+        MessageDigest digest;
+        try
+        {
+            digest = MessageDigest.getInstance("MD5");
+        }
+        catch (NoSuchAlgorithmException nsaE)
+        {
+            throw new IOException(nsaE);
+        }
+        InputStream in = new DigestInputStream(new FileInputStream(src), digest);
+        try
+        {
+            OutputStream out = new FileOutputStream(dest);
+            try
+            {
+                Utils.copy(in, out);
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        return Utils.toHex(digest.digest());
+    }
+
+    private static File metaFile(File file)
+    {
+        return new File(file.getParentFile(), "." + file.getName() + ".meta");
+    }
+
+    private static String readChecksum(File file)
+    {
+        File meta = metaFile(file);
+        if (! meta.isFile())
+        {
+            return null;
+        }
+        try
+        {
+            BufferedReader reader = new BufferedReader(new FileReader(meta));
+            try
+            {
+                return reader.readLine();
+            }
+            finally
+            {
+                reader.close();
+            }
+        }
+        catch (IOException ioE)
+        {
+            return null;
+        }
+    }
+
+    private static void writeChecksum(File file, String checksum) throws IOException
+    {
+        Writer writer = new FileWriter(metaFile(file));
+        try
+        {
+            writer.write(checksum + "\n");
+        }
+        finally
+        {
+            writer.close();
+        }
+    }
+
+    private synchronized void loadStats()
+    {
+        File statsFile = new File(cacheDir, STATS_FILE);
+        if (statsFile.isFile())
+        {
+            try
+            {
+                InputStream in = new FileInputStream(statsFile);
+                try
+                {
+                    stats.load(in);
+                }
+                finally
+                {
+                    in.close();
+                }
+            }
+            catch (IOException ioE)
+            {
+                log.warn("Unable to read cache statistics in '" + statsFile + "'", ioE);
+            }
+        }
+    }
+
+    /**
+     * Adds to the cache statistics, which are saved later.
+     */
+    private void record(long hits, long misses, long bytesSaved)
+    {
+        pendingHits.addAndGet(hits);
+        pendingMisses.addAndGet(misses);
+        pendingBytesSaved.addAndGet(bytesSaved);
+    }
+
+    /**
+     * Writes out the cache statistics, with those counted since they were
+     * last saved. The file is written to a temporary file, then renamed, so
+     * a crash never leaves it partly written.
+     */
+    public synchronized void saveStats()
+    {
+        long hits = pendingHits.getAndSet(0L);
+        long misses = pendingMisses.getAndSet(0L);
+        long bytesSaved = pendingBytesSaved.getAndSet(0L);
+        if (hits == 0L && misses == 0L && bytesSaved == 0L)
+        {
+            return;
+        }
+        stats.setProperty(HITS, String.valueOf(savedStatistic(HITS) + hits));
+        stats.setProperty(MISSES, String.valueOf(savedStatistic(MISSES) + misses));
+        stats.setProperty(BYTES_SAVED, String.valueOf(savedStatistic(BYTES_SAVED) + bytesSaved));
+        File statsFile = new File(cacheDir, STATS_FILE);
+        File temp = new File(cacheDir, STATS_FILE + ".tmp");
+        try
+        {
+            OutputStream out = new FileOutputStream(temp);
+            try
+            {
+                stats.store(out, null);
+            }
+            finally
+            {
+                out.close();
+            }
+            if (! temp.renameTo(statsFile))
+            {
+                statsFile.delete();
+                if (! temp.renameTo(statsFile))
+                {
+                    throw new IOException("Unable to rename '" + temp + "'");
+                }
+            }
+        }
+        catch (IOException ioE)
+        {
+            log.warn("Unable to save cache statistics", ioE);
+        }
+    }
+
+    private long savedStatistic(String name)
+    {
+        return Long.parseLong(stats.getProperty(name, "0"));
+    }
+
+    /**
+     * Returns a cache statistic, accumulated over all runs.
+     * @param name one of HITS, MISSES or BYTES_SAVED
+     * @return value of the statistic
+     */
+    public synchronized long getStatistic(String name)
+    {
+        long pending = HITS.equals(name) ? pendingHits.get()
+                       : MISSES.equals(name) ? pendingMisses.get()
+                       : BYTES_SAVED.equals(name) ? pendingBytesSaved.get() : 0L;
+        return savedStatistic(name) + pending;
+    }
+
+    /**
+     * @return fraction of lookups answered from the cache (0 if none yet)
+     */
+    public synchronized double getHitRatio()
+    {
+        long lookups = getStatistic(HITS) + getStatistic(MISSES);
+        return lookups > 0L ? (double) getStatistic(HITS) / lookups : 0.0;
+    }
+
+    @Override
+    public boolean objectExists(String group, String id) throws IOException
+    {
+        return delegate.objectExists(group, id);
+    }
+
+    @Override
+    public String objectAttribute(String group, String id, String attrName) throws IOException
+    {
+        return delegate.objectAttribute(group, id, attrName);
+    }
+
+    @Override
+    public Map<String, Boolean> objectsExist(String group, List<String> ids) throws IOException
+    {
+        return delegate.objectsExist(group, ids);
+    }
+
+    @Override
+    public Map<String, Map<String, String>> objectAttributes(String group, List<String> ids) throws IOException
+    {
+        return delegate.objectAttributes(group, ids);
+    }
+
+    @Override
+    public Iterator<ObjectInfo> listObjects(String group, String prefix) throws IOException
+    {
+        return delegate.listObjects(group, prefix);
+    }
+
+    @Override
+    public long transferObject(String group, File file) throws IOException
+    {
+        discard(group, file.getName());
+        return delegate.transferObject(group, file);
+    }
+
+    @Override
+    public long transferObject(String group, String id, InputStream in, long length, String md5) throws IOException
+    {
+        discard(group, id);
+        return delegate.transferObject(group, id, in, length, md5);
+    }
+
+    @Override
+    public long removeObject(String group, String id) throws IOException
+    {
+        discard(group, id);
+        return delegate.removeObject(group, id);
+    }
+
+    @Override
+    public long moveObject(String srcGroup, String destGroup, String id) throws IOException
+    {
+        discard(srcGroup, id);
+        discard(destGroup, id);
+        return delegate.moveObject(srcGroup, destGroup, id);
+    }
+
+    @Override
+    public Map<String, Long> removeObjects(String group, List<String> ids) throws IOException
+    {
+        for (String id : ids)
+        {
+            discard(group, id);
+        }
+        return delegate.removeObjects(group, ids);
+    }
+
+    @Override
+    public Map<String, Long> moveObjects(String srcGroup, String destGroup, List<String> ids) throws IOException
+    {
+        for (String id : ids)
+        {
+            discard(srcGroup, id);
+            discard(destGroup, id);
+        }
+        return delegate.moveObjects(srcGroup, destGroup, ids);
+    }
+
+    /**
+     * A cached copy of an object.
+     */
+    private static class Entry
+    {
+        private final File file;
+        private final long size;
+        private final String checksum;
+
+        Entry(File file, long size, String checksum)
+        {
+            this.file = file;
+            this.size = size;
+            this.checksum = checksum;
+        }
+    }
+}
@@ -0,0 +1,278 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.replicate.store;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+/**
+ * ChunksManifest describes a large piece of content which has been stored
+ * as a series of smaller chunks, following the DuraCloud chunking convention.
+ * The chunks of content 'foo' are named 'foo.dura-chunk-0000',
+ * 'foo.dura-chunk-0001', etc. and are listed (with their sizes and checksums)
+ * in a manifest named 'foo.dura-manifest', which also records the size and
+ * checksum of the whole content.
+ *
+ * @see DuraCloudObjectStore
+ */
+public class ChunksManifest
+{
+    // suffix of a manifest's content ID
+    public static final String MANIFEST_SUFFIX = ".dura-manifest";
+    // suffix of a chunk's content ID (before the chunk index)
+    public static final String CHUNK_SUFFIX = ".dura-chunk-";
+
+    private static final String NAMESPACE = "duracloud.org";
+    private static final String SCHEMA_VERSION = "0.2";
+
+    private final String contentId;
+    private final String mimeType;
+    private final long byteSize;
+    private final String md5;
+    private final List<Chunk> chunks = new ArrayList<Chunk>();
+
+    public ChunksManifest(String contentId, String mimeType, long byteSize, String md5)
+    {
+        this.contentId = contentId;
+        this.mimeType = mimeType;
+        this.byteSize = byteSize;
+        this.md5 = md5;
+    }
+
+    /**
+     * Returns the content ID of the manifest for the passed content.
+     * @param contentId content ID
+     * @return manifest content ID
+     */
+    public static String manifestId(String contentId)
+    {
+        return contentId + MANIFEST_SUFFIX;
+    }
+
+    /**
+     * Returns the content ID of a chunk of the passed content.
+     * @param contentId content ID
+     * @param index chunk index
+     * @return chunk content ID
+     */
+    public static String chunkId(String contentId, int index)
+    {
+        return contentId + CHUNK_SUFFIX + String.format("%04d", index);
+    }
+
+    public String getContentId()
+    {
+        return contentId;
+    }
+
+    public String getMimeType()
+    {
+        return mimeType;
+    }
+
+    public long getByteSize()
+    {
+        return byteSize;
+    }
+
+    public String getMD5()
+    {
+        return md5;
+    }
+
+    public List<Chunk> getChunks()
+    {
+        return chunks;
+    }
+
+    public void addChunk(long byteSize, String md5)
+    {
+        int index = chunks.size();
+        chunks.add(new Chunk(chunkId(contentId, index), index, byteSize, md5));
+    }
+
+    /**
+     * Writes this manifest as XML.
+     * @param out stream to write to (not closed)
+     * @throws IOException if I/O error
+     */
+    public void write(OutputStream out) throws IOException
+    {
+        try
+        {
+            Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+            Element root = doc.createElementNS(NAMESPACE, "dur:chunksManifest");
+            doc.appendChild(root);
+
+            Element header = doc.createElement("header");
+            header.setAttribute("schemaVersion", SCHEMA_VERSION);
+            root.appendChild(header);
+            Element source = doc.createElement("sourceContent");
+            source.setAttribute("contentId", contentId);
+            header.appendChild(source);
+            appendText(doc, source, "mimetype", mimeType);
+            appendText(doc, source, "byteSize", String.valueOf(byteSize));
+            appendText(doc, source, "md5", md5);
+
+            Element chunksElem = doc.createElement("chunks");
+            root.appendChild(chunksElem);
+            for (Chunk chunk : chunks)
+            {
+                Element chunkElem = doc.createElement("chunk");
+                chunkElem.setAttribute("chunkId", chunk.getChunkId());
+                chunkElem.setAttribute("index", String.valueOf(chunk.getIndex()));
+                appendText(doc, chunkElem, "byteSize", String.valueOf(chunk.getByteSize()));
+                appendText(doc, chunkElem, "md5", chunk.getMD5());
+                chunksElem.appendChild(chunkElem);
+            }
+
+            Transformer transformer = TransformerFactory.newInstance().newTransformer();
+            transformer.setOutputProperty(OutputKeys.INDENT, "yes");
+            transformer.transform(new DOMSource(doc), new StreamResult(out));
+        }
+        catch (ParserConfigurationException pcE)
+        {
+            throw new IOException(pcE);
+        }
+        catch (TransformerException tE)
+        {
+            throw new IOException(tE);
+        }
+    }
+
+    /**
+     * Reads a manifest from XML.
+     * @param in stream to read from (not closed)
+     * @return the manifest
+     * @throws IOException if I/O error, or the manifest is not valid
+     */
+    public static ChunksManifest read(InputStream in) throws IOException
+    {
+        try
+        {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setNamespaceAware(true);
+            Document doc = factory.newDocumentBuilder().parse(in);
+            Element source = (Element) doc.getElementsByTagName("sourceContent").item(0);
+            if (source == null)
+            {
+                throw new IOException("Invalid chunks manifest: no source content");
+            }
+            ChunksManifest manifest = new ChunksManifest(source.getAttribute("contentId"),
+                                                         childText(source, "mimetype"),
+                                                         Long.parseLong(childText(source, "byteSize")),
+                                                         childText(source, "md5"));
+            NodeList chunkList = doc.getElementsByTagName("chunk");
+            List<Chunk> chunks = new ArrayList<Chunk>();
+            for (int i = 0; i < chunkList.getLength(); i++)
+            {
+                Element chunkElem = (Element) chunkList.item(i);
+                chunks.add(new Chunk(chunkElem.getAttribute("chunkId"),
+                                     Integer.parseInt(chunkElem.getAttribute("index")),
+                                     Long.parseLong(childText(chunkElem, "byteSize")),
+                                     childText(chunkElem, "md5")));
+            }
+            // chunks are reassembled in index order, regardless of document order
+            Chunk[] ordered = new Chunk[chunks.size()];
+            for (Chunk chunk : chunks)
+            {
+                if (chunk.getIndex() < 0 || chunk.getIndex() >= ordered.length || ordered[chunk.getIndex()] != null)
+                {
+                    throw new IOException("Invalid chunks manifest: bad chunk index " + chunk.getIndex());
+                }
+                ordered[chunk.getIndex()] = chunk;
+            }
+            for (Chunk chunk : ordered)
+            {
+                manifest.chunks.add(chunk);
+            }
+            return manifest;
+        }
+        catch (ParserConfigurationException pcE)
+        {
+            throw new IOException(pcE);
+        }
+        catch (SAXException saxE)
+        {
+            throw new IOException(saxE);
+        }
+        catch (NumberFormatException nfE)
+        {
+            throw new IOException("Invalid chunks manifest", nfE);
+        }
+    }
+
+    private static void appendText(Document doc, Element parent, String name, String text)
+    {
+        Element elem = doc.createElement(name);
+        elem.setTextContent(text != null ? text : "");
+        parent.appendChild(elem);
+    }
+
+    private static String childText(Element parent, String name)
+    {
+        NodeList nodes = parent.getElementsByTagName(name);
+        return nodes.getLength() > 0 ? nodes.item(0).getTextContent().trim() : null;
+    }
+
+    /**
+     * A single chunk of content.
+     */
+    public static class Chunk
+    {
+        private final String chunkId;
+        private final int index;
+        private final long byteSize;
+        private final String md5;
+
+        public Chunk(String chunkId, int index, long byteSize, String md5)
+        {
+            this.chunkId = chunkId;
+            this.index = index;
+            this.byteSize = byteSize;
+            this.md5 = md5;
+        }
+
+        public String getChunkId()
+        {
+            return chunkId;
+        }
+
+        public int getIndex()
+        {
+            return index;
+        }
+
+        public long getByteSize()
+        {
+            return byteSize;
+        }
+
+        public String getMD5()
+        {
+            return md5;
+        }
+    }
+}
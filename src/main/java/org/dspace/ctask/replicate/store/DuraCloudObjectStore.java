@@ -7,14 +7,36 @@
  */
 package org.dspace.ctask.replicate.store;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
 
+import com.google.common.io.ByteStreams;
+import org.apache.commons.io.input.CloseShieldInputStream;
+import org.apache.log4j.Logger;
 import org.dspace.services.ConfigurationService;
 import org.dspace.services.factory.DSpaceServicesFactory;
 import org.duracloud.client.ContentStore;
@@ -22,102 +44,467 @@ import org.duracloud.client.ContentStoreManager;
 import org.duracloud.client.ContentStoreManagerImpl;
 import org.duracloud.common.model.Credential;
 import org.duracloud.domain.Content;
+import org.duracloud.domain.Space;
 import org.duracloud.error.ContentStoreException;
 import org.duracloud.error.NotFoundException;
 
+import org.dspace.ctask.replicate.ObjectInfo;
 import org.dspace.ctask.replicate.ObjectStore;
 import org.dspace.curate.Utils;
 
 /**
  * DuraCloudReplicaStore invokes the DuraCloud RESTful web service API,
  * (using a java client library) rather than using the rsync tool.
+ * <P>
+ * If 'duracloud.chunk.size' is set, content larger than that size is
+ * uploaded as a series of chunks over several concurrent connections,
+ * following the DuraCloud chunking convention (see ChunksManifest). Chunks
+ * already stored by an earlier, failed upload are not sent again. Chunked
+ * content is reassembled transparently when fetched, and is found by
+ * lookups, listings, removals and moves whether or not chunking is
+ * currently enabled (as it may have been stored under another setting).
+ * <P>
+ * Fetches are written to a partial file and verified against the MD5
+ * checksum DuraCloud holds for the content. If the connection drops, the
+ * fetch resumes (with a ranged request) from the end of the partial file,
+ * up to 'duracloud.fetch.retries' times.
+ * <P>
+ * The content properties of replicas are cached for a short time
+ * ('duracloud.cache.ttl'), since a single replication task typically looks
+ * them up more than once (e.g. to find the size of the replica it replaces,
+ * then to compare checksums). The store's own transfers, removals and moves
+ * keep the cache up to date.
  *
  * @author richardrodgers
  */
 public class DuraCloudObjectStore implements ObjectStore
 {
+    private static Logger log = Logger.getLogger(DuraCloudObjectStore.class);
+
+    // suffix of the partial file a fetch is written to, until verified
+    private static final String PART_SUFFIX = ".part";
+
+    // number of content IDs listed per request (the most DuraCloud allows)
+    private static final long LIST_PAGE_SIZE = 1000L;
+
+    // property marking the (synthesized) properties of chunked content
+    private static final String CHUNKED = "replicate-chunked";
+
     private ConfigurationService configurationService = DSpaceServicesFactory.getInstance().getConfigurationService();
 
     // DuraCloud store
     private ContentStore dcStore = null;
 
+    // pool used to issue batched property lookups concurrently
+    private ExecutorService lookupPool = null;
+
+    // pool used to upload the chunks of large content concurrently
+    private ExecutorService chunkPool = null;
+
+    // content larger than this many bytes is uploaded in chunks (0 = never)
+    private long chunkSize = 0L;
+
+    // number of times an interrupted or corrupt fetch is retried
+    private int fetchRetries = 3;
+
+    // cache of replica properties (null when there is no replica), keyed
+    // by space and content ID, least recently used entries evicted first
+    private Map<String, CachedProperties> propsCache = null;
+
+    // milliseconds a cached entry remains valid
+    private long cacheTtl = 0L;
+
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong cacheMisses = new AtomicLong();
+
     public DuraCloudObjectStore()
     {
     }
 
+    /**
+     * Creates a store using the passed content store, rather than logging
+     * in to the one configured in 'duracloud.cfg'.
+     * @param dcStore DuraCloud content store
+     */
+    public DuraCloudObjectStore(ContentStore dcStore)
+    {
+        this.dcStore = dcStore;
+    }
+
     @Override
     public void init() throws IOException
     {
-        // locate & login to Duracloud store
-        ContentStoreManager storeManager =
-            new ContentStoreManagerImpl(configurationService.getProperty("duracloud.host"),
-                                        configurationService.getProperty("duracloud.port"),
-                                        configurationService.getProperty("duracloud.context"));
-        Credential credential =
-            new Credential(configurationService.getProperty("duracloud.username"),
-                           configurationService.getProperty("duracloud.password"));
-        storeManager.login(credential);
-        try
+        if (dcStore == null)
         {
-            //Get the primary content store (e.g. Amazon)
-            dcStore = storeManager.getPrimaryContentStore();
+            // locate & login to Duracloud store
+            ContentStoreManager storeManager =
+                new ContentStoreManagerImpl(configurationService.getProperty("duracloud.host"),
+                                            configurationService.getProperty("duracloud.port"),
+                                            configurationService.getProperty("duracloud.context"));
+            Credential credential =
+                new Credential(configurationService.getProperty("duracloud.username"),
+                               configurationService.getProperty("duracloud.password"));
+            storeManager.login(credential);
+            try
+            {
+                //Get the primary content store (e.g. Amazon)
+                dcStore = storeManager.getPrimaryContentStore();
+            }
+            catch (ContentStoreException csE)
+            {
+                throw new IOException("Unable to connect to the DuraCloud Primary Content Store. Please check the DuraCloud connection/authentication settings in your 'duracloud.cfg' file.", csE);
+            }
         }
-        catch (ContentStoreException csE)
+
+        // batched lookups are spread over a small pool of daemon threads,
+        // so an idle pool never keeps a curation run from exiting
+        int lookupThreads = configurationService.getIntProperty("duracloud.lookup.threads", 8);
+        lookupPool = Executors.newFixedThreadPool(Math.max(1, lookupThreads), daemonThreads("duracloud-lookup"));
+
+        chunkSize = configurationService.getLongProperty("duracloud.chunk.size", 0L);
+        if (chunking())
         {
-            throw new IOException("Unable to connect to the DuraCloud Primary Content Store. Please check the DuraCloud connection/authentication settings in your 'duracloud.cfg' file.", csE);
+            int chunkThreads = configurationService.getIntProperty("duracloud.chunk.threads", 4);
+            chunkPool = Executors.newFixedThreadPool(Math.max(1, chunkThreads), daemonThreads("duracloud-chunk"));
         }
+
+        fetchRetries = Math.max(0, configurationService.getIntProperty("duracloud.fetch.retries", 3));
+
+        final int cacheSize = configurationService.getIntProperty("duracloud.cache.size", 1000);
+        cacheTtl = configurationService.getLongProperty("duracloud.cache.ttl", 60L) * 1000L;
+        if (cacheSize > 0 && cacheTtl > 0L)
+        {
+            propsCache = Collections.synchronizedMap(new LinkedHashMap<String, CachedProperties>(16, 0.75f, true)
+            {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CachedProperties> eldest)
+                {
+                    return size() > cacheSize;
+                }
+            });
+        }
+    }
+
+    /**
+     * @return number of replica property lookups answered from the cache
+     */
+    public long getCacheHits()
+    {
+        return cacheHits.get();
+    }
+
+    /**
+     * @return number of replica property lookups which had to be sent to DuraCloud
+     */
+    public long getCacheMisses()
+    {
+        return cacheMisses.get();
+    }
+
+    private static ThreadFactory daemonThreads(final String name)
+    {
+        return new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Whether large content is uploaded in chunks. This only decides how
+     * content is stored: lookups of content which is not found always look
+     * for a chunks manifest.
+     * @return true if chunking is enabled
+     */
+    private boolean chunking()
+    {
+        return chunkSize > 0L;
     }
 
     @Override
     public long fetchObject(String group, String id, File file) throws IOException
     {
-        long size = 0L;
-        try
+        long size = fetchContent(group, id, file);
+        if (size < 0L)
         {
-            Content content = dcStore.getContent(getSpaceID(group), getContentPrefix(group) + id);
+            // no object - unless it was stored in chunks
+            size = 0L;
+            ChunksManifest manifest = readManifest(group, id, null);
+            if (manifest != null)
+            {
+                size = fetchChunks(group, manifest, file);
+            }
+        }
+        return size;
+    }
 
-            // Attempt to get size from request header
-            String contentSizeHeader = content.getProperties().get(ContentStore.CONTENT_SIZE);
-            try {
-                size = Long.valueOf(contentSizeHeader);
+    /**
+     * Downloads content into a file, verifying it against the checksum held
+     * by DuraCloud as it streams. The content is first written to a partial
+     * file: if the download fails part way, it is resumed from the end of
+     * the partial file (which is left in place for a later fetch to resume
+     * should all retries fail). A partial file which turns out not to match
+     * the checksum is discarded, and the download is started again.
+     * @param group group name
+     * @param id object ID
+     * @param file file to download into
+     * @return size of the content, or -1 if there is no such content
+     * @throws IOException if the download fails after all retries
+     */
+    private long fetchContent(String group, String id, File file) throws IOException
+    {
+        String spaceId = getSpaceID(group);
+        String contentId = getContentPrefix(group) + id;
+        File part = new File(file.getPath() + PART_SUFFIX);
+        Map<String, String> props = null;
+        IOException lastError = null;
+        for (int attempt = 0; attempt <= fetchRetries; attempt++)
+        {
+            try
+            {
+                long offset = part.length();
+                Content content = null;
+                if (props == null)
+                {
+                    if (offset == 0L)
+                    {
+                        content = dcStore.getContent(spaceId, contentId);
+                        props = content.getProperties();
+                    }
+                    else
+                    {
+                        props = dcStore.getContentProperties(spaceId, contentId);
+                    }
+                }
+                long expected = contentSize(props);
+                // bytes already downloaded are part of the checksum too
+                MessageDigest digest = md5Digest();
+                if (offset > 0L)
+                {
+                    digestFile(part, digest);
+                }
+                if (content == null && (expected < 0L || offset < expected))
+                {
+                    content = dcStore.getContent(spaceId, contentId, offset, null);
+                }
+                if (content != null)
+                {
+                    InputStream in = content.getStream();
+                    OutputStream out = new FileOutputStream(part, true);
+                    try
+                    {
+                        Utils.copy(new DigestInputStream(in, digest), out);
+                    }
+                    finally
+                    {
+                        in.close();
+                        out.close();
+                    }
+                }
+                String expectedSum = props.get(ContentStore.CONTENT_CHECKSUM);
+                String actualSum = Utils.toHex(digest.digest());
+                if (expectedSum != null && ! expectedSum.equalsIgnoreCase(actualSum))
+                {
+                    // corrupt (or stale) partial file - start again from scratch
+                    part.delete();
+                    props = null;
+                    throw new IOException("Checksum mismatch fetching '" + id + "': expected " +
+                                          expectedSum + " but received " + actualSum);
+                }
+                if (file.exists())
+                {
+                    file.delete();
+                }
+                if (! part.renameTo(file))
+                {
+                    throw new IOException("Unable to rename '" + part.getPath() + "' to '" + file.getPath() + "'");
+                }
+                return file.length();
             }
-            catch(NumberFormatException nfe) {
-                // ignore - header was missing or not a valid Long. We will determine size below
+            catch (NotFoundException nfE)
+            {
+                part.delete();
+                return -1L;
+            }
+            catch (ContentStoreException csE)
+            {
+                lastError = new IOException(csE);
+            }
+            catch (IOException ioE)
+            {
+                lastError = ioE;
+            }
+            if (attempt < fetchRetries)
+            {
+                log.warn("Fetch of '" + id + "' failed, retrying from byte " + part.length() + ": " +
+                         lastError.getMessage());
             }
+        }
+        throw lastError;
+    }
 
-            // Open local file and download content into it
-            FileOutputStream out = new FileOutputStream(file);
-            InputStream in = content.getStream();
-            Utils.copy(in, out);
+    private static long contentSize(Map<String, String> props)
+    {
+        try
+        {
+            return Long.parseLong(props.get(ContentStore.CONTENT_SIZE));
+        }
+        catch (NumberFormatException nfE)
+        {
+            // missing or not valid - size unknown
+            return -1L;
+        }
+    }
+
+    private static void digestFile(File file, MessageDigest digest) throws IOException
+    {
+        byte[] buf = new byte[65536];
+        InputStream in = new FileInputStream(file);
+        try
+        {
+            int n;
+            while ((n = in.read(buf)) > 0)
+            {
+                digest.update(buf, 0, n);
+            }
+        }
+        finally
+        {
             in.close();
-            out.close();
+        }
+    }
 
-            // If size could not be previously determined from request header, determine it from the downloaded file
-            if (size == 0L) {
-                size = file.length();
+    /**
+     * Reassembles chunked content into a file, verifying the checksum of
+     * each chunk and of the whole.
+     * @param group group name
+     * @param manifest manifest of the chunked content
+     * @param file file to write
+     * @return size of the content
+     * @throws IOException if a chunk is missing, or checksums do not match
+     */
+    private long fetchChunks(String group, ChunksManifest manifest, File file) throws IOException
+    {
+        MessageDigest whole = md5Digest();
+        OutputStream out = new FileOutputStream(file);
+        try
+        {
+            for (ChunksManifest.Chunk chunk : manifest.getChunks())
+            {
+                MessageDigest part = md5Digest();
+                InputStream in = openChunk(group, chunk);
+                try
+                {
+                    Utils.copy(new DigestInputStream(new DigestInputStream(in, whole), part), out);
+                }
+                finally
+                {
+                    in.close();
+                }
+                verify(chunk.getChunkId(), chunk.getMD5(), part);
             }
+            verify(manifest.getContentId(), manifest.getMD5(), whole);
+        }
+        catch (IOException ioE)
+        {
+            out.close();
+            file.delete();
+            throw ioE;
+        }
+        out.close();
+        return manifest.getByteSize();
+    }
+
+    private InputStream openChunk(String group, ChunksManifest.Chunk chunk) throws IOException
+    {
+        try
+        {
+            return dcStore.getContent(getSpaceID(group), getContentPrefix(group) + chunk.getChunkId()).getStream();
         }
         catch (NotFoundException nfE)
         {
-            // no object - no-op
+            throw new IOException("Missing chunk '" + chunk.getChunkId() + "' of chunked content", nfE);
         }
         catch (ContentStoreException csE)
         {
             throw new IOException(csE);
         }
-        return size;
     }
 
     @Override
     public boolean objectExists(String group, String id) throws IOException
+    {
+        return replicaProperties(group, id) != null;
+    }
+
+    /**
+     * Looks up the content properties of a replica. If the replica was
+     * stored in chunks, its size and checksum are taken from its manifest.
+     * @param group group name
+     * @param id object ID
+     * @return content properties, or null if no such replica
+     * @throws IOException if I/O error
+     */
+    private Map<String, String> replicaProperties(String group, String id) throws IOException
+    {
+        if (propsCache == null)
+        {
+            return lookupProperties(group, id);
+        }
+        String key = cacheKey(group, id);
+        CachedProperties cached = propsCache.get(key);
+        if (cached != null && cached.expires > System.currentTimeMillis())
+        {
+            cacheHits.incrementAndGet();
+            return cached.props;
+        }
+        cacheMisses.incrementAndGet();
+        Map<String, String> props = lookupProperties(group, id);
+        propsCache.put(key, new CachedProperties(props, System.currentTimeMillis() + cacheTtl));
+        return props;
+    }
+
+    /**
+     * Discards any cached properties of a replica, once it has been changed.
+     * @param group group name
+     * @param id object ID
+     */
+    private void invalidate(String group, String id)
+    {
+        if (propsCache != null)
+        {
+            propsCache.remove(cacheKey(group, id));
+        }
+    }
+
+    private String cacheKey(String group, String id)
+    {
+        return getSpaceID(group) + "/" + getContentPrefix(group) + id;
+    }
+
+    private Map<String, String> lookupProperties(String group, String id) throws IOException
     {
         try
         {
-            return dcStore.getContentProperties(getSpaceID(group), getContentPrefix(group) + id) != null;
+            return dcStore.getContentProperties(getSpaceID(group), getContentPrefix(group) + id);
         }
         catch (NotFoundException nfE)
         {
-            return false;
+            Map<String, String> props = new HashMap<String, String>();
+            ChunksManifest manifest = readManifest(group, id, props);
+            if (manifest != null)
+            {
+                props.put(ContentStore.CONTENT_SIZE, String.valueOf(manifest.getByteSize()));
+                props.put(ContentStore.CONTENT_CHECKSUM, manifest.getMD5());
+                props.put(CHUNKED, "true");
+                return props;
+            }
+            return null;
         }
         catch (ContentStoreException csE)
         {
@@ -125,77 +512,562 @@ public class DuraCloudObjectStore implements ObjectStore
         }
     }
 
+    /**
+     * Reads the chunks manifest of content stored in chunks.
+     * @param group group name
+     * @param id object ID
+     * @param props if not null, the manifest's own content properties are added to this map
+     * @return the manifest, or null if there is none
+     * @throws IOException if I/O error
+     */
+    private ChunksManifest readManifest(String group, String id, Map<String, String> props) throws IOException
+    {
+        try
+        {
+            Content content = dcStore.getContent(getSpaceID(group),
+                                                 getContentPrefix(group) + ChunksManifest.manifestId(id));
+            InputStream in = content.getStream();
+            try
+            {
+                if (props != null)
+                {
+                    props.putAll(content.getProperties());
+                }
+                return ChunksManifest.read(in);
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch (NotFoundException nfE)
+        {
+            return null;
+        }
+        catch (ContentStoreException csE)
+        {
+            throw new IOException(csE);
+        }
+    }
+
+    @Override
+    public Map<String, Boolean> objectsExist(String group, List<String> ids) throws IOException
+    {
+        Map<String, Map<String, String>> propMap = contentProperties(group, ids, true);
+        Map<String, Boolean> exists = new LinkedHashMap<String, Boolean>();
+        for (String id : ids)
+        {
+            exists.put(id, propMap.get(id) != null);
+        }
+        return exists;
+    }
+
+    @Override
+    public Map<String, Map<String, String>> objectAttributes(String group, List<String> ids) throws IOException
+    {
+        Map<String, Map<String, String>> attrMap = new LinkedHashMap<String, Map<String, String>>();
+        for (Map.Entry<String, Map<String, String>> entry : contentProperties(group, ids, true).entrySet())
+        {
+            if (entry.getValue() != null)
+            {
+                attrMap.put(entry.getKey(), attributes(entry.getValue()));
+            }
+        }
+        return attrMap;
+    }
+
+    @Override
+    public Iterator<ObjectInfo> listObjects(String group, String prefix) throws IOException
+    {
+        return new ObjectListing(group, prefix);
+    }
+
+    /**
+     * Looks up the DuraCloud content properties of several objects at once.
+     * Each lookup is a separate HTTP request, so they are issued concurrently
+     * on the lookup pool rather than one after another.
+     *
+     * @param group group name
+     * @param ids object IDs
+     * @param replicas true if the IDs are of replicas, which may have been
+     *        stored in chunks; false if they are plain content IDs
+     * @return map of each ID to its content properties, or to null if not found
+     * @throws IOException if a lookup fails
+     */
+    private Map<String, Map<String, String>> contentProperties(final String group, List<String> ids,
+                                                               final boolean replicas) throws IOException
+    {
+        final String spaceId = getSpaceID(group);
+        final String prefix = getContentPrefix(group);
+        Map<String, Future<Map<String, String>>> pending = new LinkedHashMap<String, Future<Map<String, String>>>();
+        for (final String id : ids)
+        {
+            pending.put(id, lookupPool.submit(new Callable<Map<String, String>>()
+            {
+                @Override
+                public Map<String, String> call() throws IOException, ContentStoreException
+                {
+                    if (replicas)
+                    {
+                        return replicaProperties(group, id);
+                    }
+                    try
+                    {
+                        return dcStore.getContentProperties(spaceId, prefix + id);
+                    }
+                    catch (NotFoundException nfE)
+                    {
+                        return null;
+                    }
+                }
+            }));
+        }
+
+        Map<String, Map<String, String>> propMap = new LinkedHashMap<String, Map<String, String>>();
+        try
+        {
+            for (Map.Entry<String, Future<Map<String, String>>> entry : pending.entrySet())
+            {
+                propMap.put(entry.getKey(), entry.getValue().get());
+            }
+        }
+        catch (InterruptedException intE)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException(intE);
+        }
+        catch (ExecutionException exE)
+        {
+            throw new IOException(exE.getCause());
+        }
+        finally
+        {
+            // don't leave lookups running if we bailed out early
+            for (Future<Map<String, String>> future : pending.values())
+            {
+                future.cancel(true);
+            }
+        }
+        return propMap;
+    }
+
     @Override
     public long removeObject(String group, String id) throws IOException
     {
         // get metadata before blowing away
         long size = 0L;
+        Map<String, String> attrs = replicaProperties(group, id);
+        if (attrs != null)
+        {
+            if (attrs.containsKey(CHUNKED))
+            {
+                size = removeChunks(group, id);
+            }
+            else
+            {
+                size = Long.valueOf(attrs.get(ContentStore.CONTENT_SIZE));
+                deleteContent(group, id);
+            }
+        }
+        invalidate(group, id);
+        return size;
+    }
+
+    /**
+     * Removes all chunks of chunked content, along with its manifest.
+     * @param group group name
+     * @param id object ID
+     * @return size of the removed content, or 0 if there was none
+     * @throws IOException if I/O error
+     */
+    private long removeChunks(String group, String id) throws IOException
+    {
+        ChunksManifest manifest = readManifest(group, id, null);
+        if (manifest == null)
+        {
+            return 0L;
+        }
+        for (ChunksManifest.Chunk chunk : manifest.getChunks())
+        {
+            deleteContent(group, chunk.getChunkId());
+        }
+        deleteContent(group, ChunksManifest.manifestId(id));
+        return manifest.getByteSize();
+    }
+
+    /**
+     * Deletes content, if it exists.
+     * @param group group name
+     * @param contentId ID of content within group
+     * @throws IOException if I/O error
+     */
+    private void deleteContent(String group, String contentId) throws IOException
+    {
         try
         {
-            Map<String, String> attrs = dcStore.getContentProperties(getSpaceID(group), getContentPrefix(group) + id);
-            size = Long.valueOf(attrs.get(ContentStore.CONTENT_SIZE));
-            dcStore.deleteContent(getSpaceID(group), getContentPrefix(group) + id);
+            dcStore.deleteContent(getSpaceID(group), getContentPrefix(group) + contentId);
         }
         catch (NotFoundException nfE)
         {
-            // no replica - no-op
+            // already gone
+        }
+        catch (ContentStoreException csE)
+        {
+            throw new IOException(csE);
+        }
+    }
+
+    @Override
+    public InputStream openObject(String group, String id) throws IOException
+    {
+        try
+        {
+            return dcStore.getContent(getSpaceID(group), getContentPrefix(group) + id).getStream();
+        }
+        catch (NotFoundException nfE)
+        {
+            ChunksManifest manifest = readManifest(group, id, null);
+            return manifest != null ? new ChunkedInputStream(group, manifest) : null;
         }
         catch (ContentStoreException csE)
         {
             throw new IOException(csE);
         }
-        return size;
     }
 
     @Override
     public long transferObject(String group, File file) throws IOException
     {
         long size = 0L;
-        String chkSum = Utils.checksum(file, "MD5");
         // make sure this is a different file from what replica store has
         // to avoid network I/O tax
+        Map<String, String> attrs = replicaProperties(group, file.getName());
         try
         {
-            Map<String, String> attrs = dcStore.getContentProperties(getSpaceID(group), getContentPrefix(group) + file.getName());
-            if (! chkSum.equals(attrs.get(ContentStore.CONTENT_CHECKSUM)))
+            if (attrs == null)
             {
-                size = uploadReplica(group, file, chkSum);
+                // no extant replica - proceed. There is nothing to compare with,
+                // so the checksum is computed as the content is uploaded
+                // rather than in a separate pass over the file
+                size = uploadReplica(group, file, null, false);
+            }
+            else
+            {
+                String chkSum = Utils.checksum(file, "MD5");
+                if (! chkSum.equals(attrs.get(ContentStore.CONTENT_CHECKSUM)))
+                {
+                    size = uploadReplica(group, file, chkSum, attrs.containsKey(CHUNKED));
+                }
             }
         }
-        catch (NotFoundException nfE)
-        {
-            // no extant replica - proceed
-            size = uploadReplica(group, file, chkSum);
-        }
-        catch (ContentStoreException csE)
+        finally
         {
-            throw new IOException(csE);
+            invalidate(group, file.getName());
         }
         // delete staging file
         file.delete();
         return size;
     }
 
-    private long uploadReplica(String group, File file, String chkSum) throws IOException
+    @Override
+    public long transferObject(String group, String id, InputStream in, long length, String md5) throws IOException
     {
+        if (md5 != null)
+        {
+            // skip the upload if the replica store already has this content
+            String repChkSum = objectAttribute(group, id, "checksum");
+            if (md5.equals(repChkSum))
+            {
+                // the caller expects the stream to have been read to its end
+                ByteStreams.copy(in, ByteStreams.nullOutputStream());
+                return 0L;
+            }
+        }
         try
         {
-            //@TODO: We shouldn't need to pass a hardcoded MIME Type. Unfortunately, DuraCloud,
-            // as of 1.3, doesn't properly determine a file's MIME Type. In future it should.
-            String mimeType = "application/octet-stream";
-            if(file.getName().endsWith(".zip"))
-                mimeType = "application/zip";
-            else if (file.getName().endsWith(".tgz"))
-                mimeType = "application/x-gzip";
-            else if(file.getName().endsWith(".txt"))
-                mimeType = "text/plain";
+            if (chunking() && length > chunkSize)
+            {
+                return uploadChunks(group, id, in, length, md5);
+            }
+            long size = uploadReplica(group, id, in, length, md5);
+            // discard any earlier copy of this content that was stored in chunks
+            // (whatever the current setting, it may have been stored under another)
+            removeChunks(group, id);
+            return size;
+        }
+        finally
+        {
+            invalidate(group, id);
+        }
+    }
+
+    /**
+     * Uploads a file, in chunks if it is large enough.
+     * @param group group name
+     * @param file file to upload
+     * @param chkSum MD5 checksum of the file, or null if not yet known
+     * @param chunked true if the replica it replaces was stored in chunks
+     * @return number of bytes in file
+     * @throws IOException if I/O error
+     */
+    private long uploadReplica(String group, File file, String chkSum, boolean chunked) throws IOException
+    {
+        if (chunking() && file.length() > chunkSize)
+        {
+            return uploadChunks(group, file);
+        }
+        long size;
+        InputStream in = new FileInputStream(file);
+        try
+        {
+            size = uploadReplica(group, file.getName(), in, file.length(), chkSum);
+        }
+        finally
+        {
+            in.close();
+        }
+        if (chunked)
+        {
+            // discard the earlier copy of this content that was stored in chunks
+            removeChunks(group, file.getName());
+        }
+        return size;
+    }
+
+    /**
+     * Uploads a file in chunks, several at a time. Chunks which are already
+     * stored with the expected checksum (i.e. left by an earlier upload which
+     * failed part way) are not uploaded again.
+     * @param group group name
+     * @param file file to upload
+     * @return number of bytes in file
+     * @throws IOException if any chunk fails to upload
+     */
+    private long uploadChunks(final String group, final File file) throws IOException
+    {
+        // a single pass over the file checksums each chunk and the whole file
+        ChunksManifest manifest = checksumChunks(file);
+
+        List<String> chunkIds = new ArrayList<String>();
+        for (ChunksManifest.Chunk chunk : manifest.getChunks())
+        {
+            chunkIds.add(chunk.getChunkId());
+        }
+        Map<String, Map<String, String>> stored = contentProperties(group, chunkIds, false);
+
+        List<Future<Long>> pending = new ArrayList<Future<Long>>();
+        try
+        {
+            for (final ChunksManifest.Chunk chunk : manifest.getChunks())
+            {
+                Map<String, String> props = stored.get(chunk.getChunkId());
+                if (props != null && chunk.getMD5().equals(props.get(ContentStore.CONTENT_CHECKSUM)))
+                {
+                    // already uploaded
+                    continue;
+                }
+                final long offset = chunk.getIndex() * chunkSize;
+                pending.add(chunkPool.submit(new Callable<Long>()
+                {
+                    @Override
+                    public Long call() throws IOException
+                    {
+                        FileInputStream in = new FileInputStream(file);
+                        try
+                        {
+                            in.getChannel().position(offset);
+                            return uploadReplica(group, chunk.getChunkId(),
+                                                 ByteStreams.limit(in, chunk.getByteSize()),
+                                                 chunk.getByteSize(), chunk.getMD5());
+                        }
+                        finally
+                        {
+                            in.close();
+                        }
+                    }
+                }));
+            }
+            for (Future<Long> future : pending)
+            {
+                future.get();
+            }
+        }
+        catch (InterruptedException intE)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException(intE);
+        }
+        catch (ExecutionException exE)
+        {
+            throw new IOException("Chunked upload of '" + file.getName() + "' failed. " +
+                                  "Chunks already uploaded will be reused when it is retried.", exE.getCause());
+        }
+        finally
+        {
+            for (Future<Long> future : pending)
+            {
+                future.cancel(true);
+            }
+        }
+
+        finishChunks(group, manifest);
+        return file.length();
+    }
+
+    /**
+     * Computes the checksums of each chunk of a file, and of the whole file.
+     * @param file file to be chunked
+     * @return manifest describing the chunks of the file
+     * @throws IOException if I/O error
+     */
+    private ChunksManifest checksumChunks(File file) throws IOException
+    {
+        MessageDigest whole = md5Digest();
+        MessageDigest part = md5Digest();
+        List<Long> sizes = new ArrayList<Long>();
+        List<String> md5s = new ArrayList<String>();
+        byte[] buf = new byte[65536];
+        long inChunk = 0L;
+        InputStream in = new FileInputStream(file);
+        try
+        {
+            int n;
+            while ((n = in.read(buf, 0, (int) Math.min(buf.length, chunkSize - inChunk))) > 0)
+            {
+                whole.update(buf, 0, n);
+                part.update(buf, 0, n);
+                inChunk += n;
+                if (inChunk == chunkSize)
+                {
+                    sizes.add(inChunk);
+                    md5s.add(Utils.toHex(part.digest()));
+                    inChunk = 0L;
+                }
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        if (inChunk > 0L)
+        {
+            sizes.add(inChunk);
+            md5s.add(Utils.toHex(part.digest()));
+        }
+        ChunksManifest manifest = new ChunksManifest(file.getName(), mimeType(file.getName()),
+                                                     file.length(), Utils.toHex(whole.digest()));
+        for (int i = 0; i < sizes.size(); i++)
+        {
+            manifest.addChunk(sizes.get(i), md5s.get(i));
+        }
+        return manifest;
+    }
+
+    /**
+     * Uploads content read from a stream in chunks. As a stream can only be
+     * read in order, the chunks are uploaded one after another.
+     * @param group group name
+     * @param id object ID
+     * @param in content to upload
+     * @param length content length
+     * @param md5 MD5 checksum of content, if known (may be null)
+     * @return number of bytes uploaded
+     * @throws IOException if the upload fails, or checksums do not match
+     */
+    private long uploadChunks(String group, String id, InputStream in, long length, String md5) throws IOException
+    {
+        MessageDigest whole = md5Digest();
+        // the client may close each chunk's stream - which must not close ours
+        InputStream content = new CloseShieldInputStream(new DigestInputStream(in, whole));
+        List<Long> sizes = new ArrayList<Long>();
+        List<String> md5s = new ArrayList<String>();
+        long remaining = length;
+        while (remaining > 0L)
+        {
+            long size = Math.min(chunkSize, remaining);
+            MessageDigest part = md5Digest();
+            uploadReplica(group, ChunksManifest.chunkId(id, sizes.size()),
+                          new DigestInputStream(ByteStreams.limit(content, size), part), size, null);
+            sizes.add(size);
+            md5s.add(Utils.toHex(part.digest()));
+            remaining -= size;
+        }
+        String chkSum = Utils.toHex(whole.digest());
+        if (md5 != null && ! md5.equalsIgnoreCase(chkSum))
+        {
+            throw new IOException("Checksum mismatch transferring '" + id + "': expected " + md5 + " but received " + chkSum);
+        }
+        ChunksManifest manifest = new ChunksManifest(id, mimeType(id), length, chkSum);
+        for (int i = 0; i < sizes.size(); i++)
+        {
+            manifest.addChunk(sizes.get(i), md5s.get(i));
+        }
+        finishChunks(group, manifest);
+        return length;
+    }
+
+    /**
+     * Completes a chunked upload once all chunks are stored: writes the
+     * manifest, then discards whatever remains of any earlier copy of the
+     * content (an unchunked copy, or surplus chunks).
+     * @param group group name
+     * @param manifest manifest of the uploaded chunks
+     * @throws IOException if I/O error
+     */
+    private void finishChunks(String group, ChunksManifest manifest) throws IOException
+    {
+        String id = manifest.getContentId();
+        ChunksManifest previous = readManifest(group, id, null);
 
-            dcStore.addContent(getSpaceID(group), getContentPrefix(group) + file.getName(),
-                               new FileInputStream(file), file.length(),
-                               mimeType, chkSum,
-                               new HashMap<String, String>());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        manifest.write(out);
+        byte[] bytes = out.toByteArray();
+        MessageDigest digest = md5Digest();
+        digest.update(bytes);
+        uploadReplica(group, ChunksManifest.manifestId(id), new ByteArrayInputStream(bytes),
+                      bytes.length, Utils.toHex(digest.digest()));
 
-            return file.length();
+        deleteContent(group, id);
+        if (previous != null)
+        {
+            for (ChunksManifest.Chunk chunk : previous.getChunks())
+            {
+                if (chunk.getIndex() >= manifest.getChunks().size())
+                {
+                    deleteContent(group, chunk.getChunkId());
+                }
+            }
+        }
+    }
+
+    /**
+     * Uploads content to DuraCloud. The MD5 checksum is computed as the content
+     * is sent, and compared with the checksum DuraCloud reports for what it
+     * received.
+     * @param group group name
+     * @param id content ID
+     * @param in content to upload
+     * @param length content length
+     * @param chkSum MD5 checksum of content, if known (may be null)
+     * @return number of bytes uploaded
+     * @throws IOException if the upload fails, or checksums do not match
+     */
+    private long uploadReplica(String group, String id, InputStream in, long length, String chkSum) throws IOException
+    {
+        MessageDigest digest = md5Digest();
+        try
+        {
+            String repChkSum = dcStore.addContent(getSpaceID(group), getContentPrefix(group) + id,
+                                                  new DigestInputStream(in, digest), length,
+                                                  mimeType(id), chkSum,
+                                                  new HashMap<String, String>());
+            String sentChkSum = Utils.toHex(digest.digest());
+            if (repChkSum != null && ! repChkSum.equals(sentChkSum))
+            {
+                throw new IOException("Checksum mismatch uploading '" + id + "': sent " + sentChkSum +
+                                      " but DuraCloud received " + repChkSum);
+            }
+            return length;
         }
         catch (ContentStoreException csE)
         {
@@ -203,58 +1075,239 @@ public class DuraCloudObjectStore implements ObjectStore
         }
     }
 
+    /**
+     * Determines the MIME Type to store content with, based on its ID.
+     * @param id content ID
+     * @return MIME Type
+     */
+    private String mimeType(String id)
+    {
+        //@TODO: We shouldn't need to pass a hardcoded MIME Type. Unfortunately, DuraCloud,
+        // as of 1.3, doesn't properly determine a file's MIME Type. In future it should.
+        String mimeType = "application/octet-stream";
+        if(id.endsWith(".zip"))
+            mimeType = "application/zip";
+        else if (id.endsWith(".tgz"))
+            mimeType = "application/x-gzip";
+        else if(id.endsWith(".txt"))
+            mimeType = "text/plain";
+        else if(id.endsWith(ChunksManifest.MANIFEST_SUFFIX))
+            mimeType = "application/xml";
+        return mimeType;
+    }
+
+    private static MessageDigest md5Digest() throws IOException
+    {
+        try
+        {
+            return MessageDigest.getInstance("MD5");
+        }
+        catch (NoSuchAlgorithmException nsaE)
+        {
+            throw new IOException(nsaE);
+        }
+    }
+
+    /**
+     * Compares an expected checksum with that of the content actually read.
+     * @param id ID of content which was read
+     * @param expected expected hex encoded MD5 checksum
+     * @param digest digest of content read
+     * @throws IOException if the checksums do not match
+     */
+    private static void verify(String id, String expected, MessageDigest digest) throws IOException
+    {
+        String actual = Utils.toHex(digest.digest());
+        if (expected != null && ! expected.equalsIgnoreCase(actual))
+        {
+            throw new IOException("Checksum mismatch reading '" + id + "': expected " + expected + " but received " + actual);
+        }
+    }
+
     @Override
     public long moveObject(String srcGroup, String destGroup, String id) throws IOException
     {
         // get file-size metadata before moving the content
         long size = 0L;
+        Map<String, String> attrs = replicaProperties(srcGroup, id);
         try
         {
-            Map<String, String> attrs = dcStore.getContentProperties(getSpaceID(srcGroup), getContentPrefix(srcGroup) + id);
-            size = Long.valueOf(attrs.get(ContentStore.CONTENT_SIZE));
-            dcStore.moveContent(getSpaceID(srcGroup), getContentPrefix(srcGroup) + id,
-                                getSpaceID(destGroup), getContentPrefix(destGroup) + id);
+            if (attrs != null)
+            {
+                if (attrs.containsKey(CHUNKED))
+                {
+                    size = moveChunks(srcGroup, destGroup, id);
+                }
+                else
+                {
+                    size = Long.valueOf(attrs.get(ContentStore.CONTENT_SIZE));
+                    dcStore.moveContent(getSpaceID(srcGroup), getContentPrefix(srcGroup) + id,
+                                        getSpaceID(destGroup), getContentPrefix(destGroup) + id);
+                }
+            }
         }
         catch (NotFoundException nfE)
         {
-            // no replica - no-op
+            // no replica (any longer) - no-op
+            size = 0L;
         }
         catch (ContentStoreException csE)
         {
             throw new IOException(csE);
         }
+        finally
+        {
+            invalidate(srcGroup, id);
+            invalidate(destGroup, id);
+        }
         return size;
     }
 
     @Override
-    public String objectAttribute(String group, String id, String attrName) throws IOException
+    public Map<String, Long> removeObjects(final String group, List<String> ids) throws IOException
     {
-        try
+        // DuraCloud has no batch delete, so removals are issued concurrently instead
+        return eachObject(ids, new ObjectOp()
         {
-            Map<String, String> attrs = dcStore.getContentProperties(getSpaceID(group), getContentPrefix(group) + id);
+            @Override
+            public long run(String id) throws IOException
+            {
+                return removeObject(group, id);
+            }
+        });
+    }
 
-            if ("checksum".equals(attrName))
+    @Override
+    public Map<String, Long> moveObjects(final String srcGroup, final String destGroup, List<String> ids)
+        throws IOException
+    {
+        return eachObject(ids, new ObjectOp()
+        {
+            @Override
+            public long run(String id) throws IOException
             {
-                return attrs.get(ContentStore.CONTENT_CHECKSUM);
+                return moveObject(srcGroup, destGroup, id);
             }
-            else if ("sizebytes".equals(attrName))
+        });
+    }
+
+    /**
+     * Performs an operation on several objects, concurrently on the lookup
+     * pool, so at most 'duracloud.lookup.threads' are in progress at once.
+     * @param ids object IDs
+     * @param op operation on a single object
+     * @return map of each ID to the result of its operation
+     * @throws IOException the first failure of any operation
+     */
+    private Map<String, Long> eachObject(List<String> ids, final ObjectOp op) throws IOException
+    {
+        Map<String, Future<Long>> pending = new LinkedHashMap<String, Future<Long>>();
+        for (final String id : ids)
+        {
+            pending.put(id, lookupPool.submit(new Callable<Long>()
+            {
+                @Override
+                public Long call() throws IOException
+                {
+                    return op.run(id);
+                }
+            }));
+        }
+
+        Map<String, Long> results = new LinkedHashMap<String, Long>();
+        try
+        {
+            for (Map.Entry<String, Future<Long>> entry : pending.entrySet())
             {
-                return attrs.get(ContentStore.CONTENT_SIZE);
+                results.put(entry.getKey(), entry.getValue().get());
             }
-            else if ("modified".equals(attrName))
+        }
+        catch (InterruptedException intE)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException(intE);
+        }
+        catch (ExecutionException exE)
+        {
+            throw new IOException(exE.getCause());
+        }
+        finally
+        {
+            // don't leave operations queued if we bailed out early
+            for (Future<Long> future : pending.values())
             {
-                return attrs.get(ContentStore.CONTENT_MODIFIED);
+                future.cancel(false);
             }
-            return null;
         }
-        catch (NotFoundException nfE)
+        return results;
+    }
+
+    /**
+     * An operation on a single object, as part of a batch.
+     */
+    private interface ObjectOp
+    {
+        long run(String id) throws IOException;
+    }
+
+    /**
+     * Moves all chunks of chunked content, along with its manifest. The
+     * manifest is moved last, so the content is never visible in the
+     * destination group before all of its chunks are.
+     * @param srcGroup source group
+     * @param destGroup destination group
+     * @param id object ID
+     * @return size of the moved content, or 0 if there was none
+     * @throws IOException if I/O error
+     */
+    private long moveChunks(String srcGroup, String destGroup, String id) throws IOException
+    {
+        ChunksManifest manifest = readManifest(srcGroup, id, null);
+        if (manifest == null)
         {
-            return null;
+            return 0L;
+        }
+        List<String> contentIds = new ArrayList<String>();
+        for (ChunksManifest.Chunk chunk : manifest.getChunks())
+        {
+            contentIds.add(chunk.getChunkId());
+        }
+        contentIds.add(ChunksManifest.manifestId(id));
+        try
+        {
+            for (String contentId : contentIds)
+            {
+                dcStore.moveContent(getSpaceID(srcGroup), getContentPrefix(srcGroup) + contentId,
+                                    getSpaceID(destGroup), getContentPrefix(destGroup) + contentId);
+            }
         }
         catch (ContentStoreException csE)
         {
             throw new IOException(csE);
         }
+        return manifest.getByteSize();
+    }
+
+    @Override
+    public String objectAttribute(String group, String id, String attrName) throws IOException
+    {
+        Map<String, String> attrs = replicaProperties(group, id);
+        return attrs != null ? attributes(attrs).get(attrName) : null;
+    }
+
+    /**
+     * Maps DuraCloud content properties to the attribute names
+     * used by ObjectStore ("checksum", "sizebytes" and "modified").
+     * @param props DuraCloud content properties
+     * @return object attributes
+     */
+    private Map<String, String> attributes(Map<String, String> props)
+    {
+        Map<String, String> attrs = new HashMap<String, String>();
+        attrs.put("checksum", props.get(ContentStore.CONTENT_CHECKSUM));
+        attrs.put("sizebytes", props.get(ContentStore.CONTENT_SIZE));
+        attrs.put("modified", props.get(ContentStore.CONTENT_MODIFIED));
+        return attrs;
     }
 
     /**
@@ -296,4 +1349,199 @@ public class DuraCloudObjectStore implements ObjectStore
         else // otherwise, no content prefix is specified
             return "";
     }
+
+    /**
+     * Stream over the content of chunked content, which opens each chunk
+     * in turn as the previous one is read to its end.
+     */
+    private class ChunkedInputStream extends InputStream
+    {
+        private final String group;
+        private final Iterator<ChunksManifest.Chunk> chunks;
+        private InputStream current = null;
+
+        ChunkedInputStream(String group, ChunksManifest manifest)
+        {
+            this.group = group;
+            this.chunks = manifest.getChunks().iterator();
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            while (nextChunk())
+            {
+                int b = current.read();
+                if (b >= 0)
+                {
+                    return b;
+                }
+                current.close();
+                current = null;
+            }
+            return -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if (len == 0)
+            {
+                return 0;
+            }
+            while (nextChunk())
+            {
+                int n = current.read(b, off, len);
+                if (n >= 0)
+                {
+                    return n;
+                }
+                current.close();
+                current = null;
+            }
+            return -1;
+        }
+
+        private boolean nextChunk() throws IOException
+        {
+            if (current == null && chunks.hasNext())
+            {
+                current = openChunk(group, chunks.next());
+            }
+            return current != null;
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            if (current != null)
+            {
+                current.close();
+                current = null;
+            }
+        }
+    }
+
+    /**
+     * Iterator over the objects of a group, which lists the group's space a
+     * page at a time and looks up the properties of each page's objects
+     * concurrently. Chunks are not listed: chunked content is listed once,
+     * under its own ID (if chunking is enabled).
+     */
+    private class ObjectListing implements Iterator<ObjectInfo>
+    {
+        private final String group;
+        private final String contentPrefix;
+        private final String listPrefix;
+        private String marker = null;
+        private boolean lastPage = false;
+        private Iterator<ObjectInfo> page = Collections.<ObjectInfo>emptyIterator();
+
+        ObjectListing(String group, String prefix)
+        {
+            this.group = group;
+            this.contentPrefix = getContentPrefix(group);
+            this.listPrefix = contentPrefix + (prefix != null ? prefix : "");
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            try
+            {
+                while (! page.hasNext() && ! lastPage)
+                {
+                    page = nextPage();
+                }
+            }
+            catch (IOException ioE)
+            {
+                throw new RuntimeException(ioE);
+            }
+            return page.hasNext();
+        }
+
+        @Override
+        public ObjectInfo next()
+        {
+            if (! hasNext())
+            {
+                throw new NoSuchElementException();
+            }
+            return page.next();
+        }
+
+        @Override
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        private Iterator<ObjectInfo> nextPage() throws IOException
+        {
+            List<String> contentIds;
+            try
+            {
+                Space space = dcStore.getSpace(getSpaceID(group), listPrefix, LIST_PAGE_SIZE, marker);
+                contentIds = space.getContentIds();
+            }
+            catch (NotFoundException nfE)
+            {
+                // no such space - nothing to list
+                contentIds = Collections.<String>emptyList();
+            }
+            catch (ContentStoreException csE)
+            {
+                throw new IOException(csE);
+            }
+            lastPage = contentIds.size() < LIST_PAGE_SIZE;
+            if (! contentIds.isEmpty())
+            {
+                marker = contentIds.get(contentIds.size() - 1);
+            }
+
+            List<String> ids = new ArrayList<String>();
+            for (String contentId : contentIds)
+            {
+                String id = contentId.substring(contentPrefix.length());
+                // skip content under a deeper prefix - it belongs to another group
+                if (id.contains("/") || id.contains(ChunksManifest.CHUNK_SUFFIX))
+                {
+                    continue;
+                }
+                if (id.endsWith(ChunksManifest.MANIFEST_SUFFIX))
+                {
+                    id = id.substring(0, id.length() - ChunksManifest.MANIFEST_SUFFIX.length());
+                }
+                ids.add(id);
+            }
+
+            List<ObjectInfo> infos = new ArrayList<ObjectInfo>();
+            for (Map.Entry<String, Map<String, String>> entry : contentProperties(group, ids, true).entrySet())
+            {
+                if (entry.getValue() != null)
+                {
+                    Map<String, String> attrs = attributes(entry.getValue());
+                    infos.add(new ObjectInfo(entry.getKey(), Math.max(0L, contentSize(entry.getValue())),
+                                             attrs.get("checksum"), attrs.get("modified")));
+                }
+            }
+            return infos.iterator();
+        }
+    }
+
+    /**
+     * Cached properties of a replica, with the time they expire.
+     */
+    private static class CachedProperties
+    {
+        private final Map<String, String> props;
+        private final long expires;
+
+        CachedProperties(Map<String, String> props, long expires)
+        {
+            this.props = props;
+            this.expires = expires;
+        }
+    }
 }
@@ -0,0 +1,747 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.replicate.store;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.log4j.Logger;
+import org.dspace.core.factory.CoreServiceFactory;
+import org.dspace.ctask.replicate.ObjectInfo;
+import org.dspace.ctask.replicate.ObjectStore;
+import org.dspace.curate.Utils;
+import org.dspace.services.ConfigurationService;
+import org.dspace.services.factory.DSpaceServicesFactory;
+
+/**
+ * FanOutObjectStore keeps replicas in several ObjectStores at once (e.g.
+ * DuraCloud and an on-site NAS), so each replication task need only run
+ * once for all of them.
+ * <P>
+ * Writes (transfers, removals and moves) go to all member stores in
+ * parallel, and succeed if at least 'replicate.store.fanout.quorum' of them
+ * do. Each AIP is packed once, and the same archive streamed to each member.
+ * Reads go to the healthiest member: the one with the fewest consecutive
+ * errors, then the lowest (recent average) latency. Should it fail, or not
+ * have the object, the next member is tried.
+ * <P>
+ * To use, configure this class as the ObjectStore plugin, and each member
+ * as a named ObjectStore plugin, listing their names in
+ * 'replicate.store.fanout.members'.
+ */
+public class FanOutObjectStore implements ObjectStore
+{
+    private static Logger log = Logger.getLogger(FanOutObjectStore.class);
+
+    // weight of the latest call in a member's average latency
+    private static final double LATENCY_WEIGHT = 0.2;
+
+    private ConfigurationService configurationService = DSpaceServicesFactory.getInstance().getConfigurationService();
+
+    // the member stores
+    private final List<Member> members = new ArrayList<Member>();
+
+    // least number of members a write must succeed on
+    private int quorum = 0;
+
+    // pool used to write to members in parallel
+    private ExecutorService writePool = null;
+
+    // need no-arg constructor for PluginManager
+    public FanOutObjectStore()
+    {
+    }
+
+    /**
+     * Creates a store fanning out to the passed (uninitialized) stores,
+     * rather than those named in configuration.
+     * @param stores member stores, keyed by name
+     */
+    public FanOutObjectStore(Map<String, ObjectStore> stores)
+    {
+        for (Map.Entry<String, ObjectStore> store : stores.entrySet())
+        {
+            members.add(new Member(store.getKey(), store.getValue()));
+        }
+    }
+
+    @Override
+    public void init() throws IOException
+    {
+        if (members.isEmpty())
+        {
+            for (String name : configurationService.getArrayProperty("replicate.store.fanout.members"))
+            {
+                ObjectStore store = (ObjectStore) CoreServiceFactory.getInstance().getPluginService()
+                                                                    .getNamedPlugin(ObjectStore.class, name.trim());
+                if (store == null)
+                {
+                    throw new IOException("No ObjectStore named '" + name + "' (see 'replicate.store.fanout.members')");
+                }
+                members.add(new Member(name.trim(), store));
+            }
+            if (members.isEmpty())
+            {
+                throw new IOException("No member stores configured in 'replicate.store.fanout.members'");
+            }
+        }
+        for (Member member : members)
+        {
+            member.store.init();
+        }
+        quorum = configurationService.getIntProperty("replicate.store.fanout.quorum", members.size());
+        quorum = Math.max(1, Math.min(quorum, members.size()));
+        writePool = Executors.newFixedThreadPool(members.size(), new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "fanout-write");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Returns latency and error statistics for each member store.
+     * @return statistics, in order of preference for reads
+     */
+    public List<MemberStatistics> getStatistics()
+    {
+        List<MemberStatistics> stats = new ArrayList<MemberStatistics>();
+        for (Member member : ranked())
+        {
+            synchronized (member)
+            {
+                stats.add(new MemberStatistics(member.name, member.calls, member.errors,
+                                               member.consecutiveErrors, Math.round(member.latency)));
+            }
+        }
+        return stats;
+    }
+
+    @Override
+    public boolean objectExists(final String group, final String id) throws IOException
+    {
+        return read(new Op<Boolean>()
+        {
+            @Override
+            Boolean run(ObjectStore store) throws IOException
+            {
+                return store.objectExists(group, id);
+            }
+
+            @Override
+            boolean found(Boolean result)
+            {
+                return result;
+            }
+        });
+    }
+
+    @Override
+    public String objectAttribute(final String group, final String id, final String attrName) throws IOException
+    {
+        return read(new Op<String>()
+        {
+            @Override
+            String run(ObjectStore store) throws IOException
+            {
+                return store.objectAttribute(group, id, attrName);
+            }
+        });
+    }
+
+    @Override
+    public Map<String, Boolean> objectsExist(String group, List<String> ids) throws IOException
+    {
+        Map<String, Boolean> exists = new LinkedHashMap<String, Boolean>();
+        for (String id : ids)
+        {
+            exists.put(id, Boolean.FALSE);
+        }
+        // ask each member in turn about the objects not yet found
+        List<String> missing = new ArrayList<String>(ids);
+        IOException lastError = null;
+        boolean answered = false;
+        for (Member member : ranked())
+        {
+            if (missing.isEmpty())
+            {
+                break;
+            }
+            final String fGroup = group;
+            final List<String> fMissing = missing;
+            Map<String, Boolean> found;
+            try
+            {
+                found = timed(member, new Op<Map<String, Boolean>>()
+                {
+                    @Override
+                    Map<String, Boolean> run(ObjectStore store) throws IOException
+                    {
+                        return store.objectsExist(fGroup, fMissing);
+                    }
+                });
+            }
+            catch (IOException ioE)
+            {
+                lastError = ioE;
+                continue;
+            }
+            answered = true;
+            missing = new ArrayList<String>();
+            for (String id : fMissing)
+            {
+                if (Boolean.TRUE.equals(found.get(id)))
+                {
+                    exists.put(id, Boolean.TRUE);
+                }
+                else
+                {
+                    missing.add(id);
+                }
+            }
+        }
+        if (! answered && lastError != null)
+        {
+            throw lastError;
+        }
+        return exists;
+    }
+
+    @Override
+    public Map<String, Map<String, String>> objectAttributes(String group, List<String> ids) throws IOException
+    {
+        Map<String, Map<String, String>> attrMap = new LinkedHashMap<String, Map<String, String>>();
+        // ask each member in turn about the objects not yet found
+        List<String> missing = new ArrayList<String>(ids);
+        IOException lastError = null;
+        boolean answered = false;
+        for (Member member : ranked())
+        {
+            if (missing.isEmpty())
+            {
+                break;
+            }
+            final String fGroup = group;
+            final List<String> fMissing = missing;
+            Map<String, Map<String, String>> found;
+            try
+            {
+                found = timed(member, new Op<Map<String, Map<String, String>>>()
+                {
+                    @Override
+                    Map<String, Map<String, String>> run(ObjectStore store) throws IOException
+                    {
+                        return store.objectAttributes(fGroup, fMissing);
+                    }
+                });
+            }
+            catch (IOException ioE)
+            {
+                lastError = ioE;
+                continue;
+            }
+            answered = true;
+            attrMap.putAll(found);
+            missing = new ArrayList<String>();
+            for (String id : fMissing)
+            {
+                if (! found.containsKey(id))
+                {
+                    missing.add(id);
+                }
+            }
+        }
+        if (! answered && lastError != null)
+        {
+            throw lastError;
+        }
+        return attrMap;
+    }
+
+    @Override
+    public Iterator<ObjectInfo> listObjects(final String group, final String prefix) throws IOException
+    {
+        return read(new Op<Iterator<ObjectInfo>>()
+        {
+            @Override
+            Iterator<ObjectInfo> run(ObjectStore store) throws IOException
+            {
+                return store.listObjects(group, prefix);
+            }
+        });
+    }
+
+    @Override
+    public long fetchObject(final String group, final String id, final File file) throws IOException
+    {
+        Long size = read(new Op<Long>()
+        {
+            @Override
+            Long run(ObjectStore store) throws IOException
+            {
+                return store.fetchObject(group, id, file);
+            }
+
+            @Override
+            boolean found(Long result)
+            {
+                return result > 0L;
+            }
+        });
+        return size;
+    }
+
+    @Override
+    public InputStream openObject(final String group, final String id) throws IOException
+    {
+        return read(new Op<InputStream>()
+        {
+            @Override
+            InputStream run(ObjectStore store) throws IOException
+            {
+                return store.openObject(group, id);
+            }
+        });
+    }
+
+    /**
+     * Transfers a file to each member store. The file is not handed to the
+     * members (which may move or delete it), but streamed to each of them,
+     * and deleted once all are done.
+     */
+    @Override
+    public long transferObject(String group, File file) throws IOException
+    {
+        try
+        {
+            return transferAll(group, file.getName(), file, Utils.checksum(file, "MD5"));
+        }
+        finally
+        {
+            file.delete();
+        }
+    }
+
+    @Override
+    public long transferObject(String group, String id, InputStream in, long length, String md5) throws IOException
+    {
+        // a stream can only be read once - so spool it for the members to share
+        String baseDir = configurationService.getProperty("replicate.base.dir");
+        File spool = File.createTempFile("fanout", ".tmp", baseDir != null ? new File(baseDir) : null);
+        try
+        {
+            String chkSum = spool(in, spool);
+            if (md5 != null && ! md5.equalsIgnoreCase(chkSum))
+            {
+                throw new IOException("Checksum mismatch transferring '" + id + "': expected " + md5 + " but received " + chkSum);
+            }
+            return transferAll(group, id, spool, chkSum);
+        }
+        finally
+        {
+            spool.delete();
+        }
+    }
+
+    /**
+     * Streams a file to every member store in parallel.
+     * @return largest number of bytes transferred to any member
+     */
+    private long transferAll(final String group, final String id, final File file, final String md5) throws IOException
+    {
+        List<Long> sizes = write("transfer of '" + id + "'", new Op<Long>()
+        {
+            @Override
+            Long run(ObjectStore store) throws IOException
+            {
+                InputStream in = new FileInputStream(file);
+                try
+                {
+                    return store.transferObject(group, id, in, file.length(), md5);
+                }
+                finally
+                {
+                    in.close();
+                }
+            }
+        });
+        return Collections.max(sizes);
+    }
+
+    @Override
+    public long removeObject(final String group, final String id) throws IOException
+    {
+        List<Long> sizes = write("removal of '" + id + "'", new Op<Long>()
+        {
+            @Override
+            Long run(ObjectStore store) throws IOException
+            {
+                return store.removeObject(group, id);
+            }
+        });
+        return Collections.max(sizes);
+    }
+
+    @Override
+    public long moveObject(final String srcGroup, final String destGroup, final String id) throws IOException
+    {
+        List<Long> sizes = write("move of '" + id + "'", new Op<Long>()
+        {
+            @Override
+            Long run(ObjectStore store) throws IOException
+            {
+                return store.moveObject(srcGroup, destGroup, id);
+            }
+        });
+        return Collections.max(sizes);
+    }
+
+    @Override
+    public Map<String, Long> removeObjects(final String group, final List<String> ids) throws IOException
+    {
+        List<Map<String, Long>> sizes = write("removal of " + ids.size() + " objects", new Op<Map<String, Long>>()
+        {
+            @Override
+            Map<String, Long> run(ObjectStore store) throws IOException
+            {
+                return store.removeObjects(group, ids);
+            }
+        });
+        return largest(ids, sizes);
+    }
+
+    @Override
+    public Map<String, Long> moveObjects(final String srcGroup, final String destGroup, final List<String> ids)
+        throws IOException
+    {
+        List<Map<String, Long>> sizes = write("move of " + ids.size() + " objects", new Op<Map<String, Long>>()
+        {
+            @Override
+            Map<String, Long> run(ObjectStore store) throws IOException
+            {
+                return store.moveObjects(srcGroup, destGroup, ids);
+            }
+        });
+        return largest(ids, sizes);
+    }
+
+    /**
+     * Combines the per-object results of several members, taking the
+     * largest reported for each object, as removeObject and moveObject do.
+     */
+    private static Map<String, Long> largest(List<String> ids, List<Map<String, Long>> results)
+    {
+        Map<String, Long> sizes = new LinkedHashMap<String, Long>();
+        for (String id : ids)
+        {
+            long size = 0L;
+            for (Map<String, Long> result : results)
+            {
+                Long memberSize = result.get(id);
+                if (memberSize != null)
+                {
+                    size = Math.max(size, memberSize);
+                }
+            }
+            sizes.put(id, size);
+        }
+        return sizes;
+    }
+
+    /**
+     * Performs an operation on all members in parallel.
+     * @param what description of the operation, for messages
+     * @param op the operation
+     * @return results from the members which succeeded
+     * @throws IOException if fewer members than the quorum succeeded
+     */
+    private <T> List<T> write(String what, final Op<T> op) throws IOException
+    {
+        Map<Member, Future<T>> pending = new LinkedHashMap<Member, Future<T>>();
+        for (final Member member : members)
+        {
+            pending.put(member, writePool.submit(new Callable<T>()
+            {
+                @Override
+                public T call() throws IOException
+                {
+                    return timed(member, op);
+                }
+            }));
+        }
+        List<T> results = new ArrayList<T>();
+        StringBuilder failures = new StringBuilder();
+        IOException lastError = null;
+        for (Map.Entry<Member, Future<T>> entry : pending.entrySet())
+        {
+            try
+            {
+                results.add(entry.getValue().get());
+            }
+            catch (InterruptedException intE)
+            {
+                Thread.currentThread().interrupt();
+                throw new IOException(intE);
+            }
+            catch (ExecutionException exE)
+            {
+                lastError = exE.getCause() instanceof IOException ? (IOException) exE.getCause()
+                                                                  : new IOException(exE.getCause());
+                failures.append(" '").append(entry.getKey().name).append("': ").append(exE.getCause().getMessage());
+            }
+        }
+        if (results.size() < quorum)
+        {
+            throw new IOException("Only " + results.size() + " of " + members.size() + " stores completed " + what +
+                                  " (quorum is " + quorum + "). Failures:" + failures, lastError);
+        }
+        if (lastError != null)
+        {
+            log.warn(what + " failed on some stores (quorum still met):" + failures);
+        }
+        return results;
+    }
+
+    /**
+     * Performs an operation on the healthiest member, falling back to the
+     * others in turn should it fail, or not find what is looked for.
+     * @param op the operation
+     * @return the first result found, else the last result (of not finding)
+     * @throws IOException if the operation failed on every member
+     */
+    private <T> T read(Op<T> op) throws IOException
+    {
+        T result = null;
+        boolean answered = false;
+        IOException lastError = null;
+        for (Member member : ranked())
+        {
+            try
+            {
+                result = timed(member, op);
+            }
+            catch (IOException ioE)
+            {
+                lastError = ioE;
+                continue;
+            }
+            answered = true;
+            if (result != null && op.found(result))
+            {
+                return result;
+            }
+        }
+        if (! answered && lastError != null)
+        {
+            throw lastError;
+        }
+        return result;
+    }
+
+    /**
+     * Performs an operation on a member, recording its latency and outcome.
+     */
+    private <T> T timed(Member member, Op<T> op) throws IOException
+    {
+        long start = System.nanoTime();
+        try
+        {
+            T result = op.run(member.store);
+            member.record((System.nanoTime() - start) / 1000000L, false);
+            return result;
+        }
+        catch (IOException | RuntimeException e)
+        {
+            member.record((System.nanoTime() - start) / 1000000L, true);
+            log.warn("Store '" + member.name + "' failed: " + e.getMessage());
+            throw e;
+        }
+    }
+
+    /**
+     * @return members in order of preference for reads
+     */
+    private List<Member> ranked()
+    {
+        List<Member> ranked = new ArrayList<Member>(members);
+        Collections.sort(ranked, new Comparator<Member>()
+        {
+            @Override
+            public int compare(Member m1, Member m2)
+            {
+                int cmp = Integer.compare(m1.getConsecutiveErrors(), m2.getConsecutiveErrors());
+                return cmp != 0 ? cmp : Double.compare(m1.getLatency(), m2.getLatency());
+            }
+        });
+        return ranked;
+    }
+
+    private static String spool(InputStream in, File file) throws IOException
+    {
+        MessageDigest digest;
+        try
+        {
+            digest = MessageDigest.getInstance("MD5");
+        }
+        catch (NoSuchAlgorithmException nsaE)
+        {
+            throw new IOException(nsaE);
+        }
+        OutputStream out = new FileOutputStream(file);
+        try
+        {
+            Utils.copy(new DigestInputStream(in, digest), out);
+        }
+        finally
+        {
+            out.close();
+        }
+        return Utils.toHex(digest.digest());
+    }
+
+    /**
+     * An operation on a member store.
+     */
+    private abstract static class Op<T>
+    {
+        abstract T run(ObjectStore store) throws IOException;
+
+        /**
+         * Whether a result is what was looked for, rather than a sign the
+         * store does not have the object.
+         */
+        boolean found(T result)
+        {
+            return true;
+        }
+    }
+
+    /**
+     * A member store, with its statistics.
+     */
+    private static class Member
+    {
+        private final String name;
+        private final ObjectStore store;
+        private long calls = 0L;
+        private long errors = 0L;
+        private int consecutiveErrors = 0;
+        // exponentially weighted average latency, in milliseconds
+        private double latency = 0.0;
+
+        Member(String name, ObjectStore store)
+        {
+            this.name = name;
+            this.store = store;
+        }
+
+        synchronized void record(long millis, boolean failed)
+        {
+            latency = calls == 0L ? millis : LATENCY_WEIGHT * millis + (1.0 - LATENCY_WEIGHT) * latency;
+            calls++;
+            if (failed)
+            {
+                errors++;
+                consecutiveErrors++;
+            }
+            else
+            {
+                consecutiveErrors = 0;
+            }
+        }
+
+        synchronized int getConsecutiveErrors()
+        {
+            return consecutiveErrors;
+        }
+
+        synchronized double getLatency()
+        {
+            return latency;
+        }
+    }
+
+    /**
+     * Latency and error statistics of a member store.
+     */
+    public static class MemberStatistics
+    {
+        private final String name;
+        private final long calls;
+        private final long errors;
+        private final int consecutiveErrors;
+        private final long latencyMillis;
+
+        MemberStatistics(String name, long calls, long errors, int consecutiveErrors, long latencyMillis)
+        {
+            this.name = name;
+            this.calls = calls;
+            this.errors = errors;
+            this.consecutiveErrors = consecutiveErrors;
+            this.latencyMillis = latencyMillis;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        public long getCalls()
+        {
+            return calls;
+        }
+
+        public long getErrors()
+        {
+            return errors;
+        }
+
+        public int getConsecutiveErrors()
+        {
+            return consecutiveErrors;
+        }
+
+        /**
+         * @return recent average latency of calls to the store, in milliseconds
+         */
+        public long getLatencyMillis()
+        {
+            return latencyMillis;
+        }
+
+        @Override
+        public String toString()
+        {
+            return name + ": " + calls + " calls, " + errors + " errors, ~" + latencyMillis + "ms";
+        }
+    }
+}
@@ -7,9 +7,45 @@
  */
 package org.dspace.ctask.replicate.store;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.dspace.ctask.replicate.ObjectInfo;
 import org.dspace.ctask.replicate.ObjectStore;
 import org.dspace.curate.Utils;
 import org.dspace.services.ConfigurationService;
@@ -26,14 +62,50 @@ import org.dspace.services.factory.DSpaceServicesFactory;
  * succeed, and renames are preferred to copies when possible. Where this
  * assumption is not valid (e.g. with an NFS-mounted store), use the
  * MountableObjectStore class instead.
+ * <P>
+ * By default all replicas of a group are kept in a single directory. As
+ * that scales poorly to very many replicas, 'replicate.store.shard.levels'
+ * may instead spread them over a tree of sub-directories, named by
+ * successive pairs of hex digits of the MD5 hash of the replica's ID (e.g.
+ * 'group/3f/a2/ITEM@123456789-1.zip' with 2 levels). Replicas still in the
+ * flat layout remain readable, and may be moved into the sharded layout
+ * with reshard() (see the ReshardStore task).
+ * <P>
+ * The MD5 checksum of each replica is recorded when it is transferred, in a
+ * hidden sidecar file ('.[id].md5') alongside it, together with the size and
+ * modification time of the replica. Checksum queries are answered from the
+ * sidecar, and the replica is only read again if it no longer matches.
+ * Listings give only recorded checksums (null for a replica without a
+ * current sidecar), so never read replicas.
+ * <P>
+ * Replicas smaller than 'replicate.store.segment.threshold' (e.g. checkm
+ * manifests, deletion catalogs and small container AIPs) may instead be
+ * packed into a few append-only segment files per group, kept in a hidden
+ * '.segments' directory (see SegmentStore). Larger replicas are always kept
+ * as files of their own.
  * 
  * @author richardrodgers
  */
 public class LocalObjectStore implements ObjectStore {
+    // deepest sharded layout supported
+    private static final int MAX_SHARD_LEVELS = 4;
+
     private ConfigurationService configurationService = DSpaceServicesFactory.getInstance().getConfigurationService();
 
     // where replicas are kept
     protected String storeDir = null;
+
+    // number of levels of hash-named sub-directories replicas are kept in (0 = flat)
+    protected int shardLevels = 0;
+
+    // whether replicas are forced to disk before they replace earlier copies
+    protected boolean fsync = false;
+
+    // replicas smaller than this many bytes are packed into segments (0 = none are)
+    protected long segmentThreshold = 0L;
+
+    // segment stores of each group, once opened
+    private final Map<String, SegmentStore> segmentStores = new HashMap<String, SegmentStore>();
     
     // need no-arg constructor for PluginManager
     public LocalObjectStore() {
@@ -43,6 +115,10 @@ public class LocalObjectStore implements ObjectStore {
     public void init() throws IOException
     {
         storeDir = configurationService.getProperty("replicate.store.dir");
+        shardLevels = Math.max(0, Math.min(MAX_SHARD_LEVELS,
+                                           configurationService.getIntProperty("replicate.store.shard.levels", 0)));
+        fsync = configurationService.getBooleanProperty("replicate.store.fsync", false);
+        segmentThreshold = configurationService.getLongProperty("replicate.store.segment.threshold", 0L);
         File storeFile = new File(storeDir);
         if (! storeFile.exists())
         {
@@ -50,12 +126,363 @@ public class LocalObjectStore implements ObjectStore {
         }
     }
 
+    /**
+     * Returns the segment store of a group. If segments are not in use (but
+     * were once), the store is still opened, so replicas packed earlier
+     * remain readable.
+     * @param group group name
+     * @param create whether to create the segment store if there is none
+     * @return segment store, or null if there is none (and create is false)
+     * @throws IOException if the segments cannot be read
+     */
+    protected SegmentStore segments(String group, boolean create) throws IOException
+    {
+        synchronized (segmentStores)
+        {
+            SegmentStore segments = segmentStores.get(group);
+            if (segments == null)
+            {
+                File segmentDir = new File(groupDir(group), ".segments");
+                if (! create && ! segmentDir.isDirectory())
+                {
+                    return null;
+                }
+                segments = new SegmentStore(segmentDir,
+                        configurationService.getLongProperty("replicate.store.segment.size", 64L * 1024L * 1024L),
+                        configurationService.getIntProperty("replicate.store.segment.compact", 50),
+                        fsync);
+                segmentStores.put(group, segments);
+            }
+            return segments;
+        }
+    }
+
+    /**
+     * Whether a replica of the passed size is packed into a segment.
+     * @param size replica size in bytes (negative if unknown)
+     * @return true if packed into a segment
+     */
+    protected boolean packs(long size)
+    {
+        return size >= 0L && size < segmentThreshold;
+    }
+
+    /**
+     * Packs a replica into its group's segments, removing any copy of it
+     * kept as a file of its own.
+     * @param group group name
+     * @param id object ID
+     * @param data replica content
+     * @param md5 hex encoded MD5 checksum of the content
+     * @param modified modification time of the replica
+     * @throws IOException if I/O error
+     */
+    protected void packObject(String group, String id, byte[] data, String md5, long modified) throws IOException
+    {
+        segments(group, true).put(id, data, md5, modified);
+        File archFile = objectFile(group, id);
+        if (archFile.exists())
+        {
+            deleteReplica(archFile);
+        }
+        removeFlatCopy(group, id);
+    }
+
+    /**
+     * Removes any copy of a replica packed into its group's segments, once
+     * it has been written as a file of its own.
+     * @param group group name
+     * @param id object ID
+     * @throws IOException if I/O error
+     */
+    protected void removePackedCopy(String group, String id) throws IOException
+    {
+        SegmentStore segments = segments(group, false);
+        if (segments != null)
+        {
+            segments.remove(id);
+        }
+    }
+
+    /**
+     * Compacts the segments of a group now, rather than waiting for them to
+     * be compacted in the background.
+     * @param group group name
+     * @return number of bytes of dead space reclaimed
+     * @throws IOException if I/O error
+     */
+    public long compactSegments(String group) throws IOException
+    {
+        SegmentStore segments = segments(group, false);
+        return segments != null ? segments.compact() : 0L;
+    }
+
+    /**
+     * Returns the directory holding a group.
+     * @param group group name
+     * @return group directory
+     */
+    protected File groupDir(String group)
+    {
+        return new File(storeDir, group);
+    }
+
+    /**
+     * Returns where a replica belongs in the configured layout, which is
+     * where new replicas are written.
+     * @param group group name
+     * @param id object ID
+     * @return replica file (which may not exist)
+     */
+    protected File shardedFile(String group, String id)
+    {
+        return new File(shardDir(groupDir(group), id, shardLevels), id);
+    }
+
+    /**
+     * Returns the file holding a replica: its location in the configured
+     * layout or, failing that, its location in the legacy flat layout.
+     * @param group group name
+     * @param id object ID
+     * @return replica file (which does not exist if there is no replica)
+     */
+    protected File objectFile(String group, String id)
+    {
+        File file = shardedFile(group, id);
+        if (shardLevels > 0 && ! file.exists())
+        {
+            File flatFile = new File(groupDir(group), id);
+            if (flatFile.exists())
+            {
+                return flatFile;
+            }
+        }
+        return file;
+    }
+
+    private static File shardDir(File groupDir, String id, int levels)
+    {
+        if (levels == 0)
+        {
+            return groupDir;
+        }
+        MessageDigest digest;
+        try
+        {
+            digest = MessageDigest.getInstance("MD5");
+        }
+        catch (NoSuchAlgorithmException nsaE)
+        {
+            throw new IllegalStateException(nsaE);
+        }
+        String hash = Utils.toHex(digest.digest(id.getBytes(StandardCharsets.UTF_8)));
+        File dir = groupDir;
+        for (int i = 0; i < levels; i++)
+        {
+            dir = new File(dir, hash.substring(i * 2, i * 2 + 2));
+        }
+        return dir;
+    }
+
+    private static boolean isShardName(String name)
+    {
+        return name.length() == 2 && Character.digit(name.charAt(0), 16) >= 0 &&
+               Character.digit(name.charAt(1), 16) >= 0;
+    }
+
+    /**
+     * Removes any copy of a replica left in the legacy flat layout, once it
+     * has been written to its sharded location.
+     * @param group group name
+     * @param id object ID
+     */
+    protected void removeFlatCopy(String group, String id)
+    {
+        if (shardLevels > 0)
+        {
+            File flatFile = new File(groupDir(group), id);
+            if (flatFile.isFile())
+            {
+                deleteReplica(flatFile);
+            }
+        }
+    }
+
+    /**
+     * Deletes a replica file, along with its checksum sidecar.
+     * @param archFile replica file
+     */
+    protected void deleteReplica(File archFile)
+    {
+        archFile.delete();
+        sidecarFile(archFile).delete();
+    }
+
+    /**
+     * Returns the sidecar file recording the checksum of a replica.
+     * @param archFile replica file
+     * @return sidecar file (which may not exist)
+     */
+    protected File sidecarFile(File archFile)
+    {
+        return new File(archFile.getParentFile(), "." + archFile.getName() + ".md5");
+    }
+
+    /**
+     * Returns the MD5 checksum of a replica, from its sidecar if that is still
+     * current (i.e. the replica has the same size and modification time as
+     * when the sidecar was written), else by reading the replica - in which
+     * case the sidecar is rewritten.
+     * @param archFile replica file
+     * @return hex encoded MD5 checksum
+     * @throws IOException if I/O error
+     */
+    protected String checksum(File archFile) throws IOException
+    {
+        String chkSum = recordedChecksum(archFile);
+        if (chkSum == null)
+        {
+            chkSum = Utils.checksum(archFile, "MD5");
+            recordChecksum(archFile, chkSum);
+        }
+        return chkSum;
+    }
+
+    /**
+     * Returns the MD5 checksum recorded in the sidecar of a file, if any.
+     * @param archFile replica (or staged) file
+     * @return hex encoded MD5 checksum, or null if there is no current sidecar
+     * @throws IOException if I/O error
+     */
+    protected String recordedChecksum(File archFile) throws IOException
+    {
+        File sidecar = sidecarFile(archFile);
+        if (! sidecar.isFile())
+        {
+            return null;
+        }
+        String line;
+        BufferedReader reader = new BufferedReader(new FileReader(sidecar));
+        try
+        {
+            line = reader.readLine();
+        }
+        finally
+        {
+            reader.close();
+        }
+        // sidecar holds: checksum size modified
+        String[] fields = line != null ? line.trim().split(" ") : new String[0];
+        try
+        {
+            if (fields.length == 3 &&
+                Long.parseLong(fields[1]) == archFile.length() &&
+                Long.parseLong(fields[2]) == archFile.lastModified())
+            {
+                return fields[0];
+            }
+        }
+        catch (NumberFormatException nfE)
+        {
+            // garbled sidecar - treat as stale
+        }
+        return null;
+    }
+
+    /**
+     * Records the MD5 checksum of a replica in its sidecar.
+     * @param archFile replica file
+     * @param chkSum hex encoded MD5 checksum
+     * @throws IOException if I/O error
+     */
+    protected void recordChecksum(File archFile, String chkSum) throws IOException
+    {
+        Writer writer = new FileWriter(sidecarFile(archFile));
+        try
+        {
+            writer.write(chkSum + " " + archFile.length() + " " + archFile.lastModified() + "\n");
+        }
+        finally
+        {
+            writer.close();
+        }
+    }
+
+    /**
+     * Moves all replicas of a group which are not where the configured layout
+     * puts them (e.g. those written before sharding was enabled, or under a
+     * different number of levels) to where they belong. Replicas are moved
+     * by a pool of threads; the store should not otherwise be in use.
+     * @param group group name
+     * @param threads number of replicas moved concurrently
+     * @return number of replicas moved
+     * @throws IOException if any replica could not be moved
+     */
+    public long reshard(final String group, int threads) throws IOException
+    {
+        final AtomicLong moved = new AtomicLong();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+        List<Future<?>> pending = new ArrayList<Future<?>>();
+        try
+        {
+            Iterator<File> files = new ReplicaWalker(groupDir(group), MAX_SHARD_LEVELS);
+            while (files.hasNext())
+            {
+                final File file = files.next();
+                pending.add(pool.submit(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        File target = shardedFile(group, file.getName());
+                        if (! target.equals(file))
+                        {
+                            target.getParentFile().mkdirs();
+                            if (! file.renameTo(target))
+                            {
+                                throw new IllegalStateException("Unable to move '" + file + "' to '" + target + "'");
+                            }
+                            // a stale sidecar is simply rewritten when next needed
+                            sidecarFile(file).renameTo(sidecarFile(target));
+                            moved.incrementAndGet();
+                        }
+                    }
+                }));
+            }
+            for (Future<?> future : pending)
+            {
+                future.get();
+            }
+        }
+        catch (InterruptedException intE)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException(intE);
+        }
+        catch (ExecutionException exE)
+        {
+            throw new IOException("Reshard of group '" + group + "' failed", exE.getCause());
+        }
+        finally
+        {
+            pool.shutdownNow();
+        }
+        return moved.get();
+    }
+
     @Override
     public long fetchObject(String group, String id, File file) throws IOException
     {
+        SegmentStore segments = segments(group, false);
+        byte[] data = segments != null ? segments.read(id) : null;
+        if (data != null)
+        {
+            Files.write(file.toPath(), data);
+            return data.length;
+        }
         // locate archive and copy to file
         long size = 0L;
-        File archFile = new File(storeDir + File.separator + group, id);
+        File archFile = objectFile(group, id);
         if (archFile.exists())
         {
             size = archFile.length();
@@ -65,23 +492,142 @@ public class LocalObjectStore implements ObjectStore {
     }
 
     @Override
-    public boolean objectExists(String group, String id)
+    public InputStream openObject(String group, String id) throws IOException
+    {
+        SegmentStore segments = segments(group, false);
+        byte[] data = segments != null ? segments.read(id) : null;
+        if (data != null)
+        {
+            return new ByteArrayInputStream(data);
+        }
+        File archFile = objectFile(group, id);
+        return archFile.exists() ? new FileInputStream(archFile) : null;
+    }
+
+    @Override
+    public boolean objectExists(String group, String id) throws IOException
     {
         // do we have a copy in our managed area?
-        return new File(storeDir + File.separator + group, id).exists();
+        SegmentStore segments = segments(group, false);
+        return (segments != null && segments.entry(id) != null) || objectFile(group, id).exists();
+    }
+
+    @Override
+    public Map<String, Boolean> objectsExist(String group, List<String> ids) throws IOException
+    {
+        // local lookups are cheap - just check each in turn
+        Map<String, Boolean> exists = new LinkedHashMap<String, Boolean>();
+        for (String id : ids)
+        {
+            exists.put(id, objectExists(group, id));
+        }
+        return exists;
+    }
+
+    @Override
+    public Map<String, Map<String, String>> objectAttributes(String group, List<String> ids) throws IOException
+    {
+        Map<String, Map<String, String>> attrMap = new LinkedHashMap<String, Map<String, String>>();
+        for (String id : ids)
+        {
+            if (objectExists(group, id))
+            {
+                Map<String, String> attrs = new HashMap<String, String>();
+                attrs.put("checksum", objectAttribute(group, id, "checksum"));
+                attrs.put("sizebytes", objectAttribute(group, id, "sizebytes"));
+                attrs.put("modified", objectAttribute(group, id, "modified"));
+                attrMap.put(id, attrs);
+            }
+        }
+        return attrMap;
     }
 
     @Override
-    public long removeObject(String group, String id)
+    public Iterator<ObjectInfo> listObjects(String group, final String prefix) throws IOException
     {
-        // remove file if present
+        File groupDir = groupDir(group);
+        if (! groupDir.isDirectory())
+        {
+            return Collections.<ObjectInfo>emptyIterator();
+        }
+        // packed replicas first, then those kept as files
+        SegmentStore segments = segments(group, false);
+        final Iterator<ObjectInfo> packed = segments != null ? segments.list(prefix).iterator()
+                                                             : Collections.<ObjectInfo>emptyIterator();
+        final Iterator<File> files = new ReplicaWalker(groupDir, shardLevels);
+        return new Iterator<ObjectInfo>()
+        {
+            private File nextFile = null;
+
+            @Override
+            public boolean hasNext()
+            {
+                if (packed.hasNext())
+                {
+                    return true;
+                }
+                while (nextFile == null && files.hasNext())
+                {
+                    File file = files.next();
+                    if (prefix == null || file.getName().startsWith(prefix))
+                    {
+                        nextFile = file;
+                    }
+                }
+                return nextFile != null;
+            }
+
+            @Override
+            public ObjectInfo next()
+            {
+                if (! hasNext())
+                {
+                    throw new NoSuchElementException();
+                }
+                if (packed.hasNext())
+                {
+                    return packed.next();
+                }
+                File file = nextFile;
+                nextFile = null;
+                try
+                {
+                    // only a recorded checksum - reading every replica without one would make
+                    // listing a store as slow as copying it; callers ask for others on demand
+                    return new ObjectInfo(file.getName(), file.length(),
+                                          recordedChecksum(file), String.valueOf(file.lastModified()));
+                }
+                catch (IOException ioE)
+                {
+                    throw new RuntimeException(ioE);
+                }
+            }
+
+            @Override
+            public void remove()
+            {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    public long removeObject(String group, String id) throws IOException
+    {
+        // remove packed copy or file, if present
         long size = 0L;
-        File remFile = new File(storeDir + File.separator + group, id);
+        SegmentStore segments = segments(group, false);
+        if (segments != null)
+        {
+            size = Math.max(0L, segments.remove(id));
+        }
+        File remFile = objectFile(group, id);
         if (remFile.exists())
         {
             size = remFile.length();
-            remFile.delete();
+            deleteReplica(remFile);
         }
+        removeFlatCopy(group, id);
         return size;
     }
 
@@ -90,31 +636,239 @@ public class LocalObjectStore implements ObjectStore {
     {
         // local transfer is a simple matter of renaming the file,
         // we don't bother checking if replica is really new, since
-        // local deletes/copies are cheap
-        File archDir = new File(storeDir, group);
+        // local deletes/copies are cheap. The checksum is taken now (while
+        // a freshly staged file is likely still cached) or, if the file is
+        // a replica being moved, from its sidecar.
+        String chkSum = recordedChecksum(file);
+        if (chkSum == null)
+        {
+            chkSum = Utils.checksum(file, "MD5");
+        }
+        if (packs(file.length()))
+        {
+            byte[] data = Files.readAllBytes(file.toPath());
+            packObject(group, file.getName(), data, chkSum, file.lastModified());
+            deleteReplica(file);
+            return data.length;
+        }
+        File archFile = shardedFile(group, file.getName());
+        File archDir = archFile.getParentFile();
         if (! archDir.isDirectory())
         {
             archDir.mkdirs();
         }
-        File archFile = new File(archDir, file.getName());
         if (archFile.exists())
         {
-            archFile.delete();
+            deleteReplica(archFile);
         }
         if (! file.renameTo(archFile))
         {
-            throw new UnsupportedOperationException("Store does not support rename");
+            // the file is staged on another volume than the store, so is
+            // copied alongside the replica and the copy renamed into place
+            File tempFile = File.createTempFile("." + file.getName(), ".tmp", archDir);
+            try
+            {
+                Files.copy(file.toPath(), tempFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            catch (IOException ioE)
+            {
+                tempFile.delete();
+                throw ioE;
+            }
+            replaceFile(tempFile, archFile);
+            file.delete();
         }
+        sidecarFile(file).delete();
+        recordChecksum(archFile, chkSum);
+        removeFlatCopy(group, file.getName());
+        removePackedCopy(group, file.getName());
         return archFile.length();
     }
 
+    @Override
+    public long transferObject(String group, String id, InputStream in, long length, String md5) throws IOException
+    {
+        if (packs(length))
+        {
+            return transferPacked(group, id, in, length, md5);
+        }
+        // write to a temporary file alongside the replica, then rename it into
+        // place, so a failed transfer never leaves a partial replica behind
+        File archFile = shardedFile(group, id);
+        File archDir = archFile.getParentFile();
+        if (! archDir.isDirectory())
+        {
+            archDir.mkdirs();
+        }
+        // named uniquely, so that concurrent transfers of an object never
+        // write to the same temporary file
+        File tempFile = File.createTempFile("." + id, ".tmp", archDir);
+        String chkSum;
+        try
+        {
+            chkSum = writeStream(in, tempFile);
+        }
+        catch (IOException ioE)
+        {
+            tempFile.delete();
+            throw ioE;
+        }
+        if (md5 != null && ! md5.equalsIgnoreCase(chkSum))
+        {
+            tempFile.delete();
+            throw new IOException("Checksum mismatch transferring '" + id + "': expected " + md5 + " but received " + chkSum);
+        }
+        replaceFile(tempFile, archFile);
+        recordChecksum(archFile, chkSum);
+        removeFlatCopy(group, id);
+        removePackedCopy(group, id);
+        return archFile.length();
+    }
+
+    /**
+     * Packs the content of a stream (of a size below the segment threshold)
+     * into a segment, once it has been read in full and its checksum checked.
+     */
+    private long transferPacked(String group, String id, InputStream in, long length, String md5) throws IOException
+    {
+        MessageDigest digest;
+        try
+        {
+            digest = MessageDigest.getInstance("MD5");
+        }
+        catch (NoSuchAlgorithmException nsaE)
+        {
+            throw new IOException(nsaE);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) length);
+        Utils.copy(new DigestInputStream(in, digest), out);
+        String chkSum = Utils.toHex(digest.digest());
+        if (md5 != null && ! md5.equalsIgnoreCase(chkSum))
+        {
+            throw new IOException("Checksum mismatch transferring '" + id + "': expected " + md5 + " but received " + chkSum);
+        }
+        byte[] data = out.toByteArray();
+        packObject(group, id, data, chkSum, System.currentTimeMillis());
+        return data.length;
+    }
+
+    /**
+     * Copies the passed stream into a file, computing the MD5 checksum of
+     * the content as it is written.
+     * @param in stream to copy (not closed)
+     * @param file file to write
+     * @return hex encoded MD5 checksum of the content
+     * @throws IOException if I/O error
+     */
+    protected String writeStream(InputStream in, File file) throws IOException
+    {
+        MessageDigest digest;
+        try
+        {
+            digest = MessageDigest.getInstance("MD5");
+        }
+        catch (NoSuchAlgorithmException nsaE)
+        {
+            throw new IOException(nsaE);
+        }
+        FileOutputStream out = new FileOutputStream(file);
+        try
+        {
+            Utils.copy(new DigestInputStream(in, digest), out);
+            if (fsync)
+            {
+                out.getFD().sync();
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+        return Utils.toHex(digest.digest());
+    }
+
+    /**
+     * Moves a fully written temporary file over a replica, in a single
+     * atomic rename where the file system allows. Either the earlier copy
+     * of the replica or the new one is in place at all times.
+     * @param tempFile temporary file, in the same directory as the replica
+     * @param archFile replica file
+     * @throws IOException if the file could not be moved
+     */
+    protected void replaceFile(File tempFile, File archFile) throws IOException
+    {
+        try
+        {
+            try
+            {
+                Files.move(tempFile.toPath(), archFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch (AtomicMoveNotSupportedException amnsE)
+            {
+                Files.move(tempFile.toPath(), archFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        catch (IOException ioE)
+        {
+            tempFile.delete();
+            throw ioE;
+        }
+        if (fsync)
+        {
+            syncDirectory(archFile.getParentFile());
+        }
+    }
+
+    /**
+     * Forces a directory (i.e. the renames within it) to disk. Not all
+     * platforms support this, so failures are ignored.
+     * @param dir directory
+     */
+    private static void syncDirectory(File dir)
+    {
+        try
+        {
+            FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+            try
+            {
+                channel.force(true);
+            }
+            finally
+            {
+                channel.close();
+            }
+        }
+        catch (IOException ioE)
+        {
+            // not supported here - the rename is as durable as the platform makes it
+        }
+    }
+
     @Override
     public String objectAttribute(String group, String id, String attrName) throws IOException
     {
-        File archFile = new File(storeDir + File.separator + group, id);
+        SegmentStore segments = segments(group, false);
+        SegmentStore.Entry entry = segments != null ? segments.entry(id) : null;
+        if (entry != null)
+        {
+            if ("checksum".equals(attrName))
+            {
+                return entry.md5;
+            }
+            else if ("sizebytes".equals(attrName))
+            {
+                return String.valueOf(entry.length);
+            }
+            else if ("modified".equals(attrName))
+            {
+                return String.valueOf(entry.modified);
+            }
+            return null;
+        }
+        File archFile = objectFile(group, id);
         if ("checksum".equals(attrName))
         {
-            return Utils.checksum(archFile, "MD5");
+            return checksum(archFile);
         }
         else if ("sizebytes".equals(attrName))
         {
@@ -131,9 +885,27 @@ public class LocalObjectStore implements ObjectStore {
     public long moveObject(String srcGroup, String destGroup, String id) throws IOException
     {
         long size = 0L;
-        
+
+        // a packed replica is copied to its new group, then removed
+        SegmentStore segments = segments(srcGroup, false);
+        SegmentStore.Entry entry = segments != null ? segments.entry(id) : null;
+        if (entry != null)
+        {
+            byte[] data = segments.read(id);
+            if (packs(data.length))
+            {
+                packObject(destGroup, id, data, entry.md5, entry.modified);
+            }
+            else
+            {
+                transferObject(destGroup, id, new ByteArrayInputStream(data), data.length, entry.md5);
+            }
+            segments.remove(id);
+            return data.length;
+        }
+
         //Find the file
-        File file = new File(storeDir + File.separator + srcGroup, id);
+        File file = objectFile(srcGroup, id);
         if (file.exists())
         {
             //If file is found, just transfer it to destination,
@@ -143,4 +915,123 @@ public class LocalObjectStore implements ObjectStore {
         
         return size;
     }
+
+    @Override
+    public Map<String, Long> removeObjects(String group, List<String> ids) throws IOException
+    {
+        // local removals are cheap, so are simply made in turn
+        Map<String, Long> sizes = new LinkedHashMap<String, Long>();
+        for (String id : ids)
+        {
+            sizes.put(id, removeObject(group, id));
+        }
+        return sizes;
+    }
+
+    @Override
+    public Map<String, Long> moveObjects(String srcGroup, String destGroup, List<String> ids) throws IOException
+    {
+        Map<String, Long> sizes = new LinkedHashMap<String, Long>();
+        for (String id : ids)
+        {
+            sizes.put(id, moveObject(srcGroup, destGroup, id));
+        }
+        return sizes;
+    }
+
+    /**
+     * Walks the replica files of a group directory: those directly within it
+     * (the flat layout), and those within its hash-named sub-directories, up
+     * to the passed depth. Directories are read lazily, a directory stream
+     * per level, so groups of any size may be walked. Hidden files (the
+     * temporary files of transfers in progress) are skipped.
+     */
+    private static class ReplicaWalker implements Iterator<File>
+    {
+        private final int maxDepth;
+        private final Deque<DirectoryStream<Path>> streams = new ArrayDeque<DirectoryStream<Path>>();
+        private final Deque<Iterator<Path>> entries = new ArrayDeque<Iterator<Path>>();
+        private File nextFile = null;
+
+        ReplicaWalker(File groupDir, int maxDepth)
+        {
+            this.maxDepth = maxDepth;
+            if (groupDir.isDirectory())
+            {
+                push(groupDir.toPath());
+            }
+        }
+
+        private void push(Path dir)
+        {
+            try
+            {
+                DirectoryStream<Path> stream = Files.newDirectoryStream(dir);
+                streams.push(stream);
+                entries.push(stream.iterator());
+            }
+            catch (IOException ioE)
+            {
+                throw new RuntimeException(ioE);
+            }
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            while (nextFile == null && ! entries.isEmpty())
+            {
+                if (! entries.peek().hasNext())
+                {
+                    // directory complete - release its handle
+                    entries.pop();
+                    try
+                    {
+                        streams.pop().close();
+                    }
+                    catch (IOException ioE)
+                    {
+                        throw new RuntimeException(ioE);
+                    }
+                    continue;
+                }
+                Path entry = entries.peek().next();
+                String name = entry.getFileName().toString();
+                if (name.startsWith("."))
+                {
+                    continue;
+                }
+                if (Files.isDirectory(entry))
+                {
+                    if (entries.size() <= maxDepth && isShardName(name))
+                    {
+                        push(entry);
+                    }
+                }
+                else if (Files.isRegularFile(entry))
+                {
+                    nextFile = entry.toFile();
+                }
+            }
+            return nextFile != null;
+        }
+
+        @Override
+        public File next()
+        {
+            if (! hasNext())
+            {
+                throw new NoSuchElementException();
+            }
+            File file = nextFile;
+            nextFile = null;
+            return file;
+        }
+
+        @Override
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
 }
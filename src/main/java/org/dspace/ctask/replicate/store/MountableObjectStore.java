@@ -8,7 +8,11 @@
 package org.dspace.ctask.replicate.store;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 
 import org.dspace.curate.Utils;
 
@@ -23,6 +27,12 @@ import org.dspace.curate.Utils;
  * that all objects are copied, rather than moved (renamed). This will result
  * in slower performance, but may be required when more complex storage
  * architectures (e.g. an NFS-mounted store) are used.
+ * <P>
+ * Files are copied into a temporary file alongside the replica, which then
+ * replaces any earlier copy of the replica with a single rename. So an
+ * interrupted copy never leaves the store without a replica. Copies are
+ * made by the file system (zero-copy), and the checksum recorded for a new
+ * replica is taken from its local source.
  * 
  * @author richardrodgers
  */
@@ -39,12 +49,84 @@ public class MountableObjectStore extends LocalObjectStore
         // local transfer is a simple matter of copying the file,
         // we don't bother checking if replica is really new, since
         // local deletes/copies are cheap
-        File archFile = new File(storeDir + File.separator + group, file.getName());
-        if (archFile.exists())
+        if (packs(file.length()))
         {
-            archFile.delete();
+            String chkSum = recordedChecksum(file);
+            if (chkSum == null)
+            {
+                chkSum = Utils.checksum(file, "MD5");
+            }
+            packObject(group, file.getName(), Files.readAllBytes(file.toPath()), chkSum, file.lastModified());
+            return file.length();
         }
-        Utils.copy(file, archFile);
+        File archFile = shardedFile(group, file.getName());
+        if (! archFile.getParentFile().isDirectory())
+        {
+            archFile.getParentFile().mkdirs();
+        }
+        // named uniquely, so that concurrent transfers of an object never
+        // write to the same temporary file
+        File tempFile = File.createTempFile("." + archFile.getName(), ".tmp", archFile.getParentFile());
+        String chkSum;
+        try
+        {
+            chkSum = copyFile(file, tempFile);
+        }
+        catch (IOException ioE)
+        {
+            tempFile.delete();
+            throw ioE;
+        }
+        replaceFile(tempFile, archFile);
+        recordChecksum(archFile, chkSum);
+        removeFlatCopy(group, file.getName());
+        removePackedCopy(group, file.getName());
         return file.length();
     }
+
+    /**
+     * Copies a file, returning its MD5 checksum. The copy is always made by
+     * the file system, without passing through the JVM. If the checksum is
+     * not already recorded (i.e. the file is a freshly staged AIP rather
+     * than a replica), it is then taken from the source in a separate pass,
+     * which reads the local copy just brought into the page cache rather
+     * than the mounted store.
+     * @param src file to copy
+     * @param dest file to write
+     * @return hex encoded MD5 checksum of the file
+     * @throws IOException if I/O error
+     */
+    private String copyFile(File src, File dest) throws IOException
+    {
+        FileInputStream in = new FileInputStream(src);
+        FileOutputStream out = new FileOutputStream(dest);
+        try
+        {
+            FileChannel inChannel = in.getChannel();
+            FileChannel outChannel = out.getChannel();
+            long size = inChannel.size();
+            long position = 0L;
+            while (position < size)
+            {
+                position += inChannel.transferTo(position, size - position, outChannel);
+            }
+            if (fsync)
+            {
+                outChannel.force(true);
+            }
+        }
+        catch (IOException ioE)
+        {
+            out.close();
+            dest.delete();
+            throw ioE;
+        }
+        finally
+        {
+            in.close();
+            out.close();
+        }
+        String chkSum = recordedChecksum(src);
+        return chkSum != null ? chkSum : Utils.checksum(src, "MD5");
+    }
 }
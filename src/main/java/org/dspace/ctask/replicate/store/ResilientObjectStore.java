@@ -0,0 +1,462 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.replicate.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.log4j.Logger;
+import org.dspace.core.factory.CoreServiceFactory;
+import org.dspace.ctask.replicate.ObjectInfo;
+import org.dspace.ctask.replicate.ObjectStore;
+import org.dspace.services.ConfigurationService;
+import org.dspace.services.factory.DSpaceServicesFactory;
+
+/**
+ * ResilientObjectStore protects tasks from a flaky or failing ObjectStore
+ * (typically a remote one, such as DuraCloud) which it wraps.
+ * <P>
+ * Failed calls are retried, after an exponentially increasing delay with
+ * random jitter. Reads are retried up to 'replicate.store.retry.reads'
+ * times, and writes up to 'replicate.store.retry.writes' times (stream
+ * transfers, whose stream cannot be read again, are never retried).
+ * <P>
+ * After 'replicate.store.breaker.threshold' consecutive failures, the
+ * circuit breaker opens: calls fail at once, rather than each waiting on an
+ * unhealthy store, for 'replicate.store.breaker.open' milliseconds. A single
+ * call is then let through to probe the store - if it succeeds the breaker
+ * closes, otherwise it opens again.
+ * <P>
+ * To use, configure this class as the ObjectStore plugin, and the store it
+ * wraps as a named ObjectStore plugin, whose name is given by
+ * 'replicate.store.resilient.delegate'.
+ */
+public class ResilientObjectStore implements ObjectStore
+{
+    private static Logger log = Logger.getLogger(ResilientObjectStore.class);
+
+    private ConfigurationService configurationService = DSpaceServicesFactory.getInstance().getConfigurationService();
+
+    private final Random random = new Random();
+
+    // the store being wrapped
+    private ObjectStore delegate = null;
+
+    // retry policies
+    private int readRetries = 3;
+    private int writeRetries = 2;
+    private long backoffMillis = 1000L;
+    private long maxBackoffMillis = 30000L;
+
+    // circuit breaker policy
+    private int breakerThreshold = 5;
+    private long breakerOpenMillis = 60000L;
+
+    // circuit breaker state (guarded by this)
+    private int consecutiveFailures = 0;
+    private long openUntil = 0L;
+    private long openedAt = 0L;
+    private boolean probing = false;
+
+    // statistics (guarded by this)
+    private long retries = 0L;
+    private long fastFailures = 0L;
+    private long timesOpened = 0L;
+    private long openMillis = 0L;
+
+    // need no-arg constructor for PluginManager
+    public ResilientObjectStore()
+    {
+    }
+
+    /**
+     * Creates a wrapper around the passed (uninitialized) store, rather than
+     * the one named in configuration.
+     * @param delegate store to wrap
+     */
+    public ResilientObjectStore(ObjectStore delegate)
+    {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public void init() throws IOException
+    {
+        if (delegate == null)
+        {
+            String name = configurationService.getProperty("replicate.store.resilient.delegate");
+            delegate = (ObjectStore) CoreServiceFactory.getInstance().getPluginService()
+                                                       .getNamedPlugin(ObjectStore.class, name);
+            if (delegate == null)
+            {
+                throw new IOException("No ObjectStore named '" + name + "' (see 'replicate.store.resilient.delegate')");
+            }
+        }
+        readRetries = configurationService.getIntProperty("replicate.store.retry.reads", readRetries);
+        writeRetries = configurationService.getIntProperty("replicate.store.retry.writes", writeRetries);
+        backoffMillis = configurationService.getLongProperty("replicate.store.retry.backoff", backoffMillis);
+        maxBackoffMillis = configurationService.getLongProperty("replicate.store.retry.maxbackoff", maxBackoffMillis);
+        breakerThreshold = configurationService.getIntProperty("replicate.store.breaker.threshold", breakerThreshold);
+        breakerOpenMillis = configurationService.getLongProperty("replicate.store.breaker.open", breakerOpenMillis);
+
+        // the wrapped store may itself be temporarily unreachable
+        call("init", writeRetries, new Op<Void>()
+        {
+            @Override
+            Void run() throws IOException
+            {
+                delegate.init();
+                return null;
+            }
+        });
+    }
+
+    /**
+     * @return number of calls retried
+     */
+    public synchronized long getRetries()
+    {
+        return retries;
+    }
+
+    /**
+     * @return number of calls failed at once, as the circuit breaker was open
+     */
+    public synchronized long getFastFailures()
+    {
+        return fastFailures;
+    }
+
+    /**
+     * @return number of times the circuit breaker opened
+     */
+    public synchronized long getTimesOpened()
+    {
+        return timesOpened;
+    }
+
+    /**
+     * @return total milliseconds the circuit breaker has been open
+     */
+    public synchronized long getOpenMillis()
+    {
+        return openMillis + (openedAt > 0L ? System.currentTimeMillis() - openedAt : 0L);
+    }
+
+    /**
+     * @return whether the circuit breaker is open (or probing)
+     */
+    public synchronized boolean isOpen()
+    {
+        return openedAt > 0L;
+    }
+
+    @Override
+    public boolean objectExists(final String group, final String id) throws IOException
+    {
+        return call("objectExists", readRetries, new Op<Boolean>()
+        {
+            @Override
+            Boolean run() throws IOException
+            {
+                return delegate.objectExists(group, id);
+            }
+        });
+    }
+
+    @Override
+    public String objectAttribute(final String group, final String id, final String attrName) throws IOException
+    {
+        return call("objectAttribute", readRetries, new Op<String>()
+        {
+            @Override
+            String run() throws IOException
+            {
+                return delegate.objectAttribute(group, id, attrName);
+            }
+        });
+    }
+
+    @Override
+    public Map<String, Boolean> objectsExist(final String group, final List<String> ids) throws IOException
+    {
+        return call("objectsExist", readRetries, new Op<Map<String, Boolean>>()
+        {
+            @Override
+            Map<String, Boolean> run() throws IOException
+            {
+                return delegate.objectsExist(group, ids);
+            }
+        });
+    }
+
+    @Override
+    public Map<String, Map<String, String>> objectAttributes(final String group, final List<String> ids) throws IOException
+    {
+        return call("objectAttributes", readRetries, new Op<Map<String, Map<String, String>>>()
+        {
+            @Override
+            Map<String, Map<String, String>> run() throws IOException
+            {
+                return delegate.objectAttributes(group, ids);
+            }
+        });
+    }
+
+    @Override
+    public Iterator<ObjectInfo> listObjects(final String group, final String prefix) throws IOException
+    {
+        return call("listObjects", readRetries, new Op<Iterator<ObjectInfo>>()
+        {
+            @Override
+            Iterator<ObjectInfo> run() throws IOException
+            {
+                return delegate.listObjects(group, prefix);
+            }
+        });
+    }
+
+    @Override
+    public long fetchObject(final String group, final String id, final File file) throws IOException
+    {
+        return call("fetchObject", readRetries, new Op<Long>()
+        {
+            @Override
+            Long run() throws IOException
+            {
+                return delegate.fetchObject(group, id, file);
+            }
+        });
+    }
+
+    @Override
+    public InputStream openObject(final String group, final String id) throws IOException
+    {
+        return call("openObject", readRetries, new Op<InputStream>()
+        {
+            @Override
+            InputStream run() throws IOException
+            {
+                return delegate.openObject(group, id);
+            }
+        });
+    }
+
+    @Override
+    public long transferObject(final String group, final File file) throws IOException
+    {
+        return call("transferObject", writeRetries, new Op<Long>()
+        {
+            @Override
+            Long run() throws IOException
+            {
+                return delegate.transferObject(group, file);
+            }
+        });
+    }
+
+    @Override
+    public long transferObject(final String group, final String id, final InputStream in, final long length,
+                               final String md5) throws IOException
+    {
+        // the stream may be partly read by a failed attempt, so is not retried
+        return call("transferObject", 0, new Op<Long>()
+        {
+            @Override
+            Long run() throws IOException
+            {
+                return delegate.transferObject(group, id, in, length, md5);
+            }
+        });
+    }
+
+    @Override
+    public long removeObject(final String group, final String id) throws IOException
+    {
+        return call("removeObject", writeRetries, new Op<Long>()
+        {
+            @Override
+            Long run() throws IOException
+            {
+                return delegate.removeObject(group, id);
+            }
+        });
+    }
+
+    @Override
+    public long moveObject(final String srcGroup, final String destGroup, final String id) throws IOException
+    {
+        return call("moveObject", writeRetries, new Op<Long>()
+        {
+            @Override
+            Long run() throws IOException
+            {
+                return delegate.moveObject(srcGroup, destGroup, id);
+            }
+        });
+    }
+
+    @Override
+    public Map<String, Long> removeObjects(final String group, final List<String> ids) throws IOException
+    {
+        // a retried batch finds the objects already removed gone, which is harmless
+        return call("removeObjects", writeRetries, new Op<Map<String, Long>>()
+        {
+            @Override
+            Map<String, Long> run() throws IOException
+            {
+                return delegate.removeObjects(group, ids);
+            }
+        });
+    }
+
+    @Override
+    public Map<String, Long> moveObjects(final String srcGroup, final String destGroup, final List<String> ids)
+        throws IOException
+    {
+        return call("moveObjects", writeRetries, new Op<Map<String, Long>>()
+        {
+            @Override
+            Map<String, Long> run() throws IOException
+            {
+                return delegate.moveObjects(srcGroup, destGroup, ids);
+            }
+        });
+    }
+
+    /**
+     * Performs a call on the wrapped store, subject to the circuit breaker,
+     * retrying it should it fail.
+     * @param name name of the call, for messages
+     * @param maxRetries most times to retry the call
+     * @param op the call
+     * @return result of the call
+     * @throws IOException if the call (and all retries) failed, or the breaker is open
+     */
+    private <T> T call(String name, int maxRetries, Op<T> op) throws IOException
+    {
+        for (int attempt = 0; ; attempt++)
+        {
+            allow(name);
+            try
+            {
+                T result = op.run();
+                succeeded();
+                return result;
+            }
+            catch (RuntimeException | Error e)
+            {
+                // not retried, but counted, so a failed probe reopens the breaker
+                failed();
+                throw e;
+            }
+            catch (IOException ioE)
+            {
+                failed();
+                if (attempt >= maxRetries)
+                {
+                    throw ioE;
+                }
+                long delay = backoff(attempt);
+                log.warn(name + " failed (" + ioE.getMessage() + "), retrying in " + delay + "ms");
+                synchronized (this)
+                {
+                    retries++;
+                }
+                try
+                {
+                    Thread.sleep(delay);
+                }
+                catch (InterruptedException intE)
+                {
+                    Thread.currentThread().interrupt();
+                    throw ioE;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the delay before a retry: exponentially increasing, with
+     * jitter so that concurrent callers do not retry in lock step.
+     */
+    private long backoff(int attempt)
+    {
+        long delay = Math.min(maxBackoffMillis, backoffMillis << Math.min(attempt, 30));
+        double jitter;
+        synchronized (random)
+        {
+            jitter = random.nextDouble();
+        }
+        return (long) (delay * (0.5 + 0.5 * jitter));
+    }
+
+    /**
+     * Checks the circuit breaker allows a call.
+     * @throws IOException if the breaker is open
+     */
+    private synchronized void allow(String name) throws IOException
+    {
+        if (openedAt == 0L)
+        {
+            return;
+        }
+        if (System.currentTimeMillis() >= openUntil && ! probing)
+        {
+            // let a single call through to see if the store has recovered
+            probing = true;
+            return;
+        }
+        fastFailures++;
+        throw new IOException(name + " not attempted: object store has failed " + consecutiveFailures +
+                              " times in a row, and is not retried until " + new Date(openUntil));
+    }
+
+    private synchronized void succeeded()
+    {
+        consecutiveFailures = 0;
+        probing = false;
+        if (openedAt > 0L)
+        {
+            openMillis += System.currentTimeMillis() - openedAt;
+            openedAt = 0L;
+            log.info("Object store has recovered - circuit breaker closed");
+        }
+    }
+
+    private synchronized void failed()
+    {
+        consecutiveFailures++;
+        if (probing || (openedAt == 0L && consecutiveFailures >= breakerThreshold))
+        {
+            if (openedAt == 0L)
+            {
+                openedAt = System.currentTimeMillis();
+                timesOpened++;
+            }
+            probing = false;
+            openUntil = System.currentTimeMillis() + breakerOpenMillis;
+            log.warn("Object store has failed " + consecutiveFailures + " times in a row - circuit breaker open for " +
+                     breakerOpenMillis + "ms");
+        }
+    }
+
+    /**
+     * A call on the wrapped store.
+     */
+    private abstract static class Op<T>
+    {
+        abstract T run() throws IOException;
+    }
+}
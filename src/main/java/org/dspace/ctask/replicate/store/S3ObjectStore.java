@@ -0,0 +1,1200 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.replicate.store;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.S3ClientOptions;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.CopyPartRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.util.BinaryUtils;
+import org.apache.log4j.Logger;
+import org.dspace.ctask.replicate.ObjectInfo;
+import org.dspace.ctask.replicate.ObjectStore;
+import org.dspace.curate.Utils;
+import org.dspace.services.ConfigurationService;
+import org.dspace.services.factory.DSpaceServicesFactory;
+
+/**
+ * S3ObjectStore replicates content to Amazon S3, or any storage service
+ * offering an S3-compatible API. Configured in 's3.cfg'.
+ * <P>
+ * Each group is a key prefix within a single bucket: the replica 'id' of
+ * group 'aip-store' is kept under key 'aip-store/id'. The MD5 checksum of
+ * each replica is recorded in its user metadata, as the ETag S3 gives
+ * multipart uploads is not a checksum of the content. Where the checksum
+ * is only known once a streamed multipart upload is done, it is kept
+ * instead in a small sidecar object under '.checksums/' (rather than by
+ * copying the replica onto itself with new metadata), and folded into the
+ * metadata if the replica is later moved.
+ * <P>
+ * Large replicas are uploaded in parts, several at once. Moves are made by
+ * copying within S3, so content is never downloaded and uploaded again.
+ */
+public class S3ObjectStore implements ObjectStore
+{
+    private static Logger log = Logger.getLogger(S3ObjectStore.class);
+
+    // smallest part (but the last) of a multipart upload S3 accepts
+    private static final long MIN_PART_SIZE = 5L * 1024L * 1024L;
+
+    // most parts a multipart upload may have
+    private static final int MAX_PARTS = 10000;
+
+    // largest object S3 copies in a single request
+    private static final long MAX_COPY_SIZE = 5L * 1024L * 1024L * 1024L;
+
+    // most keys deleted, or listed, by a single request
+    private static final int BATCH_SIZE = 1000;
+
+    // user metadata holding the MD5 checksum of the whole replica
+    private static final String MD5_META = "replicate-md5";
+
+    // key prefix of the sidecar objects recording checksums not in metadata
+    private static final String CHECKSUM_PREFIX = ".checksums/";
+
+    private ConfigurationService configurationService = DSpaceServicesFactory.getInstance().getConfigurationService();
+
+    // S3 client
+    private AmazonS3 s3 = null;
+
+    // bucket all groups are kept in
+    private String bucket = null;
+
+    // pool used to issue batched metadata lookups concurrently
+    private ExecutorService lookupPool = null;
+
+    // pool used to upload (or copy) the parts of large replicas concurrently
+    private ExecutorService partPool = null;
+
+    // number of parts uploaded at once
+    private int partThreads = 4;
+
+    // replicas of this many bytes or more are uploaded in parts
+    private long multipartThreshold = 100L * 1024L * 1024L;
+
+    // size of each part
+    private long partSize = 16L * 1024L * 1024L;
+
+    // need no-arg constructor for PluginManager
+    public S3ObjectStore()
+    {
+    }
+
+    /**
+     * Creates a store using the passed client and bucket, rather than those
+     * configured in 's3.cfg'.
+     * @param s3 S3 client
+     * @param bucket bucket replicas are kept in
+     */
+    public S3ObjectStore(AmazonS3 s3, String bucket)
+    {
+        this.s3 = s3;
+        this.bucket = bucket;
+    }
+
+    @Override
+    public void init() throws IOException
+    {
+        if (s3 == null)
+        {
+            AmazonS3Client client = new AmazonS3Client(
+                new BasicAWSCredentials(configurationService.getProperty("s3.access.key"),
+                                        configurationService.getProperty("s3.secret.key")),
+                new ClientConfiguration());
+            String endpoint = configurationService.getProperty("s3.endpoint");
+            if (endpoint != null)
+            {
+                client.setEndpoint(endpoint);
+            }
+            client.setS3ClientOptions(new S3ClientOptions()
+                .withPathStyleAccess(configurationService.getBooleanProperty("s3.path.style", false)));
+            s3 = client;
+        }
+        if (bucket == null)
+        {
+            bucket = configurationService.getProperty("s3.bucket");
+        }
+        if (bucket == null)
+        {
+            throw new IOException("No S3 bucket configured. Please set 's3.bucket' in your 's3.cfg' file.");
+        }
+
+        multipartThreshold = Math.max(MIN_PART_SIZE,
+                                      configurationService.getLongProperty("s3.multipart.threshold", multipartThreshold));
+        partSize = Math.max(MIN_PART_SIZE, configurationService.getLongProperty("s3.multipart.part.size", partSize));
+        partThreads = Math.max(1, configurationService.getIntProperty("s3.multipart.threads", partThreads));
+
+        // daemon threads, so an idle pool never keeps a curation run from exiting
+        int lookupThreads = configurationService.getIntProperty("s3.lookup.threads", 8);
+        lookupPool = Executors.newFixedThreadPool(Math.max(1, lookupThreads), daemonThreads("s3-lookup"));
+        partPool = Executors.newFixedThreadPool(partThreads, daemonThreads("s3-part"));
+    }
+
+    private static ThreadFactory daemonThreads(final String name)
+    {
+        return new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Returns the key prefix of a group.
+     */
+    private String groupPrefix(String group)
+    {
+        return group + "/";
+    }
+
+    private String key(String group, String id)
+    {
+        return groupPrefix(group) + id;
+    }
+
+    private static boolean notFound(AmazonServiceException asE)
+    {
+        return asE.getStatusCode() == 404;
+    }
+
+    /**
+     * Looks up the metadata of a replica.
+     * @return the metadata, or null if there is no such replica
+     */
+    private ObjectMetadata metadata(String key) throws IOException
+    {
+        try
+        {
+            return s3.getObjectMetadata(bucket, key);
+        }
+        catch (AmazonServiceException asE)
+        {
+            if (notFound(asE))
+            {
+                return null;
+            }
+            throw new IOException(asE);
+        }
+        catch (AmazonClientException acE)
+        {
+            throw new IOException(acE);
+        }
+    }
+
+    /**
+     * Returns the MD5 checksum of a replica: as recorded in its metadata
+     * when it was uploaded, or else its ETag, if that was not from a
+     * multipart upload, or else as recorded in its sidecar.
+     * @return hex encoded checksum, or null if not known
+     */
+    private String checksum(String key, ObjectMetadata meta) throws IOException
+    {
+        String md5 = meta.getUserMetaDataOf(MD5_META);
+        if (md5 == null && meta.getETag() != null)
+        {
+            md5 = multipart(meta) ? recordedChecksum(key) : meta.getETag();
+        }
+        return md5;
+    }
+
+    private static boolean multipart(ObjectMetadata meta)
+    {
+        return meta.getETag() != null && meta.getETag().indexOf('-') >= 0;
+    }
+
+    /**
+     * @return true if the replica may have a sidecar recording its checksum
+     */
+    private static boolean hasSidecar(ObjectMetadata meta)
+    {
+        return meta.getUserMetaDataOf(MD5_META) == null && multipart(meta);
+    }
+
+    private static String sidecarKey(String key)
+    {
+        return CHECKSUM_PREFIX + key;
+    }
+
+    /**
+     * Records the checksum of a replica in its sidecar.
+     */
+    private void recordChecksum(String key, String md5) throws IOException
+    {
+        byte[] bytes = md5.getBytes(StandardCharsets.UTF_8);
+        ObjectMetadata meta = new ObjectMetadata();
+        meta.setContentLength(bytes.length);
+        meta.setContentType("text/plain");
+        try
+        {
+            s3.putObject(new PutObjectRequest(bucket, sidecarKey(key), new ByteArrayInputStream(bytes), meta));
+        }
+        catch (AmazonClientException acE)
+        {
+            throw new IOException(acE);
+        }
+    }
+
+    /**
+     * @return the checksum recorded in a replica's sidecar, or null if none
+     */
+    private String recordedChecksum(String key) throws IOException
+    {
+        S3Object sidecar = getObject(sidecarKey(key));
+        if (sidecar == null)
+        {
+            return null;
+        }
+        try (InputStream in = sidecar.getObjectContent())
+        {
+            byte[] buf = new byte[64];
+            int read = 0;
+            int n;
+            while (read < buf.length && (n = in.read(buf, read, buf.length - read)) != -1)
+            {
+                read += n;
+            }
+            return new String(buf, 0, read, StandardCharsets.UTF_8).trim();
+        }
+        catch (AmazonClientException acE)
+        {
+            throw new IOException(acE);
+        }
+    }
+
+    /**
+     * Returns the metadata a moved replica is copied with: its own, unless
+     * its checksum is in a sidecar, when it is folded into the metadata.
+     * @return new metadata, or null to keep the replica's own
+     */
+    private ObjectMetadata movedMetadata(String key, ObjectMetadata meta) throws IOException
+    {
+        String md5 = hasSidecar(meta) ? recordedChecksum(key) : null;
+        if (md5 == null)
+        {
+            return null;
+        }
+        ObjectMetadata moved = meta.clone();
+        moved.addUserMetadata(MD5_META, md5);
+        return moved;
+    }
+
+    /**
+     * Maps S3 metadata to the attribute names used by ObjectStore
+     * ("checksum", "sizebytes" and "modified").
+     */
+    private Map<String, String> attributes(String key, ObjectMetadata meta) throws IOException
+    {
+        Map<String, String> attrs = new HashMap<String, String>();
+        attrs.put("checksum", checksum(key, meta));
+        attrs.put("sizebytes", String.valueOf(meta.getContentLength()));
+        attrs.put("modified", meta.getLastModified() != null ? String.valueOf(meta.getLastModified().getTime()) : null);
+        return attrs;
+    }
+
+    /**
+     * Looks up the metadata of several replicas, concurrently.
+     * @return map of ID to metadata (null if no such replica), in the order given
+     */
+    private Map<String, ObjectMetadata> metadata(String group, List<String> ids) throws IOException
+    {
+        Map<String, Future<ObjectMetadata>> futures = new LinkedHashMap<String, Future<ObjectMetadata>>();
+        for (final String id : ids)
+        {
+            final String key = key(group, id);
+            futures.put(id, lookupPool.submit(new Callable<ObjectMetadata>()
+            {
+                @Override
+                public ObjectMetadata call() throws IOException
+                {
+                    return metadata(key);
+                }
+            }));
+        }
+        Map<String, ObjectMetadata> metaMap = new LinkedHashMap<String, ObjectMetadata>();
+        for (Map.Entry<String, Future<ObjectMetadata>> entry : futures.entrySet())
+        {
+            metaMap.put(entry.getKey(), await(entry.getValue()));
+        }
+        return metaMap;
+    }
+
+    private static <T> T await(Future<T> future) throws IOException
+    {
+        try
+        {
+            return future.get();
+        }
+        catch (InterruptedException intE)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting on S3", intE);
+        }
+        catch (ExecutionException exE)
+        {
+            Throwable cause = exE.getCause();
+            if (cause instanceof IOException)
+            {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    @Override
+    public boolean objectExists(String group, String id) throws IOException
+    {
+        return metadata(key(group, id)) != null;
+    }
+
+    @Override
+    public String objectAttribute(String group, String id, String attrName) throws IOException
+    {
+        String key = key(group, id);
+        ObjectMetadata meta = metadata(key);
+        if (meta == null)
+        {
+            return null;
+        }
+        // the checksum may take a further lookup, so is only worked out if asked for
+        return "checksum".equals(attrName) ? checksum(key, meta) : attributes(key, meta).get(attrName);
+    }
+
+    @Override
+    public Map<String, Boolean> objectsExist(String group, List<String> ids) throws IOException
+    {
+        Map<String, Boolean> exists = new LinkedHashMap<String, Boolean>();
+        for (Map.Entry<String, ObjectMetadata> entry : metadata(group, ids).entrySet())
+        {
+            exists.put(entry.getKey(), entry.getValue() != null);
+        }
+        return exists;
+    }
+
+    @Override
+    public Map<String, Map<String, String>> objectAttributes(String group, List<String> ids) throws IOException
+    {
+        Map<String, Map<String, String>> attrMap = new LinkedHashMap<String, Map<String, String>>();
+        for (Map.Entry<String, ObjectMetadata> entry : metadata(group, ids).entrySet())
+        {
+            if (entry.getValue() != null)
+            {
+                attrMap.put(entry.getKey(), attributes(key(group, entry.getKey()), entry.getValue()));
+            }
+        }
+        return attrMap;
+    }
+
+    @Override
+    public Iterator<ObjectInfo> listObjects(String group, String prefix) throws IOException
+    {
+        return new KeyListing(groupPrefix(group), prefix != null ? prefix : "");
+    }
+
+    @Override
+    public long fetchObject(String group, String id, File file) throws IOException
+    {
+        String key = key(group, id);
+        S3Object object = getObject(key);
+        if (object == null)
+        {
+            return 0L;
+        }
+        String expected = checksum(key, object.getObjectMetadata());
+        MessageDigest digest = md5Digest();
+        long size = 0L;
+        try (InputStream in = new DigestInputStream(object.getObjectContent(), digest);
+             OutputStream out = new FileOutputStream(file))
+        {
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) != -1)
+            {
+                out.write(buf, 0, n);
+                size += n;
+            }
+        }
+        catch (AmazonClientException acE)
+        {
+            file.delete();
+            throw new IOException(acE);
+        }
+        String actual = Utils.toHex(digest.digest());
+        if (expected != null && ! expected.equals(actual))
+        {
+            file.delete();
+            throw new IOException("Fetched content of '" + id + "' does not match its checksum");
+        }
+        return size;
+    }
+
+    @Override
+    public InputStream openObject(String group, String id) throws IOException
+    {
+        S3Object object = getObject(key(group, id));
+        return object != null ? object.getObjectContent() : null;
+    }
+
+    private S3Object getObject(String key) throws IOException
+    {
+        try
+        {
+            return s3.getObject(bucket, key);
+        }
+        catch (AmazonServiceException asE)
+        {
+            if (notFound(asE))
+            {
+                return null;
+            }
+            throw new IOException(asE);
+        }
+        catch (AmazonClientException acE)
+        {
+            throw new IOException(acE);
+        }
+    }
+
+    @Override
+    public long transferObject(String group, File file) throws IOException
+    {
+        String key = key(group, file.getName());
+        String md5 = Utils.checksum(file, "MD5");
+        long size = 0L;
+        // skip the upload if the replica store already has this content
+        ObjectMetadata existing = metadata(key);
+        if (existing == null || ! md5.equals(checksum(key, existing)))
+        {
+            ObjectMetadata meta = newMetadata(file.length(), md5);
+            try
+            {
+                if (file.length() >= multipartThreshold)
+                {
+                    uploadParts(key, meta, file);
+                }
+                else
+                {
+                    meta.setContentMD5(BinaryUtils.toBase64(BinaryUtils.fromHex(md5)));
+                    s3.putObject(new PutObjectRequest(bucket, key, file).withMetadata(meta));
+                }
+            }
+            catch (AmazonClientException acE)
+            {
+                throw new IOException(acE);
+            }
+            size = file.length();
+        }
+        // delete staging file
+        file.delete();
+        return size;
+    }
+
+    @Override
+    public long transferObject(String group, String id, InputStream in, long length, String md5) throws IOException
+    {
+        String key = key(group, id);
+        if (md5 != null)
+        {
+            // skip the upload if the replica store already has this content
+            ObjectMetadata existing = metadata(key);
+            if (existing != null && md5.equals(checksum(key, existing)))
+            {
+                return 0L;
+            }
+        }
+        MessageDigest digest = md5Digest();
+        CountingInputStream content = new CountingInputStream(new DigestInputStream(in, digest));
+        ObjectMetadata meta = newMetadata(length, md5);
+        String actual;
+        try
+        {
+            if (length >= multipartThreshold)
+            {
+                actual = uploadParts(key, meta, content, length, digest, md5);
+            }
+            else
+            {
+                if (md5 != null)
+                {
+                    // S3 refuses the upload if the content does not match
+                    meta.setContentMD5(BinaryUtils.toBase64(BinaryUtils.fromHex(md5)));
+                }
+                s3.putObject(new PutObjectRequest(bucket, key, content, meta));
+                actual = Utils.toHex(digest.digest());
+                if (content.getCount() != length || (md5 != null && ! md5.equals(actual)))
+                {
+                    // not all S3-compatible stores check Content-MD5, so a bad
+                    // replica is removed rather than left with a good checksum
+                    discard(key);
+                }
+            }
+        }
+        catch (AmazonClientException acE)
+        {
+            throw new IOException(acE);
+        }
+        if (content.getCount() != length)
+        {
+            throw new IOException("Transferred " + content.getCount() + " bytes of '" + id +
+                                  "' but expected " + length);
+        }
+        if (md5 == null && length >= multipartThreshold)
+        {
+            // the checksum is only known now, and S3 cannot change metadata except
+            // by copying the whole replica, so it is kept in a sidecar instead (a
+            // single upload needs neither, as its ETag is the checksum)
+            recordChecksum(key, actual);
+        }
+        else if (md5 != null && ! md5.equals(actual))
+        {
+            throw new IOException("Transferred content of '" + id + "' does not match its checksum");
+        }
+        return length;
+    }
+
+    /**
+     * Deletes a replica found to be bad after its upload, logging rather
+     * than throwing if that fails.
+     */
+    private void discard(String key)
+    {
+        try
+        {
+            s3.deleteObject(bucket, key);
+        }
+        catch (AmazonClientException acE)
+        {
+            log.error("Unable to delete bad replica '" + key + "'", acE);
+        }
+    }
+
+    private ObjectMetadata newMetadata(long length, String md5)
+    {
+        ObjectMetadata meta = new ObjectMetadata();
+        meta.setContentLength(length);
+        meta.setContentType("application/octet-stream");
+        if (md5 != null)
+        {
+            meta.addUserMetadata(MD5_META, md5);
+        }
+        return meta;
+    }
+
+    /**
+     * Returns the size of the parts a replica is uploaded or copied in:
+     * the configured size, or larger if needed to keep within S3's limit
+     * on the number of parts.
+     */
+    private long partSize(long length)
+    {
+        return Math.max(partSize, (length + MAX_PARTS - 1) / MAX_PARTS);
+    }
+
+    /**
+     * Uploads a file in parts, several at once.
+     */
+    private void uploadParts(final String key, ObjectMetadata meta, final File file) throws IOException
+    {
+        final String uploadId = initiate(key, meta);
+        try
+        {
+            long length = file.length();
+            long size = partSize(length);
+            List<Future<PartETag>> parts = new ArrayList<Future<PartETag>>();
+            int partNumber = 1;
+            for (long offset = 0L; offset < length; offset += size, partNumber++)
+            {
+                final UploadPartRequest request = new UploadPartRequest()
+                    .withBucketName(bucket).withKey(key).withUploadId(uploadId)
+                    .withPartNumber(partNumber).withFile(file).withFileOffset(offset)
+                    .withPartSize(Math.min(size, length - offset));
+                parts.add(partPool.submit(new Callable<PartETag>()
+                {
+                    @Override
+                    public PartETag call()
+                    {
+                        return s3.uploadPart(request).getPartETag();
+                    }
+                }));
+            }
+            complete(key, uploadId, awaitParts(parts));
+        }
+        catch (IOException | RuntimeException e)
+        {
+            abort(key, uploadId);
+            throw e;
+        }
+    }
+
+    /**
+     * Uploads a stream in parts. Parts are read one after another, but
+     * several are uploaded at once: as many as there are upload threads
+     * are held in memory. The upload is only completed once the whole
+     * stream has been read and matches the expected checksum, so a bad
+     * upload is aborted and leaves no replica behind.
+     * @param digest digest the stream updates as it is read
+     * @param md5 expected checksum, or null if unknown
+     * @return checksum of the content
+     */
+    private String uploadParts(final String key, ObjectMetadata meta, InputStream in, long length,
+                               MessageDigest digest, String md5) throws IOException
+    {
+        final String uploadId = initiate(key, meta);
+        final Semaphore buffers = new Semaphore(partThreads);
+        try
+        {
+            // parts are read into memory, so are kept within an array's size
+            int size = (int) Math.min(partSize(length), Integer.MAX_VALUE - 8);
+            List<Future<PartETag>> parts = new ArrayList<Future<PartETag>>();
+            int partNumber = 1;
+            for (long offset = 0L; offset < length; offset += size, partNumber++)
+            {
+                acquire(buffers);
+                final byte[] buf = new byte[(int) Math.min(size, length - offset)];
+                int read = 0;
+                int n;
+                while (read < buf.length && (n = in.read(buf, read, buf.length - read)) != -1)
+                {
+                    read += n;
+                }
+                if (read < buf.length)
+                {
+                    buffers.release();
+                    throw new IOException("Stream ended after " + (offset + read) + " bytes, but expected " + length);
+                }
+                final UploadPartRequest request = new UploadPartRequest()
+                    .withBucketName(bucket).withKey(key).withUploadId(uploadId)
+                    .withPartNumber(partNumber).withInputStream(new ByteArrayInputStream(buf))
+                    .withPartSize(buf.length);
+                parts.add(partPool.submit(new Callable<PartETag>()
+                {
+                    @Override
+                    public PartETag call()
+                    {
+                        try
+                        {
+                            return s3.uploadPart(request).getPartETag();
+                        }
+                        finally
+                        {
+                            buffers.release();
+                        }
+                    }
+                }));
+            }
+            List<PartETag> etags = awaitParts(parts);
+            String actual = Utils.toHex(digest.digest());
+            if (md5 != null && ! md5.equals(actual))
+            {
+                throw new IOException("Transferred content of '" + key + "' does not match its checksum");
+            }
+            complete(key, uploadId, etags);
+            return actual;
+        }
+        catch (IOException | RuntimeException e)
+        {
+            abort(key, uploadId);
+            throw e;
+        }
+    }
+
+    /**
+     * Copies a replica within S3.
+     * @param srcKey key of the replica to copy
+     * @param destKey key to copy it to (may be the same, to change metadata)
+     * @param length size of the replica
+     * @param meta metadata of the copy, or null to keep the replica's own
+     */
+    private void copy(final String srcKey, final String destKey, long length, ObjectMetadata meta) throws IOException
+    {
+        try
+        {
+            if (length <= MAX_COPY_SIZE)
+            {
+                CopyObjectRequest request = new CopyObjectRequest(bucket, srcKey, bucket, destKey);
+                if (meta != null)
+                {
+                    request.setNewObjectMetadata(meta);
+                }
+                s3.copyObject(request);
+                return;
+            }
+            // too large to copy in one request, so copy it in parts
+            if (meta == null)
+            {
+                meta = s3.getObjectMetadata(bucket, srcKey).clone();
+            }
+        }
+        catch (AmazonClientException acE)
+        {
+            throw new IOException(acE);
+        }
+        final String uploadId = initiate(destKey, meta);
+        try
+        {
+            long size = Math.max(partSize(length), MIN_PART_SIZE);
+            List<Future<PartETag>> parts = new ArrayList<Future<PartETag>>();
+            int partNumber = 1;
+            for (long offset = 0L; offset < length; offset += size, partNumber++)
+            {
+                final CopyPartRequest request = new CopyPartRequest()
+                    .withSourceBucketName(bucket).withSourceKey(srcKey)
+                    .withDestinationBucketName(bucket).withDestinationKey(destKey)
+                    .withUploadId(uploadId).withPartNumber(partNumber)
+                    .withFirstByte(offset).withLastByte(Math.min(offset + size, length) - 1L);
+                parts.add(partPool.submit(new Callable<PartETag>()
+                {
+                    @Override
+                    public PartETag call()
+                    {
+                        return s3.copyPart(request).getPartETag();
+                    }
+                }));
+            }
+            complete(destKey, uploadId, awaitParts(parts));
+        }
+        catch (IOException | RuntimeException e)
+        {
+            abort(destKey, uploadId);
+            throw e;
+        }
+    }
+
+    private String initiate(String key, ObjectMetadata meta) throws IOException
+    {
+        try
+        {
+            return s3.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucket, key, meta)).getUploadId();
+        }
+        catch (AmazonClientException acE)
+        {
+            throw new IOException(acE);
+        }
+    }
+
+    /**
+     * Waits for all parts of an upload.
+     * @return the parts' ETags, in part order
+     * @throws IOException if any part failed, once none is still uploading
+     */
+    private static List<PartETag> awaitParts(List<Future<PartETag>> parts) throws IOException
+    {
+        IOException failure = null;
+        List<PartETag> etags = new ArrayList<PartETag>();
+        for (Future<PartETag> part : parts)
+        {
+            try
+            {
+                etags.add(await(part));
+            }
+            catch (IOException ioE)
+            {
+                // keep waiting, so no part is still uploading once aborted
+                if (failure == null)
+                {
+                    failure = ioE;
+                }
+            }
+        }
+        if (failure != null)
+        {
+            throw failure;
+        }
+        Collections.sort(etags, new Comparator<PartETag>()
+        {
+            @Override
+            public int compare(PartETag a, PartETag b)
+            {
+                return Integer.compare(a.getPartNumber(), b.getPartNumber());
+            }
+        });
+        return etags;
+    }
+
+    private void complete(String key, String uploadId, List<PartETag> etags) throws IOException
+    {
+        try
+        {
+            s3.completeMultipartUpload(new CompleteMultipartUploadRequest(bucket, key, uploadId, etags));
+        }
+        catch (AmazonClientException acE)
+        {
+            throw new IOException(acE);
+        }
+    }
+
+    private void abort(String key, String uploadId)
+    {
+        try
+        {
+            s3.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, key, uploadId));
+        }
+        catch (AmazonClientException acE)
+        {
+            // S3 removes abandoned uploads by the bucket's lifecycle rules, if any
+            log.warn("Unable to abort upload of '" + key + "'", acE);
+        }
+    }
+
+    private static void acquire(Semaphore semaphore) throws IOException
+    {
+        try
+        {
+            semaphore.acquire();
+        }
+        catch (InterruptedException intE)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting on S3", intE);
+        }
+    }
+
+    @Override
+    public long removeObject(String group, String id) throws IOException
+    {
+        String key = key(group, id);
+        ObjectMetadata meta = metadata(key);
+        if (meta == null)
+        {
+            return 0L;
+        }
+        try
+        {
+            s3.deleteObject(bucket, key);
+            if (hasSidecar(meta))
+            {
+                s3.deleteObject(bucket, sidecarKey(key));
+            }
+        }
+        catch (AmazonClientException acE)
+        {
+            throw new IOException(acE);
+        }
+        return meta.getContentLength();
+    }
+
+    /**
+     * Removes several replicas from a group, deleting up to a thousand in
+     * each request.
+     * @param group group of the replicas
+     * @param ids IDs of the replicas (those not in the group are ignored)
+     * @return map of each ID to the size of the replica removed (0 if none)
+     * @throws IOException if I/O error, or any replica could not be removed
+     */
+    @Override
+    public Map<String, Long> removeObjects(String group, List<String> ids) throws IOException
+    {
+        Map<String, Long> sizes = new LinkedHashMap<String, Long>();
+        List<String> keys = new ArrayList<String>();
+        for (Map.Entry<String, ObjectMetadata> entry : metadata(group, ids).entrySet())
+        {
+            if (entry.getValue() != null)
+            {
+                String key = key(group, entry.getKey());
+                keys.add(key);
+                if (hasSidecar(entry.getValue()))
+                {
+                    keys.add(sidecarKey(key));
+                }
+                sizes.put(entry.getKey(), entry.getValue().getContentLength());
+            }
+            else
+            {
+                sizes.put(entry.getKey(), 0L);
+            }
+        }
+        deleteKeys(keys);
+        return sizes;
+    }
+
+    /**
+     * Moves several replicas between groups. The copies are made
+     * concurrently, then the originals deleted in batches.
+     */
+    @Override
+    public Map<String, Long> moveObjects(final String srcGroup, final String destGroup, List<String> ids)
+        throws IOException
+    {
+        Map<String, Future<Long>> copies = new LinkedHashMap<String, Future<Long>>();
+        Map<String, ObjectMetadata> srcMeta = metadata(srcGroup, ids);
+        for (Map.Entry<String, ObjectMetadata> entry : srcMeta.entrySet())
+        {
+            final String id = entry.getKey();
+            final ObjectMetadata meta = entry.getValue();
+            if (meta == null)
+            {
+                continue;
+            }
+            copies.put(id, lookupPool.submit(new Callable<Long>()
+            {
+                @Override
+                public Long call() throws IOException
+                {
+                    String srcKey = key(srcGroup, id);
+                    copy(srcKey, key(destGroup, id), meta.getContentLength(), movedMetadata(srcKey, meta));
+                    return meta.getContentLength();
+                }
+            }));
+        }
+        Map<String, Long> sizes = new LinkedHashMap<String, Long>();
+        List<String> keys = new ArrayList<String>();
+        IOException failure = null;
+        for (String id : ids)
+        {
+            Future<Long> copy = copies.get(id);
+            long size = 0L;
+            if (copy != null)
+            {
+                try
+                {
+                    size = await(copy);
+                    keys.add(key(srcGroup, id));
+                    if (hasSidecar(srcMeta.get(id)))
+                    {
+                        keys.add(sidecarKey(key(srcGroup, id)));
+                    }
+                }
+                catch (IOException ioE)
+                {
+                    // left in place, as it was not copied
+                    failure = failure != null ? failure : ioE;
+                }
+            }
+            sizes.put(id, size);
+        }
+        // originals are only deleted once copied, so nothing is lost on failure
+        deleteKeys(keys);
+        if (failure != null)
+        {
+            throw failure;
+        }
+        return sizes;
+    }
+
+    private void deleteKeys(List<String> keys) throws IOException
+    {
+        try
+        {
+            for (int i = 0; i < keys.size(); i += BATCH_SIZE)
+            {
+                List<String> batch = keys.subList(i, Math.min(i + BATCH_SIZE, keys.size()));
+                s3.deleteObjects(new DeleteObjectsRequest(bucket).withQuiet(true)
+                                     .withKeys(batch.toArray(new String[batch.size()])));
+            }
+        }
+        catch (AmazonClientException acE)
+        {
+            // includes MultiObjectDeleteException, listing the keys not deleted
+            throw new IOException(acE);
+        }
+    }
+
+    @Override
+    public long moveObject(String srcGroup, String destGroup, String id) throws IOException
+    {
+        String srcKey = key(srcGroup, id);
+        ObjectMetadata meta = metadata(srcKey);
+        if (meta == null)
+        {
+            return 0L;
+        }
+        // copied within S3, keeping the replica's metadata (and any sidecar checksum)
+        copy(srcKey, key(destGroup, id), meta.getContentLength(), movedMetadata(srcKey, meta));
+        try
+        {
+            s3.deleteObject(bucket, srcKey);
+            if (hasSidecar(meta))
+            {
+                s3.deleteObject(bucket, sidecarKey(srcKey));
+            }
+        }
+        catch (AmazonClientException acE)
+        {
+            throw new IOException(acE);
+        }
+        return meta.getContentLength();
+    }
+
+    private static MessageDigest md5Digest() throws IOException
+    {
+        try
+        {
+            return MessageDigest.getInstance("MD5");
+        }
+        catch (NoSuchAlgorithmException nsaE)
+        {
+            throw new IOException(nsaE);
+        }
+    }
+
+    /**
+     * Stream which counts the bytes read through it.
+     */
+    private static class CountingInputStream extends FilterInputStream
+    {
+        private long count = 0L;
+
+        CountingInputStream(InputStream in)
+        {
+            super(in);
+        }
+
+        long getCount()
+        {
+            return count;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            int b = super.read();
+            if (b >= 0)
+            {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            int n = super.read(b, off, len);
+            if (n > 0)
+            {
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public boolean markSupported()
+        {
+            // counting (and the checksum) would be thrown off by a reset
+            return false;
+        }
+    }
+
+    /**
+     * Lists the replicas of a group, a page of keys at a time. Keys within
+     * sub-groups (i.e. containing a further '/') are not listed.
+     */
+    private class KeyListing implements Iterator<ObjectInfo>
+    {
+        private final String groupPrefix;
+        private final String prefix;
+        private Iterator<S3ObjectSummary> page = Collections.<S3ObjectSummary>emptyList().iterator();
+        private String marker = null;
+        private boolean more = true;
+
+        KeyListing(String groupPrefix, String prefix)
+        {
+            this.groupPrefix = groupPrefix;
+            this.prefix = prefix;
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            while (! page.hasNext() && more)
+            {
+                ObjectListing listing;
+                try
+                {
+                    listing = s3.listObjects(new ListObjectsRequest()
+                        .withBucketName(bucket).withPrefix(groupPrefix + prefix).withDelimiter("/")
+                        .withMarker(marker).withMaxKeys(BATCH_SIZE));
+                }
+                catch (AmazonClientException acE)
+                {
+                    throw new RuntimeException(new IOException(acE));
+                }
+                List<S3ObjectSummary> summaries = listing.getObjectSummaries();
+                page = summaries.iterator();
+                more = listing.isTruncated();
+                marker = listing.getNextMarker() != null ? listing.getNextMarker()
+                       : (! summaries.isEmpty() ? summaries.get(summaries.size() - 1).getKey() : null);
+                if (marker == null)
+                {
+                    more = false;
+                }
+            }
+            return page.hasNext();
+        }
+
+        @Override
+        public ObjectInfo next()
+        {
+            if (! hasNext())
+            {
+                throw new NoSuchElementException();
+            }
+            S3ObjectSummary summary = page.next();
+            String etag = summary.getETag();
+            return new ObjectInfo(summary.getKey().substring(groupPrefix.length()),
+                                  summary.getSize(),
+                                  etag != null && etag.indexOf('-') < 0 ? etag : null,
+                                  summary.getLastModified() != null ?
+                                      String.valueOf(summary.getLastModified().getTime()) : null);
+        }
+
+        @Override
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,779 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.replicate.store;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+import org.dspace.ctask.replicate.ObjectInfo;
+
+/**
+ * SegmentStore packs the small replicas of a group into a few large,
+ * append-only segment files, rather than a file (and inode) each. This keeps
+ * stores holding very many manifests, deletion catalogs or small container
+ * AIPs quick to back up or synchronize.
+ * <P>
+ * Each segment file ('segment-[n].dat') is a sequence of records: the
+ * content of a replica, with its ID, size, MD5 checksum and modification
+ * time; or a tombstone marking the removal of a replica. The index of
+ * replicas (where the latest record of each lies) is kept in memory, and
+ * rebuilt by reading the record headers when the segments are opened. A
+ * record left incomplete (e.g. by a crash mid-write) is cut off at that point.
+ * <P>
+ * Records are only ever appended, to the newest segment, which is replaced
+ * by a new one once it reaches the configured size. Records which have been
+ * removed or replaced leave dead space behind; once enough of an older
+ * segment is dead, its live records are copied to the newest segment (in
+ * the background) and the old segment is deleted.
+ * <P>
+ * Several processes (e.g. the web application and the command line curation
+ * tool) may share a store. Every operation holds a lock on the directory's
+ * 'segments.lock' file, and first reads whatever other processes have
+ * appended since, so each append goes to the true end of the newest segment.
+ * If another process has compacted a segment away, the index is rebuilt.
+ */
+class SegmentStore
+{
+    private static final Logger log = Logger.getLogger(SegmentStore.class);
+
+    // marks the start of each record
+    private static final int MAGIC = 0x52504c53;
+    private static final byte PUT = 1;
+    private static final byte TOMBSTONE = 2;
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".dat";
+    private static final String LOCK_NAME = "segments.lock";
+
+    // a JVM may only hold one lock on a file, so stores of the same directory
+    // in this JVM take turns before locking it
+    private static final ConcurrentMap<String, ReentrantLock> dirLocks =
+        new ConcurrentHashMap<String, ReentrantLock>();
+
+    // compactions of all stores are made one at a time, in the background
+    private static final ExecutorService compactor = Executors.newSingleThreadExecutor(new ThreadFactory()
+    {
+        @Override
+        public Thread newThread(Runnable r)
+        {
+            Thread thread = new Thread(r, "segment-compactor");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    // directory holding the segment files
+    private final File dir;
+    // held by this JVM while it locks the directory
+    private final ReentrantLock dirLock;
+    // size a segment may grow to before a new one is started
+    private final long segmentSize;
+    // percentage of a segment which may be dead before it is compacted
+    private final int compactPercent;
+    // whether appended records are forced to disk
+    private final boolean fsync;
+
+    // the latest record of each replica, by ID
+    private final Map<String, Entry> index = new HashMap<String, Entry>();
+    // segments, by number
+    private final TreeMap<Integer, Segment> segments = new TreeMap<Integer, Segment>();
+    // the segment records are appended to
+    private Segment active = null;
+    private FileChannel activeChannel = null;
+    // whether a compaction is waiting to run
+    private boolean compactionPending = false;
+
+    /**
+     * Opens the segments in a directory, reading their records to build the
+     * index.
+     * @param dir segment directory (created if need be)
+     * @param segmentSize size a segment may reach before a new one is started
+     * @param compactPercent percentage of a segment which may be dead before
+     *        it is compacted (100 = never compacted)
+     * @param fsync whether appended records are forced to disk
+     * @throws IOException if the segments cannot be read
+     */
+    SegmentStore(File dir, long segmentSize, int compactPercent, boolean fsync) throws IOException
+    {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.compactPercent = compactPercent;
+        this.fsync = fsync;
+        if (! dir.isDirectory() && ! dir.mkdirs())
+        {
+            throw new IOException("Unable to create segment directory '" + dir + "'");
+        }
+        ReentrantLock newLock = new ReentrantLock();
+        ReentrantLock existing = dirLocks.putIfAbsent(dir.getCanonicalPath(), newLock);
+        dirLock = existing != null ? existing : newLock;
+        lock().release();
+    }
+
+    /**
+     * @param id replica ID
+     * @return the index entry of a replica, or null if there is none
+     */
+    synchronized Entry entry(String id) throws IOException
+    {
+        DirLock lock = lock();
+        try
+        {
+            return index.get(id);
+        }
+        finally
+        {
+            lock.release();
+        }
+    }
+
+    /**
+     * @param id replica ID
+     * @return the content of a replica, or null if there is none
+     * @throws IOException if the content cannot be read
+     */
+    synchronized byte[] read(String id) throws IOException
+    {
+        DirLock lock = lock();
+        try
+        {
+            return readUnlocked(id);
+        }
+        finally
+        {
+            lock.release();
+        }
+    }
+
+    private byte[] readUnlocked(String id) throws IOException
+    {
+        Entry entry = index.get(id);
+        if (entry == null)
+        {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) entry.length);
+        FileChannel channel = FileChannel.open(segments.get(entry.segment).file.toPath(), StandardOpenOption.READ);
+        try
+        {
+            while (buffer.hasRemaining())
+            {
+                if (channel.read(buffer, entry.offset + buffer.position()) < 0)
+                {
+                    throw new EOFException("Segment ended within replica '" + id + "'");
+                }
+            }
+        }
+        finally
+        {
+            channel.close();
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Adds (or replaces) a replica.
+     * @param id replica ID
+     * @param data replica content
+     * @param md5 hex encoded MD5 checksum of the content
+     * @param modified modification time of the replica
+     * @throws IOException if the record cannot be written
+     */
+    synchronized void put(String id, byte[] data, String md5, long modified) throws IOException
+    {
+        DirLock lock = lock();
+        try
+        {
+            Entry entry = append(PUT, id, data, md5, modified);
+            release(index.put(id, entry));
+            entry.live();
+        }
+        finally
+        {
+            lock.release();
+        }
+        maybeCompact();
+    }
+
+    /**
+     * Removes a replica, if present.
+     * @param id replica ID
+     * @return size of the removed replica, or -1 if there was none
+     * @throws IOException if the tombstone cannot be written
+     */
+    synchronized long remove(String id) throws IOException
+    {
+        Entry entry;
+        DirLock lock = lock();
+        try
+        {
+            entry = index.remove(id);
+            if (entry == null)
+            {
+                return -1L;
+            }
+            append(TOMBSTONE, id, new byte[0], "", 0L);
+            release(entry);
+        }
+        finally
+        {
+            lock.release();
+        }
+        maybeCompact();
+        return entry.length;
+    }
+
+    /**
+     * @param prefix ID prefix to match (null for all replicas)
+     * @return details of the replicas, in no particular order
+     * @throws IOException if the segments cannot be read
+     */
+    synchronized List<ObjectInfo> list(String prefix) throws IOException
+    {
+        List<ObjectInfo> infos = new ArrayList<ObjectInfo>();
+        DirLock lock = lock();
+        try
+        {
+            for (Map.Entry<String, Entry> mapEntry : index.entrySet())
+            {
+                if (prefix == null || mapEntry.getKey().startsWith(prefix))
+                {
+                    Entry entry = mapEntry.getValue();
+                    infos.add(new ObjectInfo(mapEntry.getKey(), entry.length, entry.md5,
+                                             String.valueOf(entry.modified)));
+                }
+            }
+        }
+        finally
+        {
+            lock.release();
+        }
+        return infos;
+    }
+
+    /**
+     * @return number of segment files
+     * @throws IOException if the segments cannot be read
+     */
+    synchronized int segmentCount() throws IOException
+    {
+        DirLock lock = lock();
+        try
+        {
+            return segments.size();
+        }
+        finally
+        {
+            lock.release();
+        }
+    }
+
+    /**
+     * Compacts every segment (other than the one being appended to) whose
+     * dead space has reached the configured percentage.
+     * @return number of bytes of dead space reclaimed
+     * @throws IOException if a segment cannot be compacted
+     */
+    synchronized long compact() throws IOException
+    {
+        compactionPending = false;
+        long reclaimed = 0L;
+        DirLock lock = lock();
+        try
+        {
+            for (Segment segment : new ArrayList<Segment>(segments.values()))
+            {
+                if (segment != active && segment.needsCompaction())
+                {
+                    reclaimed += compact(segment);
+                }
+            }
+        }
+        finally
+        {
+            lock.release();
+        }
+        return reclaimed;
+    }
+
+    /**
+     * Closes the segment being appended to.
+     * @throws IOException if it cannot be closed
+     */
+    synchronized void close() throws IOException
+    {
+        if (activeChannel != null)
+        {
+            activeChannel.close();
+            activeChannel = null;
+        }
+    }
+
+    /**
+     * Copies the live records of a segment to the active segment, then
+     * deletes it. Tombstones are carried over while an older segment may
+     * still hold the record they remove.
+     */
+    private long compact(Segment segment) throws IOException
+    {
+        long before = segment.file.length();
+        boolean olderSegments = segments.firstKey() < segment.number;
+        List<String> live = new ArrayList<String>();
+        List<String> tombstones = new ArrayList<String>();
+        RandomAccessFile raf = new RandomAccessFile(segment.file, "r");
+        try
+        {
+            Record record;
+            while ((record = Record.read(raf)) != null)
+            {
+                if (record.type == TOMBSTONE)
+                {
+                    if (olderSegments && ! index.containsKey(record.id))
+                    {
+                        tombstones.add(record.id);
+                    }
+                }
+                else
+                {
+                    Entry entry = index.get(record.id);
+                    if (entry != null && entry.segment == segment.number && entry.offset == record.offset)
+                    {
+                        live.add(record.id);
+                    }
+                }
+            }
+        }
+        finally
+        {
+            raf.close();
+        }
+        long copied = 0L;
+        for (String id : live)
+        {
+            Entry entry = index.get(id);
+            byte[] data = readUnlocked(id);
+            Entry copy = append(PUT, id, data, entry.md5, entry.modified);
+            index.put(id, copy);
+            copy.live();
+            copied += copy.recordLength;
+        }
+        for (String id : tombstones)
+        {
+            append(TOMBSTONE, id, new byte[0], "", 0L);
+        }
+        // the copies must be safely written before the originals are gone
+        activeChannel().force(true);
+        segments.remove(segment.number);
+        if (! segment.file.delete())
+        {
+            throw new IOException("Unable to delete compacted segment '" + segment.file + "'");
+        }
+        log.debug("Compacted " + segment.file + ": " + live.size() + " replicas kept");
+        return Math.max(0L, before - copied);
+    }
+
+    private void release(Entry entry)
+    {
+        if (entry != null)
+        {
+            Segment segment = segments.get(entry.segment);
+            if (segment != null)
+            {
+                segment.liveBytes -= entry.recordLength;
+            }
+        }
+    }
+
+    private void maybeCompact()
+    {
+        if (compactionPending || compactPercent >= 100)
+        {
+            return;
+        }
+        for (Segment segment : segments.values())
+        {
+            if (segment != active && segment.needsCompaction())
+            {
+                compactionPending = true;
+                compactor.submit(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        try
+                        {
+                            compact();
+                        }
+                        catch (IOException ioE)
+                        {
+                            log.error("Unable to compact segments in '" + dir + "'", ioE);
+                        }
+                    }
+                });
+                return;
+            }
+        }
+    }
+
+    /**
+     * Appends a record to the active segment, starting a new segment first
+     * if the active one is full.
+     */
+    private Entry append(byte type, String id, byte[] data, String md5, long modified) throws IOException
+    {
+        byte[] header = Record.header(type, id, data.length, md5, modified);
+        FileChannel channel = activeChannel();
+        if (active.size > 0L && active.size + header.length + data.length > segmentSize)
+        {
+            startSegment();
+            channel = activeChannel();
+        }
+        long start = active.size;
+        ByteBuffer buffer = ByteBuffer.allocate(header.length + data.length);
+        buffer.put(header).put(data).flip();
+        while (buffer.hasRemaining())
+        {
+            channel.write(buffer, start + buffer.position());
+        }
+        if (fsync)
+        {
+            channel.force(false);
+        }
+        active.size += buffer.limit();
+        return new Entry(active, start + header.length, data.length, md5, modified, buffer.limit());
+    }
+
+    private FileChannel activeChannel() throws IOException
+    {
+        if (active == null)
+        {
+            startSegment();
+        }
+        if (activeChannel == null)
+        {
+            activeChannel = FileChannel.open(active.file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        }
+        return activeChannel;
+    }
+
+    private void startSegment() throws IOException
+    {
+        close();
+        int number = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+        File file = new File(dir, String.format("%s%08d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+        active = new Segment(number, file);
+        segments.put(number, active);
+    }
+
+    /**
+     * Locks the segment directory against other processes (and other stores
+     * of it in this JVM), then brings the index up to date with the records
+     * appended to the segments since it was last read.
+     * @return the lock, to be released once the operation is done
+     */
+    private DirLock lock() throws IOException
+    {
+        DirLock lock = new DirLock();
+        try
+        {
+            refresh();
+        }
+        catch (IOException | RuntimeException e)
+        {
+            lock.release();
+            throw e;
+        }
+        return lock;
+    }
+
+    /**
+     * Reads the records added to the segments since they were last read.
+     * If a segment has gone (compacted by another process) or shrunk, the
+     * index is rebuilt from all the segments.
+     */
+    private void refresh() throws IOException
+    {
+        TreeMap<Integer, File> files = new TreeMap<Integer, File>();
+        File[] listed = dir.listFiles();
+        if (listed != null)
+        {
+            for (File file : listed)
+            {
+                String name = file.getName();
+                if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX))
+                {
+                    files.put(Integer.parseInt(name.substring(SEGMENT_PREFIX.length(),
+                                                              name.length() - SEGMENT_SUFFIX.length())), file);
+                }
+            }
+        }
+        for (Segment segment : segments.values())
+        {
+            File file = files.get(segment.number);
+            if (file == null || file.length() < segment.size)
+            {
+                close();
+                index.clear();
+                segments.clear();
+                active = null;
+                break;
+            }
+        }
+        for (Map.Entry<Integer, File> file : files.entrySet())
+        {
+            Segment segment = segments.get(file.getKey());
+            if (segment == null)
+            {
+                segment = new Segment(file.getKey(), file.getValue());
+                segments.put(segment.number, segment);
+            }
+            if (file.getValue().length() > segment.size)
+            {
+                load(segment);
+            }
+        }
+        Segment newest = segments.isEmpty() ? null : segments.lastEntry().getValue();
+        if (newest != active)
+        {
+            // another process has started a new segment
+            close();
+            active = newest;
+        }
+    }
+
+    /**
+     * Reads the records of a segment after those already read into the
+     * index, cutting off any incomplete record at its end.
+     */
+    private void load(Segment segment) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(segment.file, "rw");
+        try
+        {
+            long length = raf.length();
+            long good = segment.size;
+            raf.seek(good);
+            Record record;
+            try
+            {
+                while ((record = Record.read(raf)) != null)
+                {
+                    long end = record.offset + record.length;
+                    if (end > length)
+                    {
+                        break;
+                    }
+                    if (record.type == PUT)
+                    {
+                        Entry entry = new Entry(segment, record.offset, record.length, record.md5,
+                                                record.modified, end - good);
+                        release(index.put(record.id, entry));
+                        entry.live();
+                    }
+                    else
+                    {
+                        release(index.remove(record.id));
+                    }
+                    good = end;
+                }
+            }
+            catch (IOException ioE)
+            {
+                // torn or garbled record - nothing after it can be trusted
+                log.warn("Unreadable record in " + segment.file + " at " + good + ": " + ioE.getMessage());
+            }
+            if (good < length)
+            {
+                log.warn("Truncating " + segment.file + " to its last complete record (" + good + " bytes)");
+                raf.setLength(good);
+            }
+            segment.size = good;
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    /**
+     * The lock on the segment directory, held for one operation.
+     */
+    private class DirLock
+    {
+        private final RandomAccessFile lockFile;
+        private final FileLock fileLock;
+
+        DirLock() throws IOException
+        {
+            dirLock.lock();
+            RandomAccessFile raf = null;
+            try
+            {
+                raf = new RandomAccessFile(new File(dir, LOCK_NAME), "rw");
+                fileLock = raf.getChannel().lock();
+                lockFile = raf;
+            }
+            catch (IOException | RuntimeException e)
+            {
+                if (raf != null)
+                {
+                    raf.close();
+                }
+                dirLock.unlock();
+                throw e;
+            }
+        }
+
+        void release() throws IOException
+        {
+            try
+            {
+                fileLock.release();
+                lockFile.close();
+            }
+            finally
+            {
+                dirLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * A segment file, with its size and the bytes of its live records.
+     */
+    private class Segment
+    {
+        final int number;
+        final File file;
+        long size = 0L;
+        long liveBytes = 0L;
+
+        Segment(int number, File file)
+        {
+            this.number = number;
+            this.file = file;
+        }
+
+        boolean needsCompaction()
+        {
+            long dead = size - liveBytes;
+            return dead > 0L && dead * 100L >= size * compactPercent;
+        }
+    }
+
+    /**
+     * Where the latest content of a replica lies, with its attributes.
+     */
+    class Entry
+    {
+        final int segment;
+        // position of the content in the segment
+        final long offset;
+        final long length;
+        final String md5;
+        final long modified;
+        // length of the whole record (header and content)
+        final long recordLength;
+
+        private Entry(Segment segment, long offset, long length, String md5, long modified, long recordLength)
+        {
+            this.segment = segment.number;
+            this.offset = offset;
+            this.length = length;
+            this.md5 = md5;
+            this.modified = modified;
+            this.recordLength = recordLength;
+        }
+
+        private void live()
+        {
+            segments.get(segment).liveBytes += recordLength;
+        }
+    }
+
+    /**
+     * A record header, as read from a segment.
+     */
+    private static class Record
+    {
+        byte type;
+        String id;
+        long length;
+        String md5;
+        long modified;
+        // position of the content in the segment
+        long offset;
+
+        static byte[] header(byte type, String id, long length, String md5, long modified) throws IOException
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeByte(type);
+            out.writeUTF(id);
+            out.writeUTF(md5);
+            out.writeLong(modified);
+            out.writeLong(length);
+            out.close();
+            return bytes.toByteArray();
+        }
+
+        /**
+         * Reads the next record header, leaving the file positioned at the
+         * following record.
+         * @return the header, or null at the end of the segment
+         */
+        static Record read(RandomAccessFile raf) throws IOException
+        {
+            if (raf.getFilePointer() >= raf.length())
+            {
+                return null;
+            }
+            if (raf.readInt() != MAGIC)
+            {
+                throw new IOException("Bad record marker");
+            }
+            Record record = new Record();
+            record.type = raf.readByte();
+            if (record.type != PUT && record.type != TOMBSTONE)
+            {
+                throw new IOException("Bad record type " + record.type);
+            }
+            record.id = raf.readUTF();
+            record.md5 = raf.readUTF();
+            record.modified = raf.readLong();
+            record.length = raf.readLong();
+            if (record.length < 0L)
+            {
+                throw new IOException("Bad record length " + record.length);
+            }
+            record.offset = raf.getFilePointer();
+            raf.seek(record.offset + record.length);
+            return record;
+        }
+    }
+}
@@ -0,0 +1,377 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.replicate.store;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.dspace.ctask.replicate.ObjectInfo;
+import org.dspace.services.ConfigurationService;
+import org.dspace.services.factory.DSpaceServicesFactory;
+
+/**
+ * SimulatedRemoteObjectStore keeps replicas on the local file system, as
+ * LocalObjectStore does, but behaves like a remote store: each call is
+ * delayed, content moves at a limited rate, and calls fail at random.
+ * It allows replication (throughput, retry and parallelism settings) to be
+ * measured without network access or a DuraCloud account.
+ * <P>
+ * Behaviour is set in 'replicate.cfg' by the 'replicate.store.simulated.*'
+ * properties. Failures and jitter are drawn from a seeded random sequence,
+ * so a run over the same objects behaves the same way each time.
+ */
+public class SimulatedRemoteObjectStore extends LocalObjectStore
+{
+    private ConfigurationService configurationService = DSpaceServicesFactory.getInstance().getConfigurationService();
+
+    // calls delayed and failed - those made by this store on itself are not
+    private final ThreadLocal<Integer> depth = new ThreadLocal<Integer>()
+    {
+        @Override
+        protected Integer initialValue()
+        {
+            return 0;
+        }
+    };
+
+    private Random random = null;
+
+    // delay of each call, in milliseconds (by operation)
+    private long latency = 0L;
+    // most random extra delay of each call, in milliseconds
+    private long jitter = 0L;
+    // content transfer rate, in bytes per second (0 = unlimited)
+    private long bandwidth = 0L;
+    // chance that a call fails, in parts per thousand
+    private int failureRate = 0;
+
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong delayMillis = new AtomicLong();
+
+    // need no-arg constructor for PluginManager
+    public SimulatedRemoteObjectStore()
+    {
+    }
+
+    @Override
+    public void init() throws IOException
+    {
+        super.init();
+        latency = configurationService.getLongProperty("replicate.store.simulated.latency", 0L);
+        jitter = configurationService.getLongProperty("replicate.store.simulated.jitter", 0L);
+        bandwidth = configurationService.getLongProperty("replicate.store.simulated.bandwidth", 0L);
+        failureRate = configurationService.getIntProperty("replicate.store.simulated.failures", 0);
+        random = new Random(configurationService.getLongProperty("replicate.store.simulated.seed", 0L));
+    }
+
+    /**
+     * @return number of calls made on the store
+     */
+    public long getCalls()
+    {
+        return calls.get();
+    }
+
+    /**
+     * @return number of calls failed by the simulation
+     */
+    public long getFailures()
+    {
+        return failures.get();
+    }
+
+    /**
+     * @return total milliseconds calls were delayed by the simulation
+     */
+    public long getDelayMillis()
+    {
+        return delayMillis.get();
+    }
+
+    @Override
+    public boolean objectExists(String group, String id) throws IOException
+    {
+        begin("exists", 0L);
+        try
+        {
+            return super.objectExists(group, id);
+        }
+        finally
+        {
+            end();
+        }
+    }
+
+    @Override
+    public Map<String, Boolean> objectsExist(String group, List<String> ids) throws IOException
+    {
+        // a batch is looked up in a single call
+        begin("exists", 0L);
+        try
+        {
+            return super.objectsExist(group, ids);
+        }
+        finally
+        {
+            end();
+        }
+    }
+
+    @Override
+    public String objectAttribute(String group, String id, String attrName) throws IOException
+    {
+        begin("attribute", 0L);
+        try
+        {
+            return super.objectAttribute(group, id, attrName);
+        }
+        finally
+        {
+            end();
+        }
+    }
+
+    @Override
+    public Map<String, Map<String, String>> objectAttributes(String group, List<String> ids) throws IOException
+    {
+        begin("attribute", 0L);
+        try
+        {
+            return super.objectAttributes(group, ids);
+        }
+        finally
+        {
+            end();
+        }
+    }
+
+    @Override
+    public Iterator<ObjectInfo> listObjects(String group, String prefix) throws IOException
+    {
+        begin("list", 0L);
+        try
+        {
+            return super.listObjects(group, prefix);
+        }
+        finally
+        {
+            end();
+        }
+    }
+
+    @Override
+    public long fetchObject(String group, String id, File file) throws IOException
+    {
+        begin("fetch", 0L);
+        try
+        {
+            long size = super.fetchObject(group, id, file);
+            delay(transferMillis(size));
+            return size;
+        }
+        finally
+        {
+            end();
+        }
+    }
+
+    @Override
+    public InputStream openObject(String group, String id) throws IOException
+    {
+        begin("open", 0L);
+        try
+        {
+            InputStream in = super.openObject(group, id);
+            return in != null ? new ThrottledInputStream(in) : null;
+        }
+        finally
+        {
+            end();
+        }
+    }
+
+    @Override
+    public long transferObject(String group, File file) throws IOException
+    {
+        begin("transfer", file.length());
+        try
+        {
+            return super.transferObject(group, file);
+        }
+        finally
+        {
+            end();
+        }
+    }
+
+    @Override
+    public long transferObject(String group, String id, InputStream in, long length, String md5) throws IOException
+    {
+        begin("transfer", length);
+        try
+        {
+            return super.transferObject(group, id, in, length, md5);
+        }
+        finally
+        {
+            end();
+        }
+    }
+
+    @Override
+    public long removeObject(String group, String id) throws IOException
+    {
+        begin("remove", 0L);
+        try
+        {
+            return super.removeObject(group, id);
+        }
+        finally
+        {
+            end();
+        }
+    }
+
+    @Override
+    public long moveObject(String srcGroup, String destGroup, String id) throws IOException
+    {
+        // moves happen within the store, so take no transfer time
+        begin("move", 0L);
+        try
+        {
+            return super.moveObject(srcGroup, destGroup, id);
+        }
+        finally
+        {
+            end();
+        }
+    }
+
+    /**
+     * Starts a call: unless made by the store on itself, it is delayed,
+     * and may fail.
+     * @param op name of the operation, for per-operation latency
+     * @param bytes bytes of content sent with the call
+     * @throws IOException if the call is to fail
+     */
+    private void begin(String op, long bytes) throws IOException
+    {
+        int level = depth.get();
+        depth.set(level + 1);
+        if (level > 0)
+        {
+            return;
+        }
+        calls.incrementAndGet();
+        boolean fail;
+        long extra;
+        synchronized (random)
+        {
+            fail = random.nextInt(1000) < failureRate;
+            extra = jitter > 0L ? (long) (random.nextDouble() * jitter) : 0L;
+        }
+        long opLatency = configurationService.getLongProperty("replicate.store.simulated.latency." + op, latency);
+        try
+        {
+            delay(opLatency + extra + transferMillis(bytes));
+            if (fail)
+            {
+                failures.incrementAndGet();
+                throw new IOException("Simulated failure of '" + op + "' call");
+            }
+        }
+        catch (IOException ioE)
+        {
+            end();
+            throw ioE;
+        }
+    }
+
+    private void end()
+    {
+        depth.set(depth.get() - 1);
+    }
+
+    private long transferMillis(long bytes)
+    {
+        return bandwidth > 0L && bytes > 0L ? bytes * 1000L / bandwidth : 0L;
+    }
+
+    private void delay(long millis) throws IOException
+    {
+        if (millis <= 0L)
+        {
+            return;
+        }
+        delayMillis.addAndGet(millis);
+        try
+        {
+            Thread.sleep(millis);
+        }
+        catch (InterruptedException intE)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", intE);
+        }
+    }
+
+    /**
+     * Stream which is read no faster than the configured bandwidth.
+     */
+    private class ThrottledInputStream extends FilterInputStream
+    {
+        // bytes read, but not yet delayed for
+        private long pending = 0L;
+
+        ThrottledInputStream(InputStream in)
+        {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            int b = super.read();
+            if (b >= 0)
+            {
+                throttle(1L);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            int n = super.read(b, off, len);
+            if (n > 0)
+            {
+                throttle(n);
+            }
+            return n;
+        }
+
+        private void throttle(long bytes) throws IOException
+        {
+            pending += bytes;
+            long millis = transferMillis(pending);
+            if (millis > 0L)
+            {
+                delay(millis);
+                pending -= millis * bandwidth / 1000L;
+            }
+        }
+    }
+}
@@ -7,14 +7,19 @@
  */
 package org.dspace.pack;
 
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
 import org.dspace.content.Collection;
 import org.dspace.content.Community;
 import org.dspace.content.DSpaceObject;
 import org.dspace.content.Item;
 import org.dspace.core.Constants;
+import org.dspace.core.factory.CoreServiceFactory;
 import org.dspace.pack.bagit.CollectionPacker;
 import org.dspace.pack.bagit.CommunityPacker;
 import org.dspace.pack.bagit.ItemPacker;
+import org.dspace.pack.bagit.PayloadStore;
 import org.dspace.pack.mets.METSPacker;
 import org.dspace.services.factory.DSpaceServicesFactory;
 import org.duraspace.bagit.BagProfile;
@@ -23,6 +28,11 @@ import org.duraspace.bagit.BagProfile;
  * PackerFactory mints packers for specified object types. Packer implementation
  * is based on a configurable property (packer.pkgtype). Currently, only 
  * LC METS-based ("mets") and Bagit-based ("bagit") package formats are supported.
+ * <p>
+ * Packers may be used by several curation workers at once, each with its
+ * own packer. METS packers are a little expensive to create, so are kept
+ * in a pool: a caller done with a packer hands it back with
+ * <code>release</code> for the next to reuse.
  *
  * @author richardrodgers
  */
@@ -40,6 +50,7 @@ public class PackerFactory
     public static final String WITHDRAWN  = "withdrawn";
     public static final String BAG_PROFILE_KEY = "replicate-bagit.profile";
     public static final String DEFAULT_PROFILE = BagProfile.BuiltIn.BEYOND_THE_REPOSITORY.getIdentifier();
+    public static final String PAYLOAD_STORE_KEY = "plugin.single." + PayloadStore.class.getName();
     
     // type of package to use - must be either 'mets' or 'bagit'
     private static String packType = DSpaceServicesFactory.getInstance().getConfigurationService()
@@ -50,8 +61,15 @@ public class PackerFactory
     // content filter - comma separated list of bundle names
     private static String cfgFilter = DSpaceServicesFactory.getInstance().getConfigurationService()
                                                            .getProperty("replicate.packer.cfilter");
-    // cached instance of METSPacker - because a little expensive to create
-    private static METSPacker metsPacker = null;
+    // idle METSPackers, for reuse - because a little expensive to create
+    private static final Queue<METSPacker> metsPackers = new ConcurrentLinkedQueue<METSPacker>();
+    // most idle METSPackers kept
+    private static final int POOL_SIZE = 2 * Runtime.getRuntime().availableProcessors();
+    // whether bagit item packages only refer to bitstream data kept in the payload store
+    private static boolean dedup = DSpaceServicesFactory.getInstance().getConfigurationService()
+                                                        .getBooleanProperty("replicate.packer.dedup", false);
+    // cached instance of the PayloadStore, if one is configured
+    private static PayloadStore payloadStore = null;
 
     public static Packer instance(DSpaceObject dso)
     {
@@ -59,6 +77,7 @@ public class PackerFactory
         int type = dso.getType();
         if ("mets".equals(packType))
         {
+            METSPacker metsPacker = metsPackers.poll();
             if (metsPacker == null)
             {
                 metsPacker = new METSPacker(dso, archFmt);
@@ -75,11 +94,14 @@ public class PackerFactory
         }
         else if (Constants.ITEM == type)
         {
-            packer = new ItemPacker((Item)dso, archFmt);
+            ItemPacker itemPacker = new ItemPacker((Item)dso, archFmt);
             if (cfgFilter != null)
             {
-                packer.setContentFilter(cfgFilter);
+                itemPacker.setContentFilter(cfgFilter);
             }
+            itemPacker.setPayloadStore(payloadStore());
+            itemPacker.setDeduplicate(dedup);
+            packer = itemPacker;
         }
         else if (Constants.COLLECTION == type)
         {
@@ -95,4 +117,39 @@ public class PackerFactory
         }
         return packer;
     }
+
+    /**
+     * Hands back a packer from <code>instance</code> once the caller is
+     * done with it, so that it may be reused. Packers which are not pooled,
+     * or not released, are simply left to the garbage collector.
+     *
+     * @param packer packer no longer in use
+     */
+    public static void release(Packer packer)
+    {
+        if (packer instanceof METSPacker && metsPackers.size() < POOL_SIZE)
+        {
+            METSPacker metsPacker = (METSPacker) packer;
+            metsPacker.setDSO(null);
+            metsPackers.offer(metsPacker);
+        }
+    }
+
+    /**
+     * @return the configured PayloadStore, or null if there is none
+     */
+    private static synchronized PayloadStore payloadStore()
+    {
+        if (payloadStore == null &&
+            DSpaceServicesFactory.getInstance().getConfigurationService().hasProperty(PAYLOAD_STORE_KEY))
+        {
+            payloadStore = (PayloadStore) CoreServiceFactory.getInstance().getPluginService()
+                                                           .getSinglePlugin(PayloadStore.class);
+        }
+        if (payloadStore == null && dedup)
+        {
+            throw new RuntimeException("replicate.packer.dedup requires a PayloadStore to be configured");
+        }
+        return payloadStore;
+    }
 }
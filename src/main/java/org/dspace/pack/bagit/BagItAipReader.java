@@ -9,6 +9,9 @@ package org.dspace.pack.bagit;
 
 import static org.dspace.pack.PackerFactory.BAG_PROFILE_KEY;
 import static org.dspace.pack.PackerFactory.DEFAULT_PROFILE;
+import static org.dspace.pack.bagit.BagItAipWriter.PAYLOAD_ALGORITHM_KEY;
+import static org.dspace.pack.bagit.BagItAipWriter.PAYLOAD_CHECKSUM;
+import static org.dspace.pack.bagit.BagItAipWriter.PAYLOAD_REF;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -237,6 +240,9 @@ public class BagItAipReader {
         final String relaxedUuid = "[\\w]{8}-[\\w]{4}-[\\w]{4}-[\\w]{4}-[\\w]{12}";
         final String extension = "(\\..*)?";
         final Pattern uuid = Pattern.compile("(?<uuid>" + bitstreamStart + relaxedUuid + ")" + extension);
+        // or bitstream_uuid-payload.txt, for a reference to a payload kept in a PayloadStore
+        final Pattern payloadRef = Pattern.compile("(?<uuid>" + bitstreamStart + relaxedUuid + ")-" +
+                                                   Pattern.quote(PAYLOAD_REF));
 
         // filter to find only directories (for bundle names)
         final DirectoryStream.Filter<Path> directoryFilter = new DirectoryStream.Filter<Path>() {
@@ -250,7 +256,9 @@ public class BagItAipReader {
         final DirectoryStream.Filter<Path> bitstreamFilter = new DirectoryStream.Filter<Path>() {
             @Override
             public boolean accept(Path path) {
-                return path.toFile().isFile() && uuid.matcher(path.getFileName().toString()).matches();
+                final String name = path.getFileName().toString();
+                return path.toFile().isFile() &&
+                       (uuid.matcher(name).matches() || payloadRef.matcher(name).matches());
             }
         };
 
@@ -267,8 +275,12 @@ public class BagItAipReader {
                         final String bitstreamName = bitstream.getFileName().toString();
 
                         // load the bitstream metadata
-                        final Matcher matcher = uuid.matcher(bitstreamName);
-                        if (matcher.matches()) {
+                        Matcher matcher = payloadRef.matcher(bitstreamName);
+                        final boolean isPayloadRef = matcher.matches();
+                        if (!isPayloadRef) {
+                            matcher = uuid.matcher(bitstreamName);
+                        }
+                        if (isPayloadRef || matcher.matches()) {
                             final Policies policies;
                             final Metadata metadata;
 
@@ -282,7 +294,14 @@ public class BagItAipReader {
                                 throw new IOException("Unable to read bitstream xml!", e);
                             }
 
-                            packagedBitstreams.add(new PackagedBitstream(bundleName, bitstream, metadata, policies));
+                            if (isPayloadRef) {
+                                final String payload = readPayloadChecksum(bitstream);
+                                packagedBitstreams.add(new PackagedBitstream(bundleName, bitstream, metadata,
+                                                                             policies, payload));
+                            } else {
+                                packagedBitstreams.add(new PackagedBitstream(bundleName, bitstream, metadata,
+                                                                             policies));
+                            }
                         }
                     }
                 }
@@ -292,6 +311,27 @@ public class BagItAipReader {
         return packagedBitstreams;
     }
 
+    /**
+     * Read the checksum of the payload a bitstream refers to
+     *
+     * @param payloadRef the {@link Path} to the payload reference
+     * @return the MD5 checksum of the payload
+     * @throws IOException if the reference cannot be read, or is not to an MD5 checksum
+     */
+    private String readPayloadChecksum(final Path payloadRef) throws IOException {
+        final Properties properties = new Properties();
+        try (InputStream is = Files.newInputStream(payloadRef)) {
+            properties.load(is);
+        }
+
+        final String checksum = properties.getProperty(PAYLOAD_CHECKSUM);
+        final String algorithm = properties.getProperty(PAYLOAD_ALGORITHM_KEY);
+        if (checksum == null || !"MD5".equalsIgnoreCase(algorithm)) {
+            throw new IOException("Invalid payload reference: " + payloadRef.getFileName());
+        }
+        return checksum;
+    }
+
     /**
      * Finish operations and remove the aip
      *
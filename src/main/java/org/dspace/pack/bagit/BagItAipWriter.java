@@ -21,10 +21,13 @@ import java.nio.file.StandardOpenOption;
 import java.security.DigestOutputStream;
 import java.security.MessageDigest;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicLong;
 import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
@@ -76,6 +79,13 @@ public class BagItAipWriter {
     private static final String POLICY_XML = "policy.xml";
     private static final String METADATA_XML = "metadata.xml";
     private static final String BITSTREAM_PREFIX = "bitstream_";
+    private static final String PAYLOAD_ALGORITHM = "MD5";
+
+    // Reference to a bitstream payload held in a PayloadStore, and its properties
+    public static final String PAYLOAD_REF = "payload.txt";
+    public static final String PAYLOAD_CHECKSUM = "checksum";
+    public static final String PAYLOAD_ALGORITHM_KEY = "algorithm";
+    public static final String PAYLOAD_SIZE = "size";
 
     private final BitstreamService bitstreamService = ContentServiceFactory.getInstance().getBitstreamService();
 
@@ -119,6 +129,11 @@ public class BagItAipWriter {
      */
     private List<BagBitstream> bitstreams;
 
+    /**
+     * Store which bitstream payloads are written to in place of the bag, or null to write them to the bag
+     */
+    private PayloadStore payloadStore;
+
     /**
      * Constructor for a {@link BagItAipWriter}. Takes a minimal set of information needed in order to write an AIP as a
      * BagIt bag for dspace consumption.
@@ -135,6 +150,7 @@ public class BagItAipWriter {
         this.directory = checkNotNull(directory);
         this.properties = checkNotNull(properties);
         this.bitstreams = Collections.emptyList();
+        this.payloadStore = null;
     }
 
     /**
@@ -173,6 +189,15 @@ public class BagItAipWriter {
         return this;
     }
 
+    /**
+     * @param payloadStore the {@link PayloadStore} bitstream payloads are kept in, or null to write them to the bag
+     * @return the {@link BagItAipWriter} used for creating the aip
+     */
+    public BagItAipWriter withPayloadStore(final PayloadStore payloadStore) {
+        this.payloadStore = payloadStore;
+        return this;
+    }
+
     /**
      * Create a serialized BagIt bag using the parameters the BagItAipWriter was instantiated with
      *
@@ -226,26 +251,27 @@ public class BagItAipWriter {
                 Files.createDirectories(propertiesFile.getParent());
             }
 
-            try (final OutputStream output = Files.newOutputStream(propertiesFile, StandardOpenOption.CREATE_NEW);
-                 final CountingOutputStream countingOS = new CountingOutputStream(output);
-                 final DigestOutputStream digestOS = new DigestOutputStream(countingOS, messageDigest)) {
-                final List<String> lines = properties.get(filename);
-                for (String line : lines) {
-                    digestOS.write(line.getBytes());
-                    digestOS.write("\n".getBytes());
-                }
-
-                successFiles.incrementAndGet();
-                successBytes.addAndGet(countingOS.getCount());
-            }
-            final String objFileDigest = Utils.toHex(messageDigest.digest());
-            checksums.put(propertiesFile.toFile(), objFileDigest);
+            writeLines(properties.get(filename), propertiesFile, messageDigest);
         }
 
         // then metadata and policy
         writeXml(metadata, dataDir.resolve(METADATA_XML), marshaller, messageDigest);
         writeXml(policies, dataDir.resolve(POLICY_XML), marshaller, messageDigest);
 
+        // find which payloads need to be added to the payload store (if any)
+        final Set<String> missingPayloads = new HashSet<>();
+        if (payloadStore != null) {
+            final Set<String> payloads = new HashSet<>();
+            for (BagBitstream bagBitstream : bitstreams) {
+                if (storesPayload(bagBitstream)) {
+                    payloads.add(bagBitstream.getBitstream().getChecksum());
+                }
+            }
+            if (!payloads.isEmpty()) {
+                missingPayloads.addAll(payloadStore.missing(payloads));
+            }
+        }
+
         // write any bitstreams
         for (BagBitstream bagBitstream : bitstreams) {
             // create the bundle directory
@@ -268,6 +294,21 @@ public class BagItAipWriter {
 
             if (bagBitstream.getFetchUrl() != null) {
                 throw new UnsupportedOperationException("fetch.txt for bags is not supported at this time");
+            } else if (storesPayload(bagBitstream)) {
+                // the payload is kept (once) in the payload store, and referred to from the bag
+                final String checksum = bitstream.getChecksum();
+                if (missingPayloads.remove(checksum)) {
+                    try (InputStream is = bitstreamService.retrieve(curationContext, bitstream)) {
+                        payloadStore.store(checksum, bitstream.getSizeBytes(), is);
+                    }
+                }
+
+                final Path payloadRef = bitstreamDirectory.resolve(BITSTREAM_PREFIX + bitstreamID + "-" + PAYLOAD_REF);
+                final List<String> lines = new ArrayList<>();
+                lines.add(PAYLOAD_CHECKSUM + PROPERTIES_DELIMITER + checksum);
+                lines.add(PAYLOAD_ALGORITHM_KEY + PROPERTIES_DELIMITER + PAYLOAD_ALGORITHM);
+                lines.add(PAYLOAD_SIZE + PROPERTIES_DELIMITER + bitstream.getSizeBytes());
+                writeLines(lines, payloadRef, messageDigest);
             } else {
                 // copy the bitstream
                 messageDigest.reset();
@@ -380,6 +421,45 @@ public class BagItAipWriter {
         directory.delete();
     }
 
+    /**
+     * Create a text file of lines, e.g. a properties file
+     *
+     * @param lines the lines to write
+     * @param file the path of the file to create
+     * @param messageDigest the message digest to capture what is written
+     * @throws IOException if there's an error writing the file
+     */
+    private void writeLines(final List<String> lines, final Path file, final MessageDigest messageDigest)
+        throws IOException {
+        messageDigest.reset();
+
+        try (final OutputStream output = Files.newOutputStream(file, StandardOpenOption.CREATE_NEW);
+             final CountingOutputStream countingOS = new CountingOutputStream(output);
+             final DigestOutputStream digestOS = new DigestOutputStream(countingOS, messageDigest)) {
+            for (String line : lines) {
+                digestOS.write(line.getBytes());
+                digestOS.write("\n".getBytes());
+            }
+
+            successFiles.incrementAndGet();
+            successBytes.addAndGet(countingOS.getCount());
+        }
+        checksums.put(file.toFile(), Utils.toHex(messageDigest.digest()));
+    }
+
+    /**
+     * Whether a bitstream's payload is kept in the payload store rather than the bag. This requires a payload store,
+     * and an MD5 checksum already known for the bitstream.
+     *
+     * @param bagBitstream the bitstream to check
+     * @return true if the payload should be kept in the payload store
+     */
+    private boolean storesPayload(final BagBitstream bagBitstream) {
+        final Bitstream bitstream = bagBitstream.getBitstream();
+        return payloadStore != null && bagBitstream.getFetchUrl() == null && bitstream.getChecksum() != null &&
+               PAYLOAD_ALGORITHM.equalsIgnoreCase(bitstream.getChecksumAlgorithm());
+    }
+
     /**
      * Create an xml document for a given object and its path
      *
@@ -21,6 +21,7 @@ import static org.dspace.pack.bagit.BagItAipWriter.PROPERTIES_DELIMITER;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Files;
 import java.sql.SQLException;
 import java.util.ArrayList;
@@ -68,6 +69,8 @@ public class ItemPacker implements Packer {
     private List<String> filterBundles = new ArrayList<>();
     private boolean exclude = true;
     private List<RefFilter> refFilters = new ArrayList<>();
+    private PayloadStore payloadStore = null;
+    private boolean deduplicate = false;
 
     public ItemPacker(Item item, String archFmt)
     {
@@ -158,6 +161,7 @@ public class ItemPacker implements Packer {
             .withPolicies(policy)
             .withMetadata(metadata)
             .withBitstreams(bitstreams)
+            .withPayloadStore(deduplicate ? payloadStore : null)
             .packageAip();
     }
 
@@ -197,9 +201,14 @@ public class ItemPacker implements Packer {
                 bundle = bundleService.create(context, item, packaged.getBundle());
             }
 
-            // create a bitstream
-            final Bitstream bitstream = bitstreamService.create(context, bundle,
-                                                                Files.newInputStream(packaged.getBitstream()));
+            // create a bitstream, from the payload store if the aip only refers to its data
+            final Bitstream bitstream;
+            final String payload = packaged.getPayload();
+            if (payload != null) {
+                bitstream = createFromPayload(context, bundle, payload);
+            } else {
+                bitstream = bitstreamService.create(context, bundle, Files.newInputStream(packaged.getBitstream()));
+            }
 
             // load the bitstream metadata
             for (Value value : packaged.getMetadata().getValues()) {
@@ -231,6 +240,56 @@ public class ItemPacker implements Packer {
         reader.clean();
     }
 
+    /**
+     * Set the store which bitstream payloads are kept in. AIPs which refer to payloads in the store (rather than
+     * holding the bitstream data) are restored from it.
+     *
+     * @param payloadStore the {@link PayloadStore}, or null if none is configured
+     */
+    public void setPayloadStore(final PayloadStore payloadStore) {
+        this.payloadStore = payloadStore;
+    }
+
+    /**
+     * Set whether packed AIPs only refer to the bitstream data, which is stored once in the payload store under its
+     * checksum. Requires a payload store.
+     *
+     * @param deduplicate true to keep bitstream data in the payload store, false to keep it in the AIP
+     */
+    public void setDeduplicate(final boolean deduplicate) {
+        this.deduplicate = deduplicate;
+    }
+
+    /**
+     * Create a bitstream from a payload in the payload store, verifying its checksum
+     *
+     * @param context the curation Context
+     * @param bundle the Bundle to create the bitstream in
+     * @param payload the MD5 checksum of the payload
+     * @return the created Bitstream
+     */
+    private Bitstream createFromPayload(final Context context, final Bundle bundle, final String payload)
+        throws AuthorizeException, IOException, SQLException {
+        if (payloadStore == null) {
+            throw new IOException("Item " + item.getHandle() + " refers to payload " + payload +
+                                  " but no payload store is configured");
+        }
+
+        final Bitstream bitstream;
+        try (InputStream is = payloadStore.open(payload)) {
+            if (is == null) {
+                throw new IOException("Missing payload " + payload + " for item: " + item.getHandle());
+            }
+            bitstream = bitstreamService.create(context, bundle, is);
+        }
+
+        if (!payload.equalsIgnoreCase(bitstream.getChecksum())) {
+            throw new IOException("Payload " + payload + " for item " + item.getHandle() +
+                                  " does not match its checksum");
+        }
+        return bitstream;
+    }
+
     @Override
     public long size(String method) throws SQLException
     {
@@ -24,6 +24,7 @@ public class PackagedBitstream {
     private final Path bitstream;
     private final Policies policies;
     private final Metadata metadata;
+    private final String payload;
 
     /**
      * Constructor for bitstreams packaged in a BagIt AIP
@@ -35,10 +36,25 @@ public class PackagedBitstream {
      */
     public PackagedBitstream(final String bundle, final Path bitstream, final Metadata metadata,
                              final Policies policies) {
+        this(bundle, bitstream, metadata, policies, null);
+    }
+
+    /**
+     * Constructor for bitstreams whose data is kept in a {@link PayloadStore}, and referred to by the BagIt AIP
+     *
+     * @param bundle the name of the bundle for the bitstream
+     * @param bitstream the path to the payload reference
+     * @param metadata the metadata for the bitstream, as a {@link Metadata} pojo
+     * @param policies the policy for the bitstream
+     * @param payload the MD5 checksum of the payload in the {@link PayloadStore}, or null if the data is in the AIP
+     */
+    public PackagedBitstream(final String bundle, final Path bitstream, final Metadata metadata,
+                             final Policies policies, final String payload) {
         this.bundle = bundle;
         this.bitstream = bitstream;
         this.metadata = metadata;
         this.policies = policies;
+        this.payload = payload;
     }
 
     /**
@@ -49,12 +65,19 @@ public class PackagedBitstream {
     }
 
     /**
-     * @return the {@link Path} to the bitstream
+     * @return the {@link Path} to the bitstream, or to the payload reference if the data is in a {@link PayloadStore}
      */
     public Path getBitstream() {
         return bitstream;
     }
 
+    /**
+     * @return the MD5 checksum of the payload in the {@link PayloadStore}, or null if the bitstream data is in the AIP
+     */
+    public String getPayload() {
+        return payload;
+    }
+
     /**
      * @return the metadata for the bitstream
      */
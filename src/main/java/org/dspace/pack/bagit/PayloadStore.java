@@ -0,0 +1,53 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.pack.bagit;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Set;
+
+/**
+ * A content-addressed store for bitstream payloads. When an {@link ItemPacker} is given a PayloadStore, each
+ * bitstream's content is kept once in the store under its MD5 checksum, and the AIP carries only a reference to it
+ * (along with the bitstream metadata and policies). Identical content shared by many items, or unchanged across
+ * re-transmissions of an item, is then stored and sent only once.
+ *
+ * Implementations are configured as a single plugin, e.g.
+ * plugin.single.org.dspace.pack.bagit.PayloadStore = org.dspace.ctask.replicate.ReplicaPayloadStore
+ */
+public interface PayloadStore {
+
+    /**
+     * Find which of a set of payloads are not yet in the store
+     *
+     * @param checksums the MD5 checksums of the payloads
+     * @return the checksums of those payloads not in the store
+     * @throws IOException if the store cannot be queried
+     */
+    Set<String> missing(Set<String> checksums) throws IOException;
+
+    /**
+     * Add a payload to the store
+     *
+     * @param checksum the MD5 checksum of the payload
+     * @param size     the size of the payload in bytes
+     * @param content  the payload content, which the caller closes
+     * @return the number of bytes sent to the store
+     * @throws IOException if the payload cannot be stored, or does not match its checksum
+     */
+    long store(String checksum, long size, InputStream content) throws IOException;
+
+    /**
+     * Open a payload in the store for reading
+     *
+     * @param checksum the MD5 checksum of the payload
+     * @return a stream of the payload content, or null if the store does not hold it
+     * @throws IOException if the store cannot be read
+     */
+    InputStream open(String checksum) throws IOException;
+}
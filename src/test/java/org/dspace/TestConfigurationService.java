@@ -29,6 +29,9 @@ public class TestConfigurationService implements ConfigurationService {
 
     @Override
     public <T> T getPropertyAsType(String name, T defaultValue) {
+        if (!properties.containsKey(name)) {
+            return defaultValue;
+        }
         throw new UnsupportedOperationException();
     }
 
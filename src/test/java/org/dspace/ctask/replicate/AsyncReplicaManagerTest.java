@@ -0,0 +1,239 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.replicate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+import static org.dspace.TestDSpaceServicesFactory.DSPACE_SERVICES_FACTORY;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dspace.TestConfigurationService;
+import org.dspace.TestDSpaceKernelImpl;
+import org.dspace.TestDSpaceServicesFactory;
+import org.dspace.TestServiceManager;
+import org.dspace.kernel.DSpaceKernel;
+import org.dspace.kernel.DSpaceKernelManager;
+import org.dspace.kernel.ServiceManager;
+import org.dspace.services.ConfigurationService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+/**
+ * Tests for the AsyncReplicaManager, over a mocked ReplicaManager
+ */
+public class AsyncReplicaManagerTest {
+
+    private final ExecutorService callers = Executors.newCachedThreadPool();
+    private ReplicaManager repMan;
+    private AsyncReplicaManager asyncMan;
+
+    @Before
+    public void setup() {
+        final ServiceManager serviceManager = new TestServiceManager();
+        final ConfigurationService configurationService = new TestConfigurationService();
+        configurationService.setProperty("replicate.async.inflight", "1");
+        configurationService.setProperty("replicate.async.inflight.aip-store", "2");
+
+        serviceManager.registerService(ConfigurationService.class.getName(), configurationService);
+        serviceManager.registerService(DSPACE_SERVICES_FACTORY, new TestDSpaceServicesFactory());
+
+        final DSpaceKernel kernel = new TestDSpaceKernelImpl(serviceManager, configurationService);
+        DSpaceKernelManager.registerMBean(kernel.getMBeanName(), kernel);
+        DSpaceKernelManager.setDefaultKernel(kernel);
+
+        repMan = mock(ReplicaManager.class);
+        asyncMan = new AsyncReplicaManager(repMan);
+    }
+
+    @After
+    public void teardown() {
+        callers.shutdownNow();
+    }
+
+    @Test
+    public void groupLimitBlocksUntilFailedOperationsReleasePermits() throws Exception {
+        final AtomicInteger started = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        doAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(final InvocationOnMock invocation) throws Throwable {
+                if (started.incrementAndGet() <= 2) {
+                    release.await(10, TimeUnit.SECONDS);
+                    throw new IOException("store unavailable");
+                }
+                return true;
+            }
+        }).when(repMan).objectExists(anyString(), anyString());
+
+        final Future<Boolean> first = asyncMan.objectExists("aip-store", "ITEM@123456789-1.zip");
+        final Future<Boolean> second = asyncMan.objectExists("aip-store", "ITEM@123456789-2.zip");
+        final Thread[] caller = new Thread[1];
+        final Future<Boolean> third = callers.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws IOException {
+                caller[0] = Thread.currentThread();
+                return AsyncReplicaManager.await(asyncMan.objectExists("aip-store", "ITEM@123456789-3.zip"));
+            }
+        });
+
+        // the third request waits for a permit, rather than starting
+        final long deadline = System.currentTimeMillis() + 10000L;
+        while (! waitingForPermit(caller[0])) {
+            assertThat(System.currentTimeMillis()).isLessThan(deadline);
+            Thread.sleep(10L);
+        }
+        assertThat(started.get()).isEqualTo(2);
+        assertThat(third.isDone()).isFalse();
+
+        release.countDown();
+        for (final Future<Boolean> failed : Arrays.asList(first, second)) {
+            try {
+                AsyncReplicaManager.await(failed);
+                fail("expected IOException");
+            } catch (IOException expected) {
+                assertThat(expected).hasMessage("store unavailable");
+            }
+        }
+        assertThat(third.get(10, TimeUnit.SECONDS)).isTrue();
+    }
+
+    @Test
+    public void oppositeMovesDoNotDeadlock() throws Exception {
+        doAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(final InvocationOnMock invocation) throws Throwable {
+                Thread.yield();
+                return true;
+            }
+        }).when(repMan).moveObject(anyString(), anyString(), anyString());
+
+        // each group allows a single operation, so permits taken out of order would deadlock
+        final List<Future<Integer>> movers = new ArrayList<>();
+        for (final String[] groups : new String[][] {{"store-a", "store-b"}, {"store-b", "store-a"}}) {
+            movers.add(callers.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws IOException {
+                    int moved = 0;
+                    for (int i = 0; i < 200; i++) {
+                        if (AsyncReplicaManager.await(asyncMan.moveObject(groups[0], groups[1], "ITEM@1-" + i))) {
+                            moved++;
+                        }
+                    }
+                    return moved;
+                }
+            }));
+        }
+        for (final Future<Integer> mover : movers) {
+            assertThat(mover.get(30, TimeUnit.SECONDS)).isEqualTo(200);
+        }
+    }
+
+    @Test
+    public void awaitUnwrapsFailures() throws IOException {
+        final IOException ioE = new IOException("io");
+        final IllegalStateException rtE = new IllegalStateException("runtime");
+        final Exception other = new Exception("checked");
+
+        assertThat(AsyncReplicaManager.await(done("result", null))).isEqualTo("result");
+        try {
+            AsyncReplicaManager.await(done(null, ioE));
+            fail("expected IOException");
+        } catch (IOException expected) {
+            assertThat(expected).isSameAs(ioE);
+        }
+        try {
+            AsyncReplicaManager.await(done(null, rtE));
+            fail("expected IllegalStateException");
+        } catch (IllegalStateException expected) {
+            assertThat(expected).isSameAs(rtE);
+        }
+        try {
+            AsyncReplicaManager.await(done(null, other));
+            fail("expected IOException");
+        } catch (IOException expected) {
+            assertThat(expected.getCause()).isSameAs(other);
+        }
+    }
+
+    @Test
+    public void awaitIsInterruptible() {
+        Thread.currentThread().interrupt();
+        try {
+            AsyncReplicaManager.await(new FutureTask<String>(new Callable<String>() {
+                @Override
+                public String call() {
+                    return "never run";
+                }
+            }));
+            fail("expected IOException");
+        } catch (IOException expected) {
+            assertThat(expected.getCause()).isInstanceOf(InterruptedException.class);
+            // the interrupt is kept for the caller to see
+            assertThat(Thread.interrupted()).isTrue();
+        }
+    }
+
+    @Test
+    public void awaitAllThrowsFirstFailure() {
+        final IOException firstFailure = new IOException("first");
+        final List<Future<String>> futures = Arrays.asList(done("ok", null), done(null, firstFailure),
+                                                           done(null, new IOException("second")));
+        try {
+            AsyncReplicaManager.awaitAll(futures);
+            fail("expected IOException");
+        } catch (IOException expected) {
+            assertThat(expected).isSameAs(firstFailure);
+        }
+    }
+
+    private static boolean waitingForPermit(final Thread thread) {
+        if (thread == null || thread.getState() != Thread.State.WAITING) {
+            return false;
+        }
+        for (final StackTraceElement frame : thread.getStackTrace()) {
+            if (frame.getClassName().equals(AsyncReplicaManager.class.getName())
+                && frame.getMethodName().equals("acquire")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // an operation which has already finished, with a result or a failure
+    private static Future<String> done(final String result, final Exception failure) {
+        final FutureTask<String> task = new FutureTask<>(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                if (failure != null) {
+                    throw failure;
+                }
+                return result;
+            }
+        });
+        task.run();
+        return task;
+    }
+}
@@ -0,0 +1,124 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.replicate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.dspace.TestDSpaceServicesFactory.DSPACE_SERVICES_FACTORY;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.dspace.TestConfigurationService;
+import org.dspace.TestDSpaceKernelImpl;
+import org.dspace.TestDSpaceServicesFactory;
+import org.dspace.TestServiceManager;
+import org.dspace.kernel.DSpaceKernel;
+import org.dspace.kernel.DSpaceKernelManager;
+import org.dspace.kernel.ServiceManager;
+import org.dspace.services.ConfigurationService;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the BandwidthScheduler
+ */
+public class BandwidthSchedulerTest {
+
+    private static final String GROUP = "aip-store";
+    private static final int RATE = 1024 * 1024;
+
+    private ConfigurationService configurationService;
+
+    @Before
+    public void setup() {
+        final ServiceManager serviceManager = new TestServiceManager();
+        configurationService = new TestConfigurationService();
+
+        serviceManager.registerService(ConfigurationService.class.getName(), configurationService);
+        serviceManager.registerService(DSPACE_SERVICES_FACTORY, new TestDSpaceServicesFactory());
+
+        final DSpaceKernel kernel = new TestDSpaceKernelImpl(serviceManager, configurationService);
+        DSpaceKernelManager.registerMBean(kernel.getMBeanName(), kernel);
+        DSpaceKernelManager.setDefaultKernel(kernel);
+    }
+
+    private static BandwidthScheduler schedulerAt(final int minuteOfDay) {
+        return new BandwidthScheduler() {
+            @Override
+            protected int minuteOfDay() {
+                return minuteOfDay;
+            }
+        };
+    }
+
+    private static long readAll(final InputStream in) throws IOException {
+        final byte[] buffer = new byte[256 * 1024];
+        long total = 0L;
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            total += n;
+        }
+        in.close();
+        return total;
+    }
+
+    @Test
+    public void configuredRateLimitsReads() throws IOException {
+        configurationService.setProperty("replicate.bandwidth.rate", String.valueOf(RATE));
+        final BandwidthScheduler scheduler = new BandwidthScheduler();
+        assertThat(scheduler.isLimited(GROUP)).isTrue();
+
+        // a second's burst, then half a second's wait for the rest
+        final long start = System.nanoTime();
+        final long read = readAll(scheduler.throttle(GROUP, new ByteArrayInputStream(new byte[RATE * 3 / 2])));
+        final long millis = (System.nanoTime() - start) / 1000000L;
+
+        assertThat(read).isEqualTo(RATE * 3 / 2);
+        assertThat(millis).isGreaterThanOrEqualTo(400L);
+        assertThat(scheduler.getBytes(GROUP)).isEqualTo(RATE * 3 / 2);
+        assertThat(scheduler.getAverageThroughput(GROUP)).isGreaterThan(0L);
+    }
+
+    @Test
+    public void windowRateAppliesWithinWindow() {
+        final BandwidthScheduler.Window daytime = BandwidthScheduler.Window.parse("08:00-18:00 1024");
+        final BandwidthScheduler.Window overnight = BandwidthScheduler.Window.parse("22:00-06:00 4096");
+
+        final BandwidthScheduler noon = schedulerAt(12 * 60);
+        noon.setLimit(GROUP, 0L, Arrays.asList(daytime, overnight));
+        assertThat(noon.getRate(GROUP)).isEqualTo(1024L);
+
+        final BandwidthScheduler evening = schedulerAt(20 * 60);
+        evening.setLimit(GROUP, 0L, Arrays.asList(daytime, overnight));
+        assertThat(evening.getRate(GROUP)).isEqualTo(0L);
+        // so transfers take the store's own (unpaced) path until a window opens
+        assertThat(evening.isLimited(GROUP)).isFalse();
+
+        final BandwidthScheduler night = schedulerAt(2 * 60);
+        night.setLimit(GROUP, 0L, Arrays.asList(daytime, overnight));
+        assertThat(night.getRate(GROUP)).isEqualTo(4096L);
+        assertThat(night.isLimited(GROUP)).isTrue();
+    }
+
+    @Test
+    public void unlimitedTransfersAreMeasured() throws IOException {
+        final BandwidthScheduler scheduler = new BandwidthScheduler();
+        scheduler.setLimit(GROUP, 0L, Collections.<BandwidthScheduler.Window>emptyList());
+        assertThat(scheduler.isLimited(GROUP)).isFalse();
+
+        readAll(scheduler.throttle(GROUP, new ByteArrayInputStream(new byte[1000])));
+        scheduler.begin(GROUP);
+        scheduler.end(GROUP, 500L);
+
+        assertThat(scheduler.getBytes(GROUP)).isEqualTo(1500L);
+        assertThat(scheduler.getGroups()).containsExactly(GROUP);
+    }
+}
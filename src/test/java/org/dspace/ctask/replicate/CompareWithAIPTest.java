@@ -0,0 +1,119 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.replicate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.dspace.TestDSpaceServicesFactory.DSPACE_SERVICES_FACTORY;
+import static org.mockito.ArgumentMatchers.anyListOf;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.dspace.TestConfigurationService;
+import org.dspace.TestDSpaceKernelImpl;
+import org.dspace.TestDSpaceServicesFactory;
+import org.dspace.TestServiceManager;
+import org.dspace.content.Item;
+import org.dspace.content.factory.ContentServiceFactory;
+import org.dspace.curate.Curator;
+import org.dspace.handle.factory.HandleServiceFactory;
+import org.dspace.kernel.DSpaceKernel;
+import org.dspace.kernel.DSpaceKernelManager;
+import org.dspace.kernel.ServiceManager;
+import org.dspace.services.ConfigurationService;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+/**
+ * Tests for the CompareWithAIP task's lookups of child replicas, over a
+ * mocked ReplicaManager
+ */
+public class CompareWithAIPTest {
+
+    private final List<Integer> batchSizes = new ArrayList<>();
+    private ReplicaManager repMan;
+    private Curator curator;
+    private CompareWithAIP task;
+
+    @Before
+    public void setup() throws Exception {
+        final ServiceManager serviceManager = new TestServiceManager();
+        final ConfigurationService configurationService = new TestConfigurationService();
+        configurationService.setProperty("replicate.group.aip.name", "aip-store");
+        configurationService.setProperty("replicate.packer.archfmt", "zip");
+
+        serviceManager.registerService(ConfigurationService.class.getName(), configurationService);
+        serviceManager.registerService(DSPACE_SERVICES_FACTORY, new TestDSpaceServicesFactory());
+        serviceManager.registerService("contentServiceFactory", mock(ContentServiceFactory.class));
+        serviceManager.registerService("handleServiceFactory", mock(HandleServiceFactory.class));
+
+        final DSpaceKernel kernel = new TestDSpaceKernelImpl(serviceManager, configurationService);
+        DSpaceKernelManager.registerMBean(kernel.getMBeanName(), kernel);
+        DSpaceKernelManager.setDefaultKernel(kernel);
+
+        repMan = mock(ReplicaManager.class);
+        when(repMan.storageId(anyString(), anyString())).thenAnswer(new Answer<String>() {
+            @Override
+            public String answer(InvocationOnMock invocation) {
+                return invocation.<String>getArgument(0).replace('/', '-') + ".zip";
+            }
+        });
+        // every replica is present but those of items 7 and 1001
+        doAnswer(new Answer<Map<String, Boolean>>() {
+            @Override
+            public Map<String, Boolean> answer(InvocationOnMock invocation) {
+                final List<String> ids = invocation.getArgument(1);
+                batchSizes.add(ids.size());
+                final Map<String, Boolean> exists = new LinkedHashMap<>();
+                for (String id : ids) {
+                    exists.put(id, !id.endsWith("-7.zip") && !id.endsWith("-1001.zip"));
+                }
+                return exists;
+            }
+        }).when(repMan).objectsExist(anyString(), anyListOf(String.class));
+
+        curator = mock(Curator.class);
+        task = new CompareWithAIP();
+        task.init(curator, "audit");
+    }
+
+    private List<Item> items(final int count) {
+        final List<Item> items = new ArrayList<>();
+        for (int i = 1; i <= count; i++) {
+            final Item item = mock(Item.class);
+            when(item.getHandle()).thenReturn("123456789/" + i);
+            items.add(item);
+        }
+        return items;
+    }
+
+    @Test
+    public void childrenAreLookedUpInBatches() throws Exception {
+        task.checkReplicas(repMan, items(1001).iterator());
+
+        assertThat(batchSizes).containsExactly(500, 500, 1);
+        verify(curator).report("Missing replica for: 123456789/7");
+        verify(curator).report("Missing replica for: 123456789/1001");
+    }
+
+    @Test
+    public void noChildrenMeansNoLookup() throws Exception {
+        task.checkReplicas(repMan, items(0).iterator());
+
+        assertThat(batchSizes).isEmpty();
+    }
+}
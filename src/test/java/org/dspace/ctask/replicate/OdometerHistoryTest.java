@@ -0,0 +1,84 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.replicate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for the OdometerHistory
+ */
+public class OdometerHistoryTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * History whose clock is set by the test.
+     */
+    private static class SteppedHistory extends OdometerHistory {
+        private long hour = 24L * 1000L;
+
+        SteppedHistory(final File dir) {
+            super(dir);
+        }
+
+        @Override
+        protected long currentHour() {
+            return hour;
+        }
+    }
+
+    @Test
+    public void recordedActivityIsSummedByGroupAndType() throws IOException {
+        final SteppedHistory history = new SteppedHistory(folder.getRoot());
+        history.record("store", "ITEM", OdometerHistory.UPLOADED, 100L);
+        history.record("store", "ITEM", OdometerHistory.UPLOADS, 1L);
+        history.record("store", null, OdometerHistory.UPLOADED, 20L);
+        history.record("trash", "ITEM", OdometerHistory.REMOVED, 5L);
+        assertThat(history.hasPending()).isTrue();
+        history.flush();
+        assertThat(history.hasPending()).isFalse();
+        history.hour++;
+        history.record("store", "ITEM", OdometerHistory.UPLOADED, 50L);
+        history.flush();
+
+        final SteppedHistory reading = new SteppedHistory(folder.getRoot());
+        reading.hour = history.hour;
+        reading.load();
+        assertThat(reading.getGroups()).containsExactly("store", "trash");
+        assertThat(reading.getTypes("store")).containsExactly("ITEM", "OTHER");
+        assertThat(reading.sum("store", "ITEM", OdometerHistory.UPLOADED, false, 0, 1)).isEqualTo(50L);
+        assertThat(reading.sum("store", "ITEM", OdometerHistory.UPLOADED, false, 1, 1)).isEqualTo(100L);
+        assertThat(reading.sum("store", null, OdometerHistory.UPLOADED, true, 0, 1)).isEqualTo(170L);
+        assertThat(reading.sum("trash", null, OdometerHistory.REMOVED, true, 0, 7)).isEqualTo(5L);
+    }
+
+    @Test
+    public void slotsOfPassedPeriodsAreReused() throws IOException {
+        final SteppedHistory history = new SteppedHistory(folder.getRoot());
+        history.record("store", "ITEM", OdometerHistory.DOWNLOADED, 10L);
+        history.flush();
+        // same slot of the hourly ring, a full ring later
+        history.hour += OdometerHistory.HOURS;
+        history.record("store", "ITEM", OdometerHistory.DOWNLOADED, 3L);
+        history.flush();
+        history.load();
+
+        assertThat(history.sum("store", "ITEM", OdometerHistory.DOWNLOADED, false, 0, OdometerHistory.HOURS))
+            .isEqualTo(3L);
+        // the daily ring still holds both days
+        assertThat(history.sum("store", "ITEM", OdometerHistory.DOWNLOADED, true, 0, 8)).isEqualTo(13L);
+    }
+}
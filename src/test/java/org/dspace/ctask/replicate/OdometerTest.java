@@ -0,0 +1,85 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.replicate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for the Odometer
+ */
+public class OdometerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void changesOfSeveralWritersAreAllCounted() throws IOException {
+        final String dir = folder.getRoot().getAbsolutePath();
+        // as if two processes shared the base directory
+        final Odometer first = new Odometer(dir, false);
+        final Odometer second = new Odometer(dir, false);
+        first.adjustProperty(Odometer.UPLOADED, 100L);
+        second.adjustProperty(Odometer.UPLOADED, 50L);
+        first.adjustProperty(Odometer.COUNT, 1L);
+
+        // nothing is written until flushed
+        assertThat(new Odometer(dir, true).getProperty(Odometer.UPLOADED)).isEqualTo(0L);
+        first.flush();
+        second.flush();
+
+        final Odometer reading = new Odometer(dir, true);
+        assertThat(reading.getProperty(Odometer.UPLOADED)).isEqualTo(150L);
+        assertThat(reading.getProperty(Odometer.COUNT)).isEqualTo(1L);
+        assertThat(reading.getProperty(Odometer.MODIFIED)).isGreaterThan(0L);
+    }
+
+    @Test
+    public void foldedJournalIsNotCountedTwice() throws IOException {
+        final String dir = folder.getRoot().getAbsolutePath();
+        final Odometer odometer = new Odometer(dir, false);
+        final File journal = new File(dir, "odometer.journal");
+        long flushes = 0L;
+        // flush until the journal grows large enough to be folded in
+        do {
+            odometer.adjustProperty(Odometer.DOWNLOADED, 10L);
+            odometer.flush();
+            flushes++;
+        } while (journal.exists());
+
+        assertThat(new Odometer(dir, true).getProperty(Odometer.DOWNLOADED)).isEqualTo(flushes * 10L);
+        odometer.adjustProperty(Odometer.DOWNLOADED, 5L);
+        odometer.flush();
+        assertThat(new Odometer(dir, true).getProperty(Odometer.DOWNLOADED)).isEqualTo(flushes * 10L + 5L);
+    }
+
+    @Test
+    public void tornRecordIsSkipped() throws IOException {
+        final String dir = folder.getRoot().getAbsolutePath();
+        final Odometer odometer = new Odometer(dir, false);
+        odometer.adjustProperty(Odometer.SIZE, 100L);
+        odometer.flush();
+        // as if a write were cut short by a crash
+        try (FileOutputStream out = new FileOutputStream(new File(dir, "odometer.journal"), true)) {
+            out.write("1000\tstoresize=12".getBytes(StandardCharsets.UTF_8));
+        }
+        assertThat(new Odometer(dir, true).getProperty(Odometer.SIZE)).isEqualTo(100L);
+
+        odometer.adjustProperty(Odometer.SIZE, 1L);
+        odometer.flush();
+        assertThat(new Odometer(dir, true).getProperty(Odometer.SIZE)).isEqualTo(101L);
+    }
+}
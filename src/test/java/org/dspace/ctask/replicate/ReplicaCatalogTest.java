@@ -0,0 +1,196 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.replicate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for the ReplicaCatalog
+ */
+public class ReplicaCatalogTest {
+
+    private static final String GROUP = "aip-store";
+    private static final String ID = "ITEM@123456789-1.zip";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static ReplicaCatalog.Entry entry(final String group, final String id, final long size) {
+        return new ReplicaCatalog.Entry(group, id, "123456789/1", "ITEM", size, "0123456789abcdef", 1000L, 0L);
+    }
+
+    private static final ReplicaCatalog.Resolver RESOLVER = new ReplicaCatalog.Resolver() {
+        @Override
+        public String handle(final String id) {
+            return "123456789/" + id.substring(id.indexOf('-') + 1, id.indexOf('.'));
+        }
+
+        @Override
+        public String type(final String id) {
+            return id.substring(0, id.indexOf('@'));
+        }
+    };
+
+    @Test
+    public void changesSurviveReopen() throws IOException {
+        final File dir = folder.newFolder();
+        final ReplicaCatalog catalog = new ReplicaCatalog(dir, false);
+        catalog.put(entry(GROUP, ID, 100L));
+        catalog.put(entry(GROUP, "ITEM@123456789-2.zip", 200L));
+        catalog.verified(GROUP, ID, 5000L);
+        catalog.move(GROUP, "trash", "ITEM@123456789-2.zip");
+        catalog.close();
+
+        final ReplicaCatalog reopened = new ReplicaCatalog(dir, false);
+        assertThat(reopened.get(GROUP, ID).getSize()).isEqualTo(100L);
+        assertThat(reopened.get(GROUP, ID).getVerified()).isEqualTo(5000L);
+        assertThat(reopened.get(GROUP, ID).getHandle()).isEqualTo("123456789/1");
+        assertThat(reopened.get(GROUP, "ITEM@123456789-2.zip")).isNull();
+        assertThat(reopened.get("trash", "ITEM@123456789-2.zip").getSize()).isEqualTo(200L);
+        assertThat(reopened.count(GROUP)).isEqualTo(1L);
+    }
+
+    @Test
+    public void incompleteJournalRecordIsDiscarded() throws IOException {
+        final File dir = folder.newFolder();
+        final ReplicaCatalog catalog = new ReplicaCatalog(dir, false);
+        catalog.put(entry(GROUP, ID, 100L));
+        catalog.close();
+        // as if a write were cut short by a crash
+        try (FileOutputStream out = new FileOutputStream(new File(dir, "catalog.journal"), true)) {
+            out.write("P\taip-store\tITEM@123456789-2.zip\t123".getBytes(StandardCharsets.UTF_8));
+        }
+
+        final ReplicaCatalog reopened = new ReplicaCatalog(dir, false);
+        assertThat(reopened.get(GROUP, "ITEM@123456789-2.zip")).isNull();
+        reopened.put(entry(GROUP, "ITEM@123456789-3.zip", 300L));
+        reopened.close();
+
+        final ReplicaCatalog again = new ReplicaCatalog(dir, false);
+        assertThat(again.get(GROUP, ID)).isNotNull();
+        assertThat(again.get(GROUP, "ITEM@123456789-3.zip").getSize()).isEqualTo(300L);
+    }
+
+    @Test
+    public void rebuildReplacesGroupAndMarksItComplete() throws IOException {
+        final File dir = folder.newFolder();
+        final ReplicaCatalog catalog = new ReplicaCatalog(dir, false);
+        catalog.put(entry(GROUP, ID, 100L));
+        catalog.verified(GROUP, ID, 5000L);
+        catalog.put(entry(GROUP, "ITEM@123456789-9.zip", 900L));
+        assertThat(catalog.isComplete(GROUP)).isFalse();
+
+        final long count = catalog.rebuild(GROUP, Arrays.asList(
+            new ObjectInfo(ID, 100L, "0123456789abcdef", "2000"),
+            new ObjectInfo("COLLECTION@123456789-2.zip", 50L, "fedcba9876543210", "3000")).iterator(), RESOLVER);
+
+        assertThat(count).isEqualTo(2L);
+        assertThat(catalog.isComplete(GROUP)).isTrue();
+        // an unchanged replica keeps its verification time
+        assertThat(catalog.get(GROUP, ID).getVerified()).isEqualTo(5000L);
+        assertThat(catalog.get(GROUP, "ITEM@123456789-9.zip")).isNull();
+        assertThat(catalog.get(GROUP, "COLLECTION@123456789-2.zip").getType()).isEqualTo("COLLECTION");
+        assertThat(catalog.size(GROUP)).isEqualTo(150L);
+        catalog.close();
+
+        // the rebuild is written to a snapshot, leaving a new journal without records
+        assertThat(Files.readAllLines(new File(dir, "catalog.journal").toPath(), StandardCharsets.UTF_8))
+            .hasSize(1);
+        final ReplicaCatalog reopened = new ReplicaCatalog(dir, false);
+        assertThat(reopened.isComplete(GROUP)).isTrue();
+        assertThat(reopened.get(GROUP, "COLLECTION@123456789-2.zip").getUploaded()).isEqualTo(3000L);
+    }
+
+    @Test
+    public void catalogsSharingFilesKeepEachOthersChanges() throws IOException {
+        final File dir = folder.newFolder();
+        // as if in two processes, each with a copy of the catalog in memory
+        final ReplicaCatalog one = new ReplicaCatalog(dir, false);
+        final ReplicaCatalog two = new ReplicaCatalog(dir, false);
+        one.put(entry(GROUP, ID, 100L));
+        two.put(entry(GROUP, "ITEM@123456789-2.zip", 200L));
+        assertThat(two.get(GROUP, ID).getSize()).isEqualTo(100L);
+
+        // the snapshot holds the other catalog's changes, so the new journal may start empty
+        one.checkpoint();
+        two.remove(GROUP, ID);
+        assertThat(one.get(GROUP, ID)).isNull();
+        assertThat(one.get(GROUP, "ITEM@123456789-2.zip").getSize()).isEqualTo(200L);
+        one.close();
+        two.close();
+
+        final ReplicaCatalog reopened = new ReplicaCatalog(dir, false);
+        assertThat(reopened.get(GROUP, ID)).isNull();
+        assertThat(reopened.count(GROUP)).isEqualTo(1L);
+    }
+
+    @Test
+    public void rebuildKeepsChangesMadeWhileListing() throws Exception {
+        final File dir = folder.newFolder();
+        final ReplicaCatalog catalog = new ReplicaCatalog(dir, false);
+        catalog.put(entry(GROUP, "ITEM@123456789-9.zip", 900L));
+        final List<ObjectInfo> listed = Arrays.asList(new ObjectInfo(ID, 100L, "0123456789abcdef", "2000"),
+                                                      new ObjectInfo("ITEM@123456789-9.zip", 900L, null, "2000"));
+        final Iterator<ObjectInfo> listing = new Iterator<ObjectInfo>() {
+            private final Iterator<ObjectInfo> iter = listed.iterator();
+
+            @Override
+            public boolean hasNext() {
+                return iter.hasNext();
+            }
+
+            @Override
+            public ObjectInfo next() {
+                // another task changes the catalog while the store is listed
+                final Thread task = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            catalog.put(entry(GROUP, ID, 150L));
+                            catalog.remove(GROUP, "ITEM@123456789-9.zip");
+                        } catch (IOException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                };
+                task.start();
+                try {
+                    task.join(5000L);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                assertThat(task.isAlive()).isFalse();
+                return iter.next();
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+
+        assertThat(catalog.rebuild(GROUP, listing, RESOLVER)).isEqualTo(1L);
+
+        assertThat(catalog.get(GROUP, ID).getSize()).isEqualTo(150L);
+        assertThat(catalog.get(GROUP, "ITEM@123456789-9.zip")).isNull();
+        assertThat(catalog.isComplete(GROUP)).isTrue();
+    }
+}
@@ -0,0 +1,180 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.replicate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+import static org.dspace.TestDSpaceServicesFactory.DSPACE_SERVICES_FACTORY;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyListOf;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.dspace.TestConfigurationService;
+import org.dspace.TestDSpaceKernelImpl;
+import org.dspace.TestDSpaceServicesFactory;
+import org.dspace.TestServiceManager;
+import org.dspace.curate.Utils;
+import org.dspace.handle.factory.HandleServiceFactory;
+import org.dspace.kernel.DSpaceKernel;
+import org.dspace.kernel.DSpaceKernelManager;
+import org.dspace.kernel.ServiceManager;
+import org.dspace.services.ConfigurationService;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+/**
+ * Tests for the ReplicaManager, over a mocked ObjectStore
+ */
+public class ReplicaManagerTest {
+
+    private static final byte[] CONTENT = "replica content".getBytes(StandardCharsets.UTF_8);
+    private static final List<String> IDS = Arrays.asList("obj-1", "obj-2", "obj-3", "obj-4", "obj-5");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ObjectStore objStore;
+    private Odometer odometer;
+    private ReplicaManager repMan;
+
+    @Before
+    public void setup() throws Exception {
+        final ServiceManager serviceManager = new TestServiceManager();
+        final ConfigurationService configurationService = new TestConfigurationService();
+        configurationService.setProperty("replicate.base.dir", folder.newFolder("base").getAbsolutePath());
+        configurationService.setProperty("replicate.group.aip.name", "aip-store");
+        configurationService.setProperty("replicate.bandwidth.rate", "10000000");
+        configurationService.setProperty("replicate.packer.typeprefix", "false");
+        configurationService.setProperty("replicate.bulk.batch", "2");
+
+        serviceManager.registerService(ConfigurationService.class.getName(), configurationService);
+        serviceManager.registerService(DSPACE_SERVICES_FACTORY, new TestDSpaceServicesFactory());
+        serviceManager.registerService("handleServiceFactory", mock(HandleServiceFactory.class));
+
+        final DSpaceKernel kernel = new TestDSpaceKernelImpl(serviceManager, configurationService);
+        DSpaceKernelManager.registerMBean(kernel.getMBeanName(), kernel);
+        DSpaceKernelManager.setDefaultKernel(kernel);
+
+        objStore = mock(ObjectStore.class);
+        odometer = mock(Odometer.class);
+        repMan = new ReplicaManager(objStore, odometer);
+    }
+
+    @Test
+    public void pacedFetchReadsContentMatchingItsChecksum() throws Exception {
+        when(objStore.objectAttribute("aip-store", "obj", "checksum")).thenReturn(md5(CONTENT));
+        when(objStore.openObject("aip-store", "obj")).thenReturn(new ByteArrayInputStream(CONTENT));
+
+        final File file = repMan.fetchObject("aip-store", "obj");
+
+        assertThat(file).isNotNull();
+        assertThat(Files.readAllBytes(file.toPath())).isEqualTo(CONTENT);
+        assertThat(file.getParentFile().list()).containsExactly(file.getName());
+        verify(objStore, never()).fetchObject(anyString(), anyString(), any(File.class));
+    }
+
+    @Test
+    public void pacedFetchNotMatchingItsChecksumLeavesNoFile() throws Exception {
+        when(objStore.objectAttribute("aip-store", "obj", "checksum")).thenReturn(md5("other".getBytes()));
+        when(objStore.openObject("aip-store", "obj")).thenReturn(new ByteArrayInputStream(CONTENT));
+
+        try {
+            repMan.fetchObject("aip-store", "obj");
+            fail("Expected the fetch to fail its checksum");
+        } catch (IOException expected) {
+            assertThat(expected).hasMessageContaining("checksum");
+        }
+
+        final File staged = repMan.stage("aip-store", "obj");
+        assertThat(staged).doesNotExist();
+        assertThat(staged.getParentFile().list()).isEmpty();
+    }
+
+    /**
+     * Has the store remove each batch of objects, failing any batch holding
+     * one of the passed ids. Objects other than 'obj-2' are 10 bytes; it
+     * is not in the store.
+     */
+    private void removals(final String... failing) throws IOException {
+        when(objStore.removeObjects(anyString(), anyListOf(String.class))).thenAnswer(new Answer<Map<String, Long>>() {
+            @Override
+            public Map<String, Long> answer(InvocationOnMock invocation) throws IOException {
+                final List<String> ids = invocation.getArgument(1);
+                final Map<String, Long> sizes = new LinkedHashMap<>();
+                for (String id : ids) {
+                    if (Arrays.asList(failing).contains(id)) {
+                        throw new IOException("store is down");
+                    }
+                    sizes.put(id, "obj-2".equals(id) ? 0L : 10L);
+                }
+                return sizes;
+            }
+        });
+    }
+
+    @Test
+    public void removalsAreMadeAndCountedInBatches() throws Exception {
+        removals();
+
+        assertThat(repMan.removeObjects("aip-store", IDS)).isEqualTo(4);
+
+        verify(objStore).removeObjects("aip-store", Arrays.asList("obj-1", "obj-2"));
+        verify(objStore).removeObjects("aip-store", Arrays.asList("obj-3", "obj-4"));
+        verify(objStore).removeObjects("aip-store", Arrays.asList("obj-5"));
+        verify(odometer, times(3)).adjustProperty(eq(Odometer.SIZE), anyLong());
+        verify(odometer, times(2)).adjustProperty(Odometer.SIZE, -10L);
+        verify(odometer).adjustProperty(Odometer.SIZE, -20L);
+        verify(odometer, times(3)).adjustProperty(eq(Odometer.COUNT), anyLong());
+    }
+
+    @Test
+    public void failedRemovalBatchIsReportedAfterTheOthers() throws Exception {
+        removals("obj-3");
+
+        try {
+            repMan.removeObjects("aip-store", IDS);
+            fail("Expected the failed batch to be reported");
+        } catch (IOException expected) {
+            assertThat(expected).hasMessageContaining("2 of 5 objects could not be removed")
+                                .hasMessageContaining("2 were removed")
+                                .hasCauseInstanceOf(IOException.class);
+        }
+
+        // the batch after the failed one is still removed
+        verify(objStore).removeObjects("aip-store", Arrays.asList("obj-5"));
+        verify(odometer, times(2)).adjustProperty(Odometer.SIZE, -10L);
+        verify(odometer, times(2)).adjustProperty(Odometer.COUNT, -1L);
+        verify(odometer, times(2)).adjustProperty(eq(Odometer.SIZE), anyLong());
+    }
+
+    private static String md5(final byte[] bytes) throws Exception {
+        return Utils.toHex(MessageDigest.getInstance("MD5").digest(bytes));
+    }
+}
@@ -0,0 +1,157 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.replicate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests for SingleFlight, with requests made from several threads at once
+ */
+public class SingleFlightTest {
+
+    private static final String KEY = "aip-store/123456789/1";
+
+    private final SingleFlight flights = new SingleFlight();
+    private final ExecutorService workers = Executors.newCachedThreadPool();
+    private final List<Thread> threads = new ArrayList<>();
+
+    @After
+    public void teardown() {
+        workers.shutdownNow();
+    }
+
+    /**
+     * Work which counts its runs, and whose first run blocks until released.
+     */
+    private static class Work implements Callable<Integer> {
+        private final AtomicInteger runs = new AtomicInteger();
+        private final CountDownLatch started = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+        private volatile boolean fail = false;
+
+        @Override
+        public Integer call() throws Exception {
+            final int run = runs.incrementAndGet();
+            if (run == 1) {
+                started.countDown();
+                release.await(10, TimeUnit.SECONDS);
+            }
+            if (fail) {
+                throw new IOException("run " + run + " failed");
+            }
+            return run;
+        }
+    }
+
+    private Future<Integer> request(final Work work) {
+        return workers.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws IOException {
+                synchronized (threads) {
+                    threads.add(Thread.currentThread());
+                }
+                return flights.run(KEY, work);
+            }
+        });
+    }
+
+    // waits until every request thread but the first is blocked waiting
+    private void awaitJoined(final int requests) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 10000L;
+        while (System.currentTimeMillis() < deadline) {
+            int waiting = 0;
+            synchronized (threads) {
+                for (final Thread thread : threads.subList(1, threads.size())) {
+                    if (thread.getState() == Thread.State.WAITING) {
+                        waiting++;
+                    }
+                }
+                if (threads.size() == requests && waiting == requests - 1) {
+                    return;
+                }
+            }
+            Thread.sleep(10L);
+        }
+        fail("requests did not join in time");
+    }
+
+    @Test
+    public void requestsDuringRunShareOneFurtherRun() throws Exception {
+        final Work work = new Work();
+        final Future<Integer> first = request(work);
+        assertThat(work.started.await(10, TimeUnit.SECONDS)).isTrue();
+
+        final List<Future<Integer>> joined = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            joined.add(request(work));
+        }
+        awaitJoined(6);
+        // nothing joined the run under way
+        assertThat(work.runs.get()).isEqualTo(1);
+        work.release.countDown();
+
+        assertThat(first.get(10, TimeUnit.SECONDS)).isEqualTo(1);
+        for (final Future<Integer> future : joined) {
+            assertThat(future.get(10, TimeUnit.SECONDS)).isEqualTo(2);
+        }
+        assertThat(work.runs.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void requestsAfterRunStartAfresh() throws IOException {
+        final Work work = new Work();
+        work.release.countDown();
+
+        assertThat(flights.run(KEY, work)).isEqualTo(1);
+        assertThat(flights.run(KEY, work)).isEqualTo(2);
+        assertThat(flights.run("another", work)).isEqualTo(3);
+    }
+
+    @Test
+    public void failureIsSharedByRequestsOfTheRun() throws Exception {
+        final Work work = new Work();
+        final Future<Integer> first = request(work);
+        assertThat(work.started.await(10, TimeUnit.SECONDS)).isTrue();
+        final Future<Integer> second = request(work);
+        final Future<Integer> third = request(work);
+        awaitJoined(3);
+        work.fail = true;
+        work.release.countDown();
+
+        for (final Future<Integer> future : Arrays.asList(first, second, third)) {
+            try {
+                future.get(10, TimeUnit.SECONDS);
+                fail("expected IOException");
+            } catch (ExecutionException expected) {
+                assertThat(expected.getCause()).isInstanceOf(IOException.class);
+            }
+        }
+        assertThat(work.runs.get()).isEqualTo(2);
+
+        // and a later request is not left waiting on the failed runs
+        work.fail = false;
+        assertThat(flights.run(KEY, work)).isEqualTo(3);
+    }
+}
@@ -0,0 +1,136 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.replicate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for the StagingManager
+ */
+public class StagingManagerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void tasksAreSpreadOverVolumesByFreeSpace() throws IOException {
+        final File first = folder.newFolder("first");
+        final File second = folder.newFolder("second");
+        final StagingManager staging = new StagingManager(Arrays.asList(first, second), 0L, 1.0, 0L, 60L);
+        // both volumes share a file system, so the reservation decides
+        final File taskDir = staging.reserve("aip", 1000000L);
+        final File otherDir = staging.reserve("aip", 1000000L);
+
+        assertThat(taskDir.isDirectory()).isTrue();
+        assertThat(volumeOf(taskDir)).isNotEqualTo(volumeOf(otherDir));
+        assertThat(staging.getReserved()).isEqualTo(2000000L);
+
+        staging.release(taskDir);
+        staging.release(otherDir);
+        assertThat(taskDir.exists()).isFalse();
+        assertThat(staging.getReserved()).isEqualTo(0L);
+    }
+
+    @Test
+    public void tasksOverQuotaAreRefused() throws IOException {
+        final StagingManager staging = new StagingManager(Arrays.asList(folder.getRoot()), 100L, 2.0, 0L, 60L);
+        try {
+            staging.reserve("aip", 101L);
+            fail("Reserved more than the quota");
+        } catch (final IOException ioE) {
+            assertThat(ioE).hasMessageContaining("quota");
+        }
+        assertThat(staging.getReserved()).isEqualTo(0L);
+
+        final File taskDir = staging.reserve("aip", 50L);
+        final File archive = new File(taskDir, "ITEM@123456789-1.zip");
+        Files.write(archive.toPath(), new byte[150]);
+        try {
+            staging.checkQuota(archive);
+            fail("Accepted an archive over the quota");
+        } catch (final IOException ioE) {
+            assertThat(ioE).hasMessageContaining("quota");
+        }
+    }
+
+    @Test
+    public void onlyOldUnusedFoldersAreRemoved() throws IOException {
+        final StagingManager staging = new StagingManager(Arrays.asList(folder.getRoot()), 0L, 1.0, 0L, 60L);
+        final File inUse = staging.reserve("aip", 0L);
+        final File recent = folder.newFolder("aip", ReplicaManager.TASK_DIR, "recent");
+        final File orphan = folder.newFolder("aip", ReplicaManager.TASK_DIR, "orphan");
+        final File staged = new File(orphan, "ITEM@123456789-1.zip");
+        assertThat(staged.createNewFile()).isTrue();
+        final long old = System.currentTimeMillis() - 2L * 60L * 60L * 1000L;
+        assertThat(staged.setLastModified(old) && orphan.setLastModified(old) && inUse.setLastModified(old))
+            .isTrue();
+
+        assertThat(staging.removeOrphans()).isEqualTo(1);
+        assertThat(orphan.exists()).isFalse();
+        assertThat(recent.exists()).isTrue();
+        assertThat(inUse.exists()).isTrue();
+    }
+
+    @Test
+    public void concurrentTasksAreGivenFoldersOfTheirOwn() throws Exception {
+        final StagingManager staging = new StagingManager(Arrays.asList(folder.getRoot()), 0L, 1.0, 0L, 60L);
+        final ExecutorService workers = Executors.newFixedThreadPool(8);
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Future<File>> reserved = new ArrayList<>();
+        try {
+            for (int i = 0; i < 32; i++) {
+                reserved.add(workers.submit(new Callable<File>() {
+                    @Override
+                    public File call() throws Exception {
+                        start.await();
+                        return staging.reserve("aip", 1000L);
+                    }
+                }));
+            }
+            start.countDown();
+            final Set<File> taskDirs = new HashSet<>();
+            for (final Future<File> future : reserved) {
+                taskDirs.add(future.get(10, TimeUnit.SECONDS));
+            }
+
+            assertThat(taskDirs).hasSize(32);
+            assertThat(staging.getReserved()).isEqualTo(32000L);
+            for (final File taskDir : taskDirs) {
+                staging.release(taskDir);
+            }
+            assertThat(staging.getReserved()).isEqualTo(0L);
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    private static File volumeOf(final File taskDir) {
+        // volume/group/tasks/task
+        return taskDir.getParentFile().getParentFile().getParentFile();
+    }
+}
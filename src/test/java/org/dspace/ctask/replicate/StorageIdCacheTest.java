@@ -0,0 +1,66 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.replicate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for the StorageIdCache
+ */
+public class StorageIdCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void leastRecentlyUsedAreDropped() {
+        final StorageIdCache cache = new StorageIdCache(2, null);
+        cache.put("123456789-1", "ITEM@");
+        cache.put("123456789-2", "COLLECTION@");
+        // using the first makes the second the least recently used
+        assertThat(cache.get("123456789-1")).isEqualTo("ITEM@");
+        cache.put("123456789-3", "COMMUNITY@");
+
+        assertThat(cache.size()).isEqualTo(2);
+        assertThat(cache.get("123456789-2")).isNull();
+        assertThat(cache.get("123456789-3")).isEqualTo("COMMUNITY@");
+        assertThat(cache.getHits()).isEqualTo(2L);
+        assertThat(cache.getMisses()).isEqualTo(1L);
+        assertThat(cache.getHitRatio()).isCloseTo(2.0 / 3.0, within(0.001));
+    }
+
+    @Test
+    public void invalidatedAreLookedUpAgain() {
+        final StorageIdCache cache = new StorageIdCache(10, null);
+        cache.put("123456789-1", "ITEM@");
+        cache.invalidate("123456789-1");
+
+        assertThat(cache.get("123456789-1")).isNull();
+    }
+
+    @Test
+    public void savedCacheIsReloaded() throws IOException {
+        final File file = new File(folder.getRoot(), "idcache");
+        final StorageIdCache cache = new StorageIdCache(10, file);
+        cache.put("123456789-1", "ITEM@");
+        cache.put("10.1234-abc", "COLLECTION@");
+        cache.save();
+
+        final StorageIdCache reloaded = new StorageIdCache(10, file);
+        assertThat(reloaded.size()).isEqualTo(2);
+        assertThat(reloaded.get("10.1234-abc")).isEqualTo("COLLECTION@");
+    }
+}
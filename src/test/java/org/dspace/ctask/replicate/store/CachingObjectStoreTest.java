@@ -0,0 +1,193 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.replicate.store;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
+import static org.dspace.TestDSpaceServicesFactory.DSPACE_SERVICES_FACTORY;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+import org.dspace.TestConfigurationService;
+import org.dspace.TestDSpaceKernelImpl;
+import org.dspace.TestDSpaceServicesFactory;
+import org.dspace.TestServiceManager;
+import org.dspace.ctask.replicate.ObjectStore;
+import org.dspace.kernel.DSpaceKernel;
+import org.dspace.kernel.DSpaceKernelManager;
+import org.dspace.kernel.ServiceManager;
+import org.dspace.services.ConfigurationService;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for the CachingObjectStore, in front of a LocalObjectStore
+ */
+public class CachingObjectStoreTest {
+
+    private static final String GROUP = "aips";
+    private static final String ID = "ITEM@123456789-1.zip";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ConfigurationService configurationService;
+    private LocalObjectStore backing;
+
+    @Before
+    public void setup() throws IOException {
+        final ServiceManager serviceManager = new TestServiceManager();
+        configurationService = new TestConfigurationService();
+        configurationService.setProperty("replicate.store.dir", folder.newFolder("store").getAbsolutePath());
+        configurationService.setProperty("replicate.store.cache.dir", folder.newFolder("cache").getAbsolutePath());
+
+        serviceManager.registerService(ConfigurationService.class.getName(), configurationService);
+        serviceManager.registerService(DSPACE_SERVICES_FACTORY, new TestDSpaceServicesFactory());
+
+        final DSpaceKernel kernel = new TestDSpaceKernelImpl(serviceManager, configurationService);
+        DSpaceKernelManager.registerMBean(kernel.getMBeanName(), kernel);
+        DSpaceKernelManager.setDefaultKernel(kernel);
+
+        backing = new LocalObjectStore();
+    }
+
+    private CachingObjectStore newCache() throws IOException {
+        final CachingObjectStore cache = new CachingObjectStore(backing);
+        cache.init();
+        return cache;
+    }
+
+    private void put(final ObjectStore store, final String id, final String content) throws IOException {
+        final byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        store.transferObject(GROUP, id, new ByteArrayInputStream(bytes), bytes.length, null);
+    }
+
+    private String read(final ObjectStore store, final String id) throws IOException {
+        try (InputStream in = store.openObject(GROUP, id)) {
+            return IOUtils.toString(in, StandardCharsets.UTF_8);
+        }
+    }
+
+    @Test
+    public void repeatedFetchIsServedFromCache() throws IOException {
+        final CachingObjectStore cache = newCache();
+        put(cache, ID, "item one");
+
+        assertThat(cache.fetchObject(GROUP, ID, folder.newFile())).isEqualTo(8L);
+        final File fetched = new File(folder.getRoot(), "fetched.zip");
+        assertThat(cache.fetchObject(GROUP, ID, fetched)).isEqualTo(8L);
+
+        assertThat(fetched).hasContent("item one");
+        assertThat(cache.getStatistic(CachingObjectStore.MISSES)).isEqualTo(1L);
+        assertThat(cache.getStatistic(CachingObjectStore.HITS)).isEqualTo(1L);
+        assertThat(cache.getStatistic(CachingObjectStore.BYTES_SAVED)).isEqualTo(8L);
+        assertThat(cache.getHitRatio()).isEqualTo(0.5);
+    }
+
+    @Test
+    public void bulkLookupsAnswerPresentAndMissingIds() throws IOException {
+        final CachingObjectStore cache = newCache();
+        put(cache, "ITEM@123456789-1.zip", "item one");
+        assertThat(read(cache, "ITEM@123456789-1.zip")).isEqualTo("item one");
+        // stored behind the cache's back, so never cached
+        put(backing, "ITEM@123456789-2.zip", "item two");
+        final List<String> ids = Arrays.asList("ITEM@123456789-1.zip", "ITEM@123456789-2.zip",
+                                               "ITEM@123456789-3.zip");
+
+        assertThat(cache.objectsExist(GROUP, ids)).containsExactly(entry("ITEM@123456789-1.zip", true),
+                                                                   entry("ITEM@123456789-2.zip", true),
+                                                                   entry("ITEM@123456789-3.zip", false));
+        final Map<String, Map<String, String>> attrs = cache.objectAttributes(GROUP, ids);
+        assertThat(attrs).containsOnlyKeys("ITEM@123456789-1.zip", "ITEM@123456789-2.zip");
+        assertThat(attrs.get("ITEM@123456789-2.zip")).containsEntry("checksum", backing.objectAttribute(
+            GROUP, "ITEM@123456789-2.zip", "checksum"));
+    }
+
+    @Test
+    public void changedObjectIsFetchedAgain() throws IOException {
+        final CachingObjectStore cache = newCache();
+        put(cache, ID, "item one");
+        assertThat(read(cache, ID)).isEqualTo("item one");
+
+        // changed behind the cache's back
+        put(backing, ID, "item one, revised");
+
+        assertThat(read(cache, ID)).isEqualTo("item one, revised");
+        assertThat(cache.getStatistic(CachingObjectStore.HITS)).isEqualTo(0L);
+    }
+
+    @Test
+    public void leastRecentlyUsedCopiesAreEvicted() throws IOException {
+        configurationService.setProperty("replicate.store.cache.size", "20");
+        final CachingObjectStore cache = newCache();
+        put(cache, "ITEM@123456789-1.zip", "item one");
+        put(cache, "ITEM@123456789-2.zip", "item two");
+        put(cache, "ITEM@123456789-3.zip", "item three");
+
+        read(cache, "ITEM@123456789-1.zip");
+        read(cache, "ITEM@123456789-2.zip");
+        // evicts the first
+        read(cache, "ITEM@123456789-3.zip");
+        read(cache, "ITEM@123456789-2.zip");
+        read(cache, "ITEM@123456789-1.zip");
+
+        assertThat(cache.getStatistic(CachingObjectStore.HITS)).isEqualTo(1L);
+        assertThat(cache.getStatistic(CachingObjectStore.MISSES)).isEqualTo(4L);
+    }
+
+    @Test
+    public void cachePersistsAcrossRuns() throws IOException {
+        final CachingObjectStore firstRun = newCache();
+        put(backing, ID, "item one");
+        read(firstRun, ID);
+        // as at the end of the run
+        firstRun.saveStats();
+
+        final CachingObjectStore nextRun = newCache();
+        assertThat(read(nextRun, ID)).isEqualTo("item one");
+        assertThat(nextRun.getStatistic(CachingObjectStore.HITS)).isEqualTo(1L);
+        assertThat(nextRun.getStatistic(CachingObjectStore.MISSES)).isEqualTo(1L);
+    }
+
+    @Test
+    public void objectWithoutChecksumIsReadThroughUncached() throws IOException {
+        // as a store which keeps no checksum for some objects
+        backing = new LocalObjectStore() {
+            @Override
+            public Map<String, Map<String, String>> objectAttributes(final String group, final List<String> ids)
+                throws IOException {
+                final Map<String, Map<String, String>> attrs = super.objectAttributes(group, ids);
+                for (final Map<String, String> objAttrs : attrs.values()) {
+                    objAttrs.remove("checksum");
+                }
+                return attrs;
+            }
+        };
+        final CachingObjectStore cache = newCache();
+        put(cache, ID, "item one");
+
+        final File fetched = new File(folder.getRoot(), "fetched.zip");
+        assertThat(cache.fetchObject(GROUP, ID, fetched)).isEqualTo(8L);
+        assertThat(fetched).hasContent("item one");
+        assertThat(read(cache, ID)).isEqualTo("item one");
+        assertThat(cache.getStatistic(CachingObjectStore.HITS)).isEqualTo(0L);
+        assertThat(new File(folder.getRoot(), "cache/" + GROUP + "/" + ID)).doesNotExist();
+        // objects which are not in the store are still reported missing
+        assertThat(cache.fetchObject(GROUP, "ITEM@123456789-2.zip", folder.newFile())).isEqualTo(0L);
+    }
+}
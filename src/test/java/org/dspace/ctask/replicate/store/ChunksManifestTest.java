@@ -0,0 +1,79 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.replicate.store;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+/**
+ * Tests that a ChunksManifest survives being written and read back
+ */
+public class ChunksManifestTest {
+
+    private static final String CONTENT_ID = "ITEM@123456789-1.zip";
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        final ChunksManifest manifest = new ChunksManifest(CONTENT_ID, "application/zip", 250L,
+                                                           "d41d8cd98f00b204e9800998ecf8427e");
+        manifest.addChunk(100L, "0cc175b9c0f1b6a831c399e269772661");
+        manifest.addChunk(100L, "92eb5ffee6ae2fec3ad71c777531578f");
+        manifest.addChunk(50L, "4a8a08f09d37b73795649038408b5f33");
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        manifest.write(out);
+        final ChunksManifest read = ChunksManifest.read(new ByteArrayInputStream(out.toByteArray()));
+
+        assertThat(read.getContentId()).isEqualTo(CONTENT_ID);
+        assertThat(read.getMimeType()).isEqualTo("application/zip");
+        assertThat(read.getByteSize()).isEqualTo(250L);
+        assertThat(read.getMD5()).isEqualTo("d41d8cd98f00b204e9800998ecf8427e");
+        assertThat(read.getChunks()).hasSize(3);
+        for (int i = 0; i < 3; i++) {
+            final ChunksManifest.Chunk chunk = read.getChunks().get(i);
+            assertThat(chunk.getIndex()).isEqualTo(i);
+            assertThat(chunk.getChunkId()).isEqualTo(ChunksManifest.chunkId(CONTENT_ID, i));
+            assertThat(chunk.getByteSize()).isEqualTo(manifest.getChunks().get(i).getByteSize());
+            assertThat(chunk.getMD5()).isEqualTo(manifest.getChunks().get(i).getMD5());
+        }
+    }
+
+    @Test
+    public void testChunksOrderedByIndex() throws IOException {
+        final String xml = "<dur:chunksManifest xmlns:dur=\"duracloud.org\">"
+            + "<header schemaVersion=\"0.2\"><sourceContent contentId=\"a.zip\">"
+            + "<mimetype>application/zip</mimetype><byteSize>3</byteSize><md5>abc</md5>"
+            + "</sourceContent></header><chunks>"
+            + "<chunk chunkId=\"a.zip.dura-chunk-0001\" index=\"1\"><byteSize>1</byteSize><md5>y</md5></chunk>"
+            + "<chunk chunkId=\"a.zip.dura-chunk-0000\" index=\"0\"><byteSize>2</byteSize><md5>x</md5></chunk>"
+            + "</chunks></dur:chunksManifest>";
+
+        final ChunksManifest read = ChunksManifest.read(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+
+        assertThat(read.getChunks()).extracting("chunkId")
+                                    .containsExactly("a.zip.dura-chunk-0000", "a.zip.dura-chunk-0001");
+    }
+
+    @Test(expected = IOException.class)
+    public void testDuplicateIndexRejected() throws IOException {
+        final String xml = "<dur:chunksManifest xmlns:dur=\"duracloud.org\">"
+            + "<header schemaVersion=\"0.2\"><sourceContent contentId=\"a.zip\">"
+            + "<byteSize>2</byteSize><md5>abc</md5></sourceContent></header><chunks>"
+            + "<chunk chunkId=\"a.zip.dura-chunk-0000\" index=\"0\"><byteSize>1</byteSize><md5>x</md5></chunk>"
+            + "<chunk chunkId=\"a.zip.dura-chunk-0000\" index=\"0\"><byteSize>1</byteSize><md5>x</md5></chunk>"
+            + "</chunks></dur:chunksManifest>";
+
+        ChunksManifest.read(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+    }
+}
@@ -0,0 +1,465 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.replicate.store;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+import static org.dspace.TestDSpaceServicesFactory.DSPACE_SERVICES_FACTORY;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.io.ByteStreams;
+import org.dspace.TestConfigurationService;
+import org.dspace.TestDSpaceKernelImpl;
+import org.dspace.TestDSpaceServicesFactory;
+import org.dspace.TestServiceManager;
+import org.dspace.ctask.replicate.ObjectInfo;
+import org.dspace.curate.Utils;
+import org.dspace.kernel.DSpaceKernel;
+import org.dspace.kernel.DSpaceKernelManager;
+import org.dspace.kernel.ServiceManager;
+import org.dspace.services.ConfigurationService;
+import org.duracloud.client.ContentStore;
+import org.duracloud.domain.Content;
+import org.duracloud.domain.Space;
+import org.duracloud.error.ContentStoreException;
+import org.duracloud.error.NotFoundException;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+/**
+ * Tests for the DuraCloudObjectStore, against a mocked ContentStore which
+ * keeps its content in memory
+ */
+public class DuraCloudObjectStoreTest {
+
+    private static final String GROUP = "aip-store";
+    private static final String ID = "ITEM@123456789-1.zip";
+    private static final int CHUNK = 1000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ConfigurationService configurationService;
+    private InMemoryContent contents;
+    private ContentStore dcStore;
+
+    @Before
+    public void setup() {
+        final ServiceManager serviceManager = new TestServiceManager();
+        configurationService = new TestConfigurationService();
+        configurationService.setProperty("duracloud.chunk.threads", "4");
+        configurationService.setProperty("duracloud.fetch.retries", "2");
+
+        serviceManager.registerService(ConfigurationService.class.getName(), configurationService);
+        serviceManager.registerService(DSPACE_SERVICES_FACTORY, new TestDSpaceServicesFactory());
+
+        final DSpaceKernel kernel = new TestDSpaceKernelImpl(serviceManager, configurationService);
+        DSpaceKernelManager.registerMBean(kernel.getMBeanName(), kernel);
+        DSpaceKernelManager.setDefaultKernel(kernel);
+
+        contents = new InMemoryContent();
+        dcStore = mock(ContentStore.class, contents);
+    }
+
+    private DuraCloudObjectStore newStore(final long chunkSize) throws IOException {
+        configurationService.setProperty("duracloud.chunk.size", String.valueOf(chunkSize));
+        final DuraCloudObjectStore store = new DuraCloudObjectStore(dcStore);
+        store.init();
+        return store;
+    }
+
+    private static byte[] content(final int length) {
+        final byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+
+    private File stage(final String id, final byte[] bytes) throws IOException {
+        final File file = new File(folder.newFolder(), id);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(bytes);
+        }
+        return file;
+    }
+
+    @Test
+    public void largeContentIsUploadedInParallelChunks() throws IOException {
+        final DuraCloudObjectStore store = newStore(CHUNK);
+        final byte[] bytes = content(4 * CHUNK + 500);
+        // each chunk upload waits for a second one to start alongside it
+        contents.chunkLatch = new CountDownLatch(2);
+
+        assertThat(store.transferObject(GROUP, stage(ID, bytes))).isEqualTo(bytes.length);
+
+        assertThat(contents.maxChunksInFlight.get()).isGreaterThan(1);
+        assertThat(contents.ids()).contains(ChunksManifest.manifestId(ID), ChunksManifest.chunkId(ID, 4))
+                                  .doesNotContain(ID);
+        final File fetched = new File(folder.getRoot(), "fetched.zip");
+        assertThat(store.fetchObject(GROUP, ID, fetched)).isEqualTo(bytes.length);
+        assertThat(Files.readAllBytes(fetched.toPath())).isEqualTo(bytes);
+        assertThat(store.objectAttribute(GROUP, ID, "checksum"))
+            .isEqualTo(Utils.checksum(new ByteArrayInputStream(bytes), "MD5"));
+    }
+
+    @Test
+    public void failedChunkUploadResumesWithMissingChunks() throws IOException {
+        final DuraCloudObjectStore store = newStore(CHUNK);
+        final byte[] bytes = content(4 * CHUNK);
+        final File staged = stage(ID, bytes);
+        contents.failingId = ChunksManifest.chunkId(ID, 3);
+
+        try {
+            store.transferObject(GROUP, staged);
+            fail("expected IOException");
+        } catch (IOException expected) {
+            assertThat(contents.ids()).doesNotContain(ChunksManifest.manifestId(ID));
+            // the staged file is kept, so the transfer may be retried
+            assertThat(staged).exists();
+        }
+
+        contents.failingId = null;
+        contents.adds.clear();
+        assertThat(store.transferObject(GROUP, staged)).isEqualTo(bytes.length);
+
+        // only the chunk which failed is sent again, then the manifest
+        assertThat(contents.adds).containsExactly(ChunksManifest.chunkId(ID, 3), ChunksManifest.manifestId(ID));
+        assertThat(store.objectExists(GROUP, ID)).isTrue();
+    }
+
+    @Test
+    public void chunkedContentIsFoundWithChunkingDisabled() throws IOException {
+        final byte[] bytes = content(2 * CHUNK + 500);
+        newStore(CHUNK).transferObject(GROUP, stage(ID, bytes));
+
+        final DuraCloudObjectStore store = newStore(0L);
+        assertThat(store.objectExists(GROUP, ID)).isTrue();
+        assertThat(store.objectAttribute(GROUP, ID, "sizebytes")).isEqualTo(String.valueOf(bytes.length));
+        final File fetched = new File(folder.getRoot(), "fetched.zip");
+        assertThat(store.fetchObject(GROUP, ID, fetched)).isEqualTo(bytes.length);
+        assertThat(Files.readAllBytes(fetched.toPath())).isEqualTo(bytes);
+        try (InputStream in = store.openObject(GROUP, ID)) {
+            assertThat(in).hasSameContentAs(new ByteArrayInputStream(bytes));
+        }
+
+        final List<String> listed = new ArrayList<>();
+        for (final Iterator<ObjectInfo> iter = store.listObjects(GROUP, null); iter.hasNext(); ) {
+            listed.add(iter.next().getId());
+        }
+        assertThat(listed).containsExactly(ID);
+
+        assertThat(store.moveObject(GROUP, "trash", ID)).isEqualTo(bytes.length);
+        assertThat(contents.ids("trash")).contains(ChunksManifest.manifestId(ID), ChunksManifest.chunkId(ID, 2));
+        assertThat(store.removeObject("trash", ID)).isEqualTo(bytes.length);
+        assertThat(contents.ids()).isEmpty();
+        assertThat(contents.ids("trash")).isEmpty();
+    }
+
+    @Test
+    public void unchunkedUploadReplacesChunkedContent() throws IOException {
+        newStore(CHUNK).transferObject(GROUP, stage(ID, content(2 * CHUNK + 500)));
+        final byte[] bytes = content(100);
+
+        newStore(0L).transferObject(GROUP, ID, new ByteArrayInputStream(bytes), bytes.length, null);
+
+        assertThat(contents.ids()).containsExactly(ID);
+    }
+
+    @Test
+    public void unchangedStreamIsReadWithoutUpload() throws IOException {
+        final DuraCloudObjectStore store = newStore(0L);
+        final byte[] bytes = content(100);
+        final String md5 = Utils.checksum(new ByteArrayInputStream(bytes), "MD5");
+        store.transferObject(GROUP, ID, new ByteArrayInputStream(bytes), bytes.length, md5);
+
+        final ByteArrayInputStream in = new ByteArrayInputStream(bytes);
+        assertThat(store.transferObject(GROUP, ID, in, bytes.length, md5)).isEqualTo(0L);
+        assertThat(in.available()).isEqualTo(0);
+    }
+
+    @Test
+    public void droppedFetchResumesWithRangedRequest() throws Exception {
+        final DuraCloudObjectStore store = newStore(0L);
+        final byte[] bytes = content(5000);
+        store.transferObject(GROUP, ID, new ByteArrayInputStream(bytes), bytes.length, null);
+        contents.dropAfter = 2000;
+
+        final File fetched = new File(folder.getRoot(), ID);
+        assertThat(store.fetchObject(GROUP, ID, fetched)).isEqualTo(bytes.length);
+
+        verify(dcStore).getContent(GROUP, ID, 2000L, null);
+        assertThat(Files.readAllBytes(fetched.toPath())).isEqualTo(bytes);
+        assertThat(new File(fetched.getPath() + ".part")).doesNotExist();
+    }
+
+    @Test
+    public void stalePartialFileIsDiscarded() throws Exception {
+        final DuraCloudObjectStore store = newStore(0L);
+        final byte[] bytes = content(5000);
+        store.transferObject(GROUP, ID, new ByteArrayInputStream(bytes), bytes.length, null);
+        final File fetched = new File(folder.getRoot(), ID);
+        // left by a fetch of an earlier version of the replica
+        Files.write(new File(fetched.getPath() + ".part").toPath(), content(1000));
+
+        assertThat(store.fetchObject(GROUP, ID, fetched)).isEqualTo(bytes.length);
+
+        // resumed first, then started again once the checksum did not match
+        verify(dcStore).getContent(GROUP, ID, 1000L, null);
+        verify(dcStore).getContent(GROUP, ID);
+        assertThat(Files.readAllBytes(fetched.toPath())).isEqualTo(bytes);
+    }
+
+    @Test
+    public void corruptContentFailsAfterRetries() throws Exception {
+        final DuraCloudObjectStore store = newStore(0L);
+        final byte[] bytes = content(5000);
+        store.transferObject(GROUP, ID, new ByteArrayInputStream(bytes), bytes.length, null);
+        contents.checksums.put(GROUP + "/" + ID, "00000000000000000000000000000000");
+
+        final File fetched = new File(folder.getRoot(), ID);
+        try {
+            store.fetchObject(GROUP, ID, fetched);
+            fail("expected IOException");
+        } catch (IOException expected) {
+            assertThat(expected).hasMessageContaining("Checksum mismatch");
+        }
+
+        // the first attempt and two retries, each from scratch
+        verify(dcStore, times(3)).getContent(GROUP, ID);
+        assertThat(fetched).doesNotExist();
+        assertThat(new File(fetched.getPath() + ".part")).doesNotExist();
+    }
+
+    @Test
+    public void cachedPropertiesExpireAfterTtl() throws Exception {
+        configurationService.setProperty("duracloud.cache.ttl", "1");
+        final DuraCloudObjectStore store = newStore(0L);
+        final byte[] bytes = content(100);
+        store.transferObject(GROUP, ID, new ByteArrayInputStream(bytes), bytes.length, null);
+
+        assertThat(store.objectAttribute(GROUP, ID, "sizebytes")).isEqualTo("100");
+        assertThat(store.objectAttribute(GROUP, ID, "checksum")).isNotNull();
+        verify(dcStore, times(1)).getContentProperties(GROUP, ID);
+
+        Thread.sleep(1100L);
+        assertThat(store.objectExists(GROUP, ID)).isTrue();
+        verify(dcStore, times(2)).getContentProperties(GROUP, ID);
+        assertThat(store.getCacheHits()).isEqualTo(1L);
+        assertThat(store.getCacheMisses()).isEqualTo(2L);
+    }
+
+    @Test
+    public void missingReplicaIsCachedUntilTransferred() throws Exception {
+        final DuraCloudObjectStore store = newStore(0L);
+
+        assertThat(store.objectExists(GROUP, ID)).isFalse();
+        assertThat(store.objectExists(GROUP, ID)).isFalse();
+        verify(dcStore, times(1)).getContentProperties(GROUP, ID);
+        verify(dcStore, times(1)).getContent(GROUP, ChunksManifest.manifestId(ID));
+
+        final byte[] bytes = content(100);
+        store.transferObject(GROUP, ID, new ByteArrayInputStream(bytes), bytes.length, null);
+        assertThat(store.objectExists(GROUP, ID)).isTrue();
+    }
+
+    @Test
+    public void removeAndMoveInvalidateCachedProperties() throws IOException {
+        final DuraCloudObjectStore store = newStore(0L);
+        final byte[] bytes = content(100);
+        store.transferObject(GROUP, ID, new ByteArrayInputStream(bytes), bytes.length, null);
+        assertThat(store.objectExists(GROUP, ID)).isTrue();
+
+        store.removeObject(GROUP, ID);
+        assertThat(store.objectExists(GROUP, ID)).isFalse();
+
+        store.transferObject(GROUP, ID, new ByteArrayInputStream(bytes), bytes.length, null);
+        assertThat(store.objectExists(GROUP, ID)).isTrue();
+        assertThat(store.objectExists("trash", ID)).isFalse();
+        store.moveObject(GROUP, "trash", ID);
+        assertThat(store.objectExists(GROUP, ID)).isFalse();
+        assertThat(store.objectExists("trash", ID)).isTrue();
+    }
+
+    /**
+     * Keeps the content of the mocked ContentStore in memory, keyed by
+     * space and content ID.
+     */
+    static class InMemoryContent implements Answer<Object> {
+        final Map<String, byte[]> store = new ConcurrentHashMap<>();
+        // checksums reported in place of those of the content, by key
+        final Map<String, String> checksums = new ConcurrentHashMap<>();
+        // content IDs added, in order
+        final List<String> adds = new ArrayList<>();
+        // an ID whose upload fails (null for none)
+        volatile String failingId = null;
+        // bytes after which a full (not ranged) read fails (0 for never)
+        volatile int dropAfter = 0;
+        volatile CountDownLatch chunkLatch = null;
+        final AtomicInteger chunksInFlight = new AtomicInteger();
+        final AtomicInteger maxChunksInFlight = new AtomicInteger();
+
+        List<String> ids() {
+            return ids(GROUP);
+        }
+
+        List<String> ids(final String space) {
+            final List<String> ids = new ArrayList<>();
+            for (final String key : new TreeMap<>(store).keySet()) {
+                if (key.startsWith(space + "/")) {
+                    ids.add(key.substring(space.length() + 1));
+                }
+            }
+            return ids;
+        }
+
+        @Override
+        public Object answer(final InvocationOnMock invocation) throws Throwable {
+            final Object[] args = invocation.getArguments();
+            switch (invocation.getMethod().getName()) {
+                case "addContent":
+                    return add((String) args[0], (String) args[1], (InputStream) args[2], (String) args[5]);
+                case "getContentProperties":
+                    return properties(key(args), found(args));
+                case "getContent":
+                    final byte[] bytes = found(args);
+                    final Content content = new Content();
+                    content.setId((String) args[1]);
+                    content.setProperties(properties(key(args), bytes));
+                    if (args.length > 2) {
+                        final int start = ((Long) args[2]).intValue();
+                        content.setStream(new ByteArrayInputStream(bytes, start, bytes.length - start));
+                    } else {
+                        content.setStream(dropping(new ByteArrayInputStream(bytes)));
+                    }
+                    return content;
+                case "deleteContent":
+                    found(args);
+                    store.remove(key(args));
+                    return null;
+                case "moveContent":
+                    final byte[] moved = found(args);
+                    store.remove(key(args));
+                    store.put(args[2] + "/" + args[3], moved);
+                    return null;
+                case "getSpace":
+                    final Space space = new Space();
+                    final String prefix = args[1] != null ? (String) args[1] : "";
+                    for (final String id : ids((String) args[0])) {
+                        if (id.startsWith(prefix) && (args[3] == null || id.compareTo((String) args[3]) > 0)
+                            && space.getContentIds().size() < (Long) args[2]) {
+                            space.addContentId(id);
+                        }
+                    }
+                    return space;
+                default:
+                    throw new UnsupportedOperationException(invocation.getMethod().getName());
+            }
+        }
+
+        private String add(final String space, final String id, final InputStream in, final String md5)
+            throws Exception {
+            final boolean chunk = id.contains(ChunksManifest.CHUNK_SUFFIX);
+            if (chunk) {
+                final int inFlight = chunksInFlight.incrementAndGet();
+                synchronized (maxChunksInFlight) {
+                    maxChunksInFlight.set(Math.max(maxChunksInFlight.get(), inFlight));
+                }
+                if (chunkLatch != null) {
+                    chunkLatch.countDown();
+                    chunkLatch.await(5, TimeUnit.SECONDS);
+                }
+            }
+            try {
+                final byte[] bytes = ByteStreams.toByteArray(in);
+                if (id.equals(failingId)) {
+                    throw new ContentStoreException("Upload of " + id + " failed");
+                }
+                final String actual = Utils.checksum(new ByteArrayInputStream(bytes), "MD5");
+                if (md5 != null && ! md5.equals(actual)) {
+                    throw new ContentStoreException("Checksum mismatch adding " + id);
+                }
+                store.put(space + "/" + id, bytes);
+                synchronized (adds) {
+                    adds.add(id);
+                }
+                return actual;
+            } finally {
+                if (chunk) {
+                    chunksInFlight.decrementAndGet();
+                }
+            }
+        }
+
+        private InputStream dropping(final InputStream in) {
+            final int limit = dropAfter;
+            if (limit == 0) {
+                return in;
+            }
+            dropAfter = 0;
+            return new FilterInputStream(in) {
+                private int read = 0;
+
+                @Override
+                public int read(final byte[] b, final int off, final int len) throws IOException {
+                    if (read >= limit) {
+                        throw new IOException("Connection reset");
+                    }
+                    final int n = super.read(b, off, Math.min(len, limit - read));
+                    read += Math.max(n, 0);
+                    return n;
+                }
+            };
+        }
+
+        private static String key(final Object[] args) {
+            return args[0] + "/" + args[1];
+        }
+
+        private byte[] found(final Object[] args) throws NotFoundException {
+            final byte[] bytes = store.get(key(args));
+            if (bytes == null) {
+                throw new NotFoundException("No content " + key(args));
+            }
+            return bytes;
+        }
+
+        private Map<String, String> properties(final String key, final byte[] bytes) throws IOException {
+            final Map<String, String> props = new HashMap<>();
+            props.put(ContentStore.CONTENT_SIZE, String.valueOf(bytes.length));
+            final String md5 = checksums.get(key);
+            props.put(ContentStore.CONTENT_CHECKSUM,
+                      md5 != null ? md5 : Utils.checksum(new ByteArrayInputStream(bytes), "MD5"));
+            props.put(ContentStore.CONTENT_MODIFIED, "2020-01-01T00:00:00");
+            return props;
+        }
+    }
+}
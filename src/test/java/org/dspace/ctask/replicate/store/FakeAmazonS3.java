@@ -0,0 +1,330 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.replicate.store;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AbstractAmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.CopyObjectResult;
+import com.amazonaws.services.s3.model.CopyPartRequest;
+import com.amazonaws.services.s3.model.CopyPartResult;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsResult;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+import com.amazonaws.util.BinaryUtils;
+
+/**
+ * An in-memory S3 endpoint (of a single bucket), supporting the requests
+ * S3ObjectStore makes. Requests are counted, and part uploads may be made
+ * to fail, so the store's use of S3 can be checked.
+ */
+public class FakeAmazonS3 extends AbstractAmazonS3 {
+
+    private final SortedMap<String, StoredObject> objects = new TreeMap<>();
+    private final Map<String, SortedMap<Integer, byte[]>> uploads = new HashMap<>();
+    // metadata given when uploads were initiated, by upload ID
+    private final Map<String, ObjectMetadata> uploadMeta = new HashMap<>();
+
+    // part uploads yet to fail
+    public final AtomicInteger partFailures = new AtomicInteger();
+
+    public final AtomicInteger puts = new AtomicInteger();
+    public final AtomicInteger partUploads = new AtomicInteger();
+    public final AtomicInteger copies = new AtomicInteger();
+    public final AtomicInteger deleteRequests = new AtomicInteger();
+    public final AtomicInteger aborts = new AtomicInteger();
+
+    // parts being uploaded right now, and the most there have been at once
+    private final AtomicInteger partsInFlight = new AtomicInteger();
+    public final AtomicInteger maxPartsInFlight = new AtomicInteger();
+
+    private static class StoredObject {
+        final byte[] data;
+        final ObjectMetadata meta;
+
+        StoredObject(final byte[] data, final ObjectMetadata meta) {
+            this.data = data;
+            this.meta = meta;
+        }
+    }
+
+    public synchronized boolean contains(final String key) {
+        return objects.containsKey(key);
+    }
+
+    public synchronized byte[] content(final String key) {
+        return objects.get(key).data;
+    }
+
+    public synchronized int pendingUploads() {
+        return uploads.size();
+    }
+
+    private static AmazonS3Exception notFound(final String key) {
+        final AmazonS3Exception e = new AmazonS3Exception("Not found: " + key);
+        e.setStatusCode(404);
+        return e;
+    }
+
+    private static String md5Hex(final byte[]... parts) {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("MD5");
+            for (final byte[] part : parts) {
+                digest.update(part);
+            }
+            return BinaryUtils.toHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] read(final InputStream in) {
+        try {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                out.write(buf, 0, n);
+            }
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new AmazonClientException(e);
+        }
+    }
+
+    private synchronized void store(final String key, final byte[] data, final ObjectMetadata meta, final String etag) {
+        final ObjectMetadata stored = meta != null ? meta.clone() : new ObjectMetadata();
+        stored.setContentLength(data.length);
+        stored.setHeader("ETag", etag);
+        stored.setLastModified(new Date());
+        objects.put(key, new StoredObject(data, stored));
+    }
+
+    private synchronized StoredObject get(final String key) {
+        final StoredObject object = objects.get(key);
+        if (object == null) {
+            throw notFound(key);
+        }
+        return object;
+    }
+
+    @Override
+    public ObjectMetadata getObjectMetadata(final String bucket, final String key) {
+        return get(key).meta.clone();
+    }
+
+    @Override
+    public S3Object getObject(final String bucket, final String key) {
+        final StoredObject stored = get(key);
+        final S3Object object = new S3Object();
+        object.setBucketName(bucket);
+        object.setKey(key);
+        object.setObjectMetadata(stored.meta.clone());
+        object.setObjectContent(new ByteArrayInputStream(stored.data));
+        return object;
+    }
+
+    @Override
+    public PutObjectResult putObject(final PutObjectRequest request) {
+        puts.incrementAndGet();
+        final byte[] data;
+        try {
+            data = request.getFile() != null ? Files.readAllBytes(request.getFile().toPath())
+                                             : read(request.getInputStream());
+        } catch (IOException e) {
+            throw new AmazonClientException(e);
+        }
+        final String md5 = md5Hex(data);
+        final ObjectMetadata meta = request.getMetadata();
+        if (meta != null && meta.getContentMD5() != null
+            && ! meta.getContentMD5().equals(BinaryUtils.toBase64(BinaryUtils.fromHex(md5)))) {
+            throw new AmazonS3Exception("Content-MD5 does not match content");
+        }
+        store(request.getKey(), data, meta, md5);
+        final PutObjectResult result = new PutObjectResult();
+        result.setETag(md5);
+        return result;
+    }
+
+    @Override
+    public CopyObjectResult copyObject(final CopyObjectRequest request) {
+        copies.incrementAndGet();
+        final StoredObject source = get(request.getSourceKey());
+        final ObjectMetadata meta = request.getNewObjectMetadata() != null ? request.getNewObjectMetadata()
+                                                                            : source.meta;
+        store(request.getDestinationKey(), source.data, meta, md5Hex(source.data));
+        return new CopyObjectResult();
+    }
+
+    @Override
+    public synchronized void deleteObject(final String bucket, final String key) {
+        objects.remove(key);
+    }
+
+    @Override
+    public synchronized DeleteObjectsResult deleteObjects(final DeleteObjectsRequest request) {
+        deleteRequests.incrementAndGet();
+        for (final DeleteObjectsRequest.KeyVersion key : request.getKeys()) {
+            objects.remove(key.getKey());
+        }
+        return new DeleteObjectsResult(new ArrayList<DeleteObjectsResult.DeletedObject>());
+    }
+
+    @Override
+    public synchronized ObjectListing listObjects(final ListObjectsRequest request) {
+        final ObjectListing listing = new ObjectListing();
+        final String prefix = request.getPrefix() != null ? request.getPrefix() : "";
+        final String delimiter = request.getDelimiter();
+        final TreeSet<String> commonPrefixes = new TreeSet<>();
+        int count = 0;
+        for (final Map.Entry<String, StoredObject> entry : objects.entrySet()) {
+            final String key = entry.getKey();
+            if (! key.startsWith(prefix) || (request.getMarker() != null && key.compareTo(request.getMarker()) <= 0)) {
+                continue;
+            }
+            if (delimiter != null && key.indexOf(delimiter, prefix.length()) >= 0) {
+                commonPrefixes.add(key.substring(0, key.indexOf(delimiter, prefix.length()) + 1));
+                continue;
+            }
+            if (count == request.getMaxKeys()) {
+                listing.setTruncated(true);
+                break;
+            }
+            final S3ObjectSummary summary = new S3ObjectSummary();
+            summary.setKey(key);
+            summary.setSize(entry.getValue().data.length);
+            summary.setETag(entry.getValue().meta.getETag());
+            summary.setLastModified(entry.getValue().meta.getLastModified());
+            listing.getObjectSummaries().add(summary);
+            count++;
+        }
+        listing.getCommonPrefixes().addAll(commonPrefixes);
+        return listing;
+    }
+
+    @Override
+    public synchronized InitiateMultipartUploadResult initiateMultipartUpload(
+        final InitiateMultipartUploadRequest request) {
+        final String uploadId = UUID.randomUUID().toString();
+        uploads.put(uploadId, new TreeMap<Integer, byte[]>());
+        uploadMeta.put(uploadId, request.getObjectMetadata());
+        final InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+        result.setUploadId(uploadId);
+        return result;
+    }
+
+    @Override
+    public UploadPartResult uploadPart(final UploadPartRequest request) {
+        partUploads.incrementAndGet();
+        final int inFlight = partsInFlight.incrementAndGet();
+        try {
+            synchronized (maxPartsInFlight) {
+                maxPartsInFlight.set(Math.max(maxPartsInFlight.get(), inFlight));
+            }
+            if (partFailures.getAndDecrement() > 0) {
+                throw new AmazonClientException("Connection reset");
+            }
+            final byte[] data;
+            if (request.getFile() != null) {
+                data = new byte[(int) request.getPartSize()];
+                try (RandomAccessFile file = new RandomAccessFile(request.getFile(), "r")) {
+                    file.seek(request.getFileOffset());
+                    file.readFully(data);
+                }
+            } else {
+                data = read(request.getInputStream());
+            }
+            // give other parts a chance to overlap
+            Thread.sleep(10L);
+            synchronized (this) {
+                uploads.get(request.getUploadId()).put(request.getPartNumber(), data);
+            }
+            final UploadPartResult result = new UploadPartResult();
+            result.setPartNumber(request.getPartNumber());
+            result.setETag(md5Hex(data));
+            return result;
+        } catch (IOException | InterruptedException e) {
+            throw new AmazonClientException(e);
+        } finally {
+            partsInFlight.decrementAndGet();
+        }
+    }
+
+    @Override
+    public CopyPartResult copyPart(final CopyPartRequest request) {
+        final StoredObject source = get(request.getSourceKey());
+        final byte[] data = Arrays.copyOfRange(source.data, (int) (long) request.getFirstByte(),
+                                               (int) (long) request.getLastByte() + 1);
+        synchronized (this) {
+            uploads.get(request.getUploadId()).put(request.getPartNumber(), data);
+        }
+        final CopyPartResult result = new CopyPartResult();
+        result.setPartNumber(request.getPartNumber());
+        result.setETag(md5Hex(data));
+        return result;
+    }
+
+    @Override
+    public synchronized CompleteMultipartUploadResult completeMultipartUpload(
+        final CompleteMultipartUploadRequest request) {
+        final SortedMap<Integer, byte[]> parts = uploads.remove(request.getUploadId());
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[][] partData = new byte[request.getPartETags().size()][];
+        int i = 0;
+        for (final PartETag etag : request.getPartETags()) {
+            final byte[] data = parts.get(etag.getPartNumber());
+            out.write(data, 0, data.length);
+            partData[i++] = BinaryUtils.fromHex(md5Hex(data));
+        }
+        // S3 gives multipart uploads an ETag which is not the content's MD5
+        store(request.getKey(), out.toByteArray(), uploadMeta.remove(request.getUploadId()),
+              md5Hex(partData) + "-" + partData.length);
+        return new CompleteMultipartUploadResult();
+    }
+
+    @Override
+    public synchronized void abortMultipartUpload(final AbortMultipartUploadRequest request) {
+        aborts.incrementAndGet();
+        uploads.remove(request.getUploadId());
+        uploadMeta.remove(request.getUploadId());
+    }
+}
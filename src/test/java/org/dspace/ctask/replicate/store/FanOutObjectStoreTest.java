@@ -0,0 +1,202 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.replicate.store;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
+import static org.dspace.TestDSpaceServicesFactory.DSPACE_SERVICES_FACTORY;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.dspace.TestConfigurationService;
+import org.dspace.TestDSpaceKernelImpl;
+import org.dspace.TestDSpaceServicesFactory;
+import org.dspace.TestServiceManager;
+import org.dspace.ctask.replicate.ObjectStore;
+import org.dspace.kernel.DSpaceKernel;
+import org.dspace.kernel.DSpaceKernelManager;
+import org.dspace.kernel.ServiceManager;
+import org.dspace.services.ConfigurationService;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for the FanOutObjectStore, over LocalObjectStores
+ */
+public class FanOutObjectStoreTest {
+
+    private static final String GROUP = "aips";
+    private static final String ID = "ITEM@123456789-1.zip";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ConfigurationService configurationService;
+
+    @Before
+    public void setup() throws IOException {
+        final ServiceManager serviceManager = new TestServiceManager();
+        configurationService = new TestConfigurationService();
+        configurationService.setProperty("replicate.base.dir", folder.newFolder("replicate").getAbsolutePath());
+
+        serviceManager.registerService(ConfigurationService.class.getName(), configurationService);
+        serviceManager.registerService(DSPACE_SERVICES_FACTORY, new TestDSpaceServicesFactory());
+
+        final DSpaceKernel kernel = new TestDSpaceKernelImpl(serviceManager, configurationService);
+        DSpaceKernelManager.registerMBean(kernel.getMBeanName(), kernel);
+        DSpaceKernelManager.setDefaultKernel(kernel);
+    }
+
+    /**
+     * A local store in its own directory
+     */
+    private LocalObjectStore localStore(final String name) throws IOException {
+        final String dir = folder.newFolder(name).getAbsolutePath();
+        return new LocalObjectStore() {
+            @Override
+            public void init() {
+                storeDir = dir;
+            }
+        };
+    }
+
+    /**
+     * A store which is down
+     */
+    private LocalObjectStore brokenStore(final String name) throws IOException {
+        final String dir = folder.newFolder(name).getAbsolutePath();
+        return new LocalObjectStore() {
+            @Override
+            public void init() {
+                storeDir = dir;
+            }
+
+            @Override
+            public long transferObject(String group, String id, InputStream in, long length, String md5)
+                throws IOException {
+                throw new IOException("store is down");
+            }
+
+            @Override
+            public InputStream openObject(String group, String id) throws IOException {
+                throw new IOException("store is down");
+            }
+        };
+    }
+
+    private FanOutObjectStore fanOut(final ObjectStore... stores) throws IOException {
+        final Map<String, ObjectStore> members = new LinkedHashMap<>();
+        for (int i = 0; i < stores.length; i++) {
+            members.put("store" + i, stores[i]);
+        }
+        final FanOutObjectStore fanOut = new FanOutObjectStore(members);
+        fanOut.init();
+        return fanOut;
+    }
+
+    private File stage(final String content) throws IOException {
+        final File staged = new File(folder.newFolder(), ID);
+        try (FileOutputStream out = new FileOutputStream(staged)) {
+            out.write(content.getBytes(StandardCharsets.UTF_8));
+        }
+        return staged;
+    }
+
+    @Test
+    public void transferWritesToAllMembers() throws IOException {
+        final LocalObjectStore first = localStore("first");
+        final LocalObjectStore second = localStore("second");
+        final FanOutObjectStore fanOut = fanOut(first, second);
+        final File staged = stage("item one");
+
+        assertThat(fanOut.transferObject(GROUP, staged)).isEqualTo(8L);
+
+        assertThat(first.objectFile(GROUP, ID)).hasContent("item one");
+        assertThat(second.objectFile(GROUP, ID)).hasContent("item one");
+        assertThat(staged).doesNotExist();
+    }
+
+    @Test(expected = IOException.class)
+    public void transferFailsWithoutQuorum() throws IOException {
+        final FanOutObjectStore fanOut = fanOut(localStore("first"), brokenStore("second"));
+
+        fanOut.transferObject(GROUP, stage("item one"));
+    }
+
+    @Test
+    public void transferSucceedsWithQuorum() throws IOException {
+        configurationService.setProperty("replicate.store.fanout.quorum", "1");
+        final LocalObjectStore first = localStore("first");
+        final FanOutObjectStore fanOut = fanOut(first, brokenStore("second"));
+
+        assertThat(fanOut.transferObject(GROUP, stage("item one"))).isEqualTo(8L);
+        assertThat(first.objectExists(GROUP, ID)).isTrue();
+    }
+
+    @Test
+    public void readFallsBackToMemberWithObject() throws IOException {
+        final LocalObjectStore first = localStore("first");
+        final LocalObjectStore second = localStore("second");
+        final FanOutObjectStore fanOut = fanOut(first, second);
+        final byte[] bytes = "item one".getBytes(StandardCharsets.UTF_8);
+        second.transferObject(GROUP, ID, new ByteArrayInputStream(bytes), bytes.length, null);
+
+        assertThat(fanOut.objectExists(GROUP, ID)).isTrue();
+        assertThat(fanOut.objectsExist(GROUP, Arrays.asList(ID, "ITEM@123456789-2.zip")))
+            .containsEntry(ID, true)
+            .containsEntry("ITEM@123456789-2.zip", false);
+        assertThat(fanOut.fetchObject(GROUP, ID, folder.newFile())).isEqualTo(8L);
+    }
+
+    @Test
+    public void bulkLookupsGatherIdsFromEveryMember() throws IOException {
+        final LocalObjectStore first = localStore("first");
+        final LocalObjectStore second = localStore("second");
+        final FanOutObjectStore fanOut = fanOut(first, second);
+        final byte[] one = "item one".getBytes(StandardCharsets.UTF_8);
+        final byte[] two = "item two, longer".getBytes(StandardCharsets.UTF_8);
+        first.transferObject(GROUP, ID, new ByteArrayInputStream(one), one.length, null);
+        second.transferObject(GROUP, "ITEM@123456789-2.zip", new ByteArrayInputStream(two), two.length, null);
+        final List<String> ids = Arrays.asList("ITEM@123456789-3.zip", "ITEM@123456789-2.zip", ID);
+
+        assertThat(fanOut.objectsExist(GROUP, ids)).containsExactly(entry("ITEM@123456789-3.zip", false),
+                                                                    entry("ITEM@123456789-2.zip", true),
+                                                                    entry(ID, true));
+        final Map<String, Map<String, String>> attrs = fanOut.objectAttributes(GROUP, ids);
+        assertThat(attrs).containsOnlyKeys("ITEM@123456789-2.zip", ID);
+        assertThat(attrs.get(ID)).containsEntry("sizebytes", "8");
+        assertThat(attrs.get("ITEM@123456789-2.zip")).containsEntry("sizebytes", "16");
+    }
+
+    @Test
+    public void readAvoidsFailingMember() throws IOException {
+        configurationService.setProperty("replicate.store.fanout.quorum", "1");
+        final FanOutObjectStore fanOut = fanOut(brokenStore("first"), localStore("second"));
+        fanOut.transferObject(GROUP, stage("item one"));
+
+        try (InputStream in = fanOut.openObject(GROUP, ID)) {
+            assertThat(in).isNotNull();
+        }
+
+        // the broken store failed the transfer, so was tried last (i.e. not at all) for the read
+        assertThat(fanOut.getStatistics().get(0).getName()).isEqualTo("store1");
+        assertThat(fanOut.getStatistics().get(1).getCalls()).isEqualTo(1L);
+        assertThat(fanOut.getStatistics().get(1).getErrors()).isEqualTo(1L);
+    }
+}
@@ -0,0 +1,418 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.replicate.store;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
+import static org.assertj.core.api.Assertions.fail;
+import static org.dspace.TestDSpaceServicesFactory.DSPACE_SERVICES_FACTORY;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.dspace.TestConfigurationService;
+import org.dspace.TestDSpaceKernelImpl;
+import org.dspace.TestDSpaceServicesFactory;
+import org.dspace.TestServiceManager;
+import org.dspace.ctask.replicate.ObjectInfo;
+import org.dspace.curate.Utils;
+import org.dspace.kernel.DSpaceKernel;
+import org.dspace.kernel.DSpaceKernelManager;
+import org.dspace.kernel.ServiceManager;
+import org.dspace.services.ConfigurationService;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for the LocalObjectStore
+ */
+public class LocalObjectStoreTest {
+
+    private static final String GROUP = "aips";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ConfigurationService configurationService;
+
+    @Before
+    public void setup() throws IOException {
+        final ServiceManager serviceManager = new TestServiceManager();
+        configurationService = new TestConfigurationService();
+        configurationService.setProperty("replicate.store.dir", folder.newFolder("store").getAbsolutePath());
+
+        serviceManager.registerService(ConfigurationService.class.getName(), configurationService);
+        serviceManager.registerService(DSPACE_SERVICES_FACTORY, new TestDSpaceServicesFactory());
+
+        final DSpaceKernel kernel = new TestDSpaceKernelImpl(serviceManager, configurationService);
+        DSpaceKernelManager.registerMBean(kernel.getMBeanName(), kernel);
+        DSpaceKernelManager.setDefaultKernel(kernel);
+    }
+
+    private LocalObjectStore newStore() throws IOException {
+        final LocalObjectStore store = new LocalObjectStore();
+        store.init();
+        return store;
+    }
+
+    private void transfer(final LocalObjectStore store, final String id, final String content) throws IOException {
+        final byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        store.transferObject(GROUP, id, new ByteArrayInputStream(bytes), bytes.length, null);
+    }
+
+    private String md5(final String content) throws IOException {
+        return Utils.checksum(new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)), "MD5");
+    }
+
+    @Test
+    public void listObjects() throws IOException {
+        final LocalObjectStore store = newStore();
+        transfer(store, "ITEM@123456789-1.zip", "item one");
+        transfer(store, "ITEM@123456789-2.zip", "item two");
+        transfer(store, "COLLECTION@123456789-3.zip", "collection");
+
+        final List<String> ids = new ArrayList<>();
+        final Iterator<ObjectInfo> listing = store.listObjects(GROUP, "ITEM@");
+        while (listing.hasNext()) {
+            final ObjectInfo info = listing.next();
+            ids.add(info.getId());
+            final String content = info.getId().endsWith("-1.zip") ? "item one" : "item two";
+            assertThat(info.getSize()).isEqualTo(8L);
+            assertThat(info.getChecksum()).isEqualTo(md5(content));
+        }
+        assertThat(ids).containsOnly("ITEM@123456789-1.zip", "ITEM@123456789-2.zip");
+
+        int all = 0;
+        for (final Iterator<ObjectInfo> it = store.listObjects(GROUP, null); it.hasNext(); it.next()) {
+            all++;
+        }
+        assertThat(all).isEqualTo(3);
+    }
+
+    @Test
+    public void listObjectsDoesNotReadReplicasWithoutSidecar() throws IOException {
+        final File flat = writeFlat("ITEM@123456789-1.zip", "legacy");
+        final LocalObjectStore store = newStore();
+
+        final Iterator<ObjectInfo> listing = store.listObjects(GROUP, null);
+        assertThat(listing.next().getChecksum()).isNull();
+        assertThat(store.sidecarFile(flat)).doesNotExist();
+
+        // asked for on demand, the checksum is taken and recorded for later listings
+        assertThat(store.objectAttribute(GROUP, "ITEM@123456789-1.zip", "checksum")).isEqualTo(md5("legacy"));
+        assertThat(store.listObjects(GROUP, null).next().getChecksum()).isEqualTo(md5("legacy"));
+    }
+
+    @Test
+    public void listObjectsSkipsTemporaryFiles() throws IOException {
+        final LocalObjectStore store = newStore();
+        transfer(store, "ITEM@123456789-1.zip", "item one");
+        final File groupDir = new File(configurationService.getProperty("replicate.store.dir"), GROUP);
+        assertThat(new File(groupDir, ".ITEM@123456789-2.zip.tmp").createNewFile()).isTrue();
+
+        final Iterator<ObjectInfo> listing = store.listObjects(GROUP, "");
+        assertThat(listing.next().getId()).isEqualTo("ITEM@123456789-1.zip");
+        assertThat(listing.hasNext()).isFalse();
+    }
+
+    @Test
+    public void listObjectsOfMissingGroup() throws IOException {
+        assertThat(newStore().listObjects("nosuchgroup", null).hasNext()).isFalse();
+    }
+
+    @Test
+    public void shardedLayout() throws IOException {
+        configurationService.setProperty("replicate.store.shard.levels", "2");
+        final LocalObjectStore store = newStore();
+        transfer(store, "ITEM@123456789-1.zip", "item one");
+
+        final File stored = store.shardedFile(GROUP, "ITEM@123456789-1.zip");
+        assertThat(stored).exists();
+        assertThat(stored.getParentFile().getParentFile().getParentFile()).isEqualTo(store.groupDir(GROUP));
+        assertThat(store.objectExists(GROUP, "ITEM@123456789-1.zip")).isTrue();
+        assertThat(store.listObjects(GROUP, null).next().getId()).isEqualTo("ITEM@123456789-1.zip");
+    }
+
+    @Test
+    public void readsFallBackToFlatLayout() throws IOException {
+        final File flat = writeFlat("ITEM@123456789-1.zip", "legacy");
+        configurationService.setProperty("replicate.store.shard.levels", "2");
+        final LocalObjectStore store = newStore();
+
+        assertThat(store.objectExists(GROUP, "ITEM@123456789-1.zip")).isTrue();
+        assertThat(store.objectAttribute(GROUP, "ITEM@123456789-1.zip", "checksum")).isEqualTo(md5("legacy"));
+        final InputStream in = store.openObject(GROUP, "ITEM@123456789-1.zip");
+        assertThat(in).isNotNull();
+        in.close();
+
+        // a new transfer replaces the flat copy with a sharded one
+        transfer(store, "ITEM@123456789-1.zip", "updated");
+        assertThat(flat).doesNotExist();
+        assertThat(store.objectAttribute(GROUP, "ITEM@123456789-1.zip", "checksum")).isEqualTo(md5("updated"));
+    }
+
+    @Test
+    public void reshard() throws IOException {
+        writeFlat("ITEM@123456789-1.zip", "item one");
+        writeFlat("ITEM@123456789-2.zip", "item two");
+        configurationService.setProperty("replicate.store.shard.levels", "1");
+        final LocalObjectStore store = newStore();
+
+        assertThat(store.reshard(GROUP, 2)).isEqualTo(2L);
+        assertThat(store.shardedFile(GROUP, "ITEM@123456789-1.zip")).exists();
+        assertThat(store.shardedFile(GROUP, "ITEM@123456789-2.zip")).exists();
+        assertThat(new File(store.groupDir(GROUP), "ITEM@123456789-1.zip")).doesNotExist();
+        // nothing left to move
+        assertThat(store.reshard(GROUP, 2)).isEqualTo(0L);
+    }
+
+    @Test
+    public void checksumAnsweredFromSidecar() throws IOException {
+        final LocalObjectStore store = newStore();
+        transfer(store, "ITEM@123456789-1.zip", "item one");
+        final File stored = store.objectFile(GROUP, "ITEM@123456789-1.zip");
+        final File sidecar = store.sidecarFile(stored);
+        assertThat(sidecar).exists();
+
+        // a current sidecar is trusted without reading the replica
+        try (FileOutputStream out = new FileOutputStream(sidecar)) {
+            out.write(("0123456789abcdef " + stored.length() + " " + stored.lastModified() + "\n")
+                          .getBytes(StandardCharsets.UTF_8));
+        }
+        assertThat(store.objectAttribute(GROUP, "ITEM@123456789-1.zip", "checksum")).isEqualTo("0123456789abcdef");
+
+        // once the replica changes, the sidecar is stale and the replica is read again
+        assertThat(stored.setLastModified(stored.lastModified() - 10000L)).isTrue();
+        assertThat(store.objectAttribute(GROUP, "ITEM@123456789-1.zip", "checksum")).isEqualTo(md5("item one"));
+        assertThat(store.recordedChecksum(stored)).isEqualTo(md5("item one"));
+    }
+
+    @Test
+    public void transferCopiesFilesStagedOnAnotherVolume() throws IOException {
+        final File otherVolume = new File("/dev/shm");
+        assumeTrue(otherVolume.isDirectory() &&
+                   !Files.getFileStore(otherVolume.toPath()).equals(Files.getFileStore(folder.getRoot().toPath())));
+        final File staged = File.createTempFile("ITEM@123456789-", ".zip", otherVolume);
+        try {
+            Files.write(staged.toPath(), "item one".getBytes(StandardCharsets.UTF_8));
+            final LocalObjectStore store = newStore();
+
+            assertThat(store.transferObject(GROUP, staged)).isEqualTo(8L);
+            assertThat(staged).doesNotExist();
+            assertThat(store.objectAttribute(GROUP, staged.getName(), "checksum")).isEqualTo(md5("item one"));
+            assertThat(store.objectFile(GROUP, staged.getName()).getParentFile().list())
+                .containsOnly(staged.getName(), store.sidecarFile(store.objectFile(GROUP, staged.getName())).getName());
+        } finally {
+            staged.delete();
+        }
+    }
+
+    @Test
+    public void failedTransfersLeaveNoTemporaryFiles() throws IOException {
+        final LocalObjectStore store = newStore();
+        transfer(store, "ITEM@123456789-1.zip", "item one");
+        final File dir = store.objectFile(GROUP, "ITEM@123456789-1.zip").getParentFile();
+        final String[] before = dir.list();
+
+        final byte[] bytes = "updated".getBytes(StandardCharsets.UTF_8);
+        try {
+            store.transferObject(GROUP, "ITEM@123456789-1.zip", new ByteArrayInputStream(bytes), bytes.length,
+                                 md5("something else"));
+            fail("Expected a checksum mismatch");
+        } catch (IOException expected) {
+            assertThat(expected).hasMessageContaining("Checksum mismatch");
+        }
+        try {
+            store.transferObject(GROUP, "ITEM@123456789-1.zip", new InputStream() {
+                @Override
+                public int read() throws IOException {
+                    throw new IOException("connection reset");
+                }
+            }, bytes.length, null);
+            fail("Expected the read to fail");
+        } catch (IOException expected) {
+            assertThat(expected).hasMessage("connection reset");
+        }
+
+        assertThat(dir.list()).containsOnly(before);
+        assertThat(store.objectAttribute(GROUP, "ITEM@123456789-1.zip", "checksum")).isEqualTo(md5("item one"));
+    }
+
+    @Test
+    public void bulkLookupsAnswerPresentAndMissingIds() throws IOException {
+        configurationService.setProperty("replicate.store.segment.threshold", "16");
+        final LocalObjectStore store = newStore();
+        transfer(store, "ITEM@123456789-1.zip", "item one");
+        transfer(store, "ITEM@123456789-2.zip", "item two, too large to pack");
+        final List<String> ids = Arrays.asList("ITEM@123456789-3.zip", "ITEM@123456789-2.zip", "ITEM@123456789-1.zip");
+
+        assertThat(store.objectsExist(GROUP, ids)).containsExactly(entry("ITEM@123456789-3.zip", false),
+                                                                   entry("ITEM@123456789-2.zip", true),
+                                                                   entry("ITEM@123456789-1.zip", true));
+
+        final Map<String, Map<String, String>> attrs = store.objectAttributes(GROUP, ids);
+        assertThat(attrs).containsOnlyKeys("ITEM@123456789-2.zip", "ITEM@123456789-1.zip");
+        assertThat(attrs.get("ITEM@123456789-1.zip")).containsEntry("checksum", md5("item one"))
+                                                     .containsEntry("sizebytes", "8");
+        assertThat(attrs.get("ITEM@123456789-2.zip")).containsEntry("checksum", md5("item two, too large to pack"))
+                                                     .containsEntry("sizebytes", "27");
+    }
+
+    @Test
+    public void removeDeletesSidecar() throws IOException {
+        final LocalObjectStore store = newStore();
+        transfer(store, "ITEM@123456789-1.zip", "item one");
+        final File sidecar = store.sidecarFile(store.objectFile(GROUP, "ITEM@123456789-1.zip"));
+
+        assertThat(store.removeObject(GROUP, "ITEM@123456789-1.zip")).isEqualTo(8L);
+        assertThat(sidecar).doesNotExist();
+    }
+
+    @Test
+    public void smallObjectsArePackedIntoSegments() throws IOException {
+        configurationService.setProperty("replicate.store.segment.threshold", "16");
+        final LocalObjectStore store = newStore();
+        transfer(store, "ITEM@123456789-1.zip", "item one");
+        transfer(store, "ITEM@123456789-2.zip", "a larger item, kept as a file");
+
+        assertThat(store.objectFile(GROUP, "ITEM@123456789-1.zip")).doesNotExist();
+        assertThat(store.objectFile(GROUP, "ITEM@123456789-2.zip")).exists();
+        assertThat(store.objectExists(GROUP, "ITEM@123456789-1.zip")).isTrue();
+        assertThat(store.objectAttribute(GROUP, "ITEM@123456789-1.zip", "checksum")).isEqualTo(md5("item one"));
+        assertThat(store.objectAttribute(GROUP, "ITEM@123456789-1.zip", "sizebytes")).isEqualTo("8");
+        final File fetched = folder.newFile();
+        assertThat(store.fetchObject(GROUP, "ITEM@123456789-1.zip", fetched)).isEqualTo(8L);
+        assertThat(fetched).hasContent("item one");
+
+        final List<String> ids = new ArrayList<>();
+        for (final Iterator<ObjectInfo> it = store.listObjects(GROUP, null); it.hasNext(); ) {
+            ids.add(it.next().getId());
+        }
+        assertThat(ids).containsOnly("ITEM@123456789-1.zip", "ITEM@123456789-2.zip");
+
+        // growing past the threshold moves the replica out to a file of its own
+        transfer(store, "ITEM@123456789-1.zip", "item one, now larger");
+        assertThat(store.objectFile(GROUP, "ITEM@123456789-1.zip")).exists();
+        assertThat(store.segments(GROUP, false).entry("ITEM@123456789-1.zip")).isNull();
+    }
+
+    @Test
+    public void packedObjectsSurviveReopen() throws IOException {
+        configurationService.setProperty("replicate.store.segment.threshold", "16");
+        final LocalObjectStore store = newStore();
+        transfer(store, "ITEM@123456789-1.zip", "item one");
+        transfer(store, "ITEM@123456789-2.zip", "item two");
+        transfer(store, "ITEM@123456789-1.zip", "item 1");
+        assertThat(store.removeObject(GROUP, "ITEM@123456789-2.zip")).isEqualTo(8L);
+        assertThat(store.moveObject(GROUP, "trash", "ITEM@123456789-1.zip")).isEqualTo(6L);
+
+        // the index is rebuilt from the segments, even with packing turned off
+        configurationService.setProperty("replicate.store.segment.threshold", "0");
+        final LocalObjectStore reopened = newStore();
+        assertThat(reopened.objectExists(GROUP, "ITEM@123456789-1.zip")).isFalse();
+        assertThat(reopened.objectExists(GROUP, "ITEM@123456789-2.zip")).isFalse();
+        assertThat(reopened.objectAttribute("trash", "ITEM@123456789-1.zip", "checksum")).isEqualTo(md5("item 1"));
+    }
+
+    @Test
+    public void compactionReclaimsRemovedObjects() throws IOException {
+        configurationService.setProperty("replicate.store.segment.threshold", "16");
+        // a segment holds only a few records
+        configurationService.setProperty("replicate.store.segment.size", "200");
+        final LocalObjectStore store = newStore();
+        for (int i = 1; i <= 10; i++) {
+            transfer(store, "ITEM@123456789-" + i + ".zip", "item " + i);
+        }
+        final int segments = store.segments(GROUP, false).segmentCount();
+        assertThat(segments).isGreaterThan(2);
+        for (int i = 1; i <= 9; i++) {
+            store.removeObject(GROUP, "ITEM@123456789-" + i + ".zip");
+        }
+
+        store.compactSegments(GROUP);
+
+        assertThat(store.segments(GROUP, false).segmentCount()).isLessThan(segments);
+        final LocalObjectStore reopened = newStore();
+        final Iterator<ObjectInfo> listing = reopened.listObjects(GROUP, null);
+        final ObjectInfo info = listing.next();
+        assertThat(info.getId()).isEqualTo("ITEM@123456789-10.zip");
+        assertThat(info.getChecksum()).isEqualTo(md5("item 10"));
+        assertThat(listing.hasNext()).isFalse();
+    }
+
+    @Test
+    public void storesSharingSegmentsKeepEachOthersRecords() throws IOException {
+        configurationService.setProperty("replicate.store.segment.threshold", "16");
+        configurationService.setProperty("replicate.store.segment.size", "200");
+        // as if in two processes, each with an index of its own
+        final LocalObjectStore one = newStore();
+        final LocalObjectStore two = newStore();
+        for (int i = 1; i <= 10; i++) {
+            transfer(i % 2 == 0 ? two : one, "ITEM@123456789-" + i + ".zip", "item " + i);
+        }
+        assertThat(one.objectAttribute(GROUP, "ITEM@123456789-2.zip", "checksum")).isEqualTo(md5("item 2"));
+        assertThat(two.objectAttribute(GROUP, "ITEM@123456789-1.zip", "checksum")).isEqualTo(md5("item 1"));
+
+        for (int i = 1; i <= 9; i++) {
+            two.removeObject(GROUP, "ITEM@123456789-" + i + ".zip");
+        }
+        two.compactSegments(GROUP);
+        // the other store finds the segments compacted away, and reads them again
+        assertThat(one.objectExists(GROUP, "ITEM@123456789-1.zip")).isFalse();
+        transfer(one, "ITEM@123456789-11.zip", "item 11");
+
+        final List<String> ids = new ArrayList<>();
+        for (final Iterator<ObjectInfo> it = newStore().listObjects(GROUP, null); it.hasNext(); ) {
+            ids.add(it.next().getId());
+        }
+        assertThat(ids).containsOnly("ITEM@123456789-10.zip", "ITEM@123456789-11.zip");
+        assertThat(two.objectAttribute(GROUP, "ITEM@123456789-11.zip", "checksum")).isEqualTo(md5("item 11"));
+    }
+
+    @Test
+    public void tornRecordIsCutOff() throws IOException {
+        configurationService.setProperty("replicate.store.segment.threshold", "16");
+        final LocalObjectStore store = newStore();
+        transfer(store, "ITEM@123456789-1.zip", "item one");
+        final File segment = new File(store.groupDir(GROUP), ".segments/segment-00000001.dat");
+        final long length = segment.length();
+        // as if a write were cut short by a crash
+        try (FileOutputStream out = new FileOutputStream(segment, true)) {
+            out.write(new byte[] {0x52, 0x50, 0x4c, 0x53, 1, 0});
+        }
+
+        final LocalObjectStore reopened = newStore();
+        assertThat(reopened.objectAttribute(GROUP, "ITEM@123456789-1.zip", "checksum")).isEqualTo(md5("item one"));
+        assertThat(segment.length()).isEqualTo(length);
+        transfer(reopened, "ITEM@123456789-2.zip", "item two");
+        assertThat(newStore().objectAttribute(GROUP, "ITEM@123456789-2.zip", "checksum")).isEqualTo(md5("item two"));
+    }
+
+    private File writeFlat(final String id, final String content) throws IOException {
+        final File groupDir = new File(configurationService.getProperty("replicate.store.dir"), GROUP);
+        groupDir.mkdirs();
+        final File file = new File(groupDir, id);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(content.getBytes(StandardCharsets.UTF_8));
+        }
+        return file;
+    }
+}
@@ -0,0 +1,124 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.replicate.store;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+import static org.dspace.TestDSpaceServicesFactory.DSPACE_SERVICES_FACTORY;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.dspace.TestConfigurationService;
+import org.dspace.TestDSpaceKernelImpl;
+import org.dspace.TestDSpaceServicesFactory;
+import org.dspace.TestServiceManager;
+import org.dspace.curate.Utils;
+import org.dspace.kernel.DSpaceKernel;
+import org.dspace.kernel.DSpaceKernelManager;
+import org.dspace.kernel.ServiceManager;
+import org.dspace.services.ConfigurationService;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for the MountableObjectStore
+ */
+public class MountableObjectStoreTest {
+
+    private static final String GROUP = "aips";
+    private static final String ID = "ITEM@123456789-1.zip";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private MountableObjectStore store;
+
+    @Before
+    public void setup() throws IOException {
+        final ServiceManager serviceManager = new TestServiceManager();
+        final ConfigurationService configurationService = new TestConfigurationService();
+        configurationService.setProperty("replicate.store.dir", folder.newFolder("store").getAbsolutePath());
+        configurationService.setProperty("replicate.store.fsync", "true");
+
+        serviceManager.registerService(ConfigurationService.class.getName(), configurationService);
+        serviceManager.registerService(DSPACE_SERVICES_FACTORY, new TestDSpaceServicesFactory());
+
+        final DSpaceKernel kernel = new TestDSpaceKernelImpl(serviceManager, configurationService);
+        DSpaceKernelManager.registerMBean(kernel.getMBeanName(), kernel);
+        DSpaceKernelManager.setDefaultKernel(kernel);
+
+        store = new MountableObjectStore();
+        store.init();
+    }
+
+    private File stage(final String content) throws IOException {
+        final File staged = new File(folder.newFolder(), ID);
+        try (FileOutputStream out = new FileOutputStream(staged)) {
+            out.write(content.getBytes(StandardCharsets.UTF_8));
+        }
+        return staged;
+    }
+
+    private String md5(final String content) throws IOException {
+        return Utils.checksum(new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)), "MD5");
+    }
+
+    @Test
+    public void transferCopiesAndRecordsChecksum() throws IOException {
+        final File staged = stage("item one");
+
+        assertThat(store.transferObject(GROUP, staged)).isEqualTo(8L);
+
+        // copied, not moved
+        assertThat(staged).exists();
+        final File stored = store.objectFile(GROUP, ID);
+        assertThat(stored).hasContent("item one");
+        assertThat(store.recordedChecksum(stored)).isEqualTo(md5("item one"));
+        assertThat(store.groupDir(GROUP).list()).containsOnly(ID, "." + ID + ".md5");
+    }
+
+    @Test
+    public void transferReplacesEarlierCopy() throws IOException {
+        store.transferObject(GROUP, stage("item one"));
+        store.transferObject(GROUP, stage("item one, revised"));
+
+        assertThat(store.objectFile(GROUP, ID)).hasContent("item one, revised");
+        assertThat(store.objectAttribute(GROUP, ID, "checksum")).isEqualTo(md5("item one, revised"));
+    }
+
+    @Test
+    public void failedTransferLeavesNoTemporaryFile() throws IOException {
+        store.transferObject(GROUP, stage("item one"));
+        final File missing = new File(folder.newFolder(), ID);
+
+        try {
+            store.transferObject(GROUP, missing);
+            fail("Expected the transfer to fail");
+        } catch (IOException expected) {
+            // the staged file is not there to copy
+        }
+
+        assertThat(store.groupDir(GROUP).list()).containsOnly(ID, "." + ID + ".md5");
+        assertThat(store.objectFile(GROUP, ID)).hasContent("item one");
+    }
+
+    @Test
+    public void moveCopiesRecordedChecksum() throws IOException {
+        store.transferObject(GROUP, stage("item one"));
+
+        assertThat(store.moveObject(GROUP, "trash", ID)).isEqualTo(8L);
+
+        assertThat(store.recordedChecksum(store.objectFile("trash", ID))).isEqualTo(md5("item one"));
+    }
+}
@@ -0,0 +1,186 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.replicate.store;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+import static org.dspace.TestDSpaceServicesFactory.DSPACE_SERVICES_FACTORY;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dspace.TestConfigurationService;
+import org.dspace.TestDSpaceKernelImpl;
+import org.dspace.TestDSpaceServicesFactory;
+import org.dspace.TestServiceManager;
+import org.dspace.kernel.DSpaceKernel;
+import org.dspace.kernel.DSpaceKernelManager;
+import org.dspace.kernel.ServiceManager;
+import org.dspace.services.ConfigurationService;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for the ResilientObjectStore, over a LocalObjectStore which fails on demand
+ */
+public class ResilientObjectStoreTest {
+
+    private static final String GROUP = "aips";
+    private static final String ID = "ITEM@123456789-1.zip";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ConfigurationService configurationService;
+
+    // number of calls the flaky store will fail before succeeding
+    private final AtomicInteger failures = new AtomicInteger();
+    // number of calls the flaky store will fail with a runtime error
+    private final AtomicInteger runtimeFailures = new AtomicInteger();
+    // number of calls made on the flaky store
+    private final AtomicInteger calls = new AtomicInteger();
+
+    @Before
+    public void setup() throws IOException {
+        final ServiceManager serviceManager = new TestServiceManager();
+        configurationService = new TestConfigurationService();
+        configurationService.setProperty("replicate.store.retry.backoff", "1");
+        configurationService.setProperty("replicate.store.retry.maxbackoff", "2");
+
+        serviceManager.registerService(ConfigurationService.class.getName(), configurationService);
+        serviceManager.registerService(DSPACE_SERVICES_FACTORY, new TestDSpaceServicesFactory());
+
+        final DSpaceKernel kernel = new TestDSpaceKernelImpl(serviceManager, configurationService);
+        DSpaceKernelManager.registerMBean(kernel.getMBeanName(), kernel);
+        DSpaceKernelManager.setDefaultKernel(kernel);
+    }
+
+    private ResilientObjectStore resilientStore() throws IOException {
+        final String dir = folder.newFolder("store").getAbsolutePath();
+        final ResilientObjectStore store = new ResilientObjectStore(new LocalObjectStore() {
+            @Override
+            public void init() {
+                storeDir = dir;
+            }
+
+            @Override
+            public String objectAttribute(String group, String id, String attrName) throws IOException {
+                calls.incrementAndGet();
+                if (runtimeFailures.getAndDecrement() > 0) {
+                    throw new IllegalStateException("client error");
+                }
+                if (failures.getAndDecrement() > 0) {
+                    throw new IOException("store is down");
+                }
+                return super.objectAttribute(group, id, attrName);
+            }
+        });
+        store.init();
+        return store;
+    }
+
+    @Test
+    public void retriesTransientFailures() throws IOException {
+        final ResilientObjectStore store = resilientStore();
+        failures.set(2);
+
+        assertThat(store.objectAttribute(GROUP, ID, "sizebytes")).isEqualTo("0");
+        assertThat(calls.get()).isEqualTo(3);
+        assertThat(store.getRetries()).isEqualTo(2L);
+        assertThat(store.isOpen()).isFalse();
+    }
+
+    @Test
+    public void givesUpAfterRetries() throws IOException {
+        configurationService.setProperty("replicate.store.retry.reads", "1");
+        final ResilientObjectStore store = resilientStore();
+        failures.set(10);
+
+        try {
+            store.objectAttribute(GROUP, ID, "sizebytes");
+            fail("expected IOException");
+        } catch (IOException expected) {
+            assertThat(calls.get()).isEqualTo(2);
+        }
+    }
+
+    @Test
+    public void breakerOpensAndFailsFast() throws IOException {
+        configurationService.setProperty("replicate.store.retry.reads", "0");
+        configurationService.setProperty("replicate.store.breaker.threshold", "2");
+        final ResilientObjectStore store = resilientStore();
+        failures.set(10);
+
+        for (int i = 0; i < 4; i++) {
+            try {
+                store.objectAttribute(GROUP, ID, "sizebytes");
+                fail("expected IOException");
+            } catch (IOException expected) {
+                // store is down, or breaker is open
+            }
+        }
+
+        assertThat(calls.get()).isEqualTo(2);
+        assertThat(store.isOpen()).isTrue();
+        assertThat(store.getTimesOpened()).isEqualTo(1L);
+        assertThat(store.getFastFailures()).isEqualTo(2L);
+    }
+
+    @Test
+    public void breakerClosesOnSuccessfulProbe() throws IOException, InterruptedException {
+        configurationService.setProperty("replicate.store.retry.reads", "0");
+        configurationService.setProperty("replicate.store.breaker.threshold", "1");
+        configurationService.setProperty("replicate.store.breaker.open", "10");
+        final ResilientObjectStore store = resilientStore();
+        failures.set(1);
+
+        try {
+            store.objectAttribute(GROUP, ID, "sizebytes");
+            fail("expected IOException");
+        } catch (IOException expected) {
+            assertThat(store.isOpen()).isTrue();
+        }
+        Thread.sleep(20L);
+
+        assertThat(store.objectAttribute(GROUP, ID, "sizebytes")).isEqualTo("0");
+        assertThat(store.isOpen()).isFalse();
+        assertThat(store.getOpenMillis()).isGreaterThanOrEqualTo(10L);
+    }
+
+    @Test
+    public void runtimeErrorOfProbeReopensBreaker() throws IOException, InterruptedException {
+        configurationService.setProperty("replicate.store.retry.reads", "0");
+        configurationService.setProperty("replicate.store.breaker.threshold", "1");
+        configurationService.setProperty("replicate.store.breaker.open", "10");
+        final ResilientObjectStore store = resilientStore();
+        failures.set(1);
+        try {
+            store.objectAttribute(GROUP, ID, "sizebytes");
+            fail("expected IOException");
+        } catch (IOException expected) {
+            assertThat(store.isOpen()).isTrue();
+        }
+        Thread.sleep(20L);
+
+        // the probe fails with a runtime error, rather than an IOException
+        runtimeFailures.set(1);
+        try {
+            store.objectAttribute(GROUP, ID, "sizebytes");
+            fail("expected IllegalStateException");
+        } catch (IllegalStateException expected) {
+            assertThat(store.isOpen()).isTrue();
+        }
+        Thread.sleep(20L);
+
+        // the breaker lets a further probe through, rather than failing fast for good
+        assertThat(store.objectAttribute(GROUP, ID, "sizebytes")).isEqualTo("0");
+        assertThat(store.isOpen()).isFalse();
+    }
+}
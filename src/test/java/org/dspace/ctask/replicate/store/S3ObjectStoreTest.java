@@ -0,0 +1,296 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.replicate.store;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+import static org.dspace.TestDSpaceServicesFactory.DSPACE_SERVICES_FACTORY;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.dspace.TestConfigurationService;
+import org.dspace.TestDSpaceKernelImpl;
+import org.dspace.TestDSpaceServicesFactory;
+import org.dspace.TestServiceManager;
+import org.dspace.ctask.replicate.ObjectInfo;
+import org.dspace.curate.Utils;
+import org.dspace.kernel.DSpaceKernel;
+import org.dspace.kernel.DSpaceKernelManager;
+import org.dspace.kernel.ServiceManager;
+import org.dspace.services.ConfigurationService;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for the S3ObjectStore, against an in-memory S3 endpoint
+ */
+public class S3ObjectStoreTest {
+
+    private static final String GROUP = "aip-store";
+    private static final String ID = "ITEM@123456789-1.zip";
+    private static final int MB = 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FakeAmazonS3 s3;
+    private S3ObjectStore store;
+
+    @Before
+    public void setup() throws IOException {
+        final ServiceManager serviceManager = new TestServiceManager();
+        final ConfigurationService configurationService = new TestConfigurationService();
+        // upload anything of 5MB or more in 5MB parts (the least S3 allows)
+        configurationService.setProperty("s3.multipart.threshold", String.valueOf(5 * MB));
+        configurationService.setProperty("s3.multipart.part.size", String.valueOf(5 * MB));
+
+        serviceManager.registerService(ConfigurationService.class.getName(), configurationService);
+        serviceManager.registerService(DSPACE_SERVICES_FACTORY, new TestDSpaceServicesFactory());
+
+        final DSpaceKernel kernel = new TestDSpaceKernelImpl(serviceManager, configurationService);
+        DSpaceKernelManager.registerMBean(kernel.getMBeanName(), kernel);
+        DSpaceKernelManager.setDefaultKernel(kernel);
+
+        s3 = new FakeAmazonS3();
+        store = new S3ObjectStore(s3, "replicas");
+        store.init();
+    }
+
+    private static byte[] content(final int length) {
+        final byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+
+    private File stage(final String id, final byte[] bytes) throws IOException {
+        final File staged = new File(folder.newFolder(), id);
+        try (FileOutputStream out = new FileOutputStream(staged)) {
+            out.write(bytes);
+        }
+        return staged;
+    }
+
+    @Test
+    public void transferAndFetch() throws IOException {
+        final byte[] bytes = content(1000);
+        final File staged = stage(ID, bytes);
+        final String md5 = Utils.checksum(staged, "MD5");
+
+        assertThat(store.transferObject(GROUP, staged)).isEqualTo(1000L);
+
+        assertThat(staged).doesNotExist();
+        assertThat(s3.puts.get()).isEqualTo(1);
+        assertThat(store.objectAttribute(GROUP, ID, "checksum")).isEqualTo(md5);
+        assertThat(store.objectAttribute(GROUP, ID, "sizebytes")).isEqualTo("1000");
+        final File fetched = folder.newFile();
+        assertThat(store.fetchObject(GROUP, ID, fetched)).isEqualTo(1000L);
+        assertThat(fetched).hasBinaryContent(bytes);
+    }
+
+    @Test
+    public void unchangedContentIsNotUploadedAgain() throws IOException {
+        final byte[] bytes = content(1000);
+        store.transferObject(GROUP, stage(ID, bytes));
+
+        assertThat(store.transferObject(GROUP, stage(ID, bytes))).isEqualTo(0L);
+        assertThat(s3.puts.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void largeContentIsUploadedInParallelParts() throws IOException {
+        final byte[] bytes = content(11 * MB);
+        final File staged = stage(ID, bytes);
+        final String md5 = Utils.checksum(staged, "MD5");
+
+        store.transferObject(GROUP, staged);
+
+        assertThat(s3.partUploads.get()).isEqualTo(3);
+        assertThat(s3.maxPartsInFlight.get()).isGreaterThan(1);
+        assertThat(s3.content(GROUP + "/" + ID)).isEqualTo(bytes);
+        // the multipart ETag is not a checksum, so the recorded one is used
+        assertThat(store.objectAttribute(GROUP, ID, "checksum")).isEqualTo(md5);
+    }
+
+    @Test
+    public void largeStreamIsUploadedInPartsAndChecksumRecorded() throws IOException {
+        final byte[] bytes = content(11 * MB);
+        final String md5 = Utils.checksum(new ByteArrayInputStream(bytes), "MD5");
+
+        assertThat(store.transferObject(GROUP, ID, new ByteArrayInputStream(bytes), bytes.length, null))
+            .isEqualTo(bytes.length);
+
+        assertThat(s3.partUploads.get()).isEqualTo(3);
+        assertThat(s3.content(GROUP + "/" + ID)).isEqualTo(bytes);
+        // recorded in a sidecar, rather than by copying the replica onto itself
+        assertThat(s3.copies.get()).isEqualTo(0);
+        assertThat(s3.contains(".checksums/" + GROUP + "/" + ID)).isTrue();
+        assertThat(store.objectAttribute(GROUP, ID, "checksum")).isEqualTo(md5);
+    }
+
+    @Test
+    public void smallStreamChecksumIsItsETag() throws IOException {
+        final byte[] bytes = content(1000);
+        final String md5 = Utils.checksum(new ByteArrayInputStream(bytes), "MD5");
+
+        store.transferObject(GROUP, ID, new ByteArrayInputStream(bytes), bytes.length, null);
+
+        assertThat(s3.puts.get()).isEqualTo(1);
+        assertThat(s3.copies.get()).isEqualTo(0);
+        assertThat(s3.contains(".checksums/" + GROUP + "/" + ID)).isFalse();
+        assertThat(store.objectAttribute(GROUP, ID, "checksum")).isEqualTo(md5);
+    }
+
+    @Test
+    public void sidecarChecksumFollowsMoveAndRemove() throws IOException {
+        final byte[] bytes = content(11 * MB);
+        final String md5 = Utils.checksum(new ByteArrayInputStream(bytes), "MD5");
+        store.transferObject(GROUP, ID, new ByteArrayInputStream(bytes), bytes.length, null);
+
+        store.moveObject(GROUP, "trash", ID);
+
+        assertThat(s3.contains(".checksums/" + GROUP + "/" + ID)).isFalse();
+        assertThat(store.objectAttribute("trash", ID, "checksum")).isEqualTo(md5);
+
+        store.transferObject(GROUP, ID, new ByteArrayInputStream(bytes), bytes.length, null);
+        assertThat(store.removeObject(GROUP, ID)).isEqualTo(bytes.length);
+        assertThat(s3.contains(".checksums/" + GROUP + "/" + ID)).isFalse();
+    }
+
+    @Test
+    public void failedPartAbortsUpload() throws IOException {
+        s3.partFailures.set(1);
+        final File staged = stage(ID, content(11 * MB));
+
+        try {
+            store.transferObject(GROUP, staged);
+            fail("expected IOException");
+        } catch (IOException expected) {
+            assertThat(s3.aborts.get()).isEqualTo(1);
+            assertThat(s3.pendingUploads()).isEqualTo(0);
+            assertThat(s3.contains(GROUP + "/" + ID)).isFalse();
+            // the staged file is kept, so the transfer may be retried
+            assertThat(staged).exists();
+        }
+    }
+
+    @Test
+    public void smallStreamNotMatchingItsChecksumIsNotStored() throws IOException {
+        final byte[] bytes = content(1000);
+        final String md5 = Utils.checksum(new ByteArrayInputStream(bytes), "MD5");
+        final byte[] corrupt = content(999);
+
+        try {
+            store.transferObject(GROUP, ID, new ByteArrayInputStream(corrupt), bytes.length, md5);
+            fail("expected IOException");
+        } catch (IOException expected) {
+            assertThat(s3.contains(GROUP + "/" + ID)).isFalse();
+        }
+
+        // so a retry is not mistaken for a transfer of unchanged content
+        assertThat(store.transferObject(GROUP, ID, new ByteArrayInputStream(bytes), bytes.length, md5))
+            .isEqualTo(bytes.length);
+        assertThat(s3.content(GROUP + "/" + ID)).isEqualTo(bytes);
+    }
+
+    @Test
+    public void largeStreamNotMatchingItsChecksumIsAborted() throws IOException {
+        final byte[] bytes = content(11 * MB);
+        final String md5 = Utils.checksum(new ByteArrayInputStream(bytes), "MD5");
+        final byte[] corrupt = bytes.clone();
+        corrupt[MB] ^= 1;
+
+        try {
+            store.transferObject(GROUP, ID, new ByteArrayInputStream(corrupt), bytes.length, md5);
+            fail("expected IOException");
+        } catch (IOException expected) {
+            assertThat(expected).hasMessageContaining("does not match its checksum");
+            assertThat(s3.aborts.get()).isEqualTo(1);
+            assertThat(s3.pendingUploads()).isEqualTo(0);
+            assertThat(s3.contains(GROUP + "/" + ID)).isFalse();
+        }
+
+        assertThat(store.transferObject(GROUP, ID, new ByteArrayInputStream(bytes), bytes.length, md5))
+            .isEqualTo(bytes.length);
+        assertThat(store.objectAttribute(GROUP, ID, "checksum")).isEqualTo(md5);
+    }
+
+    @Test
+    public void moveCopiesWithinStore() throws IOException {
+        final byte[] bytes = content(1000);
+        final File staged = stage(ID, bytes);
+        final String md5 = Utils.checksum(staged, "MD5");
+        store.transferObject(GROUP, staged);
+
+        assertThat(store.moveObject(GROUP, "trash", ID)).isEqualTo(1000L);
+
+        assertThat(s3.copies.get()).isEqualTo(1);
+        assertThat(store.objectExists(GROUP, ID)).isFalse();
+        assertThat(store.objectAttribute("trash", ID, "checksum")).isEqualTo(md5);
+    }
+
+    @Test
+    public void removeObjectsDeletesInBatch() throws IOException {
+        final List<String> ids = new ArrayList<>();
+        for (int i = 1; i <= 3; i++) {
+            final String id = "ITEM@123456789-" + i + ".zip";
+            store.transferObject(GROUP, stage(id, content(100)));
+            ids.add(id);
+        }
+        ids.add("ITEM@123456789-4.zip");
+
+        final Map<String, Long> removed = store.removeObjects(GROUP, ids);
+        assertThat(removed).containsEntry("ITEM@123456789-1.zip", 100L).containsEntry("ITEM@123456789-3.zip", 100L)
+                           .containsEntry("ITEM@123456789-4.zip", 0L).hasSize(4);
+
+        assertThat(s3.deleteRequests.get()).isEqualTo(1);
+        assertThat(store.objectsExist(GROUP, ids)).doesNotContainValue(true);
+    }
+
+    @Test
+    public void moveObjectsCopiesThenDeletesInBatch() throws IOException {
+        final List<String> ids = new ArrayList<>();
+        for (int i = 1; i <= 3; i++) {
+            final String id = "ITEM@123456789-" + i + ".zip";
+            store.transferObject(GROUP, stage(id, content(100)));
+            ids.add(id);
+        }
+        ids.add("ITEM@123456789-4.zip");
+
+        final Map<String, Long> moved = store.moveObjects(GROUP, "trash", ids);
+        assertThat(moved).containsEntry("ITEM@123456789-2.zip", 100L).containsEntry("ITEM@123456789-4.zip", 0L);
+
+        assertThat(s3.copies.get()).isEqualTo(3);
+        assertThat(s3.deleteRequests.get()).isEqualTo(1);
+        assertThat(store.objectsExist(GROUP, ids)).doesNotContainValue(true);
+        assertThat(store.objectsExist("trash", ids.subList(0, 3))).doesNotContainValue(false);
+    }
+
+    @Test
+    public void listingSkipsSubGroups() throws IOException {
+        store.transferObject(GROUP, stage(ID, content(100)));
+        store.transferObject(GROUP + "/sub", stage("ITEM@123456789-2.zip", content(100)));
+
+        final List<String> listed = new ArrayList<>();
+        for (final Iterator<ObjectInfo> iter = store.listObjects(GROUP, null); iter.hasNext(); ) {
+            listed.add(iter.next().getId());
+        }
+
+        assertThat(listed).isEqualTo(Arrays.asList(ID));
+    }
+}
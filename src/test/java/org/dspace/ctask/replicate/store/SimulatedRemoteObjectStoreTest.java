@@ -0,0 +1,139 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.ctask.replicate.store;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
+import static org.dspace.TestDSpaceServicesFactory.DSPACE_SERVICES_FACTORY;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.dspace.TestConfigurationService;
+import org.dspace.TestDSpaceKernelImpl;
+import org.dspace.TestDSpaceServicesFactory;
+import org.dspace.TestServiceManager;
+import org.dspace.kernel.DSpaceKernel;
+import org.dspace.kernel.DSpaceKernelManager;
+import org.dspace.kernel.ServiceManager;
+import org.dspace.services.ConfigurationService;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for the SimulatedRemoteObjectStore
+ */
+public class SimulatedRemoteObjectStoreTest {
+
+    private static final String GROUP = "aips";
+    private static final String ID = "ITEM@123456789-1.zip";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ConfigurationService configurationService;
+
+    @Before
+    public void setup() throws IOException {
+        final ServiceManager serviceManager = new TestServiceManager();
+        configurationService = new TestConfigurationService();
+        configurationService.setProperty("replicate.store.dir", folder.newFolder("store").getAbsolutePath());
+
+        serviceManager.registerService(ConfigurationService.class.getName(), configurationService);
+        serviceManager.registerService(DSPACE_SERVICES_FACTORY, new TestDSpaceServicesFactory());
+
+        final DSpaceKernel kernel = new TestDSpaceKernelImpl(serviceManager, configurationService);
+        DSpaceKernelManager.registerMBean(kernel.getMBeanName(), kernel);
+        DSpaceKernelManager.setDefaultKernel(kernel);
+    }
+
+    private SimulatedRemoteObjectStore simulatedStore() throws IOException {
+        final SimulatedRemoteObjectStore store = new SimulatedRemoteObjectStore();
+        store.init();
+        return store;
+    }
+
+    /**
+     * Makes calls on the store, returning which of them failed
+     */
+    private List<Boolean> failedCalls(final SimulatedRemoteObjectStore store) {
+        final List<Boolean> failed = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            try {
+                store.objectExists(GROUP, ID);
+                failed.add(false);
+            } catch (IOException expected) {
+                failed.add(true);
+            }
+        }
+        return failed;
+    }
+
+    @Test
+    public void failuresAreRepeatable() throws IOException {
+        configurationService.setProperty("replicate.store.simulated.failures", "500");
+        configurationService.setProperty("replicate.store.simulated.seed", "42");
+        final SimulatedRemoteObjectStore first = simulatedStore();
+        final SimulatedRemoteObjectStore second = simulatedStore();
+
+        final List<Boolean> failed = failedCalls(first);
+
+        assertThat(failed).contains(true, false);
+        assertThat(failedCalls(second)).isEqualTo(failed);
+        assertThat(first.getCalls()).isEqualTo(20L);
+        assertThat(first.getFailures()).isEqualTo((long) Collections.frequency(failed, true));
+    }
+
+    @Test
+    public void callsAreDelayedOncePerCall() throws IOException {
+        configurationService.setProperty("replicate.store.simulated.latency.exists", "20");
+        final SimulatedRemoteObjectStore store = simulatedStore();
+
+        final long start = System.currentTimeMillis();
+        store.objectsExist(GROUP, Arrays.asList(ID, "ITEM@123456789-2.zip", "ITEM@123456789-3.zip"));
+
+        assertThat(System.currentTimeMillis() - start).isGreaterThanOrEqualTo(20L);
+        assertThat(store.getCalls()).isEqualTo(1L);
+        assertThat(store.getDelayMillis()).isEqualTo(20L);
+    }
+
+    @Test
+    public void bulkLookupsAnswerPresentAndMissingIds() throws IOException {
+        final SimulatedRemoteObjectStore store = simulatedStore();
+        final byte[] bytes = new byte[50];
+        store.transferObject(GROUP, ID, new ByteArrayInputStream(bytes), bytes.length, null);
+        final List<String> ids = Arrays.asList("ITEM@123456789-2.zip", ID);
+
+        assertThat(store.objectsExist(GROUP, ids)).containsExactly(entry("ITEM@123456789-2.zip", false),
+                                                                   entry(ID, true));
+        final Map<String, Map<String, String>> attrs = store.objectAttributes(GROUP, ids);
+        assertThat(attrs).containsOnlyKeys(ID);
+        assertThat(attrs.get(ID)).containsEntry("sizebytes", "50");
+        // one call for each batch, after the one for the transfer
+        assertThat(store.getCalls()).isEqualTo(3L);
+    }
+
+    @Test
+    public void transfersAreLimitedByBandwidth() throws IOException {
+        configurationService.setProperty("replicate.store.simulated.bandwidth", "1000");
+        final SimulatedRemoteObjectStore store = simulatedStore();
+        final byte[] bytes = new byte[50];
+
+        store.transferObject(GROUP, ID, new ByteArrayInputStream(bytes), bytes.length, null);
+
+        assertThat(store.getDelayMillis()).isEqualTo(50L);
+        assertThat(store.objectFile(GROUP, ID)).hasBinaryContent(bytes);
+    }
+}
@@ -0,0 +1,119 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ * http://www.dspace.org/license/
+ */
+package org.dspace.pack;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.dspace.TestContentServiceFactory.CONTENT_SERVICE_FACTORY;
+import static org.dspace.TestDSpaceServicesFactory.DSPACE_SERVICES_FACTORY;
+import static org.mockito.Mockito.mock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.dspace.TestConfigurationService;
+import org.dspace.TestContentServiceFactory;
+import org.dspace.TestDSpaceKernelImpl;
+import org.dspace.TestDSpaceServicesFactory;
+import org.dspace.TestServiceManager;
+import org.dspace.content.Item;
+import org.dspace.core.factory.CoreServiceFactory;
+import org.dspace.kernel.DSpaceKernel;
+import org.dspace.kernel.DSpaceKernelManager;
+import org.dspace.kernel.ServiceManager;
+import org.dspace.pack.mets.METSPacker;
+import org.dspace.services.ConfigurationService;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that the pooled METS packers of the PackerFactory are never shared
+ * by workers packing at the same time
+ */
+public class PackerFactoryTest {
+
+    @Before
+    public void setup() {
+        final ServiceManager serviceManager = new TestServiceManager();
+        final ConfigurationService configurationService = new TestConfigurationService();
+        configurationService.setProperty("replicate.packer.pkgtype", "mets");
+        configurationService.setProperty("replicate.packer.archfmt", "zip");
+
+        serviceManager.registerService(ConfigurationService.class.getName(), configurationService);
+        serviceManager.registerService(DSPACE_SERVICES_FACTORY, new TestDSpaceServicesFactory());
+        serviceManager.registerService(CONTENT_SERVICE_FACTORY, new TestContentServiceFactory());
+        serviceManager.registerService("coreServiceFactory", mock(CoreServiceFactory.class));
+
+        final DSpaceKernel kernel = new TestDSpaceKernelImpl(serviceManager, configurationService);
+        DSpaceKernelManager.registerMBean(kernel.getMBeanName(), kernel);
+        DSpaceKernelManager.setDefaultKernel(kernel);
+    }
+
+    @Test
+    public void releasedPackerIsReused() {
+        final Item first = mock(Item.class);
+        final Packer packer = PackerFactory.instance(first);
+        assertThat(((METSPacker) packer).getDSO()).isSameAs(first);
+        PackerFactory.release(packer);
+
+        // the pool (of up to two packers per processor) is handed out before any new packer
+        final Item second = mock(Item.class);
+        final List<Packer> inUse = new ArrayList<>();
+        boolean reused = false;
+        for (int i = 0; i <= 2 * Runtime.getRuntime().availableProcessors(); i++) {
+            final Packer next = PackerFactory.instance(second);
+            assertThat(((METSPacker) next).getDSO()).isSameAs(second);
+            reused |= next == packer;
+            inUse.add(next);
+        }
+        assertThat(reused).isTrue();
+        for (final Packer next : inUse) {
+            PackerFactory.release(next);
+        }
+    }
+
+    @Test
+    public void concurrentWorkersHavePackersOfTheirOwn() throws Exception {
+        final ExecutorService workers = Executors.newFixedThreadPool(8);
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Future<Integer>> results = new ArrayList<>();
+        try {
+            for (int i = 0; i < 8; i++) {
+                results.add(workers.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        final Item item = mock(Item.class);
+                        start.await();
+                        int shared = 0;
+                        for (int n = 0; n < 500; n++) {
+                            final METSPacker packer = (METSPacker) PackerFactory.instance(item);
+                            Thread.yield();
+                            // another worker handed the same packer would have set its own object
+                            if (packer.getDSO() != item) {
+                                shared++;
+                            }
+                            PackerFactory.release(packer);
+                        }
+                        return shared;
+                    }
+                }));
+            }
+            start.countDown();
+            for (final Future<Integer> result : results) {
+                assertThat(result.get(30, TimeUnit.SECONDS)).isEqualTo(0);
+            }
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+}
@@ -16,6 +16,7 @@ import static org.mockito.Mockito.when;
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
 import java.nio.file.Files;
@@ -25,9 +26,11 @@ import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 
 import com.google.common.collect.ImmutableMap;
 import org.apache.commons.compress.archivers.ArchiveEntry;
@@ -144,6 +147,74 @@ public class BagItAipWriterTest extends BagItPackerTest {
         Files.delete(packagedAip.toPath());
     }
 
+    @Test
+    public void testWriteAipWithPayloadStore() throws Exception {
+        final String bagName = "test-write-payload-aip";
+        final URL resources = this.getClass().getClassLoader().getResource("");
+        final Path root = Paths.get(Objects.requireNonNull(resources).toURI());
+
+        // two bitstreams with the same content, one already in the payload store
+        final String checksum = "5d41402abc4b2a76b9719d911017c592";
+        final Bitstream bitstream = initDSO(Bitstream.class);
+        bitstream.setChecksum(checksum);
+        bitstream.setChecksumAlgorithm("MD5");
+        bitstream.setSizeBytes(5);
+        final Bitstream duplicate = initDSO(Bitstream.class);
+        duplicate.setChecksum(checksum);
+        duplicate.setChecksumAlgorithm("MD5");
+        duplicate.setSizeBytes(5);
+        bitstreams.add(new BagBitstream(bitstream, bundleName, policies, metadata));
+        bitstreams.add(new BagBitstream(duplicate, bundleName, policies, metadata));
+
+        final Map<String, byte[]> payloads = new HashMap<>();
+        final PayloadStore payloadStore = new PayloadStore() {
+            @Override
+            public Set<String> missing(final Set<String> checksums) {
+                final Set<String> missing = new HashSet<>(checksums);
+                missing.removeAll(payloads.keySet());
+                return missing;
+            }
+
+            @Override
+            public long store(final String checksum, final long size, final InputStream content) throws IOException {
+                payloads.put(checksum, IOUtils.toByteArray(content));
+                return size;
+            }
+
+            @Override
+            public InputStream open(final String checksum) {
+                return new ByteArrayInputStream(payloads.get(checksum));
+            }
+        };
+
+        when(bitstreamService.retrieve(any(Context.class), any(Bitstream.class)))
+            .thenReturn(new ByteArrayInputStream("hello".getBytes()));
+
+        final File packagedAip = new BagItAipWriter(root.resolve(bagName).toFile(), archFmt, properties)
+            .withMetadata(metadata)
+            .withPolicies(policies)
+            .withBitstreams(bitstreams)
+            .withPayloadStore(payloadStore)
+            .packageAip();
+
+        // the content is stored once, and not written to the bag
+        verify(bitstreamService, times(1)).retrieve(any(Context.class), any(Bitstream.class));
+        assertThat(payloads).containsOnlyKeys(checksum);
+        assertThat(payloads.get(checksum)).isEqualTo("hello".getBytes());
+
+        final BagItAipReader reader = new BagItAipReader(packagedAip.toPath());
+        reader.validateBag();
+        final List<PackagedBitstream> packaged = reader.findBitstreams();
+        assertThat(packaged).hasSize(2);
+        for (PackagedBitstream packagedBitstream : packaged) {
+            assertThat(packagedBitstream.getBundle()).isEqualTo(bundleName);
+            assertThat(packagedBitstream.getPayload()).isEqualTo(checksum);
+        }
+        reader.clean();
+
+        Files.delete(packagedAip.toPath());
+    }
+
     @Test(expected = IllegalStateException.class)
     public void testWriteAipExists() throws Exception {
         final String bagName = "existing-bagit-aip";
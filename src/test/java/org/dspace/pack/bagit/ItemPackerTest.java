@@ -9,6 +9,10 @@ package org.dspace.pack.bagit;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.dspace.content.MetadataSchema.DC_SCHEMA;
+import static org.dspace.pack.PackerFactory.OBJECT_TYPE;
+import static org.dspace.pack.PackerFactory.OBJFILE;
+import static org.dspace.pack.bagit.BagItAipWriter.OBJ_TYPE_ITEM;
+import static org.dspace.pack.bagit.BagItAipWriter.PROPERTIES_DELIMITER;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.nullable;
@@ -17,6 +21,7 @@ import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.isNull;
 import static org.mockito.Matchers.matches;
 import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -24,6 +29,7 @@ import static org.mockito.Mockito.when;
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.Field;
 import java.net.URL;
@@ -36,6 +42,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
+import com.google.common.collect.ImmutableMap;
 import org.assertj.core.util.Files;
 import org.dspace.authorize.ResourcePolicy;
 import org.dspace.authorize.factory.AuthorizeServiceFactory;
@@ -58,6 +65,9 @@ import org.dspace.eperson.factory.EPersonServiceFactory;
 import org.dspace.eperson.service.EPersonService;
 import org.dspace.eperson.service.GroupService;
 import org.dspace.handle.Handle;
+import org.dspace.pack.bagit.xml.metadata.Metadata;
+import org.dspace.pack.bagit.xml.metadata.Value;
+import org.dspace.pack.bagit.xml.policy.Policies;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -76,6 +86,7 @@ public class ItemPackerTest extends BagItPackerTest {
     private static final String PRIMARY_NAME = "primary";
     private static final String LICENSE_NAME = "license";
     private static final String BUNDLE_NAME = "bundle";
+    private static final String PAYLOAD_CHECKSUM = "5d41402abc4b2a76b9719d911017c592";
 
     // mocked values
     private ItemService itemService;
@@ -357,4 +368,95 @@ public class ItemPackerTest extends BagItPackerTest {
         assertThat(openArchive).doesNotExist();
     }
 
-}
\ No newline at end of file
+    @Test
+    public void testUnpackFromPayloadStore() throws Exception {
+        final File archive = packPayloadReference("item-packer-payload");
+
+        final Item item = initDSO(Item.class);
+        final Bundle originalBundle = initDSO(Bundle.class);
+        final Bitstream restored = initDSO(Bitstream.class);
+        restored.setChecksum(PAYLOAD_CHECKSUM);
+        final InputStream payload = new ByteArrayInputStream("hello".getBytes());
+        final PayloadStore payloadStore = mock(PayloadStore.class);
+        when(payloadStore.open(PAYLOAD_CHECKSUM)).thenReturn(payload);
+        when(bundleService.create(any(Context.class), eq(item), eq(BUNDLE_NAME))).thenReturn(originalBundle);
+        when(bitstreamService.create(any(Context.class), eq(originalBundle), eq(payload))).thenReturn(restored);
+
+        final ItemPacker packer = new ItemPacker(item, archFmt);
+        packer.setPayloadStore(payloadStore);
+        packer.unpack(archive);
+
+        // the bitstream is created from the payload store, rather than from the aip
+        verify(payloadStore, times(1)).open(PAYLOAD_CHECKSUM);
+        verify(bitstreamService, times(1)).create(any(Context.class), eq(originalBundle), any(InputStream.class));
+        verify(bitstreamService, times(1)).setMetadataSingleValue(any(Context.class), eq(restored), eq(DC_SCHEMA),
+                                                                  eq("title"), isNull(String.class),
+                                                                  isNull(String.class), eq(PRIMARY_NAME));
+        verify(bitstreamService, times(1)).update(any(Context.class), eq(restored));
+
+        archive.delete();
+    }
+
+    @Test
+    public void testUnpackFromPayloadStoreChecksumMismatch() throws Exception {
+        final File archive = packPayloadReference("item-packer-payload-mismatch");
+
+        final Item item = initDSO(Item.class);
+        final Bundle originalBundle = initDSO(Bundle.class);
+        final Bitstream restored = initDSO(Bitstream.class);
+        restored.setChecksum("0123456789abcdef0123456789abcdef");
+        final PayloadStore payloadStore = mock(PayloadStore.class);
+        when(payloadStore.open(PAYLOAD_CHECKSUM)).thenReturn(new ByteArrayInputStream("corrupt".getBytes()));
+        when(bundleService.create(any(Context.class), eq(item), eq(BUNDLE_NAME))).thenReturn(originalBundle);
+        when(bitstreamService.create(any(Context.class), eq(originalBundle), any(InputStream.class)))
+            .thenReturn(restored);
+
+        final ItemPacker packer = new ItemPacker(item, archFmt);
+        packer.setPayloadStore(payloadStore);
+        try {
+            packer.unpack(archive);
+            fail("Expected the payload checksum to be checked");
+        } catch (IOException e) {
+            assertThat(e).hasMessageContaining("does not match its checksum");
+        }
+
+        verify(bitstreamService, never()).update(any(Context.class), eq(restored));
+
+        // the failed unpack leaves the opened aip behind
+        Files.delete(new File(archive.getParentFile(), "item-packer-payload-mismatch"));
+        archive.delete();
+    }
+
+    /**
+     * Pack an item AIP whose single bitstream is held in a payload store, so the AIP only refers to it
+     *
+     * @param name the name of the AIP
+     * @return the packed AIP
+     * @throws Exception if the AIP cannot be packed
+     */
+    private File packPayloadReference(final String name) throws Exception {
+        final URL resources = ItemPackerTest.class.getClassLoader().getResource("");
+        assertNotNull(resources);
+        final Path output = Paths.get(resources.toURI().resolve(name));
+
+        final Bitstream bitstream = initDSO(Bitstream.class);
+        bitstream.setChecksum(PAYLOAD_CHECKSUM);
+        bitstream.setChecksumAlgorithm("MD5");
+        bitstream.setSizeBytes(5);
+        final Metadata bitstreamMetadata = new Metadata();
+        bitstreamMetadata.addValue(new Value(PRIMARY_NAME, "name"));
+
+        // the payload is already in the store, so is not read from the bitstream
+        final PayloadStore payloadStore = mock(PayloadStore.class);
+        final List<String> objectProperties = Collections.singletonList(OBJECT_TYPE + PROPERTIES_DELIMITER +
+                                                                        OBJ_TYPE_ITEM);
+        return new BagItAipWriter(output.toFile(), archFmt, ImmutableMap.of(OBJFILE, objectProperties))
+            .withPolicies(new Policies())
+            .withMetadata(new Metadata())
+            .withBitstreams(Collections.singletonList(new BagBitstream(bitstream, BUNDLE_NAME, new Policies(),
+                                                                       bitstreamMetadata)))
+            .withPayloadStore(payloadStore)
+            .packageAip();
+    }
+
+}